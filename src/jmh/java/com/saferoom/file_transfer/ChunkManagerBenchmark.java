@@ -0,0 +1,81 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Slice to mapped window lookup as the retransmission thread and the
+ * receiver do it for every packet: acquireWindow + release (window mapped).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class ChunkManagerBenchmark {
+
+    private static final long FILE_SIZE = 256L << 20;
+
+    private Path file;
+    private ChunkManager chunks;
+    private int totalSeq;
+    private int seq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("saferoom-jmh-chunks", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(FILE_SIZE); // sparse: mapping cost is not what we measure
+        }
+        chunks = new ChunkManager(file, EnhancedFileTransferSender.SLICE_SIZE);
+        totalSeq = chunks.getTotalSequenceCount();
+        chunks.acquireWindow(0).release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        chunks.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int acquireHit() throws IOException {
+        MappedWindow w = chunks.acquireWindow(0);
+        int off = w.offsetOf(0);
+        w.release();
+        return off;
+    }
+
+    /**
+     * Sequential walk over the whole file: mostly hits, plus a (lazy) map and
+     * an unmap at every window boundary
+     */
+    @Benchmark
+    public int sliceLookup() throws IOException {
+        int s = seq++;
+        if (seq == totalSeq) {
+            seq = 0;
+        }
+        MappedWindow w = chunks.acquireWindow(s);
+        int off = w.offsetOf(s);
+        w.release();
+        return off;
+    }
+}
@@ -0,0 +1,68 @@
+package com.saferoom.file_transfer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-packet header and per-frame NACK encoding cost.
+ * Both run once per datagram / every 25ms and must not allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class PacketEncodingBenchmark {
+
+    private CRC32C_Packet pkt;
+    private NackFrame frame;
+    private int[] burstRuns;
+    private int[] scatteredRuns;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        pkt = new CRC32C_Packet();
+        frame = new NackFrame();
+        burstRuns = new int[]{ 1_000, 4_000 };
+        // every 4th slice lost over 2000 slices
+        scatteredRuns = new int[1_000];
+        for (int i = 0; i < 500; i++) {
+            scatteredRuns[2 * i] = 64 + 4 * i;
+            scatteredRuns[2 * i + 1] = 65 + 4 * i;
+        }
+    }
+
+    @Benchmark
+    public CRC32C_Packet fillHeader() {
+        pkt.fillHeader(42L, seq++, 1 << 20, EnhancedFileTransferSender.SLICE_SIZE, seq * 31);
+        return pkt;
+    }
+
+    @Benchmark
+    public NackFrame nackFill() {
+        frame.fill(42L, seq++, 0xFFFF_FFFF_0000_FFFFL);
+        return frame;
+    }
+
+    @Benchmark
+    public int nackFillExtendedBurst() {
+        return frame.fillExtended(42L, 0, -1L, burstRuns, 1, 5_000);
+    }
+
+    @Benchmark
+    public int nackFillExtendedScattered() {
+        return frame.fillExtended(42L, 0, 0L, scatteredRuns, 500, 2_100);
+    }
+}
@@ -0,0 +1,116 @@
+package com.saferoom.natghost;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * KeepAliveManager's per-datagram work for a SIG_MESSAGE, socket excluded:
+ * copy the datagram into the receive buffer, read the sender, refresh its
+ * address and activity, hand the frame on.
+ *
+ * reflective: the old listener - a fresh 2 KB buffer per datagram,
+ * Class.forName + getDeclaredField/getDeclaredMethod + setAccessible for
+ * both peer maps and the handler, Method.invoke.
+ *
+ * table: {@link PacketDispatcher} with the event loop's reused receive
+ * buffer and {@link PeerDirectory}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class PacketDispatchBenchmark {
+
+    /** Stand-in for NatAnalyzer's private statics, looked up the old way */
+    static final class Analyzer {
+        private static final Map<String, InetSocketAddress> activePeers = new ConcurrentHashMap<>();
+        private static final Map<String, Long> lastActivity = new ConcurrentHashMap<>();
+        static Blackhole sink;
+
+        private static void handleIncomingMessage(ByteBuffer frame, SocketAddress from) {
+            sink.consume(frame);
+        }
+    }
+
+    private final InetSocketAddress from = new InetSocketAddress("127.0.0.1", 40000);
+    private byte[] datagram;
+    private ByteBuffer receiveBuffer;
+    private PacketDispatcher dispatcher;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        ByteBuffer packet = LLS.New_Message_Packet("alice", "bob", "hello over the punched hole");
+        datagram = new byte[packet.remaining()];
+        packet.get(datagram);
+
+        Analyzer.sink = bh;
+        Analyzer.activePeers.put("alice", from);
+        PeerDirectory peers = new PeerDirectory(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        peers.register("alice", from);
+        receiveBuffer = ByteBuffer.allocate(NatReactor.RECEIVE_BUFFER);
+        dispatcher = new PacketDispatcher()
+            .on(LLS.SIG_MESSAGE, "message", (frame, src, channel) -> {
+                byte[] senderBytes = new byte[20];
+                frame.get(frame.position() + 3, senderBytes);
+                peers.seen(new String(senderBytes).trim(), src);
+                bh.consume(frame.duplicate());
+            });
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public void reflective() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(2048);
+        buf.put(datagram).flip();
+
+        ByteBuffer msgBuf = buf.duplicate();
+        msgBuf.get();
+        msgBuf.getShort();
+        byte[] senderBytes = new byte[20];
+        msgBuf.get(senderBytes);
+        String sender = new String(senderBytes).trim();
+
+        Field activePeersField = Class.forName(Analyzer.class.getName()).getDeclaredField("activePeers");
+        activePeersField.setAccessible(true);
+        Map<String, InetSocketAddress> activePeers = (Map<String, InetSocketAddress>) activePeersField.get(null);
+        InetSocketAddress oldAddr = activePeers.get(sender);
+        if (oldAddr == null || !oldAddr.equals(from)) {
+            activePeers.put(sender, from);
+        }
+        Field lastActivityField = Class.forName(Analyzer.class.getName()).getDeclaredField("lastActivity");
+        lastActivityField.setAccessible(true);
+        ((Map<String, Long>) lastActivityField.get(null)).put(sender, System.currentTimeMillis());
+
+        Method method = Class.forName(Analyzer.class.getName())
+            .getDeclaredMethod("handleIncomingMessage", ByteBuffer.class, SocketAddress.class);
+        method.setAccessible(true);
+        method.invoke(null, buf.duplicate(), from);
+    }
+
+    @Benchmark
+    public boolean table() {
+        receiveBuffer.clear();
+        receiveBuffer.put(datagram).flip();
+        return dispatcher.dispatch(receiveBuffer, from, null);
+    }
+}
@@ -0,0 +1,137 @@
+package com.saferoom.p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import com.saferoom.file_transfer.CRC32C_Packet;
+import com.saferoom.file_transfer.EnhancedFileTransferSender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One 8 MiB file over a DataChannel, both framings, CPU side only (the native
+ * send is modelled as the copy it makes, SCTP itself is out of the picture).
+ *
+ * datagramFrames: what the datagram mode does per 1450-byte slice - header,
+ * CRC32C, send copy, allocateDirect copy in DataChannelWrapper, CRC check,
+ * put into the mapped file. Lower bound: no NACK loop, no congestion control.
+ *
+ * largeFrames: {@link DataChannelStreamTransfer} end to end, sender and
+ * receiver wired back to back (OFFER/ACCEPT, 128 KB DATA, END/DONE + force).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class DataChannelFramingBenchmark {
+
+    private static final int SLICE = EnhancedFileTransferSender.SLICE_SIZE;
+    private static final int FILE_BYTES = 8 << 20;
+
+    private Path dir;
+    private Path source;
+    private Path target;
+    private MappedByteBuffer src;
+    private FileChannel dstChannel;
+    private MappedByteBuffer dst;
+    private ByteBuffer wire;
+    private ByteBuffer back;
+    private CRC32C crc;
+    private CRC32C_Packet pkt;
+    private DataChannelStreamTransfer sender;
+    private DataChannelStreamTransfer receiver;
+    private long fileId;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dc-framing-bench");
+        source = dir.resolve("in.bin");
+        target = dir.resolve("out.bin");
+        byte[] data = new byte[FILE_BYTES];
+        new Random(1).nextBytes(data);
+        Files.write(source, data);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            src = in.map(FileChannel.MapMode.READ_ONLY, 0, FILE_BYTES);
+        }
+        dstChannel = FileChannel.open(dir.resolve("mapped.bin"), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        dst = dstChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+        wire = ByteBuffer.allocateDirect(DataChannelStreamTransfer.DATA_HEADER + DataChannelStreamTransfer.FRAME_BYTES);
+        back = ByteBuffer.allocateDirect(DataChannelStreamTransfer.CONTROL_SIZE);
+        crc = new CRC32C();
+        pkt = new CRC32C_Packet();
+
+        receiver = new DataChannelStreamTransfer(msg -> sender.onMessage(copy(msg, back)), bytes -> { }, id -> target, null);
+        sender = new DataChannelStreamTransfer(msg -> receiver.onMessage(copy(msg, wire)), bytes -> { }, id -> target, null);
+    }
+
+    /** What the native send does with the message */
+    private static ByteBuffer copy(ByteBuffer msg, ByteBuffer into) {
+        into.clear();
+        into.put(msg).flip();
+        return into;
+    }
+
+    @Benchmark
+    public long datagramFrames() {
+        int totalSeq = (FILE_BYTES + SLICE - 1) / SLICE;
+        long sum = 0;
+        for (int seq = 0; seq < totalSeq; seq++) {
+            int off = seq * SLICE;
+            int len = Math.min(SLICE, FILE_BYTES - off);
+            ByteBuffer payload = src.slice(off, len);
+            crc.reset();
+            crc.update(payload.duplicate());
+            pkt.fillHeader(42L, seq, totalSeq, len, (int) crc.getValue());
+            wire.clear();
+            wire.put(pkt.headerBuffer().duplicate()).put(payload).flip();
+
+            ByteBuffer copy = ByteBuffer.allocateDirect(wire.remaining()); // onDataChannelMessage
+            copy.put(wire).flip();
+
+            ByteBuffer body = copy.position(CRC32C_Packet.HEADER_SIZE);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() == copy.getInt(CRC32C_Packet.OFF_CRC)) {
+                dst.put(off, body, body.position(), len);
+                sum += len;
+            }
+        }
+        dst.force();
+        return sum;
+    }
+
+    @Benchmark
+    public boolean largeFrames() throws IOException {
+        return sender.send(source, ++fileId, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dstChannel.close();
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(dir.resolve("mapped.bin"));
+        Files.deleteIfExists(dir);
+    }
+}
@@ -0,0 +1,185 @@
+package com.saferoom.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Chat delivery latency while a file transfer saturates the same peer
+ * connection, with and without {@link PrioritySendScheduler}.
+ * Kullanım: java PriorityLatencyBenchmark [rate_mbps=50] [messages=200] [seed]
+ * (a plain main, not a JMH benchmark: run it on the jmh source set's runtime classpath)
+ *
+ * Emulated in real time like CongestionControlBenchmark:
+ * - one FIFO for the SCTP association, drained at the link rate (the worst
+ *   case: a shared send buffer, no message interleaving between streams)
+ * - a bulk sender writing 128 KB frames behind the usual bufferedAmount
+ *   watermarks ({@link WritableGate}), like the large-frame file path
+ * - a chat sender writing 300-byte messages at random intervals (mean 20 ms)
+ *   on its own channel
+ *
+ * Latency is from the chat send call until its last byte leaves the link.
+ * Reports p50 / p99 / max chat latency and the bulk goodput per run.
+ */
+public class PriorityLatencyBenchmark {
+
+    private static final int FRAME = 128 * 1024;
+    private static final int CHAT = 300;
+    private static final long CHAT_MEAN_NS = 20_000_000;
+    private static final long WARMUP_NS = 1_000_000_000;
+
+    record Result(String mode, double p50Ms, double p99Ms, double maxMs, double bulkMbps, String scheduler) { }
+
+    public static void main(String[] args) throws Exception {
+        double rateMbps = args.length > 0 ? Double.parseDouble(args[0]) : 50;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 7L;
+
+        List<Result> results = new ArrayList<>();
+        for (boolean priority : new boolean[]{false, true}) {
+            results.add(new Simulation((long) (rateMbps * 1e6), priority, new Random(seed)).run(messages));
+        }
+
+        System.out.println();
+        System.out.printf("=== Chat latency under a saturating transfer (%.0f Mbps, %d messages, watermark %d KB) ===%n",
+            rateMbps, messages, WritableGate.HIGH_WATERMARK >> 10);
+        System.out.printf("%-10s %9s %9s %9s %10s%n", "mode", "p50 ms", "p99 ms", "max ms", "bulk Mbps");
+        for (Result r : results) {
+            System.out.printf("%-10s %9.1f %9.1f %9.1f %10.1f%n", r.mode(), r.p50Ms(), r.p99Ms(), r.maxMs(), r.bulkMbps());
+        }
+        System.out.println(results.get(1).scheduler());
+    }
+
+    private static final class Simulation {
+        private final long rateBps;
+        private final boolean priority;
+        private final Random random;
+
+        private record Message(int bytes, boolean chat, long sentNanos) { }
+
+        private final LinkedBlockingQueue<Message> association = new LinkedBlockingQueue<>();
+        private final AtomicLong bulkBuffered = new AtomicLong();
+        private final AtomicLong chatBuffered = new AtomicLong();
+        private final AtomicLong bulkDelivered = new AtomicLong();
+        private final WritableGate gate = new WritableGate(bulkBuffered::get);
+        private final PrioritySendScheduler scheduler =
+            new PrioritySendScheduler(chatBuffered::get, bulkBuffered::get);
+        private final List<Long> latencies = new ArrayList<>();
+        private volatile boolean running = true;
+
+        Simulation(long rateBps, boolean priority, Random random) {
+            this.rateBps = rateBps;
+            this.priority = priority;
+            this.random = random;
+        }
+
+        Result run(int messages) throws Exception {
+            Thread wire = new Thread(this::wire, "sim-wire");
+            Thread bulk = new Thread(this::bulk, "sim-bulk");
+            wire.setDaemon(true);
+            bulk.setDaemon(true);
+            wire.start();
+            bulk.start();
+
+            LockSupport.parkNanos(WARMUP_NS); // buffer full before the first message
+            long start = System.nanoTime();
+            long bulkStart = bulkDelivered.get();
+            ByteBuffer chat = ByteBuffer.allocate(CHAT);
+            for (int i = 0; i < messages; i++) {
+                LockSupport.parkNanos((long) (-Math.log(1 - random.nextDouble()) * CHAT_MEAN_NS));
+                Message m = new Message(CHAT, true, System.nanoTime());
+                if (priority) {
+                    scheduler.send(TrafficClass.INTERACTIVE, chat.duplicate(), b -> enqueue(m));
+                } else {
+                    enqueue(m);
+                }
+            }
+            while (latencyCount() < messages) {
+                LockSupport.parkNanos(1_000_000);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double bulkMbps = (bulkDelivered.get() - bulkStart) * 8 / seconds / 1e6;
+            running = false;
+            bulk.interrupt();
+            wire.interrupt();
+
+            long[] sorted;
+            synchronized (latencies) {
+                sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            return new Result(priority ? "priority" : "fifo", percentile(sorted, 0.50), percentile(sorted, 0.99),
+                sorted[sorted.length - 1] / 1e6, bulkMbps, scheduler.toString());
+        }
+
+        private void enqueue(Message m) {
+            (m.chat() ? chatBuffered : bulkBuffered).addAndGet(m.bytes());
+            association.add(m);
+        }
+
+        /** Bulk: watermark like FlowControlledEndpoint.awaitWritable, then the priority classes */
+        private void bulk() {
+            try {
+                while (running) {
+                    CompletableFuture<Void> room = gate.writable(FRAME);
+                    try {
+                        room.get(FlowControlledEndpoint.RECHECK_MS, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        continue;
+                    }
+                    if (priority) {
+                        scheduler.awaitBulk(FRAME);
+                    }
+                    enqueue(new Message(FRAME, false, System.nanoTime()));
+                }
+            } catch (Exception e) {
+                // interrupted at the end of the run
+            }
+        }
+
+        /** The link: one message at a time at rateBps, on a virtual finish clock */
+        private void wire() {
+            long finish = System.nanoTime();
+            try {
+                while (running) {
+                    Message m = association.take();
+                    finish = Math.max(finish, System.nanoTime()) + m.bytes() * 8L * 1_000_000_000L / rateBps;
+                    long wait = finish - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (m.chat()) {
+                        chatBuffered.addAndGet(-m.bytes());
+                        synchronized (latencies) {
+                            latencies.add(finish - m.sentNanos());
+                        }
+                    } else {
+                        bulkBuffered.addAndGet(-m.bytes());
+                        bulkDelivered.addAndGet(m.bytes());
+                    }
+                    gate.onBufferedAmountChange();
+                    scheduler.onBufferedAmountChange();
+                }
+            } catch (InterruptedException e) {
+                // end of the run
+            }
+        }
+
+        private int latencyCount() {
+            synchronized (latencies) {
+                return latencies.size();
+            }
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            int i = (int) Math.ceil(sorted.length * p) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Table of contents of a batch session (a folder or a list of files sent as
+ * one transfer).
+ *
+ * A batch is one continuous byte stream: the encoded manifest, then every
+ * file's bytes back to back in manifest order. The transport sees a single
+ * file of {@link #streamBytes()} bytes - one handshake, one sequence space -
+ * and the receiver cuts it back into files with {@link BatchMaterializer}.
+ *
+ * Layout (big endian):
+ * <pre>
+ *  0  magic          int   'SRBT'
+ *  4  version        byte
+ *  5  count          int
+ *  9  manifestBytes  int   (header included)
+ * 13  entries        [pathLen u16][path utf8][size long][mtime long]
+ * </pre>
+ * Paths are relative, '/'-separated; size {@link #DIRECTORY} marks an empty
+ * directory (the others come with their files). Decoding rejects absolute
+ * paths and '..' segments: the receiver never writes outside its root.
+ */
+public final class BatchManifest {
+
+    public static final long DIRECTORY = -1;
+    public static final int MAX_ENTRIES = Integer.getInteger("saferoom.transfer.batch.maxEntries", 1_000_000);
+
+    static final int MAGIC = 0x53524254; // "SRBT"
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 13;
+    private static final int MAX_MANIFEST_BYTES = 256 << 20;
+
+    public record Entry(String path, long size, long mtime) {
+        public boolean isDirectory() {
+            return size == DIRECTORY;
+        }
+
+        /** Bytes of this entry in the stream (0 for directories) */
+        public long length() {
+            return Math.max(0, size);
+        }
+    }
+
+    private final List<Entry> entries;
+    private final long[] offsets; // stream offset of each entry's first byte
+    private final int manifestBytes;
+    private final long totalBytes;
+    private final int fileCount;
+
+    private BatchManifest(List<Entry> entries) {
+        this.entries = List.copyOf(entries);
+        int encoded = HEADER_SIZE;
+        int files = 0;
+        for (Entry e : this.entries) {
+            encoded += 2 + e.path().getBytes(StandardCharsets.UTF_8).length + 16;
+            files += e.isDirectory() ? 0 : 1;
+        }
+        this.fileCount = files;
+        this.manifestBytes = encoded;
+        this.offsets = new long[this.entries.size()];
+        long offset = encoded;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += this.entries.get(i).length();
+        }
+        this.totalBytes = offset - encoded;
+    }
+
+    /** Every regular file under {@code dir} (and its empty directories), paths relative to it */
+    public static BatchManifest scan(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.filter(p -> !p.equals(dir))
+                .filter(p -> Files.isRegularFile(p) || isEmptyDirectory(p))
+                .forEach(files::add);
+        }
+        Collections.sort(files); // stable order: parents before children, same stream on every run
+        return of(dir, files);
+    }
+
+    /** The given files (or empty directories) under {@code root} */
+    public static BatchManifest of(Path root, List<Path> files) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        List<Entry> entries = new ArrayList<>(files.size());
+        for (Path f : files) {
+            Path abs = base.resolve(f).normalize();
+            if (!abs.startsWith(base) || abs.equals(base)) {
+                throw new IOException("Not under " + root + ": " + f);
+            }
+            BasicFileAttributes attrs = Files.readAttributes(abs, BasicFileAttributes.class);
+            String rel = base.relativize(abs).toString().replace(abs.getFileSystem().getSeparator(), "/");
+            long size = attrs.isDirectory() ? DIRECTORY : attrs.size();
+            entries.add(new Entry(validate(rel), size, attrs.lastModifiedTime().toMillis()));
+        }
+        if (entries.size() > MAX_ENTRIES) {
+            throw new IOException("Batch of " + entries.size() + " entries, limit " + MAX_ENTRIES);
+        }
+        return new BatchManifest(entries);
+    }
+
+    public int count() {
+        return entries.size();
+    }
+
+    /** Entries that are files (not empty directories) */
+    public int fileCount() {
+        return fileCount;
+    }
+
+    public Entry entry(int i) {
+        return entries.get(i);
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /** Stream offset of entry {@code i}'s first byte */
+    public long offset(int i) {
+        return offsets[i];
+    }
+
+    /** Encoded manifest size: file data starts here */
+    public int manifestBytes() {
+        return manifestBytes;
+    }
+
+    /** File bytes only */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /** Manifest plus file bytes: the size the transport sends */
+    public long streamBytes() {
+        return manifestBytes + totalBytes;
+    }
+
+    /** Where entry {@code e} goes under {@code root}; never outside it */
+    public static Path resolve(Path root, Entry e) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        Path target = base.resolve(e.path()).normalize();
+        if (!target.startsWith(base) || target.equals(base)) {
+            throw new IOException("Entry escapes the target directory: " + e.path());
+        }
+        return target;
+    }
+
+    public ByteBuffer encode() {
+        ByteBuffer b = ByteBuffer.allocate(manifestBytes).order(ByteOrder.BIG_ENDIAN);
+        b.putInt(MAGIC).put(VERSION).putInt(entries.size()).putInt(manifestBytes);
+        for (Entry e : entries) {
+            byte[] path = e.path().getBytes(StandardCharsets.UTF_8);
+            b.putShort((short) path.length).put(path).putLong(e.size()).putLong(e.mtime());
+        }
+        return b.flip();
+    }
+
+    /** True if {@code header} starts like an encoded manifest (at least {@link #HEADER_SIZE} bytes) */
+    public static boolean isManifest(ByteBuffer header) {
+        ByteBuffer b = header.duplicate().order(ByteOrder.BIG_ENDIAN);
+        return b.remaining() >= HEADER_SIZE && b.getInt(b.position()) == MAGIC
+            && b.get(b.position() + 4) == VERSION;
+    }
+
+    /** Full manifest size announced by a header, or -1 if it is not one */
+    static int manifestBytes(ByteBuffer header) {
+        if (!isManifest(header)) {
+            return -1;
+        }
+        int size = header.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(header.position() + 9);
+        return size >= HEADER_SIZE && size <= MAX_MANIFEST_BYTES ? size : -1;
+    }
+
+    public static BatchManifest decode(ByteBuffer src) throws IOException {
+        ByteBuffer b = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int size = manifestBytes(b);
+        if (size < 0 || b.remaining() < size) {
+            throw new IOException("Not a batch manifest");
+        }
+        int start = b.position();
+        b.position(start + 5);
+        int count = b.getInt();
+        b.getInt();
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IOException("Batch of " + count + " entries, limit " + MAX_ENTRIES);
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(count, 4096));
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] path = new byte[Short.toUnsignedInt(b.getShort())];
+                b.get(path);
+                long len = b.getLong();
+                long mtime = b.getLong();
+                if (len < DIRECTORY) {
+                    throw new IOException("Negative size for entry " + i);
+                }
+                entries.add(new Entry(validate(new String(path, StandardCharsets.UTF_8)), len, mtime));
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated batch manifest", e);
+        }
+        if (b.position() - start != size) {
+            throw new IOException("Manifest size mismatch: " + (b.position() - start) + " != " + size);
+        }
+        return new BatchManifest(entries);
+    }
+
+    private static String validate(String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0
+                || (path.length() > 1 && path.charAt(1) == ':')) {
+            throw new IOException("Invalid batch path: " + path);
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IOException("Invalid batch path: " + path);
+            }
+        }
+        if (path.getBytes(StandardCharsets.UTF_8).length > 0xFFFF) {
+            throw new IOException("Batch path too long: " + path.length() + " chars");
+        }
+        return path;
+    }
+
+    private static boolean isEmptyDirectory(Path p) {
+        if (!Files.isDirectory(p)) {
+            return false;
+        }
+        try (Stream<Path> children = Files.list(p)) {
+            return children.findAny().isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
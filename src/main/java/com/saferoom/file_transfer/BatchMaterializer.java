@@ -0,0 +1,208 @@
+package com.saferoom.file_transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Receiver side of a batch: takes the stream in order (manifest, then file
+ * bytes) and builds the directory tree under {@code root} as it goes. Each
+ * file is created when its first byte arrives and closed at its last one, so
+ * a folder shows up file by file rather than at the end.
+ *
+ * Files are not forced one by one - an fsync per small file would cost more
+ * than the transfer; {@link #finish()} only checks that the stream was
+ * complete. Not thread-safe: one writer, in stream order.
+ */
+public final class BatchMaterializer implements Closeable {
+
+    /** Aggregate progress of a batch */
+    public interface Listener {
+        /** {@code file} is complete on disk */
+        default void onFileMaterialized(Path file, long size) { }
+
+        /** After every write: files done of the manifest, file bytes done of its total */
+        default void onProgress(int filesDone, int fileCount, long bytesDone, long totalBytes) { }
+    }
+
+    private static final Listener NONE = new Listener() { };
+
+    private final Path root;
+    private final Listener listener;
+
+    // Manifest: header first (its size), then the rest
+    private ByteBuffer manifestBuf = ByteBuffer.allocate(BatchManifest.HEADER_SIZE);
+    private BatchManifest manifest;
+
+    private int index;        // current entry
+    private long entryDone;   // bytes of it written
+    private FileChannel out;
+    private int filesDone;
+    private long bytesDone;
+
+    public BatchMaterializer(Path root, Listener listener) {
+        this.root = root;
+        this.listener = listener != null ? listener : NONE;
+    }
+
+    /** The manifest, once its bytes have arrived; null before */
+    public BatchManifest manifest() {
+        return manifest;
+    }
+
+    public boolean isComplete() {
+        return manifest != null && index == manifest.count();
+    }
+
+    public int filesDone() {
+        return filesDone;
+    }
+
+    public long bytesDone() {
+        return bytesDone;
+    }
+
+    /** The next bytes of the stream; consumes all of {@code src} */
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (manifest == null) {
+                readManifest(src);
+                continue;
+            }
+            if (index == manifest.count()) {
+                throw new IOException("Batch stream longer than its manifest");
+            }
+            BatchManifest.Entry e = manifest.entry(index);
+            if (out == null) {
+                Path target = BatchManifest.resolve(root, e);
+                Files.createDirectories(target.getParent());
+                out = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+            int n = (int) Math.min(src.remaining(), e.length() - entryDone);
+            ByteBuffer part = src.slice(src.position(), n);
+            while (part.hasRemaining()) {
+                out.write(part);
+            }
+            src.position(src.position() + n);
+            entryDone += n;
+            bytesDone += n;
+            if (entryDone == e.length()) {
+                completeEntry();
+                skipEmptyEntries();
+            }
+        }
+        if (manifest != null) {
+            listener.onProgress(filesDone, manifest.fileCount(), bytesDone, manifest.totalBytes());
+        }
+    }
+
+    /** The stream ended: every entry must be on disk */
+    public void finish() throws IOException {
+        if (!isComplete()) {
+            throw new IOException(manifest == null ? "Batch ended inside its manifest"
+                : "Batch ended at entry " + index + " of " + manifest.count());
+        }
+    }
+
+    /** Unpack a spooled batch stream (see {@link BatchSource#writeTo}) */
+    public static BatchManifest unpack(Path stream, Path root, Listener listener) throws IOException {
+        try (BatchMaterializer m = new BatchMaterializer(root, listener);
+             FileChannel in = FileChannel.open(stream, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            while (in.read(buf.clear()) >= 0) {
+                m.write(buf.flip());
+            }
+            m.finish();
+            return m.manifest();
+        }
+    }
+
+    /** True if {@code file} starts with a batch manifest */
+    public static boolean isBatchStream(Path file) {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(BatchManifest.HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header) >= 0) { }
+            return BatchManifest.manifestBytes(header.flip()) > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Stop: the partial file (if any) is closed and removed, completed ones stay */
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            FileChannel fc = out;
+            out = null;
+            fc.close();
+            if (manifest != null && index < manifest.count()) {
+                Files.deleteIfExists(BatchManifest.resolve(root, manifest.entry(index)));
+            }
+        }
+    }
+
+    private void readManifest(ByteBuffer src) throws IOException {
+        int n = Math.min(src.remaining(), manifestBuf.remaining());
+        manifestBuf.put(manifestBuf.position(), src, src.position(), n);
+        manifestBuf.position(manifestBuf.position() + n);
+        src.position(src.position() + n);
+        if (manifestBuf.hasRemaining()) {
+            return;
+        }
+        if (manifestBuf.capacity() == BatchManifest.HEADER_SIZE) {
+            int size = BatchManifest.manifestBytes(manifestBuf.duplicate().flip());
+            if (size < 0) {
+                throw new IOException("Not a batch stream");
+            }
+            if (size > BatchManifest.HEADER_SIZE) {
+                manifestBuf = ByteBuffer.allocate(size).put(manifestBuf.flip());
+                return;
+            }
+        }
+        manifest = BatchManifest.decode(manifestBuf.flip());
+        manifestBuf = null;
+        System.out.printf("[BATCH] Manifest: %d entries, %,d bytes -> %s%n",
+            manifest.count(), manifest.totalBytes(), root);
+        Files.createDirectories(root);
+        skipEmptyEntries();
+    }
+
+    private void completeEntry() throws IOException {
+        BatchManifest.Entry e = manifest.entry(index);
+        Path target = BatchManifest.resolve(root, e);
+        if (e.isDirectory()) {
+            Files.createDirectories(target);
+        } else {
+            if (out == null) { // empty file: no byte ever opened it
+                Files.createDirectories(target.getParent());
+                Files.newByteChannel(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).close();
+            } else {
+                out.close();
+                out = null;
+            }
+            filesDone++;
+            listener.onFileMaterialized(target, e.size());
+        }
+        try {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(e.mtime()));
+        } catch (IOException ignored) {
+            // best effort, like the single-file path which keeps none
+        }
+        index++;
+        entryDone = 0;
+    }
+
+    /** Entries with no bytes are complete as soon as the stream reaches them */
+    private void skipEmptyEntries() throws IOException {
+        while (index < manifest.count() && manifest.entry(index).length() == 0) {
+            completeEntry();
+        }
+    }
+}
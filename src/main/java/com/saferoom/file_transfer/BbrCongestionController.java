@@ -0,0 +1,470 @@
+package com.saferoom.file_transfer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BBR-style model-based congestion control for the NAK protocol.
+ *
+ * Instead of reacting to NACK losses the controller keeps a path model:
+ * - BtlBw: windowed max of the delivery rate (last {@link #BW_WINDOW_ROUNDS} rounds)
+ * - RTprop: windowed min RTT (refreshed every {@link #MIN_RTT_WINDOW_NS})
+ *
+ * and paces at pacingGain x BtlBw with cwnd = cwndGain x (BDP + feedback allowance).
+ * Delivery comes from the receiver's NACK windows (cum_Ack + set mask bits), so a
+ * "round" is one delivery sample: max(RTprop, {@link #MIN_ROUND_NS}) - the NACK
+ * frames arrive every 10-50ms, that granularity is also added to cwnd as the
+ * ACK aggregation allowance (BBR's extra_acked).
+ *
+ * State machine: STARTUP (2/ln2) -> DRAIN -> PROBE_BW (1.25, 0.75, 1 x 6)
+ * with PROBE_RTT (4 packets, 200ms) whenever RTprop was not refreshed for 10s.
+ *
+ * In-flight = first-transmission file bytes - delivered slices; retransmissions
+ * and parity are not counted, a lost slice stays in flight until it is repaired.
+ *
+ * Thread-safety: send-side methods from any lane, feedback methods from the
+ * NACK listener only.
+ */
+public class BbrCongestionController implements CongestionController {
+
+    private enum Mode { STARTUP, DRAIN, PROBE_BW, PROBE_RTT }
+
+    private static final int PACKET_SIZE = 1450;
+    private static final long PACING_QUANTUM_NS = 500_000; // 500μs burst budget (Hybrid ile aynı)
+
+    private static final double HIGH_GAIN = 2.885;          // 2/ln(2)
+    private static final double DRAIN_GAIN = 1.0 / HIGH_GAIN;
+    private static final double CWND_GAIN = 2.0;
+    private static final double[] PROBE_BW_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+
+    static final int BW_WINDOW_ROUNDS = 10;
+    static final long MIN_RTT_WINDOW_NS = 10_000_000_000L; // 10s
+    static final long MIN_ROUND_NS = 20_000_000;           // NACK cadence is 10-50ms
+    private static final long PROBE_RTT_DURATION_NS = 200_000_000;
+    private static final long MIN_CWND = 4L * PACKET_SIZE;
+    private static final long INITIAL_CWND = 32L * PACKET_SIZE;
+    private static final int FULL_BW_ROUNDS = 3;
+    private static final double FULL_BW_GROWTH = 1.25;
+    private static final long MIN_INTERVAL_NS = 1_000;
+
+    // Path model
+    private final long[] bwSamples = new long[BW_WINDOW_ROUNDS]; // bytes/s per round
+    private int bwIndex = 0;
+    private volatile long btlBw;                                 // bytes/s
+    private volatile long minRtt = Long.MAX_VALUE;
+    private volatile long minRttStamp = 0;
+    private volatile long smoothedRtt = 100_000_000;             // 100ms başlangıç
+    private volatile long ackAllowanceNs = MIN_ROUND_NS;
+
+    // State machine
+    private volatile Mode mode = Mode.STARTUP;
+    private volatile double pacingGain = HIGH_GAIN;
+    private volatile double cwndGain = HIGH_GAIN;
+    private int cycleIndex = 0;
+    private long fullBw = 0;
+    private int fullBwRounds = 0;
+    private boolean fullPipe = false;
+    private long probeRttDoneNs = 0;
+    private Mode probeRttReturn = Mode.PROBE_BW;
+
+    // Derived send-side parameters
+    private volatile long congestionWindow = INITIAL_CWND;
+    private volatile long packetIntervalNs;
+
+    // Delivery sampling (listener thread)
+    private long delivered = 0;           // slices
+    private long sampleStartNs = 0;
+    private long sampleDelivered = 0;
+    private long sampleSentBytes = 0;
+    private boolean sampleIncomplete = false;
+    private long lastNackNs = 0;
+
+    // In-flight accounting
+    private final AtomicLong dataBytesSent = new AtomicLong(0);
+    private volatile long deliveredBytes = 0;
+    private volatile long accountingSlack = 0; // absorbs short last slice / skipped resume slices
+
+    // Statistics
+    private final AtomicLong totalPacketsSent = new AtomicLong(0);
+    private final AtomicLong totalBytesSent = new AtomicLong(0);
+    private volatile double lossEstimate = 0.0;
+    private volatile long startTime = System.nanoTime();
+    private volatile long lastSendTime = 0;
+    private volatile long initialBw = 1_250_000; // 10 Mbps başlangıç
+
+    public BbrCongestionController() {
+        btlBw = initialBw;
+        updateControlParameters();
+    }
+
+    // --- Send side -------------------------------------------------------
+
+    /**
+     * Retransmissions are paced but not window-gated: a resent slice replaces
+     * one that is still counted in flight, gating it would only delay the
+     * cum_Ack and keep the window full.
+     */
+    @Override
+    public void rateLimitSend() {
+        long interval = packetIntervalNs;
+        long now = System.nanoTime();
+        long timeSinceLastSend = now - lastSendTime;
+        if (timeSinceLastSend < interval) {
+            LockSupport.parkNanos(interval - timeSinceLastSend);
+        }
+        lastSendTime = System.nanoTime();
+    }
+
+    /**
+     * Waits (bounded) until in-flight drops below cwnd. The bound keeps a
+     * stalled feedback path from freezing the lanes - the burst goes out
+     * afterwards anyway, as with the hybrid controller.
+     */
+    @Override
+    public boolean throttleOnFullWindow() {
+        if (inFlight() < congestionWindow) {
+            return false;
+        }
+        long deadline = System.nanoTime() + Math.max(1_000_000, Math.min(minRtt, 20_000_000));
+        do {
+            LockSupport.parkNanos(Math.min(100_000, Math.max(10_000, packetIntervalNs * 2)));
+        } while (inFlight() >= congestionWindow && System.nanoTime() < deadline);
+        return true;
+    }
+
+    @Override
+    public void onPacketSent(int packetSize) {
+        totalPacketsSent.incrementAndGet();
+        totalBytesSent.addAndGet(packetSize);
+    }
+
+    @Override
+    public void onPacketsSent(int packetCount, long bytes) {
+        if (packetCount <= 0) return;
+        totalPacketsSent.addAndGet(packetCount);
+        totalBytesSent.addAndGet(bytes);
+    }
+
+    @Override
+    public void onDataSent(long fileBytes) {
+        dataBytesSent.addAndGet(fileBytes);
+    }
+
+    @Override
+    public int getBurstSize(int maxBurst) {
+        long interval = packetIntervalNs;
+        if (interval <= 0) {
+            return Math.max(1, maxBurst);
+        }
+        long burst = PACING_QUANTUM_NS / interval;
+        return (int) Math.max(1, Math.min(maxBurst, burst));
+    }
+
+    @Override
+    public long getPacingInterval() {
+        return packetIntervalNs;
+    }
+
+    @Override
+    public boolean canSendPacket() {
+        return true; // pacing + window gate kontrol eder
+    }
+
+    long inFlight() {
+        return Math.max(0, dataBytesSent.get() - deliveredBytes + accountingSlack);
+    }
+
+    // --- Feedback --------------------------------------------------------
+
+    @Override
+    public void onNackFrameReceived(int receivedPacketCount, int lostPacketCount) {
+        // Model uses onNackWindow - a single lost packet is not a congestion signal
+    }
+
+    @Override
+    public void onNackWindow(int baseSeq, long mask, long nowNs) {
+        long frameGap = lastNackNs != 0 ? nowNs - lastNackNs : 0;
+        if (frameGap > 0) {
+            // Max with slow decay - allowance for feedback arriving in lumps
+            ackAllowanceNs = Math.max(frameGap, ackAllowanceNs - (ackAllowanceNs >> 3));
+        }
+        lastNackNs = nowNs;
+
+        long d = (long) baseSeq + Long.bitCount(mask);
+        if (d > delivered) {
+            delivered = d;
+        }
+        long sentNow = dataBytesSent.get();
+        if (mask != 0) {
+            // Hole at cum_Ack: slices past the 64-slice window are invisible until it is
+            // repaired - assume the pipe keeps delivering at BtlBw meanwhile
+            long modeled = deliveredBytes + btlBw * frameGap / 1_000_000_000L;
+            deliveredBytes = Math.min(sentNow + accountingSlack, Math.max(delivered * PACKET_SIZE, modeled));
+            sampleIncomplete = true;
+        } else {
+            deliveredBytes = delivered * PACKET_SIZE;
+            long gap = deliveredBytes - sentNow;
+            if (gap > accountingSlack) {
+                accountingSlack = gap; // delivered can never exceed sent - fix the accounting
+            }
+        }
+
+        if (sampleStartNs == 0) {
+            if (delivered == 0) {
+                return; // first data not there yet - a sample now would wipe the seed rate
+            }
+            sampleStartNs = nowNs;
+            sampleDelivered = delivered;
+            sampleSentBytes = dataBytesSent.get();
+            sampleIncomplete = false;
+            return;
+        }
+        long elapsed = nowNs - sampleStartNs;
+        if (elapsed < roundLength()) {
+            return;
+        }
+        long sent = dataBytesSent.get();
+        long ackRate = (delivered - sampleDelivered) * PACKET_SIZE * 1_000_000_000L / elapsed;
+        long sendRate = (sent - sampleSentBytes) * 1_000_000_000L / elapsed;
+        // A repaired hole moves cum_Ack over slices delivered long ago - never faster than we sent
+        long rate = Math.min(ackRate, sendRate);
+        sampleStartNs = nowNs;
+        sampleDelivered = delivered;
+        sampleSentBytes = sent;
+        // App-limited: the sender did not use half of its pacing budget (end of the
+        // first pass, retransmission tail). Such samples, and samples taken while a
+        // hole hid part of the delivery, may only raise the model
+        long pacingRate = PACKET_SIZE * 1_000_000_000L / Math.max(1, packetIntervalNs);
+        boolean appLimited = sendRate < pacingRate / 2;
+        onRound(rate, appLimited || sampleIncomplete, nowNs);
+        sampleIncomplete = mask != 0;
+    }
+
+    @Override
+    public void onLossSample(int delivered, int holes) {
+        int total = delivered + holes;
+        if (total <= 0) return;
+        double sample = (double) holes / total;
+        lossEstimate = lossEstimate * 0.875 + sample * 0.125;
+    }
+
+    @Override
+    public void updateRtt(long rttNs) {
+        if (rttNs <= 0) return;
+        long now = System.nanoTime();
+
+        smoothedRtt = (7 * smoothedRtt + rttNs) / 8;
+
+        boolean expired = minRttStamp != 0 && now - minRttStamp > MIN_RTT_WINDOW_NS;
+        if (rttNs <= minRtt || expired) {
+            minRtt = rttNs;
+            minRttStamp = now;
+        }
+        if (expired && mode != Mode.PROBE_RTT) {
+            probeRttReturn = fullPipe ? Mode.PROBE_BW : Mode.STARTUP;
+            mode = Mode.PROBE_RTT;
+            pacingGain = 1.0;
+            cwndGain = 1.0;
+            probeRttDoneNs = now + Math.max(PROBE_RTT_DURATION_NS, minRtt);
+        }
+        updateControlParameters();
+    }
+
+    // --- Model / state machine -------------------------------------------
+
+    private long roundLength() {
+        long rt = minRtt;
+        return rt == Long.MAX_VALUE ? MIN_ROUND_NS : Math.max(MIN_ROUND_NS, rt);
+    }
+
+    private void onRound(long rate, boolean limited, long now) {
+        if (!limited || rate >= btlBw) {
+            bwIndex = (bwIndex + 1) % bwSamples.length;
+            bwSamples[bwIndex] = rate;
+            long max = 0;
+            for (long s : bwSamples) {
+                max = Math.max(max, s);
+            }
+            if (max > 0) {
+                btlBw = max;
+            }
+        }
+
+        switch (mode) {
+            case STARTUP -> {
+                checkFullPipe();
+                if (fullPipe) {
+                    mode = Mode.DRAIN;
+                    pacingGain = DRAIN_GAIN;
+                    cwndGain = HIGH_GAIN;
+                }
+            }
+            case DRAIN -> {
+                if (inFlight() <= targetInflight()) {
+                    enterProbeBw();
+                }
+            }
+            case PROBE_BW -> {
+                cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+                pacingGain = PROBE_BW_GAINS[cycleIndex];
+            }
+            case PROBE_RTT -> {
+                if (now >= probeRttDoneNs) {
+                    minRttStamp = now;
+                    if (probeRttReturn == Mode.PROBE_BW) {
+                        enterProbeBw();
+                    } else {
+                        mode = Mode.STARTUP;
+                        pacingGain = HIGH_GAIN;
+                        cwndGain = HIGH_GAIN;
+                    }
+                }
+            }
+        }
+        updateControlParameters();
+    }
+
+    private void checkFullPipe() {
+        if (btlBw >= fullBw * FULL_BW_GROWTH) {
+            fullBw = btlBw;
+            fullBwRounds = 0;
+        } else if (++fullBwRounds >= FULL_BW_ROUNDS) {
+            fullPipe = true;
+        }
+    }
+
+    private void enterProbeBw() {
+        mode = Mode.PROBE_BW;
+        cycleIndex = 2; // start cruising, the 1.25 probe comes after a full cycle
+        pacingGain = PROBE_BW_GAINS[cycleIndex];
+        cwndGain = CWND_GAIN;
+    }
+
+    private long bdp() {
+        long rt = minRtt;
+        if (rt == Long.MAX_VALUE) {
+            return INITIAL_CWND;
+        }
+        return btlBw * rt / 1_000_000_000L;
+    }
+
+    /** BDP + what is "in flight" only because the next NACK frame has not come yet */
+    private long targetInflight() {
+        return bdp() + btlBw * ackAllowanceNs / 1_000_000_000L;
+    }
+
+    private void updateControlParameters() {
+        long bw = btlBw;
+        long rate = Math.max(1, (long) (bw * pacingGain));
+        packetIntervalNs = Math.max(MIN_INTERVAL_NS, PACKET_SIZE * 1_000_000_000L / rate);
+
+        if (mode == Mode.PROBE_RTT) {
+            congestionWindow = MIN_CWND;
+            return;
+        }
+        long cwnd = (long) (cwndGain * targetInflight());
+        if (minRtt == Long.MAX_VALUE) {
+            cwnd = Math.max(cwnd, INITIAL_CWND);
+        }
+        congestionWindow = Math.max(MIN_CWND, cwnd);
+    }
+
+    // --- Path hints / introspection --------------------------------------
+
+    /**
+     * LAN hint only seeds the first rate - STARTUP finds the real one.
+     */
+    @Override
+    public void enableLocalNetworkMode() {
+        initialBw = 12_500_000; // 100 Mbps
+        if (fullBw == 0) {
+            btlBw = initialBw;
+            updateControlParameters();
+        }
+        System.out.println("BBR: LAN hint, initial pacing 100 Mbps");
+    }
+
+    @Override
+    public void enableWanMode() {
+        initialBw = 1_250_000;
+        if (fullBw == 0) {
+            btlBw = initialBw;
+            updateControlParameters();
+        }
+        System.out.println("BBR: WAN hint, initial pacing 10 Mbps");
+    }
+
+    @Override
+    public double getLossEstimate() {
+        return lossEstimate;
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    @Override
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public long getBottleneckBandwidth() {
+        return btlBw;
+    }
+
+    public long getMinRtt() {
+        return minRtt;
+    }
+
+    @Override
+    public String getStats() {
+        long elapsed = Math.max(1, System.nanoTime() - startTime);
+        double throughputMbps = (totalBytesSent.get() * 8.0 * 1_000_000_000L) / (elapsed * 1_000_000.0);
+        long rt = minRtt;
+        return String.format(
+            "BBR %s, gain %.2f, BtlBw: %.1f Mbps, MinRTT: %.2fms, CWnd: %d pkts, InFlight: %d pkts, " +
+            "Loss: %.2f%%, Throughput: %.1f Mbps",
+            mode,
+            pacingGain,
+            btlBw * 8 / 1_000_000.0,
+            rt == Long.MAX_VALUE ? 0.0 : rt / 1_000_000.0,
+            congestionWindow / PACKET_SIZE,
+            inFlight() / PACKET_SIZE,
+            lossEstimate * 100,
+            throughputMbps);
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(bwSamples, 0);
+        bwIndex = 0;
+        btlBw = initialBw;
+        minRtt = Long.MAX_VALUE;
+        minRttStamp = 0;
+        smoothedRtt = 100_000_000;
+        ackAllowanceNs = MIN_ROUND_NS;
+        mode = Mode.STARTUP;
+        pacingGain = HIGH_GAIN;
+        cwndGain = HIGH_GAIN;
+        cycleIndex = 0;
+        fullBw = 0;
+        fullBwRounds = 0;
+        fullPipe = false;
+        delivered = 0;
+        sampleStartNs = 0;
+        sampleDelivered = 0;
+        sampleSentBytes = 0;
+        sampleIncomplete = false;
+        lastNackNs = 0;
+        dataBytesSent.set(0);
+        deliveredBytes = 0;
+        accountingSlack = 0;
+        totalPacketsSent.set(0);
+        totalBytesSent.set(0);
+        lossEstimate = 0.0;
+        startTime = System.nanoTime();
+        updateControlParameters();
+    }
+}
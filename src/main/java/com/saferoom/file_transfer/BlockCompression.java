@@ -0,0 +1,147 @@
+package com.saferoom.file_transfer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wire format + shared helpers of the optional block compression stage.
+ *
+ * A block is up to {@link #BLOCK_SLICES} consecutive slices (32-aligned, never
+ * crossing a ChunkMetadata boundary). If it compresses into fewer packets than
+ * it has slices, the sender sends {@code fragCount} fragments on the block's
+ * first sequence numbers; the remaining sequence numbers are implied and are
+ * never put on the wire. Otherwise the block goes out as normal raw slices.
+ *
+ * Fragment packet = normal CRC32C_Packet header with {@link #FLAG_COMPRESSED}
+ * set in plen (bit 15, plen itself never exceeds 1450) + payload:
+ * <pre>
+ *  0  fragIndex   u8
+ *  1  fragCount   u8
+ *  2  blockSlices u8
+ *  3  codec       u8   (1 = raw deflate)
+ *  4  rawLen      int  original (uncompressed) length of the whole block
+ *  8  deflate data
+ * </pre>
+ * The 22-byte header has no spare field, so the original length travels in
+ * this descriptor. The CRC covers descriptor + data as for raw slices.
+ */
+final class BlockCompression {
+
+    static final int BLOCK_SLICES = 32;
+    static final int FLAG_COMPRESSED = CRC32C_Packet.FLAG_COMPRESSED;
+    static final int PLEN_MASK = CRC32C_Packet.PLEN_MASK;
+    static final int DESC_SIZE = 8;
+    static final byte CODEC_DEFLATE = 1;
+
+    static final int OFF_FRAG_INDEX = 0;
+    static final int OFF_FRAG_COUNT = 1;
+    static final int OFF_BLOCK_SLICES = 2;
+    static final int OFF_CODEC = 3;
+    static final int OFF_RAW_LEN = 4;
+
+    /** Regions whose sampled byte entropy is above this are sent raw (media, archives) */
+    static final double ENTROPY_BYPASS_BITS =
+        Double.parseDouble(System.getProperty("saferoom.transfer.compress.entropyBits", "7.2"));
+
+    private BlockCompression() {}
+
+    static int blockStart(int seqNo) {
+        return seqNo & ~(BLOCK_SLICES - 1);
+    }
+
+    static int blockIndex(int seqNo) {
+        return seqNo / BLOCK_SLICES;
+    }
+
+    static boolean isCompressed(int plenField) {
+        return (plenField & FLAG_COMPRESSED) != 0;
+    }
+
+    static void putDescriptor(byte[] dst, int off, int fragIndex, int fragCount, int blockSlices, int rawLen) {
+        dst[off + OFF_FRAG_INDEX] = (byte) fragIndex;
+        dst[off + OFF_FRAG_COUNT] = (byte) fragCount;
+        dst[off + OFF_BLOCK_SLICES] = (byte) blockSlices;
+        dst[off + OFF_CODEC] = CODEC_DEFLATE;
+        dst[off + OFF_RAW_LEN] = (byte) (rawLen >>> 24);
+        dst[off + OFF_RAW_LEN + 1] = (byte) (rawLen >>> 16);
+        dst[off + OFF_RAW_LEN + 2] = (byte) (rawLen >>> 8);
+        dst[off + OFF_RAW_LEN + 3] = (byte) rawLen;
+    }
+
+    static int fragIndex(ByteBuffer payload)   { return Byte.toUnsignedInt(payload.get(OFF_FRAG_INDEX)); }
+    static int fragCount(ByteBuffer payload)   { return Byte.toUnsignedInt(payload.get(OFF_FRAG_COUNT)); }
+    static int blockSlices(ByteBuffer payload) { return Byte.toUnsignedInt(payload.get(OFF_BLOCK_SLICES)); }
+    static byte codec(ByteBuffer payload)      { return payload.get(OFF_CODEC); }
+    static int rawLen(ByteBuffer payload)      { return payload.getInt(OFF_RAW_LEN); }
+
+    /**
+     * Shannon entropy (bits per byte) of evenly spaced samples of a region.
+     * Cheap pre-check so incompressible data never touches the Deflater.
+     */
+    static double sampleEntropy(ByteBuffer region, int samples, int sampleSize) {
+        int len = region.remaining();
+        if (len == 0) {
+            return 0.0;
+        }
+        int[] histogram = new int[256];
+        int base = region.position();
+        int window = Math.min(sampleSize, len);
+        int count = Math.max(1, Math.min(samples, len / window));
+        long stride = count > 1 ? (long) (len - window) / (count - 1) : 0;
+        long total = 0;
+        for (int s = 0; s < count; s++) {
+            int start = base + (int) (s * stride);
+            for (int i = 0; i < window; i++) {
+                histogram[region.get(start + i) & 0xFF]++;
+            }
+            total += window;
+        }
+        double entropy = 0.0;
+        for (int c : histogram) {
+            if (c == 0) {
+                continue;
+            }
+            double p = (double) c / total;
+            entropy -= p * (Math.log(p) / Math.log(2));
+        }
+        return entropy;
+    }
+
+    /**
+     * Sender-side counters (shared by all lanes).
+     */
+    static final class Stats {
+        private final AtomicLong rawBytes = new AtomicLong();
+        private final AtomicLong packedBytes = new AtomicLong();
+        private final AtomicLong blocksCompressed = new AtomicLong();
+        private final AtomicLong blocksRaw = new AtomicLong();
+        private final AtomicLong packetsSaved = new AtomicLong();
+
+        void compressed(int raw, int packed, int slices, int fragments) {
+            rawBytes.addAndGet(raw);
+            packedBytes.addAndGet(packed);
+            blocksCompressed.incrementAndGet();
+            packetsSaved.addAndGet(slices - fragments);
+        }
+
+        void raw() {
+            blocksRaw.incrementAndGet();
+        }
+
+        void reset() {
+            rawBytes.set(0);
+            packedBytes.set(0);
+            blocksCompressed.set(0);
+            blocksRaw.set(0);
+            packetsSaved.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long raw = rawBytes.get();
+            double ratio = raw > 0 ? (double) packedBytes.get() / raw : 1.0;
+            return String.format("Compression: %d blocks packed (ratio %.2f), %d raw, %d packets saved",
+                blocksCompressed.get(), ratio, blocksRaw.get(), packetsSaved.get());
+        }
+    }
+}
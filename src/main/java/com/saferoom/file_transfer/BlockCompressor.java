@@ -0,0 +1,116 @@
+package com.saferoom.file_transfer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Sender-side block compressor (one per lane + one for retransmissions).
+ *
+ * Deflate (BEST_SPEED, raw/nowrap) of one block, split into fragments of
+ * SLICE_SIZE - DESC_SIZE bytes, each prefixed with its descriptor. Output is
+ * deterministic, so a retransmission can rebuild any fragment by compressing
+ * the same block again.
+ *
+ * Not thread-safe. Fragment buffers stay valid until the next {@link #compress}.
+ */
+final class BlockCompressor {
+
+    static final int FRAGMENT_DATA = EnhancedFileTransferSender.SLICE_SIZE - BlockCompression.DESC_SIZE;
+    private static final int MAX_RAW = BlockCompression.BLOCK_SLICES * EnhancedFileTransferSender.SLICE_SIZE;
+
+    /** Back off after this many incompressible blocks in a row... */
+    private static final int MISS_LIMIT = 8;
+    /** ...for this many blocks, then try again */
+    private static final int BACKOFF_BLOCKS = 256;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] raw = new byte[MAX_RAW];
+    private final byte[] packed = new byte[MAX_RAW + 64];
+    private final byte[] fragments = new byte[BlockCompression.BLOCK_SLICES * EnhancedFileTransferSender.SLICE_SIZE];
+    private final int[] fragmentLengths = new int[BlockCompression.BLOCK_SLICES];
+    private int fragmentCount = 0;
+    private int packedLength = 0;
+
+    private int misses = 0;
+    private int skipBlocks = 0;
+
+    /**
+     * Adaptive bypass: false while backing off after a run of incompressible blocks.
+     * Counts the call as one block.
+     */
+    boolean shouldTry() {
+        if (skipBlocks > 0) {
+            skipBlocks--;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compress {@code rawLen} bytes of {@code src} (from its position) as one block.
+     *
+     * @return fragment count, or 0 if the block does not save at least one packet
+     */
+    int compress(ByteBuffer src, int rawLen, int blockSlices) {
+        src.duplicate().get(raw, 0, rawLen);
+        return compress(raw, rawLen, blockSlices);
+    }
+
+    private int compress(byte[] input, int rawLen, int blockSlices) {
+        deflater.reset();
+        deflater.setInput(input, 0, rawLen);
+        deflater.finish();
+        int n = 0;
+        // Only worth it if it saves at least one packet
+        int budget = Math.min(packed.length, (blockSlices - 1) * FRAGMENT_DATA);
+        while (!deflater.finished() && n < budget) {
+            n += deflater.deflate(packed, n, budget - n);
+        }
+        if (!deflater.finished() || n == 0) {
+            fragmentCount = 0;
+            onMiss();
+            return 0;
+        }
+        misses = 0;
+        packedLength = n;
+
+        int count = (n + FRAGMENT_DATA - 1) / FRAGMENT_DATA;
+        for (int i = 0; i < count; i++) {
+            int dataOff = i * FRAGMENT_DATA;
+            int dataLen = Math.min(FRAGMENT_DATA, n - dataOff);
+            int base = i * EnhancedFileTransferSender.SLICE_SIZE;
+            BlockCompression.putDescriptor(fragments, base, i, count, blockSlices, rawLen);
+            System.arraycopy(packed, dataOff, fragments, base + BlockCompression.DESC_SIZE, dataLen);
+            fragmentLengths[i] = BlockCompression.DESC_SIZE + dataLen;
+        }
+        fragmentCount = count;
+        return count;
+    }
+
+    private void onMiss() {
+        if (++misses >= MISS_LIMIT) {
+            misses = 0;
+            skipBlocks = BACKOFF_BLOCKS;
+        }
+    }
+
+    int packedLength() {
+        return packedLength;
+    }
+
+    /** Payload (descriptor + data) of fragment {@code i} of the last compressed block */
+    ByteBuffer fragment(int i) {
+        if (i < 0 || i >= fragmentCount) {
+            throw new IllegalArgumentException("No fragment " + i + " (count " + fragmentCount + ")");
+        }
+        return ByteBuffer.wrap(fragments, i * EnhancedFileTransferSender.SLICE_SIZE, fragmentLengths[i]).slice();
+    }
+
+    int fragmentLength(int i) {
+        return fragmentLengths[i];
+    }
+
+    void close() {
+        deflater.end();
+    }
+}
@@ -31,8 +31,8 @@ public final class BufferPool {
     }
 
     public void release(ByteBuffer buffer) {
-        if (buffer == null) {
-            return;
+        if (buffer == null || !buffer.isDirect()) {
+            return; // heap payloads (compressed fragments) never came from the pool
         }
         buffer.clear();
         if (buffer.capacity() != bufferSize || !queue.offer(buffer)) {
@@ -11,6 +11,11 @@ public final class CRC32C_Packet {
     public static final int OFF_CRC      = 18;
     public static final int HEADER_SIZE  = 22;
 
+    // plen never exceeds SLICE_SIZE (1450), the two top bits mark special frames
+    public static final int FLAG_COMPRESSED = 0x8000; // BlockCompression fragment
+    public static final int FLAG_PARITY     = 0x4000; // FEC parity, total field = group descriptor
+    public static final int PLEN_MASK       = 0x3FFF;
+
     private final ByteBuffer header;
 
     public CRC32C_Packet() {
@@ -1,23 +1,36 @@
 package com.saferoom.file_transfer;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Manages file chunks with LRU caching for large file transfers
+ * Manages file chunks and their memory mappings for large file transfers
  * 
  * Responsibilities:
- * - Calculate chunk metadata for entire file
- * - Map/unmap chunks on demand with LRU eviction
+ * - Calculate chunk metadata for entire file (the chunk layout defines the
+ *   slice numbering on the wire and does not change)
+ * - Map the file through a sliding set of small windows (default 64 MB)
+ *   instead of whole 1 GB chunks, unmapped explicitly when they fall out
+ * - Prefetch the window after the one a sender/receiver just entered on a
+ *   background thread, so chunk boundaries do not stall on page faults
  * - Binary search for sequence → chunk mapping
- * - Thread-safe chunk access
  * 
- * Thread-safety: synchronized on cache access
+ * Thread-safety: window lookups are lock-free (table of reference counted
+ * windows); only mapping a missing window takes a lock.
+ * Mapped address space is bounded by MAX_WINDOWS windows plus the ones
+ * still referenced by a reader, whatever the file size.
  */
 public class ChunkManager {
     
@@ -26,8 +39,18 @@ public class ChunkManager {
     /** Default chunk size (JVM-dependent) */
     private static final long DEFAULT_CHUNK_SIZE;
     
-    /** Maximum chunks to keep in memory (LRU cache size) */
-    private static final int CACHE_SIZE = 8; // 8 chunks x 1 GB = 8 GB max
+    /** Mapping window size target (rounded down to a multiple of 64 slices) */
+    static final long WINDOW_BYTES = Long.getLong("saferoom.transfer.mmap.windowMB", 64) << 20;
+    
+    /** Windows kept mapped per file (the oldest mapping is retired first) */
+    static final int MAX_WINDOWS = Math.max(2, Integer.getInteger("saferoom.transfer.mmap.windows", 4));
+    
+    /** Shared read-ahead thread for all managers */
+    private static final ExecutorService PREFETCH = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chunk-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
     
     /** Detect JVM architecture and set chunk size */
     static {
@@ -42,8 +65,8 @@ public class ChunkManager {
         // Log configuration
         System.out.println("🖥️  JVM Architecture: " + (is64bit ? "64-bit" : "32-bit"));
         System.out.println("📦 Chunk Size: " + (DEFAULT_CHUNK_SIZE >> 20) + " MB");
-        System.out.println("💾 LRU Cache Size: " + CACHE_SIZE + " chunks (" + 
-            (CACHE_SIZE * (DEFAULT_CHUNK_SIZE >> 20)) + " MB max)");
+        System.out.println("💾 Mapping Window: " + (WINDOW_BYTES >> 20) + " MB x " + MAX_WINDOWS + 
+            " (" + (MAX_WINDOWS * (WINDOW_BYTES >> 20)) + " MB max)");
     }
     
     // ========== INSTANCE FIELDS ==========
@@ -66,8 +89,22 @@ public class ChunkManager {
     /** Map mode: READ_ONLY for sender, READ_WRITE for receiver */
     private final FileChannel.MapMode mapMode;
     
-    /** LRU cache of mapped chunks (thread-safe via synchronization) */
-    private final Map<Integer, MappedByteBuffer> chunkCache;
+    /** Slices per mapping window (multiple of 64) */
+    private final int windowSlices;
+    
+    /** Mapped windows by window index, null = not mapped (lock-free reads) */
+    private final AtomicReferenceArray<MappedWindow> windows;
+    
+    /** Mapping order for eviction - guarded by mapLock */
+    private final ArrayDeque<MappedWindow> mappedOrder = new ArrayDeque<>();
+    private final ReentrantLock mapLock = new ReentrantLock();
+    
+    /** Highest window index handed to the prefetch thread */
+    private final AtomicInteger prefetchedUpTo = new AtomicInteger(-1);
+    
+    private volatile boolean closed;
+    private long mappedBytesPeak;
+    private int mapCount;
     
     // ========== CONSTRUCTOR ==========
     
@@ -90,21 +127,8 @@ public class ChunkManager {
         // Calculate all chunk metadata upfront
         this.chunks = calculateChunks();
         
-        // Create LRU cache with access-order
-        this.chunkCache = new LinkedHashMap<Integer, MappedByteBuffer>(
-            CACHE_SIZE + 1,  // Initial capacity
-            0.75f,           // Load factor
-            true             // Access-order (LRU)
-        ) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
-                boolean shouldRemove = size() > CACHE_SIZE;
-                if (shouldRemove) {
-                    System.out.println("🗑️  LRU evicted chunk " + eldest.getKey());
-                }
-                return shouldRemove;
-            }
-        };
+        this.windowSlices = windowSlices(sliceSize);
+        this.windows = new AtomicReferenceArray<>(windowTableSize(chunks, windowSlices));
         
         // Log initialization
         System.out.println("📦 ChunkManager initialized");
@@ -112,7 +136,8 @@ public class ChunkManager {
         System.out.println("   Size: " + String.format("%,d", fileSize) + " bytes (" + 
             String.format("%.2f", fileSize / (1024.0 * 1024.0 * 1024.0)) + " GB)");
         System.out.println("   Total chunks: " + chunks.length);
-        System.out.println("   Cache capacity: " + CACHE_SIZE + " chunks");
+        System.out.println("   Window: " + String.format("%,d", windowSlices) + " slices, " + 
+            windows.length() + " windows, " + MAX_WINDOWS + " mapped max");
     }
     
     /**
@@ -134,28 +159,16 @@ public class ChunkManager {
         // Calculate all chunk metadata upfront
         this.chunks = calculateChunks();
         
-        // Create LRU cache with access-order
-        this.chunkCache = new LinkedHashMap<Integer, MappedByteBuffer>(
-            CACHE_SIZE + 1,  // Initial capacity
-            0.75f,           // Load factor
-            true             // Access-order (LRU)
-        ) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
-                boolean shouldRemove = size() > CACHE_SIZE;
-                if (shouldRemove) {
-                    System.out.println("🗑️  LRU evicted chunk " + eldest.getKey());
-                }
-                return shouldRemove;
-            }
-        };
+        this.windowSlices = windowSlices(sliceSize);
+        this.windows = new AtomicReferenceArray<>(windowTableSize(chunks, windowSlices));
         
         // Log initialization
         System.out.println("📦 ChunkManager initialized (using provided FileChannel)");
         System.out.println("   Size: " + String.format("%,d", fileSize) + " bytes (" + 
             String.format("%.2f", fileSize / (1024.0 * 1024.0 * 1024.0)) + " GB)");
         System.out.println("   Total chunks: " + chunks.length);
-        System.out.println("   Cache capacity: " + CACHE_SIZE + " chunks");
+        System.out.println("   Window: " + String.format("%,d", windowSlices) + " slices, " + 
+            windows.length() + " windows, " + MAX_WINDOWS + " mapped max");
     }
     
     // ========== METHODS ==========
@@ -204,55 +217,148 @@ public class ChunkManager {
         return result;
     }
     
+    private static int windowSlices(int sliceSize) {
+        long slices = Math.max(SendLane.STRIPE_SLICES, WINDOW_BYTES / sliceSize);
+        return (int) Math.min(1 << 24, slices & ~(SendLane.STRIPE_SLICES - 1));
+    }
+    
+    /**
+     * Window index = global window bucket + chunk index: a chunk boundary
+     * splits at most one bucket into two windows.
+     */
+    private static int windowTableSize(ChunkMetadata[] chunks, int windowSlices) {
+        int total = totalSequences(chunks);
+        return total == 0 ? 0 : (total - 1) / windowSlices + chunks.length;
+    }
+    
+    private static int totalSequences(ChunkMetadata[] chunks) {
+        if (chunks.length == 0) return 0;
+        return chunks[chunks.length - 1].globalSeqEnd + 1;
+    }
+    
     /**
-     * Get chunk buffer (from cache or map new)
+     * Get a reference to the mapped window holding a sequence number
      * 
-     * Thread-safe: synchronized to protect LRU cache access.
+     * Lock-free when the window is mapped; otherwise maps it (lazily - pages
+     * fault in on first touch or via {@link #prefetchAfter}) and retires the
+     * oldest mapping beyond MAX_WINDOWS. The caller must
+     * {@link MappedWindow#release()} the window when done with its buffer.
      * 
-     * Cache hit: Returns existing MappedByteBuffer (fast)
-     * Cache miss: Maps new chunk, adds to cache, evicts oldest if needed
+     * @param globalSeq Global sequence number
+     * @return Referenced window containing globalSeq
+     * @throws IOException if mapping fails or the manager is closed
+     * @throws IllegalArgumentException if sequence not found in any chunk
+     */
+    public MappedWindow acquireWindow(int globalSeq) throws IOException {
+        int chunkIdx = findChunkForSequence(globalSeq);
+        int index = globalSeq / windowSlices + chunkIdx;
+        while (true) {
+            MappedWindow w = windows.get(index);
+            if (w != null && w.tryAcquire()) {
+                return w;
+            }
+            mapWindow(index, chunks[chunkIdx], globalSeq);
+        }
+    }
+    
+    /**
+     * Map the window at {@code index} unless another thread already did.
+     */
+    private void mapWindow(int index, ChunkMetadata meta, int globalSeq) throws IOException {
+        List<MappedWindow> evicted = null;
+        mapLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("ChunkManager closed");
+            }
+            if (windows.get(index) != null) {
+                return; // mapped meanwhile (slots are cleared before a window is retired)
+            }
+            int bucket = globalSeq / windowSlices;
+            int first = Math.max(bucket * windowSlices, meta.globalSeqStart);
+            int end = (int) Math.min((long) (bucket + 1) * windowSlices, meta.globalSeqEnd + 1L);
+            int localFirst = meta.toLocalSequence(first);
+            int localLast = meta.toLocalSequence(end - 1);
+            long offset = meta.fileOffset + meta.getLocalOffset(localFirst, sliceSize);
+            long length = meta.getLocalOffset(localLast, sliceSize) + meta.getPayloadSize(localLast, sliceSize)
+                - meta.getLocalOffset(localFirst, sliceSize);
+            
+            Arena arena = Arena.ofShared();
+            MappedWindow w;
+            try {
+                MemorySegment mapping = fileChannel.map(mapMode, offset, length, arena);
+                w = new MappedWindow(index, meta, first, end, offset, sliceSize, arena, mapping);
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+            windows.set(index, w);
+            mappedOrder.addLast(w);
+            mapCount++;
+            while (mappedOrder.size() > MAX_WINDOWS) {
+                MappedWindow old = mappedOrder.pollFirst();
+                windows.compareAndSet(old.index, old, null);
+                if (evicted == null) {
+                    evicted = new ArrayList<>(2);
+                }
+                evicted.add(old);
+            }
+            long mapped = 0;
+            for (MappedWindow m : mappedOrder) {
+                mapped += m.byteSize();
+            }
+            mappedBytesPeak = Math.max(mappedBytesPeak, mapped);
+        } finally {
+            mapLock.unlock();
+        }
+        if (evicted != null) {
+            for (MappedWindow old : evicted) {
+                if (mapMode == FileChannel.MapMode.READ_WRITE && old.tryAcquire()) {
+                    try {
+                        old.buffer.force(); // write back before the mapping goes away
+                    } finally {
+                        old.release();
+                    }
+                }
+                old.retire();
+            }
+        }
+    }
+    
+    /**
+     * Read-ahead: map and fault in the window after {@code current} on the
+     * prefetch thread. Cheap to call on every window switch from any number
+     * of threads - each window is requested once.
      * 
-     * @param chunkIndex Zero-based chunk index
-     * @return MappedByteBuffer for this chunk
-     * @throws IOException if mapping fails
-     * @throws IllegalArgumentException if chunkIndex invalid
+     * @param current Window the caller just entered
      */
-    public synchronized MappedByteBuffer getChunk(int chunkIndex) throws IOException {
-        // Validation
-        if (chunkIndex < 0 || chunkIndex >= chunks.length) {
-            throw new IllegalArgumentException("Invalid chunk index: " + chunkIndex + 
-                " (valid range: 0-" + (chunks.length - 1) + ")");
+    public void prefetchAfter(MappedWindow current) {
+        int next = current.index + 1;
+        if (current.endSeq >= getTotalSequenceCount() || closed) {
+            return;
         }
-        
-        // Cache hit?
-        if (chunkCache.containsKey(chunkIndex)) {
-            // LinkedHashMap with access-order will mark this as recently used
-            return chunkCache.get(chunkIndex);
+        int seen = prefetchedUpTo.get();
+        if (next <= seen || !prefetchedUpTo.compareAndSet(seen, next)) {
+            return;
         }
-        
-        // Cache miss - map new chunk
-        ChunkMetadata meta = chunks[chunkIndex];
-        
-        long mapStart = System.nanoTime();
-        MappedByteBuffer buffer = fileChannel.map(
-            mapMode,  // READ_ONLY for sender, READ_WRITE for receiver
-            meta.fileOffset,
-            meta.chunkSize
-        );
-        
-        // Pre-fault pages into memory (force OS to load)
-        buffer.load();
-        
-        long mapTime = (System.nanoTime() - mapStart) / 1_000_000; // Convert to ms
-        
-        System.out.println("📦 Mapped chunk " + chunkIndex + " (" + 
-            String.format("%.1f", meta.chunkSize / (1024.0 * 1024.0)) + " MB) in " + 
-            mapTime + " ms");
-        
-        // Add to cache (LRU will evict oldest if size > CACHE_SIZE)
-        chunkCache.put(chunkIndex, buffer);
-        
-        return buffer;
+        int seq = current.endSeq;
+        PREFETCH.execute(() -> {
+            if (closed) {
+                return;
+            }
+            try {
+                MappedWindow w = acquireWindow(seq);
+                try {
+                    w.load();
+                } finally {
+                    w.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    System.err.println("Prefetch failed for seq " + seq + ": " + e);
+                }
+            }
+        });
     }
     
     /**
@@ -294,14 +400,64 @@ public class ChunkManager {
     }
     
     /**
-     * Close file channel and release resources
+     * Flush written data to disk (receiver / READ_WRITE mode only)
+     * 
+     * Forces every mapped window, then the channel itself so dirty pages of
+     * already unmapped windows are covered too. Used before resume checkpoints.
+     * 
+     * @throws IOException if force fails
+     */
+    public void force() throws IOException {
+        if (mapMode != FileChannel.MapMode.READ_WRITE) {
+            return;
+        }
+        for (MappedWindow w : mappedWindows()) {
+            if (w.tryAcquire()) {
+                try {
+                    w.buffer.force();
+                } finally {
+                    w.release();
+                }
+            }
+        }
+        fileChannel.force(false);
+    }
+    
+    private List<MappedWindow> mappedWindows() {
+        mapLock.lock();
+        try {
+            return new ArrayList<>(mappedOrder);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+    
+    /**
+     * Unmap all windows, close file channel and release resources
      * 
      * @throws IOException if close fails
      */
     public void close() throws IOException {
-        chunkCache.clear();
+        List<MappedWindow> open;
+        mapLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            open = new ArrayList<>(mappedOrder);
+            mappedOrder.clear();
+            for (MappedWindow w : open) {
+                windows.compareAndSet(w.index, w, null);
+            }
+        } finally {
+            mapLock.unlock();
+        }
+        for (MappedWindow w : open) {
+            w.retire(); // still referenced ones unmap on their last release
+        }
         fileChannel.close();
-        System.out.println("📦 ChunkManager closed");
+        System.out.println("📦 ChunkManager closed (" + getCacheStats() + ")");
     }
     
     /**
@@ -333,9 +489,7 @@ public class ChunkManager {
      * @return Total packets in file
      */
     public int getTotalSequenceCount() {
-        if (chunks.length == 0) return 0;
-        ChunkMetadata last = chunks[chunks.length - 1];
-        return last.globalSeqEnd + 1;
+        return totalSequences(chunks);
     }
     
     /**
@@ -344,7 +498,22 @@ public class ChunkManager {
      * @return Human-readable cache stats
      */
     public String getCacheStats() {
-        return String.format("Cache: %d/%d chunks loaded", chunkCache.size(), CACHE_SIZE);
+        mapLock.lock();
+        try {
+            return String.format("Windows: %d/%d mapped, %d maps, peak %.1f MB",
+                mappedOrder.size(), MAX_WINDOWS, mapCount, mappedBytesPeak / (1024.0 * 1024.0));
+        } finally {
+            mapLock.unlock();
+        }
+    }
+    
+    /**
+     * Get number of window slots (window indexes are below this)
+     * 
+     * @return Window count upper bound
+     */
+    public int getWindowCount() {
+        return windows.length();
     }
     
     /**
@@ -0,0 +1,75 @@
+package com.saferoom.file_transfer;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Per-transfer compression decisions, shared by every lane and the
+ * retransmission task.
+ *
+ * - Region gate: each ChunkManager mapping window is sampled once (byte
+ *   entropy of evenly spaced samples); media/archives above {@link BlockCompression#ENTROPY_BYPASS_BITS}
+ *   never reach the Deflater, so already-compressed files cost one sample pass.
+ * - Block table: fragment count of every block the initial pass sent
+ *   compressed (0 = sent raw). Retransmissions use it to rebuild fragments.
+ */
+final class CompressionAdvisor {
+
+    private static final int SAMPLES = 64;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte COMPRESS = 1;
+    private static final byte BYPASS = 2;
+
+    private final int totalSeq;
+    private final byte[] regionDecision;
+    private final AtomicIntegerArray fragmentCounts;
+    final BlockCompression.Stats stats = new BlockCompression.Stats();
+
+    CompressionAdvisor(ChunkManager chunkManager, int totalSeq) {
+        this.totalSeq = totalSeq;
+        this.regionDecision = new byte[chunkManager.getWindowCount()];
+        this.fragmentCounts = new AtomicIntegerArray(
+            (totalSeq + BlockCompression.BLOCK_SLICES - 1) / BlockCompression.BLOCK_SLICES);
+    }
+
+    /**
+     * True if the window's region of the file is worth compressing. Racing
+     * lanes may both sample the same window; the result is identical, so no
+     * locking.
+     */
+    boolean regionCompressible(MappedWindow window) {
+        byte decision = regionDecision[window.index];
+        if (decision == UNKNOWN) {
+            double entropy = BlockCompression.sampleEntropy(window.buffer.duplicate().clear(), SAMPLES, SAMPLE_SIZE);
+            decision = entropy <= BlockCompression.ENTROPY_BYPASS_BITS ? COMPRESS : BYPASS;
+            regionDecision[window.index] = decision;
+            System.out.printf("[COMPRESS] Window %d: sampled entropy %.2f bits/byte -> %s%n",
+                window.index, entropy, decision == COMPRESS ? "compress" : "bypass");
+        }
+        return decision == COMPRESS;
+    }
+
+    /**
+     * Slices of the block starting at {@code blockStart}: clipped to the chunk
+     * and file end, 0 if the block would start before the chunk (straddling
+     * blocks are sent raw). Blocks never cross a stripe (64 is a multiple of 32).
+     */
+    int blockSlices(ChunkMetadata meta, int blockStart) {
+        if (blockStart < meta.globalSeqStart || (blockStart & (BlockCompression.BLOCK_SLICES - 1)) != 0) {
+            return 0;
+        }
+        int end = Math.min(blockStart + BlockCompression.BLOCK_SLICES,
+            Math.min(meta.globalSeqEnd + 1, totalSeq));
+        return Math.max(0, end - blockStart);
+    }
+
+    void recordCompressed(int blockStart, int fragments) {
+        fragmentCounts.set(BlockCompression.blockIndex(blockStart), fragments);
+    }
+
+    /** Fragment count of the block holding {@code seqNo}, 0 if it went out raw */
+    int fragmentCount(int seqNo) {
+        return fragmentCounts.get(BlockCompression.blockIndex(seqNo));
+    }
+}
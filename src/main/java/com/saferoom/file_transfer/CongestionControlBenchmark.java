@@ -0,0 +1,339 @@
+package com.saferoom.file_transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hybrid vs BBR-style congestion control on a simulated bottleneck.
+ * Kullanım: java CongestionControlBenchmark [seconds_per_run] [seed]
+ *
+ * The link is emulated in-process in real time (the controllers park and read
+ * System.nanoTime(), so a virtual clock would not exercise them):
+ * - a FIFO bottleneck with a rate, a tail-drop buffer and random loss
+ * - propagation delay split evenly between the data and the NACK direction
+ * - a receiver that emits the 64-slice NACK window every 25ms like NackSender
+ * - a listener feeding the controller exactly like EnhancedNackListener
+ * - one paced sender (SendLane logic) and one retransmission thread
+ *
+ * Reports goodput (unique slices reaching the receiver - cum_Ack itself is
+ * held back by the one-window NACK repair), link utilization, mean/p95
+ * queueing delay, tail drops at the bottleneck buffer and retransmissions per
+ * scenario side by side.
+ */
+public class CongestionControlBenchmark {
+
+    private static final int SLICE = EnhancedFileTransferSender.SLICE_SIZE;
+    private static final int WIRE = SLICE + CRC32C_Packet.HEADER_SIZE;
+    private static final long NACK_INTERVAL_NS = 25_000_000;
+    private static final int MAX_SEQ = 1 << 21;
+
+    record Scenario(String name, long rateBps, long rttNs, double bufferBdp, double loss, boolean lan) {
+        long bdpBytes() {
+            return rateBps / 8 * rttNs / 1_000_000_000L;
+        }
+    }
+
+    private static final Scenario[] SCENARIOS = {
+        new Scenario("LAN 200Mbps / 2ms, 1xBDP buffer", 200_000_000, 2_000_000, 1.0, 0.0, true),
+        new Scenario("WAN 50Mbps / 60ms, 1xBDP buffer", 50_000_000, 60_000_000, 1.0, 0.0, false),
+        new Scenario("Long fat pipe 100Mbps / 150ms, 0.25xBDP, 0.5% loss", 100_000_000, 150_000_000, 0.25, 0.005, false),
+        new Scenario("Lossy WAN 20Mbps / 40ms, 2xBDP, 2% loss", 20_000_000, 40_000_000, 2.0, 0.02, false),
+    };
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 7L;
+
+        List<String> rows = new ArrayList<>();
+        for (Scenario s : SCENARIOS) {
+            for (String cc : new String[]{CongestionController.HYBRID, CongestionController.BBR}) {
+                Result r = new Simulation(s, CongestionController.create(cc), seed).run(seconds * 1_000_000_000L);
+                rows.add(String.format("%-52s %-7s %8.1f %6.1f%% %9.1f %9.1f %8d %6.1f%% %7d",
+                    s.name(), cc, r.goodputMbps, r.goodputMbps * 1e6 / s.rateBps() * 100,
+                    r.meanQueueMs, r.p95QueueMs, r.bufferDrops, r.dropPct, r.retransmits));
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-52s %-7s %8s %7s %9s %9s %8s %7s %7s%n",
+            "Scenario", "CC", "Mbps", "util", "queue ms", "p95 ms", "drops", "drop%", "retx");
+        rows.forEach(System.out::println);
+    }
+
+    static final class Result {
+        double goodputMbps;
+        double meanQueueMs;
+        double p95QueueMs;
+        long bufferDrops;
+        double dropPct;
+        long retransmits;
+    }
+
+    /**
+     * One controller on one emulated path.
+     */
+    static final class Simulation {
+        private final Scenario scenario;
+        private final CongestionController control;
+        private final Random random;
+        private final long txNs;       // serialization time of one packet
+        private final long bufferNs;   // queue capacity in time
+        private final long oneWayNs;
+
+        // Link state (guarded by this)
+        private long linkFreeAt = 0;
+        private final ArrayDeque<long[]> inTransit = new ArrayDeque<>(); // {arrivalNs, seq}
+        private long bufferDrops = 0;
+        private final long[] queueHistogram = new long[2001];         // 0.1ms buckets
+        private long queueSamples = 0;
+        private double queueSum = 0;
+
+        // Receiver state (receiver thread)
+        private final BitSet received = new BitSet();
+        private final ConcurrentLinkedQueue<long[]> feedback = new ConcurrentLinkedQueue<>(); // {dueNs, base, mask}
+
+        // Sender state
+        private final long[] sendTimes = new long[MAX_SEQ];
+        private final long[] lastRetxNs = new long[MAX_SEQ];
+        private final IntMpscRing retxQueue = new IntMpscRing(8192);
+        private volatile int highestSent = -1;
+        private volatile int cumAck = 0;
+        private volatile boolean running = true;
+        private long retransmits = 0;
+
+        Simulation(Scenario scenario, CongestionController control, long seed) {
+            this.scenario = scenario;
+            this.control = control;
+            this.random = new Random(seed);
+            this.txNs = WIRE * 8L * 1_000_000_000L / scenario.rateBps();
+            this.bufferNs = (long) (scenario.bdpBytes() * scenario.bufferBdp()) * 8L * 1_000_000_000L
+                / scenario.rateBps();
+            this.oneWayNs = scenario.rttNs() / 2;
+        }
+
+        Result run(long durationNs) throws InterruptedException {
+            System.out.printf("%n== %s / %s ==%n", scenario.name(),
+                control instanceof BbrCongestionController ? "bbr" : "hybrid");
+            if (scenario.lan()) {
+                control.enableLocalNetworkMode();
+            } else {
+                control.enableWanMode();
+            }
+
+            Thread sender = new Thread(this::sendLoop, "sim-sender");
+            Thread retx = new Thread(this::retransmitLoop, "sim-retx");
+            Thread receiver = new Thread(this::receiveLoop, "sim-receiver");
+            Thread listener = new Thread(this::listenLoop, "sim-listener");
+            for (Thread t : new Thread[]{sender, retx, receiver, listener}) {
+                t.setDaemon(true);
+                t.start();
+            }
+            // Warm-up excluded from goodput: measure the last 80% of the run
+            Thread.sleep(durationNs / 5 / 1_000_000);
+            int ackAtWarm = delivered();
+            long warmNs = System.nanoTime();
+            Thread.sleep((durationNs - durationNs / 5) / 1_000_000);
+            int ackAtEnd = delivered();
+            long endNs = System.nanoTime();
+            running = false;
+            for (Thread t : new Thread[]{sender, retx, receiver, listener}) {
+                t.join(1000);
+            }
+            System.out.println(" " + control.getStats());
+
+            Result r = new Result();
+            r.goodputMbps = (ackAtEnd - ackAtWarm) * (double) SLICE * 8 / ((endNs - warmNs) / 1e9) / 1e6;
+            synchronized (this) {
+                r.meanQueueMs = queueSamples > 0 ? queueSum / queueSamples / 1e6 : 0;
+                r.p95QueueMs = percentile(0.95);
+                r.bufferDrops = bufferDrops;
+                r.dropPct = bufferDrops * 100.0 / Math.max(1, bufferDrops + queueSamples);
+            }
+            r.retransmits = retransmits;
+            return r;
+        }
+
+        // --- Link ---------------------------------------------------------
+
+        private synchronized void transmit(int seq) {
+            long now = System.nanoTime();
+            long queueNs = Math.max(0, linkFreeAt - now);
+            if (queueNs > bufferNs) {
+                bufferDrops++;
+                return;
+            }
+            linkFreeAt = Math.max(linkFreeAt, now) + txNs;
+            queueSum += queueNs;
+            queueSamples++;
+            queueHistogram[(int) Math.min(queueHistogram.length - 1, queueNs / 100_000)]++;
+            if (random.nextDouble() < scenario.loss()) {
+                return;
+            }
+            inTransit.addLast(new long[]{linkFreeAt + oneWayNs, seq});
+        }
+
+        private synchronized int delivered() {
+            return received.cardinality();
+        }
+
+        private synchronized void deliverDue(long now) {
+            while (!inTransit.isEmpty() && inTransit.peekFirst()[0] <= now) {
+                received.set((int) inTransit.pollFirst()[1]);
+            }
+        }
+
+        private double percentile(double p) {
+            long target = (long) Math.ceil(queueSamples * p);
+            long seen = 0;
+            for (int i = 0; i < queueHistogram.length; i++) {
+                seen += queueHistogram[i];
+                if (seen >= target && target > 0) {
+                    return i / 10.0;
+                }
+            }
+            return 0;
+        }
+
+        // --- Sender side (SendLane + retransmission task) -----------------
+
+        private void sendLoop() {
+            long lastSendNs = 0;
+            int lastBurst = 1;
+            int seq = 0;
+            while (running && seq < MAX_SEQ) {
+                int burst = control.getBurstSize(PacketBatcher.MAX_BURST);
+                control.throttleOnFullWindow();
+                long interval = control.getPacingInterval();
+                if (interval > 0) {
+                    long now = System.nanoTime();
+                    long due = lastSendNs + interval * lastBurst;
+                    if (now < due) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                    lastSendNs = Math.max(due, System.nanoTime() - interval * lastBurst);
+                }
+                lastBurst = burst;
+                long now = System.nanoTime();
+                for (int i = 0; i < burst && seq < MAX_SEQ; i++, seq++) {
+                    sendTimes[seq] = now;
+                    transmit(seq);
+                }
+                highestSent = seq - 1;
+                control.onPacketsSent(burst, (long) burst * WIRE);
+                control.onDataSent((long) burst * SLICE);
+            }
+        }
+
+        private void retransmitLoop() {
+            while (running) {
+                int miss = retxQueue.poll();
+                if (miss == IntMpscRing.EMPTY) {
+                    LockSupport.parkNanos(200_000);
+                    continue;
+                }
+                long now = System.nanoTime();
+                // One resend per smoothed RTT per slice - the NACK window repeats every 25ms
+                if (miss < cumAck || now - lastRetxNs[miss] < control.getSmoothedRtt()) {
+                    continue;
+                }
+                lastRetxNs[miss] = now;
+                control.rateLimitSend();
+                sendTimes[miss] = 0; // Karn: no RTT sample from a retransmitted slice
+                transmit(miss);
+                control.onPacketSent(WIRE);
+                retransmits++;
+            }
+        }
+
+        // --- Receiver (NackSender) ----------------------------------------
+
+        private void receiveLoop() {
+            long next = System.nanoTime();
+            while (running) {
+                next += NACK_INTERVAL_NS;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                long now = System.nanoTime();
+                deliverDue(now);
+                int base;
+                long mask = 0;
+                synchronized (this) {
+                    base = received.nextClearBit(0);
+                    for (int i = 0; i < 64; i++) {
+                        if (received.get(base + i)) {
+                            mask |= 1L << i;
+                        }
+                    }
+                }
+                cumAck = base;
+                feedback.add(new long[]{now + oneWayNs, base, mask});
+            }
+        }
+
+        // --- Listener (EnhancedNackListener) ------------------------------
+
+        private int lastBase = 0;
+        private long rttSum;
+        private int rttSamples;
+
+        private void frameSample(int seq, long now) {
+            long sent = sendTimes[seq];
+            sendTimes[seq] = 0;
+            if (sent != 0 && now - sent > 50_000) {
+                rttSum += now - sent;
+                rttSamples++;
+            }
+        }
+
+        private void listenLoop() {
+            while (running) {
+                long[] frame = feedback.peek();
+                long now = System.nanoTime();
+                if (frame == null || frame[0] > now) {
+                    LockSupport.parkNanos(100_000);
+                    continue;
+                }
+                feedback.poll();
+                rttSum = 0;
+                rttSamples = 0;
+                int base = (int) frame[1];
+                long mask = frame[2];
+                int highest = highestSent;
+                if (base > lastBase) {
+                    frameSample(base - 1, now);
+                    lastBase = base;
+                }
+
+                int lossCount = 0;
+                int receivedCount = 0;
+                for (int i = 0; i < 64 && base + i <= highest; i++) {
+                    int seq = base + i;
+                    if (((mask >>> i) & 1L) == 0) {
+                        retxQueue.offer(seq);
+                        lossCount++;
+                    } else {
+                        receivedCount++;
+                        frameSample(seq, now);
+                    }
+                }
+                if (rttSamples > 0) {
+                    control.updateRtt(rttSum / rttSamples);
+                }
+                if (mask != 0) {
+                    int top = 63 - Long.numberOfLeadingZeros(mask);
+                    int delivered = Long.bitCount(mask);
+                    control.onLossSample(delivered, (top + 1) - delivered);
+                }
+                control.onNackWindow(base, mask, now);
+                control.onNackFrameReceived(receivedCount, lossCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.saferoom.file_transfer;
+
+/**
+ * Congestion control as seen by the sender, the NACK listener and the receiver.
+ *
+ * Implementations:
+ * - {@link HybridCongestionController}: NACK-driven cwnd + EWMA bandwidth (default)
+ * - {@link BbrCongestionController}: paces at windowed-max delivery rate x gain,
+ *   cwnd = 2 x BDP from windowed-min RTT (long fat pipes)
+ *
+ * Selected per transfer with {@link #create(String)}; the sender reads
+ * {@code saferoom.transfer.cc} (hybrid | bbr) unless set explicitly.
+ *
+ * Thread-safety: sending threads call the send-side methods concurrently, the
+ * NACK listener is the single caller of the feedback methods.
+ */
+public interface CongestionController {
+
+    String HYBRID = "hybrid";
+    String BBR = "bbr";
+
+    // --- Send side -------------------------------------------------------
+
+    /** Window gate + per-packet pacing for single-frame senders (retransmissions) */
+    void rateLimitSend();
+
+    /**
+     * Shared window gate (no pacing). Lanes pace on their own clock.
+     *
+     * @return true if the window was full and the caller was parked briefly
+     */
+    boolean throttleOnFullWindow();
+
+    void onPacketSent(int packetSize);
+
+    void onPacketsSent(int packetCount, long bytes);
+
+    /**
+     * File bytes put on the wire for the first time (or skipped on resume).
+     * Retransmissions and parity are not reported.
+     */
+    default void onDataSent(long fileBytes) {
+    }
+
+    /** Packets per pacing quantum at the current pacing rate */
+    int getBurstSize(int maxBurst);
+
+    /** Nanoseconds between two packets at the current pacing rate (0 = unpaced) */
+    long getPacingInterval();
+
+    boolean canSendPacket();
+
+    // --- Feedback (NACK listener) ----------------------------------------
+
+    /** One NACK frame: set / clear bits of its 64-slice window */
+    void onNackFrameReceived(int receivedPacketCount, int lostPacketCount);
+
+    /**
+     * Raw NACK window: every slice below {@code baseSeq} plus the set bits of
+     * {@code mask} are delivered. Delivery-rate based controllers use it.
+     */
+    default void onNackWindow(int baseSeq, long mask, long nowNs) {
+    }
+
+    /** Holes below the highest received slice of one NACK window */
+    void onLossSample(int delivered, int holes);
+
+    void updateRtt(long rttNs);
+
+    // --- Path hints / introspection --------------------------------------
+
+    void enableLocalNetworkMode();
+
+    void enableWanMode();
+
+    /** Smoothed loss fraction (drives FEC redundancy) */
+    double getLossEstimate();
+
+    long getCongestionWindow();
+
+    long getSmoothedRtt();
+
+    String getStats();
+
+    void reset();
+
+    /**
+     * New controller for one transfer.
+     *
+     * @param algorithm {@link #HYBRID} or {@link #BBR} (case-insensitive)
+     */
+    static CongestionController create(String algorithm) {
+        if (algorithm == null || algorithm.isBlank() || HYBRID.equalsIgnoreCase(algorithm)) {
+            return new HybridCongestionController();
+        }
+        if (BBR.equalsIgnoreCase(algorithm)) {
+            return new BbrCongestionController();
+        }
+        throw new IllegalArgumentException("Unknown congestion control: " + algorithm);
+    }
+}
@@ -0,0 +1,121 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking (FastCDC style gear rolling hash) for delta transfers.
+ *
+ * Boundaries depend only on the last ~64 bytes of content, so an insertion or
+ * deletion only changes the chunks around the edit - everything after it
+ * re-synchronizes on the same boundaries as the old version. Normalized
+ * chunking (strict mask before AVG, loose mask after) keeps sizes close to AVG.
+ *
+ * Both peers must use the same parameters and gear table; the table is
+ * generated from a fixed seed.
+ */
+public final class ContentDefinedChunker {
+
+    public static final int MIN_SIZE = 2 * 1024;
+    public static final int AVG_SIZE = 8 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    // High bits of the gear hash depend on more bytes than the low bits
+    private static final long MASK_STRICT = ((1L << 15) - 1) << 48; // before AVG: harder to cut
+    private static final long MASK_LOOSE = ((1L << 11) - 1) << 52;  // after AVG: easier to cut
+
+    private static final long[] GEAR = new long[256];
+    static {
+        SplittableRandom rnd = new SplittableRandom(0x5AFE_600D_CDC0_0001L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = rnd.nextLong();
+        }
+    }
+
+    /** Scan buffer, must hold several MAX_SIZE chunks */
+    private static final int SCAN_BUFFER = 4 << 20;
+
+    @FunctionalInterface
+    public interface ChunkSink {
+        /**
+         * @param fileOffset offset of the chunk in the scanned file
+         * @param data       scan buffer - only valid during the call
+         */
+        void onChunk(long fileOffset, byte[] data, int off, int len) throws IOException;
+    }
+
+    private ContentDefinedChunker() {}
+
+    /**
+     * Length of the next chunk starting at {@code off}.
+     *
+     * @param avail bytes available from off (a full MAX_SIZE unless at EOF)
+     */
+    static int nextCut(byte[] data, int off, int avail) {
+        if (avail <= MIN_SIZE) {
+            return avail;
+        }
+        int normal = Math.min(avail, AVG_SIZE);
+        int max = Math.min(avail, MAX_SIZE);
+        long h = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xFF];
+            if ((h & MASK_STRICT) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < max; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xFF];
+            if ((h & MASK_LOOSE) == 0) {
+                return i + 1;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Stream a file through the chunker (files of any size, constant memory).
+     */
+    public static void scan(Path file, ChunkSink sink) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] buf = new byte[SCAN_BUFFER];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            long fileOffset = 0;
+            int start = 0;
+            int end = 0;
+            boolean eof = false;
+            while (true) {
+                // Keep at least MAX_SIZE bytes ahead of the cursor unless at EOF
+                if (!eof && end - start < MAX_SIZE) {
+                    if (start > 0) {
+                        System.arraycopy(buf, start, buf, 0, end - start);
+                        end -= start;
+                        start = 0;
+                    }
+                    bb.limit(buf.length).position(end);
+                    while (bb.hasRemaining()) {
+                        int r = fc.read(bb);
+                        if (r < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    end = bb.position();
+                }
+                int avail = end - start;
+                if (avail == 0) {
+                    return;
+                }
+                int len = nextCut(buf, start, avail);
+                sink.onChunk(fileOffset, buf, start, len);
+                fileOffset += len;
+                start += len;
+            }
+        }
+    }
+}
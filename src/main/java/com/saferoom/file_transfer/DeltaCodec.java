@@ -0,0 +1,245 @@
+package com.saferoom.file_transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * rsync-style delta encoder / applier on top of content-defined chunks.
+ *
+ * Delta stream (big endian):
+ * <pre>
+ *  magic 'SRDL' | version | targetSize(8) | basisSize(8)
+ *  ops:  0x01 COPY    basisOffset(8) length(4)
+ *        0x02 LITERAL length(4) bytes[length]
+ *        0x00 END     sha256(target)[32]
+ * </pre>
+ * Adjacent COPYs of contiguous basis ranges and adjacent literals are merged,
+ * so an unchanged file costs a single COPY op.
+ */
+public final class DeltaCodec {
+
+    private static final int MAGIC = 0x5352444C; // "SRDL"
+    private static final byte VERSION = 1;
+    static final byte OP_END = 0x00;
+    static final byte OP_COPY = 0x01;
+    static final byte OP_LITERAL = 0x02;
+
+    /** Literal runs are flushed in pieces so the encoder never buffers more than this */
+    private static final int MAX_LITERAL = 1 << 20;
+
+    private DeltaCodec() {}
+
+    /**
+     * Encoder result, mostly for logging / benchmarks.
+     */
+    public static final class Result {
+        public long targetSize;
+        public long copiedBytes;
+        public long literalBytes;
+        public long deltaSize;
+        public int chunks;
+        public int matchedChunks;
+
+        @Override
+        public String toString() {
+            double reuse = targetSize > 0 ? copiedBytes * 100.0 / targetSize : 0.0;
+            return String.format("Delta: %d/%d chunks matched, %.1f%% reused, literal=%d bytes, delta=%d bytes (target %d)",
+                matchedChunks, chunks, reuse, literalBytes, deltaSize, targetSize);
+        }
+    }
+
+    /**
+     * Sender side: chunk {@code target}, match against the receiver's signature
+     * and write the delta stream to {@code deltaOut}.
+     */
+    public static Result encode(Path target, DeltaSignature sig, Path deltaOut) throws IOException {
+        Result result = new Result();
+        result.targetSize = Files.size(target);
+        MessageDigest whole = DeltaSignature.sha256();
+        MessageDigest chunkSha = DeltaSignature.sha256();
+        CRC32C crc = new CRC32C();
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(deltaOut), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(result.targetSize);
+            out.writeLong(sig.basisSize);
+
+            byte[] literal = new byte[MAX_LITERAL];
+            // Pending op state (merged until something non-contiguous shows up)
+            long[] copy = {-1, 0};  // basisOffset, length
+            int[] literalLen = {0};
+
+            ContentDefinedChunker.scan(target, (off, data, pos, len) -> {
+                whole.update(data, pos, len);
+                crc.reset();
+                crc.update(data, pos, len);
+                result.chunks++;
+                int match = sig.find((int) crc.getValue(), len,
+                    () -> DeltaSignature.strongHash(chunkSha, data, pos, len));
+                if (match >= 0) {
+                    flushLiteral(out, literal, literalLen);
+                    long basisOff = sig.offsetAt(match);
+                    if (copy[0] >= 0 && copy[0] + copy[1] == basisOff && copy[1] + len <= Integer.MAX_VALUE) {
+                        copy[1] += len;
+                    } else {
+                        flushCopy(out, copy);
+                        copy[0] = basisOff;
+                        copy[1] = len;
+                    }
+                    result.matchedChunks++;
+                    result.copiedBytes += len;
+                } else {
+                    flushCopy(out, copy);
+                    int p = pos;
+                    int remaining = len;
+                    while (remaining > 0) {
+                        int n = Math.min(remaining, MAX_LITERAL - literalLen[0]);
+                        System.arraycopy(data, p, literal, literalLen[0], n);
+                        literalLen[0] += n;
+                        p += n;
+                        remaining -= n;
+                        if (literalLen[0] == MAX_LITERAL) {
+                            flushLiteral(out, literal, literalLen);
+                        }
+                    }
+                    result.literalBytes += len;
+                }
+            });
+            flushCopy(out, copy);
+            flushLiteral(out, literal, literalLen);
+            out.writeByte(OP_END);
+            out.write(whole.digest());
+        }
+        result.deltaSize = Files.size(deltaOut);
+        return result;
+    }
+
+    private static void flushCopy(DataOutputStream out, long[] copy) throws IOException {
+        if (copy[0] < 0) {
+            return;
+        }
+        out.writeByte(OP_COPY);
+        out.writeLong(copy[0]);
+        out.writeInt((int) copy[1]);
+        copy[0] = -1;
+        copy[1] = 0;
+    }
+
+    private static void flushLiteral(DataOutputStream out, byte[] literal, int[] literalLen) throws IOException {
+        if (literalLen[0] == 0) {
+            return;
+        }
+        out.writeByte(OP_LITERAL);
+        out.writeInt(literalLen[0]);
+        out.write(literal, 0, literalLen[0]);
+        literalLen[0] = 0;
+    }
+
+    /**
+     * Receiver side: rebuild the target from {@code basis} + {@code delta} into
+     * {@code output}. The result is verified against the sender's SHA-256.
+     *
+     * @return bytes written
+     */
+    public static long apply(Path basis, Path delta, Path output) throws IOException {
+        MessageDigest whole = DeltaSignature.sha256();
+        byte[] copyBuf = new byte[1 << 16];
+        long written = 0;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(delta), 1 << 16));
+             FileChannel basisCh = basis != null && Files.exists(basis)
+                ? FileChannel.open(basis, StandardOpenOption.READ) : null;
+             FileChannel outCh = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a delta stream: " + delta);
+            }
+            long targetSize = in.readLong();
+            long basisSize = in.readLong();
+            long actualBasis = basisCh != null ? basisCh.size() : 0;
+            if (basisSize != actualBasis) {
+                throw new IOException("Delta was built for a different basis (" + basisSize
+                    + " bytes, local " + actualBasis + ")");
+            }
+
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_END) {
+                    break;
+                }
+                if (op == OP_COPY) {
+                    long off = in.readLong();
+                    int len = in.readInt();
+                    if (off < 0 || len <= 0 || off + len > basisSize || written + len > targetSize) {
+                        throw new IOException("Delta COPY out of range: " + off + "+" + len);
+                    }
+                    long pos = off;
+                    int remaining = len;
+                    while (remaining > 0) {
+                        int n = Math.min(remaining, copyBuf.length);
+                        ByteBuffer bb = ByteBuffer.wrap(copyBuf, 0, n);
+                        while (bb.hasRemaining()) {
+                            int r = basisCh.read(bb, pos + bb.position());
+                            if (r < 0) {
+                                throw new IOException("Basis truncated while applying delta");
+                            }
+                        }
+                        whole.update(copyBuf, 0, n);
+                        writeFully(outCh, ByteBuffer.wrap(copyBuf, 0, n));
+                        pos += n;
+                        remaining -= n;
+                    }
+                    written += len;
+                } else if (op == OP_LITERAL) {
+                    int len = in.readInt();
+                    if (len <= 0 || written + len > targetSize) {
+                        throw new IOException("Delta LITERAL out of range: " + len);
+                    }
+                    int remaining = len;
+                    while (remaining > 0) {
+                        int n = Math.min(remaining, copyBuf.length);
+                        in.readFully(copyBuf, 0, n);
+                        whole.update(copyBuf, 0, n);
+                        writeFully(outCh, ByteBuffer.wrap(copyBuf, 0, n));
+                        remaining -= n;
+                    }
+                    written += len;
+                } else {
+                    throw new IOException(String.format("Unknown delta op 0x%02X", op));
+                }
+            }
+
+            byte[] expected = new byte[32];
+            in.readFully(expected);
+            if (written != targetSize) {
+                throw new IOException("Delta produced " + written + " bytes, expected " + targetSize);
+            }
+            if (!Arrays.equals(expected, whole.digest())) {
+                throw new IOException("Delta result SHA-256 mismatch");
+            }
+            outCh.force(false);
+        }
+        return written;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            ch.write(src);
+        }
+    }
+}
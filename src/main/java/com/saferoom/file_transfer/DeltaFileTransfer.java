@@ -0,0 +1,105 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Delta transfer mode: re-send a new version of a file the peer already has
+ * an older copy of.
+ *
+ * <pre>
+ *  receiver (has basis)                         sender (has new version)
+ *  1. chunk + hash basis -> signature file
+ *     sendFile(signature)  ---- data plane ---->  FileTransferReceiver
+ *                                              2. encode delta vs signature
+ *     FileTransferReceiver <---- data plane ----  sendFile(delta)
+ *  3. apply delta to basis -> output (SHA-256 verified)
+ * </pre>
+ *
+ * Both phases are ordinary transfers over the existing CRC32C_Packet / NACK
+ * data plane, so lanes, batching and resume apply to them unchanged. Both
+ * channels must already be connected to the peer (always true for
+ * DataChannelWrapper; for UDP connect() both sides).
+ */
+public final class DeltaFileTransfer {
+
+    /** Signature transfer uses a derived fileId so it never collides with the data transfer */
+    private static final long SIGNATURE_ID_BIT = 1L << 62;
+
+    private DeltaFileTransfer() {}
+
+    /**
+     * Sender side of a delta transfer.
+     *
+     * @return encoder result (bytes reused / sent as literals)
+     */
+    public static DeltaCodec.Result sendDelta(DatagramChannel channel, Path newFile, long fileId) throws IOException {
+        Path sigFile = Files.createTempFile("saferoom-sig-", ".bin");
+        Path deltaFile = Files.createTempFile("saferoom-delta-", ".bin");
+        try {
+            // 1. Peer's basis signatures
+            System.out.println("[DELTA] Waiting for basis signatures...");
+            FileTransferReceiver sigReceiver = new FileTransferReceiver();
+            sigReceiver.channel = channel;
+            sigReceiver.filePath = sigFile;
+            sigReceiver.ReceiveData();
+            DeltaSignature sig = DeltaSignature.readFrom(sigFile);
+            System.out.printf("[DELTA] Signatures received: %d chunks of a %d byte basis%n",
+                sig.size(), sig.basisSize);
+
+            // 2. Encode and send the delta stream like any other file
+            long encodeStart = System.nanoTime();
+            DeltaCodec.Result result = DeltaCodec.encode(newFile, sig, deltaFile);
+            System.out.printf("[DELTA] %s (encoded in %d ms)%n", result,
+                (System.nanoTime() - encodeStart) / 1_000_000);
+
+            new EnhancedFileTransferSender(channel).sendFile(deltaFile, fileId);
+            return result;
+        } finally {
+            Files.deleteIfExists(sigFile);
+            Files.deleteIfExists(deltaFile);
+        }
+    }
+
+    /**
+     * Receiver side of a delta transfer. {@code basis} may be missing, in which
+     * case the delta degenerates to a full (literal) copy.
+     *
+     * @return size of the rebuilt file
+     */
+    public static long receiveDelta(DatagramChannel channel, Path basis, Path output) throws IOException {
+        Path sigFile = Files.createTempFile("saferoom-sig-", ".bin");
+        Path deltaFile = Files.createTempFile("saferoom-delta-", ".bin");
+        Path rebuilt = output.resolveSibling(output.getFileName() + ".delta-tmp");
+        try {
+            // 1. Advertise what we already have
+            long sigStart = System.nanoTime();
+            DeltaSignature sig = DeltaSignature.compute(basis);
+            sig.writeTo(sigFile);
+            System.out.printf("[DELTA] Basis signature: %d chunks, %d bytes (%d ms)%n",
+                sig.size(), Files.size(sigFile), (System.nanoTime() - sigStart) / 1_000_000);
+            long sigId = System.currentTimeMillis() | SIGNATURE_ID_BIT;
+            new EnhancedFileTransferSender(channel).sendFile(sigFile, sigId);
+
+            // 2. Delta stream comes back over the same channel
+            FileTransferReceiver deltaReceiver = new FileTransferReceiver();
+            deltaReceiver.channel = channel;
+            deltaReceiver.filePath = deltaFile;
+            deltaReceiver.ReceiveData();
+
+            // 3. Rebuild next to the output, then swap in (basis may be the output itself)
+            long size = DeltaCodec.apply(basis, deltaFile, rebuilt);
+            Files.move(rebuilt, output, StandardCopyOption.REPLACE_EXISTING);
+            System.out.printf("[DELTA] Rebuilt %s (%d bytes) from basis + %d byte delta%n",
+                output.getFileName(), size, Files.size(deltaFile));
+            return size;
+        } finally {
+            Files.deleteIfExists(sigFile);
+            Files.deleteIfExists(deltaFile);
+            Files.deleteIfExists(rebuilt);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.saferoom.file_transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Signatures of the receiver's basis file for delta transfers.
+ *
+ * One entry per content-defined chunk: offset, length, weak hash (CRC32C) and
+ * strong hash (first 16 bytes of SHA-256). The weak hash filters candidates
+ * cheaply, the strong hash confirms a match before the sender emits a COPY.
+ *
+ * File format (big endian):
+ * <pre>
+ *  magic 'SRSG' | version | basisSize(8) | count(4)
+ *  count x [offset(8) | length(4) | weak(4) | strong(16)]
+ *  crc32c(4) over all entries
+ * </pre>
+ */
+public final class DeltaSignature {
+
+    private static final int MAGIC = 0x53525347; // "SRSG"
+    private static final byte VERSION = 1;
+    public static final int STRONG_BYTES = 16;
+    public static final int ENTRY_BYTES = 8 + 4 + 4 + STRONG_BYTES;
+
+    public final long basisSize;
+    private int count;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] weak;
+    private byte[] strong; // count x STRONG_BYTES
+
+    // weak hash -> first entry, chained through next[]
+    private Map<Integer, Integer> index;
+    private int[] next;
+
+    private DeltaSignature(long basisSize, int capacity) {
+        this.basisSize = basisSize;
+        this.offsets = new long[capacity];
+        this.lengths = new int[capacity];
+        this.weak = new int[capacity];
+        this.strong = new byte[capacity * STRONG_BYTES];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long offsetAt(int i) { return offsets[i]; }
+
+    public int lengthAt(int i) { return lengths[i]; }
+
+    private void add(long offset, int length, int weakHash, byte[] strongHash) {
+        if (count == offsets.length) {
+            int cap = Math.max(16, count * 2);
+            offsets = Arrays.copyOf(offsets, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+            weak = Arrays.copyOf(weak, cap);
+            strong = Arrays.copyOf(strong, cap * STRONG_BYTES);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        weak[count] = weakHash;
+        System.arraycopy(strongHash, 0, strong, count * STRONG_BYTES, STRONG_BYTES);
+        count++;
+    }
+
+    /**
+     * Chunk and hash the basis file. A missing basis yields an empty signature
+     * (the delta then degenerates to one literal stream).
+     */
+    public static DeltaSignature compute(Path basis) throws IOException {
+        if (basis == null || !Files.exists(basis)) {
+            return new DeltaSignature(0, 0);
+        }
+        long size = Files.size(basis);
+        DeltaSignature sig = new DeltaSignature(size,
+            (int) Math.min(Integer.MAX_VALUE - 8, size / ContentDefinedChunker.AVG_SIZE + 16));
+        CRC32C crc = new CRC32C();
+        MessageDigest sha = sha256();
+        ContentDefinedChunker.scan(basis, (off, data, pos, len) -> {
+            crc.reset();
+            crc.update(data, pos, len);
+            sig.add(off, len, (int) crc.getValue(), strongHash(sha, data, pos, len));
+        });
+        return sig;
+    }
+
+    static byte[] strongHash(MessageDigest sha, byte[] data, int off, int len) {
+        sha.reset();
+        sha.update(data, off, len);
+        return Arrays.copyOf(sha.digest(), STRONG_BYTES);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Find a basis chunk with the same content.
+     *
+     * @param strongSupplier lazily computes the strong hash (only on weak hit)
+     * @return entry index or -1
+     */
+    public int find(int weakHash, int length, Supplier<byte[]> strongSupplier) {
+        if (index == null) {
+            buildIndex();
+        }
+        Integer head = index.get(weakHash);
+        if (head == null) {
+            return -1;
+        }
+        byte[] candidate = null;
+        for (int i = head; i >= 0; i = next[i]) {
+            if (lengths[i] != length) {
+                continue;
+            }
+            if (candidate == null) {
+                candidate = strongSupplier.get();
+            }
+            if (Arrays.equals(strong, i * STRONG_BYTES, (i + 1) * STRONG_BYTES,
+                    candidate, 0, STRONG_BYTES)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void buildIndex() {
+        index = new HashMap<>(Math.max(16, count * 2));
+        next = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            Integer prev = index.put(weak[i], i);
+            next[i] = prev == null ? -1 : prev;
+        }
+    }
+
+    public void writeTo(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(basisSize);
+            out.writeInt(count);
+            CRC32C crc = new CRC32C();
+            byte[] entry = new byte[ENTRY_BYTES];
+            ByteBuffer e = ByteBuffer.wrap(entry);
+            for (int i = 0; i < count; i++) {
+                e.clear();
+                e.putLong(offsets[i]).putInt(lengths[i]).putInt(weak[i]);
+                e.put(strong, i * STRONG_BYTES, STRONG_BYTES);
+                crc.update(entry);
+                out.write(entry);
+            }
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    public static DeltaSignature readFrom(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a delta signature file: " + file);
+            }
+            long basisSize = in.readLong();
+            int count = in.readInt();
+            long expected = 4 + 1 + 8 + 4 + (long) count * ENTRY_BYTES + 4;
+            if (count < 0 || basisSize < 0 || expected != Files.size(file)) {
+                throw new IOException("Corrupt delta signature header: count=" + count);
+            }
+            DeltaSignature sig = new DeltaSignature(basisSize, count);
+            CRC32C crc = new CRC32C();
+            byte[] entry = new byte[ENTRY_BYTES];
+            ByteBuffer e = ByteBuffer.wrap(entry);
+            byte[] strongHash = new byte[STRONG_BYTES];
+            for (int i = 0; i < count; i++) {
+                in.readFully(entry);
+                crc.update(entry);
+                e.clear();
+                long off = e.getLong();
+                int len = e.getInt();
+                int w = e.getInt();
+                e.get(strongHash);
+                if (off < 0 || len <= 0 || off + len > basisSize) {
+                    throw new IOException("Delta signature entry out of range: " + off + "+" + len);
+                }
+                sig.add(off, len, w, strongHash);
+            }
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Delta signature CRC mismatch");
+            }
+            return sig;
+        }
+    }
+}
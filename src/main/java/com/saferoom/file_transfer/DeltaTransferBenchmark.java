@@ -0,0 +1,179 @@
+package com.saferoom.file_transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Delta mode vs full sendFile over loopback UDP.
+ * Kullanım: java DeltaTransferBenchmark [size_mb] [seed]
+ *
+ * For 1%, 10% and 50% modified versions of a random basis file it runs a full
+ * transfer and a delta transfer and reports data-plane bytes (payload + 22 byte
+ * headers, both directions for delta, excluding retransmits) and wall time.
+ * Edits are a mix of in-place overwrites, insertions and deletions so the
+ * content-defined boundaries have to re-synchronize after shifts.
+ */
+public class DeltaTransferBenchmark {
+
+    private static final double[] MODIFIED = {0.01, 0.10, 0.50};
+    private static final int EDIT_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+        Random rnd = new Random(seed);
+
+        Path dir = Files.createTempDirectory("saferoom-delta-bench");
+        Path basis = dir.resolve("basis.bin");
+        byte[] base = new byte[sizeMb << 20];
+        rnd.nextBytes(base);
+        Files.write(basis, base);
+
+        List<String> rows = new ArrayList<>();
+        ExecutorService peer = Executors.newSingleThreadExecutor();
+        try {
+            for (double pct : MODIFIED) {
+                Path target = dir.resolve("target.bin");
+                Files.write(target, mutate(base, pct, rnd));
+                long targetSize = Files.size(target);
+
+                // Full transfer
+                Path fullOut = dir.resolve("full-out.bin");
+                long t0 = System.nanoTime();
+                try (DatagramChannel a = openChannel(); DatagramChannel b = openChannel()) {
+                    connectPair(a, b);
+                    Future<?> rx = peer.submit(() -> {
+                        FileTransferReceiver receiver = new FileTransferReceiver();
+                        receiver.channel = b;
+                        receiver.filePath = fullOut;
+                        receiver.ReceiveData();
+                        return null;
+                    });
+                    new EnhancedFileTransferSender(a).sendFile(target, System.currentTimeMillis());
+                    rx.get();
+                }
+                long fullMs = (System.nanoTime() - t0) / 1_000_000;
+                check(target, fullOut, "full");
+                long fullWire = dataPlaneBytes(targetSize);
+
+                // Delta transfer (receiver holds the basis)
+                Path deltaOut = dir.resolve("delta-out.bin");
+                Files.copy(basis, deltaOut, StandardCopyOption.REPLACE_EXISTING);
+                t0 = System.nanoTime();
+                DeltaCodec.Result result;
+                try (DatagramChannel a = openChannel(); DatagramChannel b = openChannel()) {
+                    connectPair(a, b);
+                    Future<?> rx = peer.submit(() -> {
+                        DeltaFileTransfer.receiveDelta(b, deltaOut, deltaOut);
+                        return null;
+                    });
+                    result = DeltaFileTransfer.sendDelta(a, target, System.currentTimeMillis());
+                    rx.get();
+                }
+                long deltaMs = (System.nanoTime() - t0) / 1_000_000;
+                check(target, deltaOut, "delta");
+                long deltaWire = dataPlaneBytes(signatureBytes(basis)) + dataPlaneBytes(result.deltaSize);
+
+                rows.add(String.format("%5.0f%% | %12d | %8d | %12d | %8d | %6.1f%% | %s",
+                    pct * 100, fullWire, fullMs, deltaWire, deltaMs,
+                    deltaWire * 100.0 / fullWire, result));
+            }
+        } finally {
+            peer.shutdownNow();
+            EnhancedFileTransferSender.shutdownThreadPool();
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        System.out.println();
+        System.out.printf("=== Delta vs full transfer (%d MB basis, loopback UDP) ===%n", sizeMb);
+        System.out.println(" mod  |  full bytes  | full ms  |  delta bytes | delta ms | wire   | encoder");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * Payload plus CRC32C_Packet headers for one transfer (handshake/NACK traffic ignored)
+     */
+    static long dataPlaneBytes(long fileSize) {
+        long packets = (fileSize + EnhancedFileTransferSender.SLICE_SIZE - 1) / EnhancedFileTransferSender.SLICE_SIZE;
+        return fileSize + packets * CRC32C_Packet.HEADER_SIZE;
+    }
+
+    private static long signatureBytes(Path basis) throws IOException {
+        Path tmp = Files.createTempFile("saferoom-sig-size", ".bin");
+        try {
+            DeltaSignature.compute(basis).writeTo(tmp);
+            return Files.size(tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Modify roughly {@code fraction} of the bytes: 70% overwrites, 15% inserts, 15% deletes.
+     */
+    static byte[] mutate(byte[] base, double fraction, Random rnd) {
+        int edits = (int) Math.max(1, Math.round(base.length * fraction / EDIT_SIZE));
+        int stride = base.length / edits;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(base.length + EDIT_SIZE);
+        byte[] fresh = new byte[EDIT_SIZE];
+        int pos = 0;
+        for (int e = 0; e < edits; e++) {
+            int editStart = e * stride + rnd.nextInt(Math.max(1, stride - EDIT_SIZE));
+            editStart = Math.max(pos, Math.min(editStart, base.length));
+            out.write(base, pos, editStart - pos);
+            pos = editStart;
+            int kind = rnd.nextInt(100);
+            rnd.nextBytes(fresh);
+            int len = Math.min(EDIT_SIZE, base.length - pos);
+            if (kind < 70) {          // overwrite
+                out.write(fresh, 0, len);
+                pos += len;
+            } else if (kind < 85) {   // insert
+                out.write(fresh, 0, EDIT_SIZE);
+            } else {                  // delete
+                pos += len;
+            }
+        }
+        out.write(base, pos, base.length - pos);
+        return out.toByteArray();
+    }
+
+    private static void check(Path expected, Path actual, String mode) throws IOException {
+        long mismatch = Files.mismatch(expected, actual);
+        if (mismatch != -1) {
+            throw new IllegalStateException(mode + " transfer output differs at byte " + mismatch);
+        }
+    }
+
+    private static DatagramChannel openChannel() throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        ch.setOption(java.net.StandardSocketOptions.SO_SNDBUF, 16 * 1024 * 1024);
+        ch.setOption(java.net.StandardSocketOptions.SO_RCVBUF, 16 * 1024 * 1024);
+        ch.bind(new InetSocketAddress("127.0.0.1", 0));
+        ch.configureBlocking(false); // same mode as the P2P path (KeepAliveManager)
+        return ch;
+    }
+
+    private static void connectPair(DatagramChannel a, DatagramChannel b) throws IOException {
+        a.connect(b.getLocalAddress());
+        b.connect(a.getLocalAddress());
+    }
+}
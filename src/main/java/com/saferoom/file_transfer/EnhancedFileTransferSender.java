@@ -8,12 +8,18 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32C;
 
 import com.saferoom.transport.FlowControlledEndpoint;
@@ -25,12 +31,29 @@ public class EnhancedFileTransferSender {
 	    private final boolean zeroCopyEnabled;
 	    private final BufferPool bufferPool;
 	    private FileTransferRuntime runtime;
+	    // Per-transfer flag for the stats/retransmission loops: lets them exit on their
+	    // own so the runtime does not interrupt a thread inside channel.write()
+	    // (ClosedByInterruptException would close the channel for the next transfer)
+	    private volatile boolean auxLoopsRunning = false;
 	    
-	    // QUIC-inspired congestion control
-	    private HybridCongestionController hybridControl;
+	    // Congestion control (hybrid / bbr), a new instance per transfer
+	    private CongestionController congestionControl;
+	    private volatile String congestionAlgorithm;
 	    private EnhancedNackListener enhancedNackListener;
 	    private ChunkManager chunkManager;
 	    private TransferListener transferListener;
+	    private final int laneCount;
+	    private volatile SendLane[] sendLanes;
+	    private final boolean batchingEnabled;
+	    private final PacketBatcher.Stats batchStats = new PacketBatcher.Stats();
+	    // Slices the receiver already holds (RESUME handshake), null = send everything
+	    private volatile BitSet resumeHeld;
+	    // Optional block compression (null = every slice goes out raw)
+	    private final boolean compressionEnabled;
+	    private volatile CompressionAdvisor compression;
+	    private final FecEncoder.Stats fecStats = new FecEncoder.Stats();
+	    // Merkle leaves over the send stripes, null = CRC only (no handshake or disabled)
+	    private volatile MerkleTree merkle;
 	    
 	    private static final ExecutorService threadPool = 
 	        Executors.newCachedThreadPool(r -> {
@@ -44,6 +67,8 @@ public class EnhancedFileTransferSender {
 	    public static final int  SLICE_SIZE = 1450; // Maximum payload without fragmentation
 	    public static final int  MAX_TRY    = 4;
 	    public static final int  BACKOFF_NS = 0; // HİÇ BEKLEME YOK!
+	    public static final int  MAX_LANES  = 16;
+	    private static final Duration AUX_LOOP_GRACE = Duration.ofMillis(200);
 	
 	    public EnhancedFileTransferSender(DatagramChannel ch){
 		this(ch, null);
@@ -54,10 +79,19 @@ public class EnhancedFileTransferSender {
 		this.flowController = flowController;
 		this.zeroCopyEnabled = Boolean.parseBoolean(
 			System.getProperty("saferoom.transfer.zeroCopy.enabled", "true"));
+		this.batchingEnabled = Boolean.parseBoolean(
+			System.getProperty("saferoom.transfer.batch.enabled", "true"));
+		this.compressionEnabled = Boolean.parseBoolean(
+			System.getProperty("saferoom.transfer.compress.enabled", "false"));
+		this.congestionAlgorithm = System.getProperty("saferoom.transfer.cc", CongestionController.HYBRID);
+		int lanes = Integer.getInteger("saferoom.transfer.lanes", 1);
+		this.laneCount = Math.max(1, Math.min(MAX_LANES, lanes));
 		if (zeroCopyEnabled) {
 			this.bufferPool = null;
 		} else {
-			int poolSize = Integer.getInteger("saferoom.transfer.pool.size", 8);
+			// Every lane can hold one full burst of pooled payloads at a time
+			int defaultPool = batchingEnabled ? PacketBatcher.MAX_BURST * laneCount + 8 : 8;
+			int poolSize = Integer.getInteger("saferoom.transfer.pool.size", defaultPool);
 			this.bufferPool = new BufferPool(poolSize, SLICE_SIZE);
 		}
 	    }
@@ -71,7 +105,31 @@ public class EnhancedFileTransferSender {
 	    	this.transferListener = listener;
 	    }
 
+	    /**
+	     * Congestion control for the next transfers: {@link CongestionController#HYBRID}
+	     * or {@link CongestionController#BBR} (default: saferoom.transfer.cc)
+	     */
+	    public void setCongestionAlgorithm(String algorithm) {
+	    	CongestionController.create(algorithm); // fail fast on unknown names
+	    	this.congestionAlgorithm = algorithm;
+	    }
+
 	    
+	    /**
+	     * Packets-per-syscall / burst statistics of the current (or last) transfer
+	     */
+	    public String getBatchStats() {
+	    	return batchStats.toString();
+	    }
+
+	    /**
+	     * Block compression statistics of the current (or last) transfer
+	     */
+	    public String getCompressionStats() {
+	    	CompressionAdvisor advisor = compression;
+	    	return advisor != null ? advisor.stats.toString() : "Compression: disabled";
+	    }
+
 	    public void requestStop() {
 	        this.stopRequested = true;
 	    }
@@ -89,7 +147,12 @@ public class EnhancedFileTransferSender {
 	if(channel == null) throw new IllegalStateException("Datagram Channel is null you must bind and connect first");
 		long candidate_file_Id = -1;
 		HandShake_Packet pkt = new HandShake_Packet();
-		pkt.make_SYN(fileId, file_size, total_seq);
+		MerkleTree tree = merkle;
+		if (tree != null) {
+			pkt.make_SYN(fileId, file_size, total_seq, tree.leafSlices, tree.leafCount);
+		} else {
+			pkt.make_SYN(fileId, file_size, total_seq);
+		}
 	
 		System.out.printf("[FILE-HANDSHAKE] 🤝 Sending SYN for fileId=%d, size=%d, chunks=%d%n", 
 			fileId, file_size, total_seq);
@@ -98,7 +161,9 @@ public class EnhancedFileTransferSender {
 		int bytesSent = channel.write(pkt.get_header().duplicate());
 		System.out.printf("[FILE-HANDSHAKE] 📤 SYN sent: %d bytes%n", bytesSent);
 		
-		ByteBuffer buffer = ByteBuffer.allocateDirect(HandShake_Packet.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+		// RESUME replies carry held ranges, so read up to RESUME_MAX_SIZE
+		ByteBuffer buffer = ByteBuffer.allocateDirect(HandShake_Packet.RESUME_MAX_SIZE).order(ByteOrder.BIG_ENDIAN);
+		resumeHeld = null;
 		
 		long ackDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30); // 30 saniye timeout
 		long lastSynTime = System.nanoTime();
@@ -136,6 +201,15 @@ public class EnhancedFileTransferSender {
 			
 			System.out.printf("[SENDER-HANDSHAKE] ✅ ACK received: fileId=%d (after %d SYN retries)%n", 
 				candidate_file_Id, synRetryCount);
+		} else if(r >= HandShake_Packet.OFF_RANGES && buffer.get(0) == HandShake_Packet.RESUME
+				&& HandShake_Packet.get_file_Id(buffer) == fileId
+				&& HandShake_Packet.get_file_size(buffer) == file_size
+				&& HandShake_Packet.get_total_seq(buffer) == total_seq){
+			candidate_file_Id = HandShake_Packet.get_file_Id(buffer);
+			BitSet held = HandShake_Packet.get_resume_held(buffer, total_seq);
+			resumeHeld = held.isEmpty() ? null : held;
+			System.out.printf("[SENDER-HANDSHAKE] ✅ RESUME received: fileId=%d, receiver holds %d/%d slices%n", 
+				candidate_file_Id, held.cardinality(), total_seq);
 		} else {
 			System.err.printf("[SENDER-HANDSHAKE] ❌ Invalid ACK: size=%d, type=0x%02X%n", 
 				r, buffer.get(0));
@@ -171,28 +245,32 @@ public class EnhancedFileTransferSender {
 	}
 	    
 	    public void sendOne(CRC32C crc, CRC32C_Packet pkt,
-                MappedByteBuffer mem, long fileId,
+                MappedWindow window, long fileId,
                 int seqNo, int totalSeq, int take, int off) throws IOException{
-	    	ByteBuffer payload = preparePayload(mem, off, take);
+	    	sendPayload(pkt, preparePayload(window.buffer, off, take), window.checksum(crc, off, take),
+	    		fileId, seqNo, totalSeq, take, 0);
+	    }
+	    
+	    /**
+	     * Single-frame send of a prepared payload; {@code plenFlags} are OR'ed into
+	     * the plen field (compressed fragments).
+	     */
+	    private void sendPayload(CRC32C_Packet pkt, ByteBuffer payload, int crc32c, long fileId,
+	    		int seqNo, int totalSeq, int take, int plenFlags) throws IOException {
 	    	ByteBuffer headerBuffer = pkt.headerBuffer();
-
-	    	crc.reset();
-	    	ByteBuffer crcView = payload.duplicate();
-	    	crc.update(crcView);
-	    	int crc32c = (int) crc.getValue();
 	    	
-	    	pkt.fillHeader(fileId, seqNo, totalSeq, take, crc32c);
+	    	pkt.fillHeader(fileId, seqNo, totalSeq, take | plenFlags, crc32c);
 	    	
 	        ByteBuffer payloadForSend = payload.duplicate();
 	        payloadForSend.position(0).limit(take);
 	        ByteBuffer[] frame = new ByteBuffer[]{ headerBuffer, payloadForSend };
 		
 	        if (enhancedNackListener != null) {
-	        	enhancedNackListener.recordPacketSendTime(seqNo);
+	        	enhancedNackListener.forgetPacketSendTime(seqNo); // retransmission: ambiguous RTT (Karn)
 	        }
 	        
-	        if (hybridControl != null) {
-	        	hybridControl.rateLimitSend(); // Rate pacing
+	        if (congestionControl != null) {
+	        	congestionControl.rateLimitSend(); // Rate pacing
 	        }
 	        
 	        try{
@@ -200,8 +278,8 @@ public class EnhancedFileTransferSender {
 				waitForBackpressure(packetBytes);
 	        	channel.write(frame);
 	        	
-	        	if (hybridControl != null) {
-	        		hybridControl.onPacketSent(packetBytes);
+	        	if (congestionControl != null) {
+	        		congestionControl.onPacketSent(packetBytes);
 	        	}
 			}catch(IOException e){
 				System.err.println("Frame sending error: " + e);
@@ -246,11 +324,11 @@ public class EnhancedFileTransferSender {
     		
     		System.out.printf("[SEND-INTERNAL] ChunkManager initialized: %d chunks%n", totalSeq);
     		
-    		// Thread-safe için her thread kendi instance'larını kullanacak
-    		CRC32C initialCrc = new CRC32C();
-    		CRC32C_Packet initialPkt = new CRC32C_Packet();
+    		// Thread-safe için her lane kendi CRC32C/CRC32C_Packet instance'larını kullanır (SendLane)
     		
 		System.out.printf("[SEND-INTERNAL] ⚙️ doHandshake check: %s%n", doHandshake);
+		// The receiver only verifies leaves it learned about in the SYN
+		this.merkle = doHandshake && MerkleTree.ENABLED ? new MerkleTree(totalSeq, MerkleTree.LEAF_SLICES) : null;
 		if (doHandshake) {
 			System.out.println("[SEND-INTERNAL] ✅ Handshake WILL BE PERFORMED");
 				long deadline = System.nanoTime() + java.util.concurrent.TimeUnit.SECONDS.toNanos(5);
@@ -272,9 +350,11 @@ public class EnhancedFileTransferSender {
 				}while(!hand_shaking);
 			} else {
 				System.out.println("[FILE-SEND] ⏩ Skipping handshake - already done by KeepAliveManager");
+				resumeHeld = null;
 			}
 
-	    	ConcurrentLinkedQueue<Integer> retxQueue = new ConcurrentLinkedQueue<>();
+	    	IntMpscRing retxQueue = IntMpscRing.forTransfer(totalSeq);
+	    	this.compression = compressionEnabled ? new CompressionAdvisor(chunkManager, totalSeq) : null;
 	    	
 	    	// Transfer completion için latch
 	    	final CountDownLatch transferCompleteLatch = new CountDownLatch(1);
@@ -288,11 +368,15 @@ public class EnhancedFileTransferSender {
 	    		transferCompleteLatch.countDown();
 	    	};
 	    	
-	    	// QUIC-inspired hybrid congestion control
-	    	this.hybridControl = new HybridCongestionController();
+	    	// Congestion control: QUIC-inspired hybrid (default) or BBR-style model
+	    	this.congestionControl = CongestionController.create(congestionAlgorithm);
+	    	System.out.println(" Congestion control: " + congestionAlgorithm);
 	    	
 	    	// Enhanced NACK listener'a congestion control referansını ver
-	    	enhancedNackListener.hybridControl = hybridControl;
+	    	enhancedNackListener.congestionControl = congestionControl;
+	    	if (merkle != null) {
+	    		enhancedNackListener.onHashRequest = index -> resendHash(fileId, index);
+	    	}
 	    	
 	    	// Network türüne göre optimize et
 	    	String targetHost = channel.getRemoteAddress().toString();
@@ -300,59 +384,57 @@ public class EnhancedFileTransferSender {
 	    	    targetHost.contains("192.168.") || targetHost.contains("10.");
 	    	    
 	    	if (isLocalNetwork) {
-	    		hybridControl.enableLocalNetworkMode();
+	    		congestionControl.enableLocalNetworkMode();
 	    		System.out.println(" Local network detected - enabling aggressive mode");
 	    	} else {
-	    		hybridControl.enableWanMode();
+	    		congestionControl.enableWanMode();
 	    		System.out.println(" WAN detected - packet-by-packet conservative mode");
 	    	}
 	    	
 	    	final boolean[] initialTransmissionDone = {false};
 	    	this.runtime = new FileTransferRuntime();
+	    	auxLoopsRunning = true;
 	    	runtime.start(enhancedNackListener);
 	    	runtime.start(createStatsTask());
 	    	runtime.start(createRetransmissionTask(retxQueue, fileId, totalSeq, initialTransmissionDone));
 		
-	    	long bytesSent = 0;
-
 	    	// ENHANCED WINDOWED TRANSMISSION - QUIC-style with Chunk Support
-		System.out.println("Starting QUIC-inspired windowed transmission with chunked I/O...");
-		int seqNo = 0;
-		long startTime = System.currentTimeMillis();
-		long lastProgressTime = startTime;
+		System.out.printf("Starting QUIC-inspired windowed transmission with chunked I/O (%d lane%s)...%n",
+			laneCount, laneCount == 1 ? "" : "s");
+		SendLane[] lanes = new SendLane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new SendLane(i, laneCount, new PacketBatcher(channel, batchStats));
+			if (compression != null) {
+				lanes[i].compressor = new BlockCompressor();
+			}
+			if (FecCodec.ENABLED) {
+				lanes[i].fec = new FecEncoder(FecCodec.GROUP_SIZE);
+			}
+		}
+		this.sendLanes = lanes;
+		enhancedNackListener.laneCount = lanes.length; // range NACKs are judged per lane
+		batchStats.reset();
+		fecStats.reset();
+		TransmissionProgress progress = new TransmissionProgress(fileSize, totalSeq, congestionControl);
+		BitSet held = resumeHeld;
+		if (held != null) {
+			long skippedBytes = Math.min(fileSize, (long) held.cardinality() * SLICE_SIZE);
+			progress.add(skippedBytes);
+			System.out.printf("Resuming: skipping %d/%d slices already held by receiver%n",
+				held.cardinality(), totalSeq);
+		}
 		
-		// Chunk-based sequential transmission
-		int chunkCount = chunkManager.getChunkCount();
-		for(int chunkIdx = 0; chunkIdx < chunkCount; chunkIdx++) {
-			MappedByteBuffer chunkBuffer = chunkManager.getChunk(chunkIdx);
-			
-			// Send all sequences in this chunk
-			for(int off = 0; off < chunkBuffer.capacity(); ) {
-				int remaining = chunkBuffer.capacity() - off;
-				int take = Math.min(SLICE_SIZE, remaining);
-				
-				// DYNAMIC RTT-BASED PACING - Controller'ın hesapladığı değeri kullan
-				sendOne(initialCrc, initialPkt, chunkBuffer, fileId, seqNo, totalSeq, take, off);
-				bytesSent += take;
-				if (transferListener != null) {
-					transferListener.onPacketProgress(fileId, bytesSent, fileSize);
-				}
-				
-				// Controller'dan dynamic pacing al - RTT'ye göre adaptive
-				// rateLimitSend() zaten internal pacing yapıyor, ekstra sabit pacing yok!
-				
-				off += take;
-				seqNo++;
-				
-				// Enhanced progress display
-				if (System.currentTimeMillis() - lastProgressTime > 1000) {
-					double progress = (double)seqNo / totalSeq * 100;
-					long elapsed = System.currentTimeMillis() - startTime;
-					double throughputMbps = (seqNo * SLICE_SIZE * 8.0) / (elapsed * 1000.0);
-					System.out.printf(" Progress: %.1f%% (Chunk %d/%d), Throughput: %.1f Mbps\n", 
-						progress, chunkIdx + 1, chunkCount, throughputMbps);
-					System.out.println(" " + hybridControl.getStats());
-					lastProgressTime = System.currentTimeMillis();
+		try {
+			if (laneCount == 1) {
+				runLane(lanes[0], fileId, totalSeq, progress);
+			} else {
+				runLanes(lanes, fileId, totalSeq, progress);
+			}
+		} finally {
+			for (SendLane lane : lanes) {
+				lane.releaseWindow();
+				if (lane.compressor != null) {
+					lane.compressor.close();
 				}
 			}
 		}
@@ -366,7 +448,7 @@ public class EnhancedFileTransferSender {
 	    		boolean completed = transferCompleteLatch.await(300, TimeUnit.SECONDS);
 	    		if(completed) {
 	    			System.out.println(" File transfer completed successfully!");
-	    			System.out.println(" Final stats: " + hybridControl.getStats());
+	    			System.out.println(" Final stats: " + congestionControl.getStats());
 	    			completedSuccessfully = true;
 	    		} else {
 	    			System.err.println(" Transfer timeout - network issue or very large file");
@@ -386,8 +468,11 @@ public class EnhancedFileTransferSender {
 	    	}
 	    	}finally {
 	    		System.out.println(" Cleaning up enhanced transfer threads...");
+	    		sendLanes = null;
+	    		auxLoopsRunning = false;
 	    		if (runtime != null) {
 	    			try {
+	    				runtime.awaitQuiescence(AUX_LOOP_GRACE);
 	    				runtime.close();
 	    			} catch (RuntimeException ex) {
 	    				System.err.println(" Runtime shutdown error: " + ex.getMessage());
@@ -395,23 +480,386 @@ public class EnhancedFileTransferSender {
 	    				runtime = null;
 	    			}
 	    		}
-	    		if (hybridControl != null) {
-	    			System.out.println(" Transfer summary: " + hybridControl.getStats());
+	    		if (congestionControl != null) {
+	    			System.out.println(" Transfer summary: " + congestionControl.getStats());
+	    		}
+	    		System.out.println(" " + batchStats);
+	    		if (compression != null) {
+	    			System.out.println(" " + compression.stats);
+	    		}
+	    		if (FecCodec.ENABLED) {
+	    			System.out.println(" " + fecStats);
+	    		}
+	    		if (merkle != null) {
+	    			System.out.println(" " + merkle);
+	    		}
+	    		if (chunkManager != null) {
+	    			try {
+	    				chunkManager.close(); // unmaps every window, lanes and retransmitter are done
+	    			} catch (IOException ex) {
+	    				System.err.println(" ChunkManager close error: " + ex.getMessage());
+	    			}
 	    		}
 	    	}
 	    }
 	    
+	    /**
+	     * Initial pass for one lane: walk the lane's stripes in ascending order.
+	     * With a single lane this is exactly the old sequential loop.
+	     */
+	    private void runLane(SendLane lane, long fileId, int totalSeq,
+	    		TransmissionProgress progress) throws IOException {
+	    	int burst = 1;
+	    	BitSet held = resumeHeld;
+	    	CompressionAdvisor advisor = compression;
+	    	MerkleTree tree = merkle;
+	    	for (int stripeStart = lane.firstSeq(); stripeStart < totalSeq; stripeStart += lane.stripeStride()) {
+	    		int stripeEnd = Math.min(stripeStart + SendLane.STRIPE_SLICES, totalSeq);
+	    		for (int seqNo = stripeStart; seqNo < stripeEnd; seqNo++) {
+	    			if (stopRequested || progress.aborted) {
+	    				throw new IllegalStateException("Transfer was stopped");
+	    			}
+	    			if (held != null && held.get(seqNo)) {
+	    				continue; // receiver already has it (resume)
+	    			}
+	    			MappedWindow window = lane.currentWindow;
+	    			if (window == null || !window.contains(seqNo)) {
+	    				flushBurst(lane, fileId, progress); // staged zero-copy slices point into the old window
+	    				lane.releaseWindow();
+	    				window = chunkManager.acquireWindow(seqNo);
+	    				lane.currentWindow = window;
+	    				chunkManager.prefetchAfter(window);
+	    			}
+	    			if (advisor != null && (seqNo & (BlockCompression.BLOCK_SLICES - 1)) == 0) {
+	    				int covered = sendCompressedBlock(lane, advisor, window, fileId, seqNo, totalSeq, held, progress);
+	    				if (covered > 0) {
+	    					seqNo += covered - 1;
+	    					continue;
+	    				}
+	    			}
+	    			int off = window.offsetOf(seqNo);
+	    			int take = window.payloadSize(seqNo);
+	    			
+	    			// Burst hedefi her burst başında controller'dan alınır (pacing quantum)
+	    			PacketBatcher batcher = lane.batcher;
+	    			if (batcher.size() == 0) {
+	    				burst = burstTarget();
+	    			}
+	    			ByteBuffer payload = preparePayload(window.buffer, off, take);
+	    			batcher.add(fileId, seqNo, totalSeq, payload, take, window.checksum(lane.crc, off, take));
+	    			if (lane.fec != null && lane.fec.add(seqNo, totalSeq, payload, take, fecParity())) {
+	    				addParity(lane, fileId, progress);
+	    			}
+	    			if (batcher.size() >= burst) {
+	    				flushBurst(lane, fileId, progress);
+	    			}
+	    		}
+	    		if (tree != null) {
+	    			// Stripe == leaf: hash it while its pages are still resident, after its data
+	    			flushBurst(lane, fileId, progress);
+	    			sendLeafHash(tree, fileId, stripeStart / tree.leafSlices);
+	    		}
+	    	}
+	    	flushBurst(lane, fileId, progress);
+	    	lane.releaseWindow();
+	    	lane.markFinished();
+	    }
+	    
+	    /**
+	     * Hash frame for one leaf, then the root once the last missing leaf is in
+	     */
+	    private void sendLeafHash(MerkleTree tree, long fileId, int leaf) throws IOException {
+	    	sendHashFrame(tree, fileId, leaf, MerkleTree.KIND_LEAF, tree.leafHash(chunkManager, leaf));
+	    	byte[] root = tree.takeRootToSend();
+	    	if (root != null) {
+	    		sendHashFrame(tree, fileId, 0, MerkleTree.KIND_ROOT, root);
+	    	}
+	    }
+	    
+	    /**
+	     * Receiver lost a hash frame (or a leaf failed and it wants the hash
+	     * again): answered from the leaf table, on the NACK listener thread.
+	     */
+	    private void resendHash(long fileId, int index) {
+	    	MerkleTree tree = merkle;
+	    	if (tree == null || index < 0 || index > tree.leafCount || chunkManager == null) {
+	    		return;
+	    	}
+	    	try {
+	    		if (index == tree.leafCount) {
+	    			sendHashFrame(tree, fileId, 0, MerkleTree.KIND_ROOT, tree.root(chunkManager));
+	    		} else {
+	    			sendHashFrame(tree, fileId, index, MerkleTree.KIND_LEAF, tree.leafHash(chunkManager, index));
+	    		}
+	    		tree.requestAnswered();
+	    	} catch (IOException e) {
+	    		System.err.println("Merkle hash resend error for index " + index + ": " + e);
+	    	}
+	    }
+	    
+	    private void sendHashFrame(MerkleTree tree, long fileId, int index, int kind, byte[] hash) throws IOException {
+	    	ByteBuffer frame = MerkleTree.hashFrame(fileId, index, kind, hash);
+	    	int frameBytes = frame.remaining();
+	    	waitForBackpressure(frameBytes);
+	    	channel.write(frame);
+	    	if (congestionControl != null) {
+	    		congestionControl.onPacketSent(frameBytes);
+	    	}
+	    	tree.frameSent();
+	    }
+	    
+	    /**
+	     * Parity slices for the next FEC group, from the controller's loss estimate
+	     */
+	    private int fecParity() {
+	    	return FecCodec.redundancyFor(congestionControl != null ? congestionControl.getLossEstimate() : 0.0);
+	    }
+	    
+	    /**
+	     * Stage the parity of the group the lane just completed. Parity frames
+	     * carry the group start as seq and the group descriptor as total.
+	     */
+	    private void addParity(SendLane lane, long fileId, TransmissionProgress progress) throws IOException {
+	    	FecEncoder fec = lane.fec;
+	    	PacketBatcher batcher = lane.batcher;
+	    	for (int j = 0; j < fec.parityCount(); j++) {
+	    		if (batcher.isFull()) {
+	    			flushBurst(lane, fileId, progress);
+	    		}
+	    		ByteBuffer parity = fec.parity(j);
+	    		batcher.add(fileId, fec.groupStart(), fec.descriptor(j), parity, parity.remaining(),
+	    			CRC32C_Packet.FLAG_PARITY, checksum(lane.crc, parity));
+	    	}
+	    	fecStats.protectedGroup(fec.parityCount());
+	    }
+	    
+	    private int burstTarget() {
+	    	return batchingEnabled && congestionControl != null
+	    		? congestionControl.getBurstSize(PacketBatcher.MAX_BURST)
+	    		: (batchingEnabled ? PacketBatcher.MAX_BURST : 1);
+	    }
+	    
+	    /**
+	     * Try to send the block starting at {@code blockStart} as compressed fragments.
+	     * Fragments go out on the block's first sequence numbers; the rest of the
+	     * block is implied and never hits the wire.
+	     *
+	     * @return slices covered by the block, 0 if it has to go out raw
+	     */
+	    private int sendCompressedBlock(SendLane lane, CompressionAdvisor advisor, MappedWindow window,
+	    		long fileId, int blockStart, int totalSeq, BitSet held,
+	    		TransmissionProgress progress) throws IOException {
+	    	int slices = advisor.blockSlices(window.region, blockStart);
+	    	if (slices < 2 || !advisor.regionCompressible(window) || !lane.compressor.shouldTry()) {
+	    		return 0;
+	    	}
+	    	if (held != null) {
+	    		int firstHeld = held.nextSetBit(blockStart);
+	    		if (firstHeld >= 0 && firstHeld < blockStart + slices) {
+	    			return 0; // partially held after resume - raw slices only
+	    		}
+	    	}
+	    	int last = blockStart + slices - 1;
+	    	int off = window.offsetOf(blockStart);
+	    	int rawLen = window.offsetOf(last) + window.payloadSize(last) - off;
+	    	ByteBuffer raw = window.buffer.duplicate();
+	    	raw.position(off).limit(off + rawLen);
+	    	
+	    	BlockCompressor compressor = lane.compressor;
+	    	int fragments = compressor.compress(raw, rawLen, slices);
+	    	if (fragments == 0) {
+	    		advisor.stats.raw();
+	    		return 0;
+	    	}
+	    	// Visible to the retransmission task before any fragment can be NACKed
+	    	advisor.recordCompressed(blockStart, fragments);
+	    	advisor.stats.compressed(rawLen, compressor.packedLength(), slices, fragments);
+	    	
+	    	flushBurst(lane, fileId, progress); // raw slices staged before the block go first
+	    	PacketBatcher batcher = lane.batcher;
+	    	int burst = burstTarget();
+	    	long fragmentBytes = 0;
+	    	for (int i = 0; i < fragments; i++) {
+	    		ByteBuffer payload = compressor.fragment(i);
+	    		int take = payload.remaining();
+	    		batcher.add(fileId, blockStart + i, totalSeq, payload, take,
+	    			BlockCompression.FLAG_COMPRESSED, checksum(lane.crc, payload));
+	    		fragmentBytes += take;
+	    		if (batcher.size() >= burst) {
+	    			flushBurst(lane, fileId, progress);
+	    		}
+	    	}
+	    	flushBurst(lane, fileId, progress);
+	    	lane.markSent(blockStart + slices - 1);
+	    	progress.add(rawLen - fragmentBytes); // progress counts file bytes, not wire bytes
+	    	return slices;
+	    }
+	    
+	    /**
+	     * Put a lane's staged burst on the wire: one pacing wait, one backpressure
+	     * check and one controller update for the whole burst.
+	     */
+	    private void flushBurst(SendLane lane, long fileId, TransmissionProgress progress) throws IOException {
+	    	PacketBatcher batcher = lane.batcher;
+	    	int count = batcher.size();
+	    	if (count == 0) {
+	    		return;
+	    	}
+	    	long wireBytes = batcher.pendingBytes();
+	    	long overhead = batcher.overheadBytes();
+	    	int lastSeq = batcher.lastDataSeq();
+	    	try {
+	    		lane.pace(congestionControl, count);
+	    		waitForBackpressure((int) wireBytes);
+	    		if (enhancedNackListener != null) {
+	    			for (int i = 0; i < count; i++) {
+	    				if (!batcher.isParityAt(i)) {
+	    					enhancedNackListener.recordPacketSendTime(batcher.seqAt(i));
+	    				}
+	    			}
+	    		}
+	    		batcher.flush();
+	    		if (congestionControl != null) {
+	    			congestionControl.onPacketsSent(count, wireBytes);
+	    		}
+	    	} catch (IOException e) {
+	    		System.err.println("Frame sending error: " + e);
+	    		throw e;
+	    	} finally {
+	    		if (!zeroCopyEnabled) {
+	    			for (int i = 0; i < count; i++) {
+	    				bufferPool.release(batcher.payloadAt(i));
+	    			}
+	    		}
+	    		batcher.clear();
+	    	}
+	    	if (lastSeq < 0) {
+	    		return; // parity-only burst
+	    	}
+	    	lane.markSent(lastSeq);
+	    	
+	    	long bytesSent = progress.add(wireBytes - (long) count * CRC32C_Packet.HEADER_SIZE - overhead);
+	    	if (transferListener != null) {
+	    		transferListener.onPacketProgress(fileId, bytesSent, progress.fileSize);
+	    	}
+	    	if (lane.laneId == 0) {
+	    		progress.maybePrint(lastSeq);
+	    	}
+	    }
+	    
+	    /** Parity and compressed fragments; mapped slices go through {@link MappedWindow#checksum} */
+	    private static int checksum(CRC32C crc, ByteBuffer payload) {
+	    	crc.reset();
+	    	crc.update(payload.duplicate());
+	    	return (int) crc.getValue();
+	    }
+	    
+	    /**
+	     * Multi-lane initial pass: one pooled thread per lane, joined before the
+	     * sender starts waiting for completion. First lane failure stops the rest.
+	     */
+	    private void runLanes(SendLane[] lanes, long fileId, int totalSeq,
+	    		TransmissionProgress progress) throws IOException {
+	    	List<Future<?>> futures = new ArrayList<>(lanes.length);
+	    	for (SendLane lane : lanes) {
+	    		futures.add(threadPool.submit(() -> {
+	    			runLane(lane, fileId, totalSeq, progress);
+	    			return null;
+	    		}));
+	    	}
+	    	Throwable failure = null;
+	    	for (Future<?> future : futures) {
+	    		try {
+	    			future.get();
+	    		} catch (InterruptedException e) {
+	    			Thread.currentThread().interrupt();
+	    			progress.aborted = true;
+	    			failure = e;
+	    		} catch (ExecutionException e) {
+	    			if (failure == null) {
+	    				failure = e.getCause();
+	    				progress.aborted = true;
+	    			}
+	    		}
+	    	}
+	    	if (failure instanceof IOException io) {
+	    		throw io;
+	    	}
+	    	if (failure instanceof RuntimeException re) {
+	    		throw re;
+	    	}
+	    	if (failure != null) {
+	    		throw new IOException("Send lane failed", failure);
+	    	}
+	    }
+	    
+	    /**
+	     * Byte counter shared by all lanes + the old once-per-second progress line.
+	     */
+	    private static final class TransmissionProgress {
+	    	final long fileSize;
+	    	final int totalSeq;
+	    	final CongestionController control;
+	    	final long startTime = System.currentTimeMillis();
+	    	private final AtomicLong bytesSent = new AtomicLong();
+	    	private long lastProgressTime = startTime;
+	    	volatile boolean aborted = false; // first failing lane stops the others
+	    	
+	    	TransmissionProgress(long fileSize, int totalSeq, CongestionController control) {
+	    		this.fileSize = fileSize;
+	    		this.totalSeq = totalSeq;
+	    		this.control = control;
+	    	}
+	    	
+	    	long add(long bytes) {
+	    		if (control != null) {
+	    			control.onDataSent(bytes);
+	    		}
+	    		return bytesSent.addAndGet(bytes);
+	    	}
+	    	
+	    	void maybePrint(int seqNo) {
+	    		long now = System.currentTimeMillis();
+	    		if (now - lastProgressTime <= 1000) {
+	    			return;
+	    		}
+	    		long sent = bytesSent.get();
+	    		double progressPct = fileSize > 0 ? (double) sent / fileSize * 100 : 100.0;
+	    		long elapsed = Math.max(1, now - startTime);
+	    		double throughputMbps = (sent * 8.0) / (elapsed * 1000.0);
+	    		System.out.printf(" Progress: %.1f%% (seq %d/%d), Throughput: %.1f Mbps\n",
+	    			progressPct, seqNo, totalSeq, throughputMbps);
+	    		if (control != null) {
+	    			System.out.println(" " + control.getStats());
+	    		}
+	    		lastProgressTime = now;
+	    	}
+	    }
+	    
 	    private Runnable createStatsTask() {
 	    	return () -> {
-	    		while (!Thread.currentThread().isInterrupted() && !stopRequested) {
+	    		while (!Thread.currentThread().isInterrupted() && !stopRequested && auxLoopsRunning) {
 	    			try {
-	    				Thread.sleep(2000);
-	    				if (hybridControl != null) {
-	    					System.out.println(" " + hybridControl.getStats());
+	    				// 2s between reports, but notice the end of the transfer quickly
+	    				for (int i = 0; i < 20 && auxLoopsRunning; i++) {
+	    					Thread.sleep(100);
+	    				}
+	    				if (!auxLoopsRunning) {
+	    					break;
+	    				}
+	    				if (congestionControl != null) {
+	    					System.out.println(" " + congestionControl.getStats());
 	    				}
 	    				if (enhancedNackListener != null) {
 	    					System.out.println(" " + enhancedNackListener.getRttStats());
 	    				}
+	    				System.out.println(" " + batchStats);
+	    				if (compression != null) {
+	    					System.out.println(" " + compression.stats);
+	    				}
+	    				if (FecCodec.ENABLED) {
+	    					System.out.println(" " + fecStats);
+	    				}
 	    			} catch (InterruptedException e) {
 	    				Thread.currentThread().interrupt();
 	    				break;
@@ -420,40 +868,90 @@ public class EnhancedFileTransferSender {
 	    	};
 	    }
 
-	    private Runnable createRetransmissionTask(ConcurrentLinkedQueue<Integer> retxQueue,
+	    private Runnable createRetransmissionTask(IntMpscRing retxQueue,
 	    		long fileId, int totalSeq, boolean[] initialTransmissionDone) {
 	    	return () -> {
 	    		CRC32C retxCrc = new CRC32C();
 	    		CRC32C_Packet retxPkt = new CRC32C_Packet();
-	    		while (!Thread.currentThread().isInterrupted() && !stopRequested) {
-	    			Integer miss = retxQueue.poll();
-	    			if (miss == null) {
-	    				LockSupport.parkNanos(initialTransmissionDone[0] ? 1_000_000 : 50_000);
-	    				continue;
-	    			}
-	    			if (miss < 0 || miss >= totalSeq) {
-	    				continue;
-	    			}
-	    			if (hybridControl != null && !hybridControl.canSendPacket()) {
-	    				retxQueue.offer(miss);
-	    				LockSupport.parkNanos(100_000);
-	    				continue;
-	    			}
-	    			try {
-	    				int chunkIdx = chunkManager.findChunkForSequence(miss);
-	    				if (chunkIdx < 0) {
+	    		CompressionAdvisor advisor = compression;
+	    		BlockCompressor retxCompressor = advisor != null ? new BlockCompressor() : null;
+	    		int cachedBlock = -1; // block currently held by retxCompressor
+	    		// Window and range NACKs repeat a hole every frame until its repair
+	    		// shows up: resend a slice at most once per repair round trip
+	    		PacketTimestampRing resentAt = PacketTimestampRing.forTransfer(totalSeq);
+	    		EnhancedNackListener listener = enhancedNackListener;
+	    		try {
+	    			while (!Thread.currentThread().isInterrupted() && !stopRequested && auxLoopsRunning) {
+	    				int miss = retxQueue.poll();
+	    				if (miss == IntMpscRing.EMPTY) {
+	    					LockSupport.parkNanos(initialTransmissionDone[0] ? 1_000_000 : 50_000);
 	    					continue;
 	    				}
-	    				ChunkMetadata chunkMeta = chunkManager.getChunkMetadata(chunkIdx);
-	    				MappedByteBuffer chunkBuffer = chunkManager.getChunk(chunkIdx);
-	    				int localSeq = chunkMeta.toLocalSequence(miss);
-	    				int localOff = chunkMeta.getLocalOffset(localSeq, SLICE_SIZE);
-	    				int take = chunkMeta.getPayloadSize(localSeq, SLICE_SIZE);
-	    				if (take > 0) {
-	    					sendOne(retxCrc, retxPkt, chunkBuffer, fileId, miss, totalSeq, take, localOff);
+	    				if (miss < 0 || miss >= totalSeq) {
+	    					continue;
+	    				}
+	    				SendLane[] lanes = sendLanes;
+	    				// Compressed blocks: a raw resend ahead of the block would bypass the fragment table
+	    				if (lanes != null && (lanes.length > 1 || advisor != null) && !SendLane.isSent(lanes, miss)) {
+	    					continue; // Lane has not reached this stripe yet - not a loss
+	    				}
+	    				long now = System.nanoTime();
+	    				long lastResend = resentAt.take(miss);
+	    				if (lastResend != PacketTimestampRing.MISSING
+	    						&& now - lastResend < listener.retransmitHoldoffNs()) {
+	    					resentAt.record(miss, lastResend); // previous copy still in flight
+	    					continue;
+	    				}
+	    				if (congestionControl != null && !congestionControl.canSendPacket()) {
+	    					retxQueue.offer(miss);
+	    					LockSupport.parkNanos(100_000);
+	    					continue;
+	    				}
+	    				resentAt.record(miss, now);
+	    				MappedWindow window = null;
+	    				try {
+	    					window = chunkManager.acquireWindow(miss);
+	    					int localOff = window.offsetOf(miss);
+	    					int take = window.payloadSize(miss);
+	    					int fragments = advisor != null ? advisor.fragmentCount(miss) : 0;
+	    					if (fragments > 0) {
+	    						int blockStart = BlockCompression.blockStart(miss);
+	    						int index = miss - blockStart;
+	    						if (index >= fragments) {
+	    							continue; // implied by the block, rebuilt from fragments on the receiver
+	    						}
+	    						if (cachedBlock != blockStart) {
+	    							// Deflate is deterministic: recompressing yields the same fragments
+	    							int slices = advisor.blockSlices(window.region, blockStart);
+	    							int last = blockStart + slices - 1;
+	    							int off = window.offsetOf(blockStart);
+	    							int rawLen = window.offsetOf(last) + window.payloadSize(last) - off;
+	    							ByteBuffer raw = window.buffer.duplicate();
+	    							raw.position(off).limit(off + rawLen);
+	    							if (retxCompressor.compress(raw, rawLen, slices) != fragments) {
+	    								System.err.println("Block recompression mismatch at seq " + blockStart);
+	    								cachedBlock = -1;
+	    								continue;
+	    							}
+	    							cachedBlock = blockStart;
+	    						}
+	    						ByteBuffer fragment = retxCompressor.fragment(index);
+	    						sendPayload(retxPkt, fragment, checksum(retxCrc, fragment), fileId, miss, totalSeq,
+	    							fragment.remaining(), BlockCompression.FLAG_COMPRESSED);
+	    					} else if (take > 0) {
+	    						sendOne(retxCrc, retxPkt, window, fileId, miss, totalSeq, take, localOff);
+	    					}
+	    				} catch (IOException e) {
+	    					System.err.println("Retransmission error for seq " + miss + ": " + e);
+	    				} finally {
+	    					if (window != null) {
+	    						window.release();
+	    					}
 	    				}
-	    			} catch (IOException e) {
-	    				System.err.println("Retransmission error for seq " + miss + ": " + e);
+	    			}
+	    		} finally {
+	    			if (retxCompressor != null) {
+	    				retxCompressor.close();
 	    			}
 	    		}
 	    	};
@@ -475,13 +973,8 @@ public class EnhancedFileTransferSender {
 	    	if (flowController == null) {
 	    		return;
 	    	}
-	    	final long maxBuffered = Long.getLong("saferoom.transfer.buffer.maxBytes", 8L << 20);
-	    	while (flowController.bufferedAmount() + bytesToSend > maxBuffered) {
-	    		if (!flowController.isOpen()) {
-	    			throw new IOException("Transport closed");
-	    		}
-	    		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2));
-	    	}
+	    	// Parks on the endpoint's writable future (drain event), no polling
+	    	flowController.awaitWritable(bytesToSend);
 	    }
 
 	    private ByteBuffer preparePayload(MappedByteBuffer mem, int off, int take) {
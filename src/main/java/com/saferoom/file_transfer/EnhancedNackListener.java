@@ -3,52 +3,81 @@ package com.saferoom.file_transfer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 import java.util.concurrent.locks.LockSupport;
 
 public class EnhancedNackListener implements Runnable{
 	public final DatagramChannel channel;
 	public final long fileId;
 	public final int totalSeq;
-	public final ConcurrentLinkedQueue<Integer> retxQueue;
+	public final IntMpscRing retxQueue;
 	public final int backoffNs;
 	
 	// Completion callback
 	public volatile Runnable onTransferComplete = null;
 	
 	// Enhanced congestion control reference
-	public volatile HybridCongestionController hybridControl = null;
+	public volatile CongestionController congestionControl = null;
 	
-	// RTT measurement - packet timestamp tracking
-	private final ConcurrentHashMap<Integer, Long> packetSendTimes = new ConcurrentHashMap<>();
+	// Sending lanes (stripe layout) - range NACK holes are judged per lane
+	public volatile int laneCount = 1;
+	
+	// Merkle hash re-requests from the receiver (leaf index, leafCount = root); null = ignored
+	public volatile IntConsumer onHashRequest = null;
+	
+	// RTT measurement - seq-indexed timestamp ring (no boxing, bounded)
+	private final PacketTimestampRing packetSendTimes;
 	private volatile long lastRttMeasurement = 0;
+	// EWMA of the per-slice samples only (includes queueing on the data path)
+	private volatile long dataRttNs = 0;
+	private int lastBase = 0;
+	
+	// Retransmissions dropped because the ring was full (next NACK re-reports them)
+	private final AtomicLong retxDropped = new AtomicLong();
+	
+	// Extended NACK entries (listener thread only, except the stats counter)
+	private final BitSet rangeMissing = new BitSet();
+	private final int[] laneLastHeld = new int[EnhancedFileTransferSender.MAX_LANES];
+	private final PacketTimestampRing rangeNackedAt;
+	private volatile long rangeNackedSlices = 0;
+	static final long RETRANSMIT_SLACK_NS = 25_000_000; // one NACK interval
 	
     public static final int DEFAULT_BACKOFF_NS = 200_000;
 
 	public EnhancedNackListener(DatagramChannel channel,
 			long fileId,
 			int totalSeq,
-			ConcurrentLinkedQueue<Integer> retxQueue,
+			IntMpscRing retxQueue,
 			int backoffNs){
         this.channel   = channel;
         this.fileId    = fileId;
         this.totalSeq  = totalSeq;
         this.retxQueue = retxQueue;
         this.backoffNs = backoffNs > 0 ? backoffNs : DEFAULT_BACKOFF_NS;
+        this.packetSendTimes = PacketTimestampRing.forTransfer(totalSeq);
+        this.rangeNackedAt = PacketTimestampRing.forTransfer(totalSeq);
 	}
 	
 	/**
 	 * Record packet send time for RTT calculation
 	 */
 	public void recordPacketSendTime(int seqNo) {
-		packetSendTimes.put(seqNo, System.nanoTime());
+		packetSendTimes.record(seqNo, System.nanoTime());
+	}
+	
+	/**
+	 * Retransmitted slice - its ACK could belong to either copy, no RTT sample (Karn)
+	 */
+	public void forgetPacketSendTime(int seqNo) {
+		packetSendTimes.take(seqNo);
 	}
 	
 	@Override
 	public void run() {
-		final ByteBuffer ctrl = ByteBuffer.allocateDirect(Math.max(NackFrame.SIZE, 8)); // Completion signal için 8 byte
-		long lastCleanupTime = System.nanoTime();
+		final ByteBuffer ctrl = ByteBuffer.allocateDirect(NackFrame.MAX_SIZE); // NACK (28 / extended) + completion signal (8)
 		
 		while(!Thread.currentThread().isInterrupted()) {
 			ctrl.clear();
@@ -56,13 +85,6 @@ public class EnhancedNackListener implements Runnable{
 				int r = channel.read(ctrl); //READ ONLY FROM CONNECTED PEER
 				if(r <= 0) {
 					LockSupport.parkNanos(backoffNs);
-					
-					// Periodic cleanup of old timestamps (her 5 saniyede bir)
-					long now = System.nanoTime();
-					if (now - lastCleanupTime > 5_000_000_000L) {
-						cleanupOldTimestamps(now);
-						lastCleanupTime = now;
-					}
 					continue;
 				}
 				
@@ -91,17 +113,23 @@ public class EnhancedNackListener implements Runnable{
 					continue;
 				}
 				
-				// NACK Frame tam boyut kontrolü - şimdi 28 byte (timestamp dahil)
-				if(r != NackFrame.SIZE) {
-					System.err.println("Invalid frame size: expected " + NackFrame.SIZE + " (NACK) or 8 (completion), received " + r + " bytes");
+				ctrl.flip();
+				
+				if(MerkleTree.isRequest(ctrl, r)) {
+					IntConsumer hashRequest = onHashRequest;
+					if(hashRequest != null && MerkleTree.requestFileId(ctrl) == fileId) {
+						int count = MerkleTree.requestCount(ctrl);
+						for(int i = 0; i < count; i++) {
+							hashRequest.accept(MerkleTree.requestIndex(ctrl, i));
+						}
+					}
 					continue;
 				}
 				
-				ctrl.flip();
-				
-				// Buffer'ın tam olarak frame size kadar olduğunu kontrol et
-				if(ctrl.remaining() != NackFrame.SIZE) {
-					System.err.println("Buffer remaining mismatch: expected " + NackFrame.SIZE + ", got " + ctrl.remaining());
+				// NACK Frame boyut kontrolü - 28 byte (timestamp dahil) veya extended
+				boolean extended = r > NackFrame.SIZE && NackFrame.isExtended(ctrl, r);
+				if(r != NackFrame.SIZE && !extended) {
+					System.err.println("Invalid frame size: expected " + NackFrame.SIZE + " (NACK), extended NACK, hash request or 8 (completion), received " + r + " bytes");
 					continue;
 				}
 				
@@ -118,8 +146,8 @@ public class EnhancedNackListener implements Runnable{
 				
 				// RTT sanity check ve congestion control güncelle
 				if(rttNs > 50_000 && rttNs < 100_000_000) { // 50μs - 100ms arası
-					if(hybridControl != null) {
-						hybridControl.updateRtt(rttNs);
+					if(congestionControl != null) {
+						congestionControl.updateRtt(rttNs);
 						lastRttMeasurement = rttNs;
 					}
 				}
@@ -147,9 +175,8 @@ public class EnhancedNackListener implements Runnable{
 					if(!received) {
 						// NACK - retransmission gerekli
 						if(seq >= 0 && seq < totalSeq) {
-							boolean added = retxQueue.offer(seq);
-							if(!added) {
-								System.err.println("Failed to add seq " + seq + " to retransmission queue");
+							if(!retxQueue.offer(seq)) {
+								retxDropped.incrementAndGet(); // ring full - NACK window will repeat it
 							}
 							lossCount++;
 						}
@@ -158,11 +185,11 @@ public class EnhancedNackListener implements Runnable{
 						receivedCount++;
 						
 						// RTT calculation - sadece mantıklı RTT'ler
-						Long sendTime = packetSendTimes.remove(seq);
-						if (sendTime != null) {
+						long sendTime = packetSendTimes.take(seq);
+						if (sendTime != PacketTimestampRing.MISSING) {
 							long rtt = receiveTime - sendTime;
-							// Local network için: 50μs < RTT < 100ms
-							if (rtt > 50_000 && rtt < 100_000_000L) { 
+							// 50μs < RTT < 2s (long fat pipes included)
+							if (rtt > 50_000 && rtt < 2_000_000_000L) { 
 								totalRtt += rtt;
 								rttSamples++;
 							}
@@ -170,17 +197,51 @@ public class EnhancedNackListener implements Runnable{
 					}
 				}
 				
+				// cum_Ack advanced: base-1 was delivered since the last frame. On a clean
+				// long path the window only holds in-flight slices, this is the only sample
+				if (base > lastBase) {
+					long sendTime = packetSendTimes.take(base - 1);
+					if (sendTime != PacketTimestampRing.MISSING) {
+						long rtt = receiveTime - sendTime;
+						if (rtt > 50_000 && rtt < 2_000_000_000L) {
+							totalRtt += rtt;
+							rttSamples++;
+						}
+					}
+					lastBase = base;
+				}
+				
 				// RTT update (average of this NACK frame)
-				if (rttSamples > 0 && hybridControl != null) {
+				if (rttSamples > 0) {
 					long avgRtt = totalRtt / rttSamples;
-					hybridControl.updateRtt(avgRtt);
-					lastRttMeasurement = receiveTime;
+					dataRttNs = dataRttNs == 0 ? avgRtt : (7 * dataRttNs + avgRtt) / 8;
+					if (congestionControl != null) {
+						congestionControl.updateRtt(avgRtt);
+						lastRttMeasurement = receiveTime;
+					}
+				}
+				
+				// Holes below the highest received slice are real losses, the tail may still be in flight
+				if(congestionControl != null && mask != 0) {
+					int highest = 63 - Long.numberOfLeadingZeros(mask);
+					int delivered = Long.bitCount(mask);
+					congestionControl.onLossSample(delivered, (highest + 1) - delivered);
+				}
+				
+				if(congestionControl != null) {
+					congestionControl.onNackWindow(base, mask, receiveTime);
+				}
+				
+				// Holes beyond the window go straight to the retransmission ring.
+				// Congestion signals stay on the window: these are old losses.
+				if(extended) {
+					queueRangeNacks(ctrl, r, base, receiveTime);
 				}
 				
 				// NACK frame feedback - bandwidth ve congestion update
 				// onNackFrameReceived() zaten loss'u handle ediyor, çift sayma yok!
-				if(hybridControl != null) {
-					hybridControl.onNackFrameReceived(receivedCount, lossCount);
+				if(congestionControl != null) {
+					congestionControl.onNackFrameReceived(receivedCount, lossCount);
 				}
 				
 				// Transfer completion kontrolü - eğer base + 64 >= totalSeq ve tüm bitler 1 ise tamamlanmış
@@ -209,25 +270,94 @@ public class EnhancedNackListener implements Runnable{
 		
 		// Cleanup
 		packetSendTimes.clear();
+		rangeNackedAt.clear();
+	}
+	
+	/**
+	 * Decode the range / bitmap entries of an extended frame into the
+	 * retransmission ring.
+	 *
+	 * A lane sends its stripes in order, so a hole is only a loss once a later
+	 * slice of the same lane is held; anything else may just be a slower lane.
+	 * A queued slice is not queued again until its repair had one round trip
+	 * (plus a NACK interval) to show up.
+	 */
+	private void queueRangeNacks(ByteBuffer frame, int length, int base, long now) {
+		int from = base + 64;
+		int covered = Math.min(NackFrame.coveredEnd(frame), totalSeq);
+		rangeMissing.clear();
+		int decoded = NackFrame.forEachMissing(frame, length, totalSeq, seq -> {
+			if(seq >= from && seq < covered) {
+				rangeMissing.set(seq - from);
+			}
+		});
+		if(decoded < 0) {
+			System.err.println("Malformed extended NACK frame (" + length + " bytes)");
+			return;
+		}
+		if(covered <= from || rangeMissing.isEmpty()) {
+			return;
+		}
+		
+		// Highest held slice of every lane in [from, covered)
+		int lanes = Math.max(1, Math.min(laneCount, laneLastHeld.length));
+		int stripe = SendLane.STRIPE_SLICES;
+		Arrays.fill(laneLastHeld, 0, lanes, -1);
+		int found = 0;
+		for(int k = (covered - 1) / stripe; k >= from / stripe && found < lanes; k--) {
+			int lane = k % lanes;
+			if(laneLastHeld[lane] >= 0) continue;
+			int lo = Math.max(k * stripe, from);
+			int hi = Math.min((k + 1) * stripe, covered) - 1;
+			int held = rangeMissing.previousClearBit(hi - from) + from;
+			if(held >= lo) {
+				laneLastHeld[lane] = held;
+				found++;
+			}
+		}
+		
+		long holdoff = retransmitHoldoffNs();
+		long queued = 0;
+		for(int i = rangeMissing.nextSetBit(0); i >= 0; i = rangeMissing.nextSetBit(i + 1)) {
+			int seq = from + i;
+			if(laneLastHeld[(seq / stripe) % lanes] < seq) {
+				continue; // nothing later from this lane arrived yet
+			}
+			long last = rangeNackedAt.take(seq);
+			if(last != PacketTimestampRing.MISSING && now - last < holdoff) {
+				rangeNackedAt.record(seq, last); // repair still on its way
+				continue;
+			}
+			if(retxQueue.offer(seq)) {
+				rangeNackedAt.record(seq, now);
+				queued++;
+			} else {
+				retxDropped.incrementAndGet(); // ring full - next frame repeats it
+			}
+		}
+		rangeNackedSlices += queued;
 	}
 	
 	/**
-	 * Clean up old packet timestamps to prevent memory leak
+	 * Time a retransmitted slice needs before a NACK can show its repair:
+	 * one data-path round trip plus one NACK interval
 	 */
-	private void cleanupOldTimestamps(long now) {
-		packetSendTimes.entrySet().removeIf(entry -> 
-			now - entry.getValue() > 30_000_000_000L // 30 seconds old
-		);
+	public long retransmitHoldoffNs() {
+		long rtt = dataRttNs;
+		return rtt + rtt / 4 + RETRANSMIT_SLACK_NS;
 	}
 	
 	/**
 	 * Get current RTT statistics
 	 */
 	public String getRttStats() {
-		if (hybridControl != null) {
-			return String.format("RTT: %.1fms, Pending: %d", 
-				hybridControl.getSmoothedRtt() / 1_000_000.0, 
-				packetSendTimes.size());
+		if (congestionControl != null) {
+			return String.format("RTT: %.1fms, Pending: %d, RetxQueue: %d, RetxDropped: %d, RangeNacked: %d", 
+				congestionControl.getSmoothedRtt() / 1_000_000.0, 
+				packetSendTimes.pending(),
+				retxQueue.size(),
+				retxDropped.get(),
+				rangeNackedSlices);
 		}
 		return "RTT: N/A";
 	}
@@ -107,7 +107,8 @@ public class EnhancedP2PSender {
             
             // Enhanced FileTransferSender kullan
             EnhancedFileTransferSender sender = new EnhancedFileTransferSender(senderChannel);
-            long fileId = System.currentTimeMillis(); // Unique file ID
+            // Stable file ID - re-running on the same file resumes it; -Dsaferoom.transfer.fileId overrides
+            long fileId = Long.getLong("saferoom.transfer.fileId", TransferKey.of(file));
             
             System.out.println(" Enhanced file transfer başlatılıyor...");
             System.out.println(" File ID: " + fileId);
@@ -0,0 +1,98 @@
+package com.saferoom.file_transfer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Wire format + shared helpers of the optional interleaved XOR FEC.
+ *
+ * Data slices are grouped into aligned groups of K ({@link #GROUP_SIZE}, a
+ * power of two dividing the 64-slice stripe, so a group is always sent by one
+ * lane). A group gets M parity slices; parity j is the XOR of the group's
+ * slices g+j, g+j+M, g+j+2M, ... so any burst of up to M consecutive losses
+ * inside the group is rebuilt on the receiver without a NACK round trip.
+ *
+ * Parity packet = normal CRC32C_Packet header with {@link CRC32C_Packet#FLAG_PARITY}
+ * in plen, seq = group start, and the total field reused as group descriptor:
+ * <pre>
+ *  bits 16-23  K (group size)
+ *  bits  8-15  M (parity count of this group)
+ *  bits  0-7   j (parity index)
+ * </pre>
+ * Payload = XOR of the covered slices, each zero-padded to the longest one.
+ * Missing slice lengths follow from ChunkMetadata, so they are not sent.
+ *
+ * M adapts per group to the loss estimate of the CongestionController;
+ * on a clean link it drops to 0 and no parity is sent at all.
+ */
+final class FecCodec {
+
+    static final boolean ENABLED =
+        Boolean.parseBoolean(System.getProperty("saferoom.transfer.fec.enabled", "false"));
+    static final int GROUP_SIZE = validGroupSize(Integer.getInteger("saferoom.transfer.fec.groupSize", 16));
+    /** Fixed parity count per group, -1 = adapt to the observed loss rate */
+    static final int FIXED_PARITY = Integer.getInteger("saferoom.transfer.fec.parity", -1);
+    static final int MAX_PARITY = 4;
+
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private FecCodec() {}
+
+    private static int validGroupSize(int k) {
+        if (k < 4 || k > 32 || Integer.bitCount(k) != 1) {
+            throw new IllegalArgumentException("saferoom.transfer.fec.groupSize must be 4, 8, 16 or 32: " + k);
+        }
+        return k;
+    }
+
+    /** Parity slices per group for a smoothed loss fraction */
+    static int redundancyFor(double lossRate) {
+        if (FIXED_PARITY >= 0) {
+            return Math.min(FIXED_PARITY, MAX_PARITY);
+        }
+        if (lossRate < 0.002) return 0;
+        if (lossRate < 0.02) return 1;
+        if (lossRate < 0.06) return 2;
+        return MAX_PARITY;
+    }
+
+    static int descriptor(int groupSize, int parityCount, int parityIndex) {
+        return (groupSize << 16) | (parityCount << 8) | parityIndex;
+    }
+
+    static int groupSize(int descriptor)   { return (descriptor >>> 16) & 0xFF; }
+    static int parityCount(int descriptor) { return (descriptor >>> 8) & 0xFF; }
+    static int parityIndex(int descriptor) { return descriptor & 0xFF; }
+
+    static boolean isParity(int plenField) {
+        return (plenField & CRC32C_Packet.FLAG_PARITY) != 0;
+    }
+
+    /**
+     * parity[0, len) ^= src[0, len); bytes past {@code parityLen} are treated
+     * as zero (copied), so parity buffers never need clearing.
+     *
+     * @return new parity length
+     */
+    static int xorInto(byte[] parity, int parityLen, ByteBuffer src, int len) {
+        if (src.order() != ByteOrder.BIG_ENDIAN) {
+            src = src.duplicate().order(ByteOrder.BIG_ENDIAN); // same order as LONGS
+        }
+        int base = src.position();
+        int overlap = Math.min(parityLen, len);
+        int i = 0;
+        for (; i + 8 <= overlap; i += 8) {
+            LONGS.set(parity, i, (long) LONGS.get(parity, i) ^ src.getLong(base + i));
+        }
+        for (; i < overlap; i++) {
+            parity[i] ^= src.get(base + i);
+        }
+        for (; i < len; i++) {
+            parity[i] = src.get(base + i);
+        }
+        return Math.max(parityLen, len);
+    }
+}
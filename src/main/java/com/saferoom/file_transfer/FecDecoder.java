@@ -0,0 +1,172 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Receiver-side parity recovery (socket thread only).
+ *
+ * A parity is useful while exactly one of its covered slices is missing: the
+ * slice is rebuilt from the parity and the stored siblings and written like a
+ * received slice, so it never shows up in a NACK. Parities still missing two
+ * or more slices wait until data (original or retransmitted) arrives.
+ */
+final class FecDecoder {
+
+    /**
+     * Access to the receiver's storage.
+     */
+    interface SliceStore {
+        boolean has(int seqNo);
+
+        /** Stored payload of a received slice (position 0, exact length) */
+        ByteBuffer read(int seqNo) throws IOException;
+
+        /** Length the slice has in the file */
+        int payloadSize(int seqNo);
+
+        /** Write a rebuilt slice and mark it received */
+        void recover(int seqNo, ByteBuffer payload) throws IOException;
+    }
+
+    private static final int PRUNE_THRESHOLD = 256;
+
+    private final SliceStore store;
+    private final int totalSeq;
+    private final Map<Integer, PendingGroup> pending = new HashMap<>();
+    private int groupSize = 0; // learned from the first parity
+    private long recovered = 0;
+    private long parityReceived = 0;
+
+    FecDecoder(SliceStore store, int totalSeq) {
+        this.store = store;
+        this.totalSeq = totalSeq;
+    }
+
+    /**
+     * Parity packet for the group starting at {@code groupStart}.
+     *
+     * @return false if the descriptor is invalid
+     */
+    boolean onParity(int groupStart, int descriptor, ByteBuffer payload, int payloadLen, int cumAck)
+            throws IOException {
+        int k = FecCodec.groupSize(descriptor);
+        int m = FecCodec.parityCount(descriptor);
+        int j = FecCodec.parityIndex(descriptor);
+        if (k < 4 || k > 32 || Integer.bitCount(k) != 1 || (groupStart & (k - 1)) != 0
+                || m < 1 || m > FecCodec.MAX_PARITY || j >= m || (groupSize != 0 && k != groupSize)) {
+            return false;
+        }
+        groupSize = k;
+        parityReceived++;
+        if (pending.size() > PRUNE_THRESHOLD) {
+            prune(cumAck);
+        }
+
+        byte[] parity = new byte[EnhancedFileTransferSender.SLICE_SIZE];
+        payload.get(0, parity, 0, payloadLen);
+        PendingGroup group = pending.get(groupStart);
+        if (group == null || group.parityCount != m) {
+            group = new PendingGroup(groupStart, Math.min(k, totalSeq - groupStart), m);
+            pending.put(groupStart, group);
+        }
+        group.parities[j] = parity;
+        group.lengths[j] = payloadLen;
+        tryRecover(group, j);
+        return true;
+    }
+
+    /**
+     * A data slice was stored - it may complete a pending parity.
+     */
+    void onData(int seqNo) throws IOException {
+        if (groupSize == 0 || pending.isEmpty()) {
+            return;
+        }
+        PendingGroup group = pending.get(seqNo & ~(groupSize - 1));
+        if (group != null) {
+            tryRecover(group, (seqNo - group.start) % group.parityCount);
+        }
+    }
+
+    private void tryRecover(PendingGroup group, int j) throws IOException {
+        byte[] parity = group.parities[j];
+        if (parity == null) {
+            return;
+        }
+        int missing = -1;
+        for (int seq = group.start + j; seq < group.start + group.length; seq += group.parityCount) {
+            if (!store.has(seq)) {
+                if (missing >= 0) {
+                    return; // two or more lost - wait for data
+                }
+                missing = seq;
+            }
+        }
+        group.parities[j] = null;
+        if (missing >= 0) {
+            int len = group.lengths[j];
+            for (int seq = group.start + j; seq < group.start + group.length; seq += group.parityCount) {
+                if (seq != missing) {
+                    ByteBuffer sibling = store.read(seq);
+                    len = FecCodec.xorInto(parity, len, sibling, sibling.remaining());
+                }
+            }
+            int size = store.payloadSize(missing);
+            store.recover(missing, ByteBuffer.wrap(parity, 0, size).slice());
+            recovered++;
+        }
+        if (group.isDone()) {
+            pending.remove(group.start);
+        }
+    }
+
+    /** Forget groups the cumulative ACK has already passed */
+    private void prune(int cumAck) {
+        Iterator<PendingGroup> it = pending.values().iterator();
+        while (it.hasNext()) {
+            PendingGroup group = it.next();
+            if (group.start + group.length <= cumAck) {
+                it.remove();
+            }
+        }
+    }
+
+    long recovered() {
+        return recovered;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FEC: %d parity received, %d slices recovered without NACK",
+            parityReceived, recovered);
+    }
+
+    private static final class PendingGroup {
+        final int start;
+        final int length;
+        final int parityCount;
+        final byte[][] parities;
+        final int[] lengths;
+
+        PendingGroup(int start, int length, int parityCount) {
+            this.start = start;
+            this.length = length;
+            this.parityCount = parityCount;
+            this.parities = new byte[parityCount][];
+            this.lengths = new int[parityCount];
+        }
+
+        boolean isDone() {
+            for (byte[] p : parities) {
+                if (p != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
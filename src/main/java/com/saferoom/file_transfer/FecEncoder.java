@@ -0,0 +1,107 @@
+package com.saferoom.file_transfer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sender-side parity builder, one per lane (initial pass only).
+ *
+ * Slices are XOR'ed into the parity buffers as they are staged, so pooled
+ * payloads can be released right after the flush. A group only gets parity
+ * if every one of its slices went out raw in this pass (resume-held slices
+ * and compressed blocks leave the group unprotected - the NACK path covers it).
+ *
+ * Parity buffers rotate over enough sets for one full PacketBatcher burst, so
+ * a staged parity frame is never overwritten before it is flushed.
+ *
+ * Not thread-safe.
+ */
+final class FecEncoder {
+
+    private final int groupSize;
+    private final byte[][][] sets;
+    private final int[][] lengths;
+    private int set = 0;
+
+    private int groupStart = -1;
+    private int groupLength = 0;
+    private int parityCount = 0;
+    private int covered = 0;
+
+    FecEncoder(int groupSize) {
+        this.groupSize = groupSize;
+        int setCount = PacketBatcher.MAX_BURST / groupSize + 2;
+        this.sets = new byte[setCount][FecCodec.MAX_PARITY][EnhancedFileTransferSender.SLICE_SIZE];
+        this.lengths = new int[setCount][FecCodec.MAX_PARITY];
+    }
+
+    /**
+     * Account one raw slice put on the wire.
+     *
+     * @param parityForNewGroup parity count used if this slice opens a new group
+     * @return true if the slice completed a fully covered group - its parity is ready
+     */
+    boolean add(int seqNo, int totalSeq, ByteBuffer payload, int take, int parityForNewGroup) {
+        int start = seqNo & ~(groupSize - 1);
+        if (start != groupStart) {
+            groupStart = start;
+            groupLength = Math.min(groupSize, totalSeq - start);
+            parityCount = Math.min(parityForNewGroup, groupLength - 1);
+            covered = 0;
+            set = (set + 1) % sets.length;
+            Arrays.fill(lengths[set], 0);
+        }
+        if (seqNo != groupStart + covered) {
+            covered = -1; // gap (held / compressed) - group stays unprotected
+            return false;
+        }
+        covered++;
+        if (parityCount <= 0) {
+            return false;
+        }
+        int j = (seqNo - groupStart) % parityCount;
+        lengths[set][j] = FecCodec.xorInto(sets[set][j], lengths[set][j], payload, take);
+        return covered == groupLength;
+    }
+
+    int groupStart() {
+        return groupStart;
+    }
+
+    int parityCount() {
+        return parityCount;
+    }
+
+    /** Header total field of parity {@code j} */
+    int descriptor(int j) {
+        return FecCodec.descriptor(groupSize, parityCount, j);
+    }
+
+    ByteBuffer parity(int j) {
+        return ByteBuffer.wrap(sets[set][j], 0, lengths[set][j]).slice();
+    }
+
+    /**
+     * Sender-side counters (shared by all lanes).
+     */
+    static final class Stats {
+        private final AtomicLong groups = new AtomicLong();
+        private final AtomicLong parityPackets = new AtomicLong();
+
+        void protectedGroup(int parity) {
+            groups.incrementAndGet();
+            parityPackets.addAndGet(parity);
+        }
+
+        void reset() {
+            groups.set(0);
+            parityPackets.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FEC: %d groups protected, %d parity packets", groups.get(), parityPackets.get());
+        }
+    }
+}
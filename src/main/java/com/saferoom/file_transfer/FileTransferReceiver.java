@@ -32,6 +32,14 @@ public class FileTransferReceiver {
 	private long transferStartTime = 0;
 	private long transferEndTime = 0;
 	
+	// Resume: checkpoint sidecar next to filePath (null = fresh transfer)
+	public static final boolean RESUME_ENABLED = Boolean.parseBoolean(
+		System.getProperty("saferoom.transfer.resume.enabled", "true"));
+	private ResumeCheckpoint resumeCheckpoint;
+	
+	// Merkle leaf size from the SYN (0 = sender does not hash, CRC only)
+	private int merkleLeafSlices;
+	
 	public  boolean handshake()
 	{
 		System.out.println("[RECEIVER-HANDSHAKE] ╔════════════════════════════════════════════════");
@@ -45,7 +53,7 @@ public class FileTransferReceiver {
 		if(channel == null){
 			throw new IllegalStateException("Datagram Channel is null you must bind and connect first");
 		}
-		ByteBuffer rcv_syn = ByteBuffer.allocateDirect(HandShake_Packet.HEADER_SIZE)
+		ByteBuffer rcv_syn = ByteBuffer.allocateDirect(HandShake_Packet.SYN_MERKLE_SIZE)
 			.order(ByteOrder.BIG_ENDIAN);
 
 		rcv_syn.clear();
@@ -85,10 +93,10 @@ public class FileTransferReceiver {
 					senderAddress, rcv_syn.position());
 				
 				r = rcv_syn.position();
-				if( r == 0 || r != HandShake_Packet.HEADER_SIZE || HandShake_Packet.get_signal(rcv_syn) != HandShake_Packet.SYN) {
+				if( r == 0 || !HandShake_Packet.isSynSize(r) || HandShake_Packet.get_signal(rcv_syn) != HandShake_Packet.SYN) {
 					LockSupport.parkNanos(1_000_000); // 1ms bekleme
 				}
-			}while( r == 0 || r != HandShake_Packet.HEADER_SIZE || HandShake_Packet.get_signal(rcv_syn) != HandShake_Packet.SYN);
+			}while( r == 0 || !HandShake_Packet.isSynSize(r) || HandShake_Packet.get_signal(rcv_syn) != HandShake_Packet.SYN);
 		}catch(IOException e ){
 			System.err.println("IO Error during handshake: " + e);
 			return false;
@@ -97,6 +105,14 @@ public class FileTransferReceiver {
 		fileId = HandShake_Packet.get_file_Id(rcv_syn);
 		file_size = HandShake_Packet.get_file_size(rcv_syn);
 		total_seq = HandShake_Packet.get_total_seq(rcv_syn);
+		merkleLeafSlices = 0;
+		if (HandShake_Packet.hasMerkle(rcv_syn)) {
+			int leafSlices = HandShake_Packet.get_leaf_slices(rcv_syn);
+			if (leafSlices > 0 && HandShake_Packet.get_leaf_count(rcv_syn)
+					== MerkleTree.leafCount(total_seq, leafSlices)) {
+				merkleLeafSlices = leafSlices;
+			}
+		}
 		
 		System.out.printf("[RECEIVER-HANDSHAKE] SYN received: fileId=%d, size=%d, chunks=%d%n", 
 			fileId, file_size, total_seq);
@@ -116,16 +132,26 @@ public class FileTransferReceiver {
 				 return false;
 			 }
 			 
-			 HandShake_Packet ack_pkt = new HandShake_Packet();
-			ack_pkt.make_ACK(fileId, file_size, total_seq);
-			
-			System.out.printf("[RECEIVER-HANDSHAKE] Sending ACK for fileId=%d%n", fileId);
+			 // Same fileId/size/seq count as an interrupted transfer? -> RESUME instead of ACK
+			 resumeCheckpoint = RESUME_ENABLED
+				 ? ResumeCheckpoint.load(filePath, fileId, file_size, total_seq) : null;
+			 ByteBuffer reply;
+			 if(resumeCheckpoint != null && resumeCheckpoint.receivedCount() > 0) {
+				 reply = HandShake_Packet.make_RESUME(fileId, file_size, total_seq,
+					 resumeCheckpoint.cumAck(), resumeCheckpoint.received());
+				 System.out.printf("[RECEIVER-HANDSHAKE] Sending RESUME for fileId=%d (held=%d/%d, cumAck=%d)%n",
+					 fileId, resumeCheckpoint.receivedCount(), total_seq, resumeCheckpoint.cumAck());
+			 } else {
+				 HandShake_Packet ack_pkt = new HandShake_Packet();
+				 ack_pkt.make_ACK(fileId, file_size, total_seq);
+				 reply = ack_pkt.get_header();
+				 System.out.printf("[RECEIVER-HANDSHAKE] Sending ACK for fileId=%d%n", fileId);
+			 }
 			
 			try{
 			int bytesSent = 0;
-			while((bytesSent = channel.write(ack_pkt.get_header().duplicate())) == 0)
+			while((bytesSent = channel.write(reply.duplicate())) == 0)
 			{
-				ack_pkt.resetForRetransmitter();
 				LockSupport.parkNanos(200_000);
 			}
 			System.out.printf("[RECEIVER-HANDSHAKE] ACK sent: %d bytes%n", bytesSent);
@@ -192,10 +218,11 @@ public class FileTransferReceiver {
 	{
 		try{
 			if(handshake()){
+				// No SYNC: durability is the receive pipeline's fsync policy
+				// (saferoom.transfer.rx.fsync) plus checkpoint forces
 				fc = FileChannel.open(filePath, StandardOpenOption.CREATE 
 						, StandardOpenOption.READ
-						, StandardOpenOption.WRITE 
-						,StandardOpenOption.SYNC);
+						, StandardOpenOption.WRITE);
 
 				fc.truncate(file_size);
 				
@@ -243,6 +270,29 @@ public class FileTransferReceiver {
 		sender = new NackSender(channel, fileId, file_size, total_seq, chunkManager, receiverCongestionControl);
 	}
 	
+	// Merkle verification before restore: restored slices are verified like received ones
+	if (merkleLeafSlices > 0) {
+		sender.enableMerkle(merkleLeafSlices);
+	}
+	
+	// Resume: restore held slices, then keep checkpointing the bitmap
+	if (RESUME_ENABLED && filePath != null) {
+		if (resumeCheckpoint != null) {
+			sender.restore(resumeCheckpoint);
+		} else {
+			sender.enableCheckpoints(new ResumeCheckpoint(filePath, fileId, file_size, total_seq));
+		}
+	}
+	
+	// Reader / CRC verifiers / coalescing writer instead of one socket thread
+	if (ReceivePipeline.ENABLED) {
+		try {
+			sender.enablePipeline(fc);
+		} catch (IOException e) {
+			System.err.println("Receive pipeline unavailable, single-thread receive: " + e);
+		}
+	}
+	
 	// Transfer completion için CountDownLatch kullan
 	CountDownLatch transferLatch = new CountDownLatch(1);
 	
@@ -269,7 +319,18 @@ public class FileTransferReceiver {
 			System.err.println("Transfer interrupted");
 		}
 		
-		t.interrupt();
+		try {
+			// Completed receiver exits by itself; interrupting it mid read/write
+			// would close the channel (ClosedByInterruptException)
+			t.join(2_000);
+			if (t.isAlive()) {
+				t.interrupt();
+				t.join(10_000); // final checkpoint / sidecar cleanup happens on exit
+			}
+		} catch (InterruptedException e) {
+			t.interrupt();
+			Thread.currentThread().interrupt();
+		}
 		
 		// Transfer timing'i sonlandır
 		transferEndTime = System.currentTimeMillis();
@@ -293,6 +354,15 @@ public class FileTransferReceiver {
 		
 		System.out.println("File transfer completed successfully!");
 		
+		// Unmap the chunk windows and close the file (nack-sender already exited)
+		if (chunkManager != null) {
+			try {
+				chunkManager.close();
+			} catch (IOException e) {
+				System.err.println("ChunkManager close error: " + e);
+			}
+		}
+		
 
 	}else{
 		System.out.println("Initialization Error ");
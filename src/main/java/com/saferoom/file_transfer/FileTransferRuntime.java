@@ -1,6 +1,9 @@
 package com.saferoom.file_transfer;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Manages the ancillary loops (NACK, retransmission, stats) using structured concurrency.
@@ -16,10 +19,23 @@ public final class FileTransferRuntime implements AutoCloseable {
         });
     }
 
+    /**
+     * Give loops that were asked to stop a chance to exit by themselves before
+     * {@link #close()} interrupts whatever is still running.
+     */
+    public void awaitQuiescence(Duration grace) {
+        try {
+            scope.joinUntil(Instant.now().plus(grace));
+        } catch (TimeoutException e) {
+            // Remaining tasks (e.g. a listener blocked in read) get interrupted by close()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void close() {
         scope.close();
         scope.throwIfFailed(ex -> new RuntimeException("Transfer subtask failed", ex));
     }
 }
-
@@ -2,6 +2,7 @@ package com.saferoom.file_transfer;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.BitSet;
 
 
 public class HandShake_Packet {
@@ -9,6 +10,7 @@ public class HandShake_Packet {
 public static final byte SYN = 0x01;
 public static final byte ACK = 0x10;
 public static final byte SYN_ACK = 0x11;
+public static final byte RESUME = 0x12; // ACK variant: receiver already holds part of the file
 
 	public static final int OFF_SIG = 0;
 	public static final int OFF_FILE_ID = 1;
@@ -16,9 +18,22 @@ public static final byte SYN_ACK = 0x11;
 	public static final int OFF_TOTAL_SEQ = 17;  // Changed: now after long file_size
 
 	public static final int HEADER_SIZE = 21;  // Changed: 1 + 8 + 8 + 4 = 21 bytes
+
+	// RESUME = ACK header + [cumAck(4)][rangeCount(2)][rangeCount x (start(4), endExclusive(4))]
+	public static final int OFF_CUM_ACK = 21;
+	public static final int OFF_RANGE_COUNT = 25;
+	public static final int OFF_RANGES = 27;
+	public static final int RESUME_MAX_SIZE = 1200; // single datagram, below path MTU
+	public static final int RESUME_MAX_RANGES = (RESUME_MAX_SIZE - OFF_RANGES) / 8;
+
+	// Merkle SYN = SYN header + [leafSlices(4)][leafCount(4)] (see MerkleTree)
+	public static final int OFF_LEAF_SLICES = 21;
+	public static final int OFF_LEAF_COUNT = 25;
+	public static final int SYN_MERKLE_SIZE = 29;
 	private ByteBuffer hnd_shk_pkt;
+	private int frameSize = HEADER_SIZE;
 	public HandShake_Packet(){
-		this.hnd_shk_pkt = ByteBuffer.allocateDirect(HEADER_SIZE)
+		this.hnd_shk_pkt = ByteBuffer.allocateDirect(SYN_MERKLE_SIZE)
 					.order(ByteOrder.BIG_ENDIAN);	
 	}
 	
@@ -35,9 +50,19 @@ public static final byte SYN_ACK = 0x11;
 		hnd_shk_pkt.putLong(OFF_FILE_SIZE, file_size);  // Changed to long
 		hnd_shk_pkt.putInt(OFF_TOTAL_SEQ, total_seq);
 		
+		frameSize = HEADER_SIZE;
 		hnd_shk_pkt.limit(HEADER_SIZE);
 		hnd_shk_pkt.position(0);
 	}
+
+	/** SYN announcing the Merkle leaf layout; the root follows after the data */
+	public void make_SYN(long file_Id, long file_size, int total_seq, int leaf_slices, int leaf_count){
+		make_SYN(file_Id, file_size, total_seq);
+		hnd_shk_pkt.limit(SYN_MERKLE_SIZE);
+		hnd_shk_pkt.putInt(OFF_LEAF_SLICES, leaf_slices);
+		hnd_shk_pkt.putInt(OFF_LEAF_COUNT, leaf_count);
+		frameSize = SYN_MERKLE_SIZE;
+	}
 	
 	public void make_ACK(long file_Id, long file_size, int total_seq)
 	{
@@ -48,6 +73,7 @@ public static final byte SYN_ACK = 0x11;
 		hnd_shk_pkt.putLong(OFF_FILE_SIZE, file_size);  // Changed to long
 		hnd_shk_pkt.putInt(OFF_TOTAL_SEQ, total_seq);
 		
+		frameSize = HEADER_SIZE;
 		hnd_shk_pkt.limit(HEADER_SIZE);
 		hnd_shk_pkt.position(0);
 	}
@@ -59,15 +85,77 @@ public static final byte SYN_ACK = 0x11;
 		hnd_shk_pkt.put(OFF_SIG, SYN_ACK);
 		hnd_shk_pkt.putLong(OFF_FILE_ID, file_Id);
 
+		frameSize = 9;
 		hnd_shk_pkt.limit(9);
 		hnd_shk_pkt.position(0);
 
 	}
 
+	/**
+	 * RESUME reply: everything below cumAck plus up to RESUME_MAX_RANGES held
+	 * ranges above it. Ranges that do not fit are simply resent by the sender.
+	 */
+	public static ByteBuffer make_RESUME(long file_Id, long file_size, int total_seq,
+			int cumAck, BitSet received)
+	{
+		ByteBuffer b = ByteBuffer.allocateDirect(RESUME_MAX_SIZE).order(ByteOrder.BIG_ENDIAN);
+		b.put(OFF_SIG, RESUME);
+		b.putLong(OFF_FILE_ID, file_Id);
+		b.putLong(OFF_FILE_SIZE, file_size);
+		b.putInt(OFF_TOTAL_SEQ, total_seq);
+		b.putInt(OFF_CUM_ACK, cumAck);
+
+		int ranges = 0;
+		int off = OFF_RANGES;
+		int start = received.nextSetBit(cumAck);
+		while (start >= 0 && start < total_seq && ranges < RESUME_MAX_RANGES) {
+			int end = Math.min(received.nextClearBit(start), total_seq);
+			b.putInt(off, start);
+			b.putInt(off + 4, end);
+			off += 8;
+			ranges++;
+			start = received.nextSetBit(end);
+		}
+		b.putShort(OFF_RANGE_COUNT, (short) ranges);
+		b.limit(off);
+		b.position(0);
+		return b;
+	}
+
+	/**
+	 * Decode a RESUME reply into the set of sequences the receiver holds.
+	 * Malformed ranges are dropped (worst case the sender resends them).
+	 */
+	public static BitSet get_resume_held(ByteBuffer b, int total_seq)
+	{
+		BitSet held = new BitSet(total_seq);
+		if (b.limit() < OFF_RANGES) {
+			return held;
+		}
+		int cumAck = Math.max(0, Math.min(b.getInt(OFF_CUM_ACK), total_seq));
+		held.set(0, cumAck);
+		int ranges = Short.toUnsignedInt(b.getShort(OFF_RANGE_COUNT));
+		ranges = Math.min(ranges, (b.limit() - OFF_RANGES) / 8);
+		for (int i = 0; i < ranges; i++) {
+			int start = b.getInt(OFF_RANGES + i * 8);
+			int end = b.getInt(OFF_RANGES + i * 8 + 4);
+			if (start >= 0 && start < end && end <= total_seq) {
+				held.set(start, end);
+			}
+		}
+		return held;
+	}
+
 	public void resetForRetransmitter()
 	{
-		hnd_shk_pkt.position(0).limit(HEADER_SIZE);
+		hnd_shk_pkt.position(0).limit(frameSize);
 	}
+
+	/** Plain or Merkle SYN length */
+	public static boolean isSynSize(int length) { return length == HEADER_SIZE || length == SYN_MERKLE_SIZE; }
+	public static boolean hasMerkle(ByteBuffer b) { return b.limit() >= SYN_MERKLE_SIZE; }
+	public static int get_leaf_slices(ByteBuffer b) { return b.getInt(OFF_LEAF_SLICES); }
+	public static int get_leaf_count(ByteBuffer b) { return b.getInt(OFF_LEAF_COUNT); }
 	public static byte get_signal(ByteBuffer b) { return b.get(OFF_SIG); }
 	public static long get_file_Id(ByteBuffer b){ return b.getLong(OFF_FILE_ID); }
 	public static long get_file_size(ByteBuffer b) { return b.getLong(OFF_FILE_SIZE); }  // Changed to long
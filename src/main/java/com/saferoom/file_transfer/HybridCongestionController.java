@@ -7,7 +7,7 @@ import java.util.concurrent.locks.LockSupport;
  * QUIC-inspired hybrid congestion control for NAK-based protocol
  * Combines QUIC's cubic congestion control with rate-based pacing
  */
-public class HybridCongestionController {
+public class HybridCongestionController implements CongestionController {
     
     // QUIC-inspired congestion window (bytes)
     private volatile long congestionWindow = 32 * 1450; // 32 packets başlangıç
@@ -39,14 +39,18 @@ public class HybridCongestionController {
     }
     private volatile CongestionState state = CongestionState.SLOW_START;
     
-    // In-flight tracking
+    // In-flight tracking: first-pass file bytes not yet covered by a NACK window
+    // (cum_Ack + mask bits). Retransmissions replace slices still counted here
     private final AtomicLong bytesInFlight = new AtomicLong(0);
-    private final AtomicLong packetsInFlight = new AtomicLong(0);
+    private volatile long deliveredSlices = 0;
     
     // Statistics
     private final AtomicLong totalPacketsSent = new AtomicLong(0);
     private final AtomicLong totalBytesSent = new AtomicLong(0);
     private final AtomicLong totalLossCount = new AtomicLong(0);
+    
+    // Smoothed loss fraction from NACK holes (drives FEC redundancy)
+    private volatile double lossEstimate = 0.0;
     private volatile long startTime = System.nanoTime();
     
     // Timing
@@ -58,6 +62,7 @@ public class HybridCongestionController {
     
     // Constants
     private static final int PACKET_SIZE = 1450;
+    private static final long PACING_QUANTUM_NS = 500_000; // 500μs burst budget
     
     public HybridCongestionController() {
         updatePacingRate();
@@ -68,16 +73,8 @@ public class HybridCongestionController {
      * LAN'da da mikro-pacing aktif - burst önleme
      */
     public void rateLimitSend() {
-        // Congestion window kontrolü
-        if (bytesInFlight.get() >= congestionWindow) {
-            // Window dolu - biraz bekle ve tekrar kontrol et
-            long waitTime = packetIntervalNs > 0 ? packetIntervalNs * 2 : 10_000; // Min 10μs
-            if (waitTime > 100_000) { // Max 100μs bekle
-                waitTime = 100_000;
-            }
-            LockSupport.parkNanos(waitTime);
-            return;
-        }
+        // Congestion window kontrolü - a full window parks briefly, pacing still applies
+        throttleOnFullWindow();
         
         // Pacing kontrolü - LAN dahil tüm networkler için
         if (packetIntervalNs > 0) {
@@ -92,6 +89,26 @@ public class HybridCongestionController {
         }
     }
     
+    /**
+     * Shared congestion window gate (no pacing).
+     * Multi-lane senders call this from every lane and pace on their own clock;
+     * a full window adds a short park, the caller still waits its pacing interval.
+     *
+     * @return true if the window was full and the caller was parked briefly
+     */
+    public boolean throttleOnFullWindow() {
+        if (bytesInFlight.get() >= congestionWindow) {
+            // Window dolu - biraz bekle ve tekrar kontrol et
+            long waitTime = packetIntervalNs > 0 ? packetIntervalNs * 2 : 10_000; // Min 10μs
+            if (waitTime > 100_000) { // Max 100μs bekle
+                waitTime = 100_000;
+            }
+            LockSupport.parkNanos(waitTime);
+            return true;
+        }
+        return false;
+    }
+    
     /**
      * Packet sent notification - QUIC OnPacketSent benzeri
      */
@@ -100,12 +117,36 @@ public class HybridCongestionController {
     }
     
     public void onPacketSent(int packetSize) {
-        bytesInFlight.addAndGet(packetSize);
-        packetsInFlight.incrementAndGet();
         totalPacketsSent.incrementAndGet();
         totalBytesSent.addAndGet(packetSize);
     }
     
+    /**
+     * Burst variant of onPacketSent - one atomic update per counter per burst
+     */
+    public void onPacketsSent(int packetCount, long bytes) {
+        if (packetCount <= 0) return;
+        totalPacketsSent.addAndGet(packetCount);
+        totalBytesSent.addAndGet(bytes);
+    }
+    
+    public void onDataSent(long fileBytes) {
+        bytesInFlight.addAndGet(fileBytes);
+    }
+    
+    /**
+     * Packets per pacing quantum at the current pacing rate.
+     * Batched senders flush this many frames, then wait burst x interval.
+     */
+    public int getBurstSize(int maxBurst) {
+        long interval = packetIntervalNs;
+        if (interval <= 0) {
+            return Math.max(1, maxBurst);
+        }
+        long burst = PACING_QUANTUM_NS / interval;
+        return (int) Math.max(1, Math.min(maxBurst, burst));
+    }
+    
 	/**
 	 * NACK-based bandwidth tracking - sadece delivery rate için
 	 * In-flight tracking yapma, sadece bandwidth estimate
@@ -142,6 +183,39 @@ public class HybridCongestionController {
 		}
 	}
     
+    /**
+     * Releases in-flight bytes as cum_Ack + mask bits advance. Slices past the
+     * 64-slice window stay counted until a hole at cum_Ack is repaired.
+     */
+    public void onNackWindow(int baseSeq, long mask, long nowNs) {
+        long delivered = (long) baseSeq + Long.bitCount(mask);
+        long released = (delivered - deliveredSlices) * PACKET_SIZE;
+        if (released > 0) {
+            deliveredSlices = delivered;
+            bytesInFlight.accumulateAndGet(released, (inFlight, r) -> Math.max(0, inFlight - r));
+        }
+    }
+    
+    long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+    
+    /**
+     * Loss sample from one NACK window: {@code holes} = missing slices below the
+     * highest received one (in-flight tail not counted). EWMA with 1/8 gain,
+     * single writer (NACK listener).
+     */
+    public void onLossSample(int delivered, int holes) {
+        int total = delivered + holes;
+        if (total <= 0) return;
+        double sample = (double) holes / total;
+        lossEstimate = lossEstimate * 0.875 + sample * 0.125;
+    }
+    
+    public double getLossEstimate() {
+        return lossEstimate;
+    }
+    
     /**
      * NACK-based loss detection - QUIC OnPacketLost benzeri
      */
@@ -331,10 +405,11 @@ public class HybridCongestionController {
         slowStartThreshold = Long.MAX_VALUE;
         state = CongestionState.SLOW_START;
         bytesInFlight.set(0);
-        packetsInFlight.set(0);
+        deliveredSlices = 0;
         totalPacketsSent.set(0);
         totalBytesSent.set(0);
         totalLossCount.set(0);
+        lossEstimate = 0.0;
         smoothedRtt = 100_000_000;
         rttVar = 50_000_000;
         minRtt = Long.MAX_VALUE;
@@ -0,0 +1,121 @@
+package com.saferoom.file_transfer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free multi-producer / single-consumer queue of primitive ints.
+ *
+ * Replaces ConcurrentLinkedQueue&lt;Integer&gt; on the retransmission path: no
+ * Integer boxing and no node allocation per offer. Slot publication follows the
+ * classic per-slot sequence scheme (Vyukov), so producers only contend on the
+ * tail CAS and the consumer never writes shared counters except its head.
+ *
+ * Values must be &gt;= 0 (sequence numbers); {@link #EMPTY} signals an empty poll.
+ */
+public final class IntMpscRing {
+
+    public static final int EMPTY = -1;
+
+    private static final VarHandle SEQ = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int capacity;
+    private final int mask;
+    private final int[] values;
+    private final long[] sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    /**
+     * @param requestedCapacity rounded up to the next power of two
+     */
+    public IntMpscRing(int requestedCapacity) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int cap = Integer.highestOneBit(requestedCapacity);
+        if (cap < requestedCapacity) {
+            cap <<= 1;
+        }
+        if (cap <= 0) {
+            throw new IllegalArgumentException("capacity too large: " + requestedCapacity);
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.values = new int[cap];
+        this.sequences = new long[cap];
+        for (int i = 0; i < cap; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    /**
+     * Ring size for one transfer: one slot per sequence, capped so huge files
+     * keep a fixed footprint (NACK windows re-report anything dropped when full).
+     */
+    public static IntMpscRing forTransfer(int totalSeq) {
+        return new IntMpscRing(Math.max(64, Math.min(totalSeq, 1 << 16)));
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    public boolean offer(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value: " + value);
+        }
+        long t;
+        int idx;
+        while (true) {
+            t = tail.get();
+            idx = (int) (t & mask);
+            long seq = (long) SEQ.getAcquire(sequences, idx);
+            long dif = seq - t;
+            if (dif == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                return false; // full - consumer has not freed this slot yet
+            } else {
+                Thread.onSpinWait(); // another producer claimed it, reload tail
+            }
+        }
+        values[idx] = value;
+        SEQ.setRelease(sequences, idx, t + 1);
+        return true;
+    }
+
+    /**
+     * Single consumer only.
+     *
+     * @return next value or {@link #EMPTY}
+     */
+    public int poll() {
+        long h = head;
+        int idx = (int) (h & mask);
+        long seq = (long) SEQ.getAcquire(sequences, idx);
+        if (seq != h + 1) {
+            return EMPTY; // not yet published (or empty)
+        }
+        int value = values[idx];
+        SEQ.setRelease(sequences, idx, h + capacity);
+        head = h + 1;
+        return value;
+    }
+
+    /** Approximate number of queued values */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,163 @@
+package com.saferoom.file_transfer;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * One mapped window of a file: a slice-aligned run of sequence numbers inside
+ * a single {@link ChunkMetadata} region, mapped in its own shared Arena and
+ * unmapped by closing it instead of waiting for the GC. A view used after
+ * that fails with IllegalStateException rather than touching unmapped memory.
+ * JDK 21 channels take such buffers in write() on a connected channel (what
+ * the transfer uses) but reject them in send() and receive(), and CRC32C
+ * rejects them too: {@link #checksum} reads the same pages through a view
+ * without the Arena's scope.
+ *
+ * Reference counted: {@link ChunkManager#acquireWindow} hands out a
+ * reference, {@link #release()} returns it. A window retired by the manager
+ * stays mapped until its last reference is released, so a thread never loses
+ * the buffer it is reading or writing.
+ *
+ * Windows are aligned to multiples of the window length in global sequence
+ * space (a multiple of 64), so stripes, compression blocks and FEC groups
+ * never straddle two windows unless they already straddle two regions.
+ */
+final class MappedWindow {
+
+    private static final int RETIRED = 1 << 30;
+    private static final long UNMAP_RETRY_MS = 10;
+    private static final int UNMAP_MAX_RETRIES = 1_000; // 10 s
+
+    /** Slot in the manager's window table */
+    final int index;
+    final ChunkMetadata region;
+    /** First sequence number in the window (inclusive) */
+    final int firstSeq;
+    /** First sequence number after the window */
+    final int endSeq;
+    /** File offset of {@link #firstSeq} */
+    final long fileOffset;
+    final MappedByteBuffer buffer;
+
+    private final Arena arena;
+    // Same pages, unscoped: only read while a reference is held (see checksum)
+    private final ByteBuffer unscoped;
+    private final int sliceSize;
+    // Reference count, RETIRED bit once the manager dropped the window
+    private final AtomicInteger state = new AtomicInteger();
+    private int unmapRetries;
+
+    MappedWindow(int index, ChunkMetadata region, int firstSeq, int endSeq, long fileOffset,
+                 int sliceSize, Arena arena, MemorySegment mapping) {
+        this.index = index;
+        this.region = region;
+        this.firstSeq = firstSeq;
+        this.endSeq = endSeq;
+        this.fileOffset = fileOffset;
+        this.sliceSize = sliceSize;
+        this.arena = arena;
+        this.buffer = (MappedByteBuffer) mapping.asByteBuffer();
+        this.unscoped = MemorySegment.ofAddress(mapping.address()).reinterpret(mapping.byteSize()).asByteBuffer();
+    }
+
+    boolean contains(int globalSeq) {
+        return globalSeq >= firstSeq && globalSeq < endSeq;
+    }
+
+    /** Byte offset of the slice within {@link #buffer} */
+    int offsetOf(int globalSeq) {
+        return (globalSeq - firstSeq) * sliceSize;
+    }
+
+    /** Length of the slice in the file (last slice of a region may be short) */
+    int payloadSize(int globalSeq) {
+        return region.getPayloadSize(region.toLocalSequence(globalSeq), sliceSize);
+    }
+
+    long byteSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * CRC32C of {@code length} bytes at {@code offset} of {@link #buffer},
+     * read in place (no heap copy). The caller holds a reference, so the
+     * window cannot be unmapped under the unscoped view.
+     */
+    int checksum(CRC32C crc, int offset, int length) {
+        crc.reset();
+        crc.update(unscoped.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    /** Touch every page so the next reader does not fault */
+    void load() {
+        buffer.load();
+    }
+
+    /** Give back a reference from {@link ChunkManager#acquireWindow} */
+    void release() {
+        if (state.decrementAndGet() == RETIRED) {
+            unmap();
+        }
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int s = state.get();
+            if ((s & RETIRED) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(s, s + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop the manager's claim: unmapped now if nobody holds it, otherwise by
+     * the last {@link #release()}.
+     */
+    void retire() {
+        while (true) {
+            int s = state.get();
+            if ((s & RETIRED) != 0) {
+                return;
+            }
+            if (state.compareAndSet(s, s | RETIRED)) {
+                if (s == 0) {
+                    unmap();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Only reached with no references left; views handed out earlier
+     * (zero-copy payloads) must be on the wire by then.
+     */
+    private void unmap() {
+        try {
+            arena.close();
+        } catch (IllegalStateException e) {
+            // A view is still inside a channel call: close once it returned
+            if (++unmapRetries > UNMAP_MAX_RETRIES) {
+                System.err.println("MappedWindow: " + this + " still in use, not unmapped (" + e.getMessage() + ")");
+                return;
+            }
+            CompletableFuture.delayedExecutor(UNMAP_RETRY_MS, TimeUnit.MILLISECONDS).execute(this::unmap);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Window[%d: seq=%,d-%,d, offset=%,d, %.1f MB]",
+            index, firstSeq, endSeq - 1, fileOffset, byteSize() / (1024.0 * 1024.0));
+    }
+}
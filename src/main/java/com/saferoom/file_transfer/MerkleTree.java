@@ -0,0 +1,237 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+
+/**
+ * End-to-end integrity: a SHA-256 Merkle tree over the file as it is sent.
+ *
+ * One leaf per 64-slice send stripe (global sequence alignment, like mapping
+ * windows, compression blocks and FEC groups), so every lane hashes its own
+ * stripes right after sending them, while the pages are still hot - the
+ * sender never reads the file a second time.
+ *
+ *   leaf = SHA-256(0x00 || stripe bytes)
+ *   node = SHA-256(0x01 || left || right), an odd last node moves up unchanged
+ *
+ * Wire format:
+ * - SYN carries leafSlices + leafCount ({@link HandShake_Packet#SYN_MERKLE_SIZE})
+ * - hash frame: CRC32C_Packet with both flag bits ({@link #FLAG_HASH}, never
+ *   set together on data), seq = leaf index, total = {@link #KIND_LEAF} or
+ *   {@link #KIND_ROOT}, payload = 32-byte hash
+ * - request (receiver -> sender, back channel):
+ *   [magic(4)][fileId(8)][count(2)][count x index(4)], index == leafCount = root
+ *
+ * This class is the sender side (lazy leaf table + root); the receiver side is
+ * {@link MerkleVerifier}.
+ */
+public final class MerkleTree {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(
+        System.getProperty("saferoom.transfer.merkle.enabled", "true"));
+    static final int LEAF_SLICES = SendLane.STRIPE_SLICES;
+    static final int HASH_SIZE = 32;
+
+    static final int FLAG_HASH = CRC32C_Packet.FLAG_COMPRESSED | CRC32C_Packet.FLAG_PARITY;
+    static final int KIND_LEAF = 0;
+    static final int KIND_ROOT = 1;
+
+    static final int REQUEST_MAGIC = 0x4D4B5251; // "MKRQ"
+    static final int REQUEST_HEADER = 14;
+    static final int MAX_REQUEST = (NackFrame.MAX_SIZE - REQUEST_HEADER) / 4;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(MerkleTree::sha256);
+
+    final int totalSeq;
+    final int leafSlices;
+    final int leafCount;
+    private final AtomicReferenceArray<byte[]> leaves;
+    private final AtomicInteger hashed = new AtomicInteger();
+    private final AtomicBoolean rootSent = new AtomicBoolean();
+    private volatile byte[] root;
+
+    // Stats
+    private final AtomicInteger framesSent = new AtomicInteger();
+    private final AtomicInteger requested = new AtomicInteger();
+
+    MerkleTree(int totalSeq, int leafSlices) {
+        this.totalSeq = totalSeq;
+        this.leafSlices = leafSlices;
+        this.leafCount = leafCount(totalSeq, leafSlices);
+        this.leaves = new AtomicReferenceArray<>(leafCount);
+    }
+
+    static int leafCount(int totalSeq, int leafSlices) {
+        return (totalSeq + leafSlices - 1) / leafSlices;
+    }
+
+    int leafStart(int leaf) {
+        return leaf * leafSlices;
+    }
+
+    int leafEnd(int leaf) {
+        return Math.min(totalSeq, (leaf + 1) * leafSlices);
+    }
+
+    /**
+     * Hash of a leaf, computed from the mapped file on first use (normally by
+     * the lane that just sent the stripe).
+     */
+    byte[] leafHash(ChunkManager chunks, int leaf) throws IOException {
+        byte[] h = leaves.get(leaf);
+        if (h != null) {
+            return h;
+        }
+        h = hashLeaf(chunks, leafStart(leaf), leafEnd(leaf));
+        if (!leaves.compareAndSet(leaf, null, h)) {
+            return leaves.get(leaf); // another thread got there first - same bytes, same hash
+        }
+        if (hashed.incrementAndGet() == leafCount) {
+            byte[][] all = new byte[leafCount][];
+            for (int i = 0; i < leafCount; i++) {
+                all[i] = leaves.get(i);
+            }
+            root = root(all);
+        }
+        return h;
+    }
+
+    /** Root, hashing whatever leaves are still missing (receiver asked for it) */
+    byte[] root(ChunkManager chunks) throws IOException {
+        for (int i = 0; root == null && i < leafCount; i++) {
+            leafHash(chunks, i);
+        }
+        return root;
+    }
+
+    /** @return the root the first time it is available, null otherwise */
+    byte[] takeRootToSend() {
+        byte[] r = root;
+        return r != null && rootSent.compareAndSet(false, true) ? r : null;
+    }
+
+    void frameSent() {
+        framesSent.incrementAndGet();
+    }
+
+    void requestAnswered() {
+        requested.incrementAndGet();
+    }
+
+    // ---- hashing ----
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /** Leaf hash of slices [first, end) read through the chunk windows */
+    static byte[] hashLeaf(ChunkManager chunks, int first, int end) throws IOException {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(LEAF_PREFIX);
+        int seq = first;
+        while (seq < end) {
+            MappedWindow window = chunks.acquireWindow(seq);
+            try {
+                int stop = Math.min(end, window.endSeq); // stripes only straddle windows at region ends
+                int off = window.offsetOf(seq);
+                int len = window.offsetOf(stop - 1) + window.payloadSize(stop - 1) - off;
+                ByteBuffer view = window.buffer.duplicate();
+                view.position(off).limit(off + len);
+                md.update(view);
+                seq = stop;
+            } finally {
+                window.release();
+            }
+        }
+        return md.digest();
+    }
+
+    /** Leaf hash of the remaining bytes of {@code bytes} */
+    static byte[] hashLeaf(ByteBuffer bytes) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(LEAF_PREFIX);
+        md.update(bytes);
+        return md.digest();
+    }
+
+    static byte[] node(byte[] left, byte[] right) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(NODE_PREFIX);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    /** Root over a complete leaf list */
+    static byte[] root(byte[][] leafHashes) {
+        byte[][] level = leafHashes.clone();
+        int n = level.length;
+        while (n > 1) {
+            int next = 0;
+            for (int i = 0; i < n; i += 2) {
+                level[next++] = i + 1 < n ? node(level[i], level[i + 1]) : level[i];
+            }
+            n = next;
+        }
+        return level[0];
+    }
+
+    // ---- frames ----
+
+    static boolean isHashFrame(int plenField) {
+        return (plenField & FLAG_HASH) == FLAG_HASH;
+    }
+
+    static ByteBuffer hashFrame(long fileId, int index, int kind, byte[] hash) {
+        CRC32C crc = new CRC32C();
+        crc.update(hash);
+        ByteBuffer b = ByteBuffer.allocateDirect(CRC32C_Packet.HEADER_SIZE + HASH_SIZE).order(ByteOrder.BIG_ENDIAN);
+        b.putLong(CRC32C_Packet.OFF_FILE_ID, fileId);
+        b.putInt(CRC32C_Packet.OFF_SEQ, index);
+        b.putInt(CRC32C_Packet.OFF_TOTAL, kind);
+        b.putShort(CRC32C_Packet.OFF_PLEN, (short) (HASH_SIZE | FLAG_HASH));
+        b.putInt(CRC32C_Packet.OFF_CRC, (int) crc.getValue());
+        b.put(CRC32C_Packet.HEADER_SIZE, hash);
+        return b;
+    }
+
+    static ByteBuffer request(long fileId, int[] indices, int count) {
+        ByteBuffer b = ByteBuffer.allocate(REQUEST_HEADER + 4 * count).order(ByteOrder.BIG_ENDIAN);
+        b.putInt(REQUEST_MAGIC).putLong(fileId).putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            b.putInt(indices[i]);
+        }
+        return b.flip();
+    }
+
+    static boolean isRequest(ByteBuffer b, int length) {
+        return length >= REQUEST_HEADER && b.getInt(0) == REQUEST_MAGIC
+            && length == REQUEST_HEADER + 4 * (b.getShort(12) & 0xFFFF);
+    }
+
+    static long requestFileId(ByteBuffer b) { return b.getLong(4); }
+    static int requestCount(ByteBuffer b) { return b.getShort(12) & 0xFFFF; }
+    static int requestIndex(ByteBuffer b, int i) { return b.getInt(REQUEST_HEADER + 4 * i); }
+
+    @Override
+    public String toString() {
+        return String.format("Merkle: %d/%d leaves hashed (%d slices each), %d hash frames, %d requested again",
+            hashed.get(), leafCount, leafSlices, framesSent.get(), requested.get());
+    }
+}
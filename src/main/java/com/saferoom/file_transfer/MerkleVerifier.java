@@ -0,0 +1,233 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver side of {@link MerkleTree}: verifies leaves as soon as a leaf has
+ * all its slices on disk and its hash frame has arrived, on a small pool so
+ * the socket / writer threads never run SHA-256.
+ *
+ * Leaf states: DATA (slices missing) -> HELD (slices in, hash pending) ->
+ * QUEUED (on the pool) -> VERIFIED. A leaf that does not match goes back to
+ * DATA: its slices are dropped from the bitmap and NACKed again, and its hash
+ * is requested again in case the hash frame was the broken part.
+ *
+ * Every method except the pool task runs under the {@link NackSender} lock.
+ */
+final class MerkleVerifier {
+
+    static final int THREADS = Integer.getInteger("saferoom.transfer.merkle.threads",
+        Runtime.getRuntime().availableProcessors());
+    static final long HASH_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong("saferoom.transfer.merkle.hashWaitMs", 100L));
+
+    private static final byte DATA = 0;
+    private static final byte HELD = 1;
+    private static final byte QUEUED = 2;
+    private static final byte VERIFIED = 3;
+
+    private final NackSender owner;
+    final int totalSeq;
+    final int leafSlices;
+    final int leafCount;
+
+    private final byte[] state;
+    private final byte[][] expected;
+    private final long[] waitingSince;
+    /** HELD leaves without a hash: candidates for a re-request */
+    private final BitSet needHash = new BitSet();
+    private byte[] root;
+    private long rootWaitSince;
+    private boolean rootOk;
+    private int verified;
+    private int busy;
+    private ExecutorService pool;
+
+    // Stats
+    private int failures;
+    private int rootFailures;
+    private int requests;
+
+    MerkleVerifier(NackSender owner, int totalSeq, int leafSlices) {
+        this.owner = owner;
+        this.totalSeq = totalSeq;
+        this.leafSlices = leafSlices;
+        this.leafCount = MerkleTree.leafCount(totalSeq, leafSlices);
+        this.state = new byte[leafCount];
+        this.expected = new byte[leafCount][];
+        this.waitingSince = new long[leafCount];
+    }
+
+    int leafStart(int leaf) {
+        return leaf * leafSlices;
+    }
+
+    int leafEnd(int leaf) {
+        return Math.min(totalSeq, (leaf + 1) * leafSlices);
+    }
+
+    boolean isComplete() {
+        return rootOk;
+    }
+
+    /** Leaves still on the pool */
+    int busy() {
+        return busy;
+    }
+
+    /** Slices [first, end) are now held */
+    void onHeld(int first, int end, BitSet recv) {
+        if (first >= end) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int leaf = first / leafSlices, last = (end - 1) / leafSlices; leaf <= last; leaf++) {
+            if (state[leaf] != DATA || recv.nextClearBit(leafStart(leaf)) < leafEnd(leaf)) {
+                continue;
+            }
+            state[leaf] = HELD;
+            waitingSince[leaf] = now;
+            maybeQueue(leaf);
+        }
+    }
+
+    void onHash(int leaf, byte[] hash) {
+        if (leaf < 0 || leaf >= leafCount || state[leaf] == VERIFIED || state[leaf] == QUEUED) {
+            return;
+        }
+        expected[leaf] = hash;
+        maybeQueue(leaf);
+    }
+
+    void onRoot(byte[] hash) {
+        if (rootOk) {
+            return;
+        }
+        root = hash;
+        checkRoot();
+    }
+
+    private void maybeQueue(int leaf) {
+        if (state[leaf] != HELD) {
+            return;
+        }
+        if (expected[leaf] == null) {
+            needHash.set(leaf);
+            return;
+        }
+        needHash.clear(leaf);
+        state[leaf] = QUEUED;
+        busy++;
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(Math.max(1, THREADS), r -> {
+                Thread t = new Thread(r, "merkle-verify");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        pool.execute(() -> verify(leaf));
+    }
+
+    /** Pool thread: hash outside the lock, judge under it */
+    private void verify(int leaf) {
+        byte[] actual = null;
+        try {
+            actual = owner.hashLeaf(leafStart(leaf), leafEnd(leaf));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Merkle leaf " + leaf + " read error: " + e);
+        }
+        owner.onLeafChecked(leaf, actual);
+    }
+
+    /**
+     * Result of a pool task.
+     *
+     * @return true if the leaf failed and its slices must be received again
+     */
+    boolean onChecked(int leaf, byte[] actual) {
+        busy--;
+        if (state[leaf] != QUEUED) {
+            return false;
+        }
+        if (actual != null && Arrays.equals(actual, expected[leaf])) {
+            state[leaf] = VERIFIED;
+            verified++;
+            if (verified == leafCount) {
+                rootWaitSince = System.nanoTime();
+            }
+            checkRoot();
+            return false;
+        }
+        failures++;
+        System.err.printf("Merkle leaf %d (seq %d-%d) failed verification, receiving it again%n",
+            leaf, leafStart(leaf), leafEnd(leaf) - 1);
+        state[leaf] = DATA;
+        expected[leaf] = null;
+        return true;
+    }
+
+    /**
+     * All leaves verified against their own hashes; the root ties them to the
+     * sender's file. A mismatch means a hash frame was wrong: ask for all again.
+     */
+    private void checkRoot() {
+        if (rootOk || root == null || verified != leafCount) {
+            return;
+        }
+        if (Arrays.equals(MerkleTree.root(expected), root)) {
+            rootOk = true;
+            return;
+        }
+        rootFailures++;
+        System.err.println("Merkle root mismatch, requesting every leaf hash again");
+        root = null;
+        verified = 0;
+        long since = System.nanoTime() - HASH_WAIT_NS;
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            state[leaf] = HELD;
+            expected[leaf] = null;
+            waitingSince[leaf] = since;
+        }
+        needHash.set(0, leafCount);
+    }
+
+    /**
+     * Hashes that should have been here by now (NACK tick). Asked for again
+     * at most once per {@link #HASH_WAIT_NS}.
+     *
+     * @return number of indices written to {@code out}, leafCount = root
+     */
+    int collectRequests(int[] out) {
+        long now = System.nanoTime();
+        int n = 0;
+        for (int leaf = needHash.nextSetBit(0); leaf >= 0 && n < out.length; leaf = needHash.nextSetBit(leaf + 1)) {
+            if (now - waitingSince[leaf] >= HASH_WAIT_NS) {
+                out[n++] = leaf;
+                waitingSince[leaf] = now;
+            }
+        }
+        if (verified == leafCount && root == null && n < out.length && now - rootWaitSince >= HASH_WAIT_NS) {
+            out[n++] = leafCount;
+            rootWaitSince = now;
+        }
+        requests += n;
+        return n;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Merkle: %d/%d leaves verified (%d slices each), root %s, %d failed leaves, %d root mismatches, %d hash requests",
+            verified, leafCount, leafSlices, rootOk ? "ok" : "pending", failures, rootFailures, requests);
+    }
+}
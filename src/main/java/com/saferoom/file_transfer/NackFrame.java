@@ -2,14 +2,55 @@ package com.saferoom.file_transfer;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.function.IntConsumer;
 
+/**
+ * Receiver to sender feedback frame.
+ *
+ * Legacy frame (28 bytes): fileId, base sequence (cum_Ack), 64-bit window mask
+ * (bit i set = base+i received) and the NACK send timestamp.
+ *
+ * Extended frame (up to {@link #MAX_SIZE}): the legacy 28 bytes followed by
+ * loss entries for slices beyond the 64-slice window, so a long burst loss is
+ * reported in one frame instead of one window per round trip:
+ * <pre>
+ *   28     marker (0x52)
+ *   29     version (1)
+ *   30-31  entry count
+ *   32-35  covered end: every slice of [base+64, end) that is not listed is held
+ *   36..   entries
+ *     RANGE : type=1, start(4), count(4)              -&gt; start .. start+count-1 missing
+ *     BITMAP: type=2, start(4), bits(2), ceil(bits/8) -&gt; bit i set = start+i missing
+ * </pre>
+ * The encoder picks the shorter form for every cluster of holes. The
+ * receiver only sends extended frames when there is something beyond the
+ * window, so clean transfers stay on the 28-byte frame. The covered end tells
+ * the sender which slices after a hole did arrive.
+ */
 public final class NackFrame {
     public static final int SIZE = 28; // 20 + 8 bytes for timestamp
 
+    /** Same as a data packet (header + slice): fits wherever data does */
+    public static final int MAX_SIZE = 22 + 1450;
+
+    public static final byte EXT_MARKER = 0x52;
+    public static final byte EXT_VERSION = 1;
+    public static final int EXT_HEADER_SIZE = SIZE + 8;
+
+    static final byte ENTRY_RANGE = 1;
+    static final byte ENTRY_BITMAP = 2;
+    static final int RANGE_ENTRY_SIZE = 9;
+    static final int BITMAP_HEADER_SIZE = 7;
+    static final int MAX_BITMAP_BITS = 0xFFFF;
+
     private final ByteBuffer buf;
 
+    // Result of the last encodeRuns()
+    private int encodedEntries;
+    private int encodedCoveredEnd;
+
     public NackFrame() {
-        this.buf = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.BIG_ENDIAN);
+        this.buf = ByteBuffer.allocateDirect(MAX_SIZE).order(ByteOrder.BIG_ENDIAN);
     }
 
     public ByteBuffer buffer() { return buf; }
@@ -24,10 +65,183 @@ public final class NackFrame {
         buf.position(0);
     }
 
-    public void resetForRetry() { buf.position(0).limit(SIZE); }
+    /**
+     * Legacy frame plus loss entries for the given holes.
+     *
+     * @param runs       hole runs as [start, end) pairs, ascending, beyond the window
+     * @param runCount   number of pairs in {@code runs}
+     * @param coveredEnd every slice below it that is not in a run is held
+     * @return slices reported by the entries (0 = plain 28-byte frame)
+     */
+    public int fillExtended(long fileId, int baseSeq, long mask64, int[] runs, int runCount, int coveredEnd) {
+        fill(fileId, baseSeq, mask64);
+        if (runCount <= 0) {
+            return 0;
+        }
+        buf.limit(MAX_SIZE);
+        int end = encodeRuns(EXT_HEADER_SIZE, runs, runCount, coveredEnd);
+        if (encodedEntries == 0) {
+            buf.limit(SIZE);
+            return 0;
+        }
+        buf.put(SIZE, EXT_MARKER);
+        buf.put(SIZE + 1, EXT_VERSION);
+        buf.putShort(SIZE + 2, (short) encodedEntries);
+        buf.putInt(SIZE + 4, encodedCoveredEnd);
+        buf.limit(end);
+        buf.position(0);
+        return forEachMissing(buf, end, Integer.MAX_VALUE, s -> { });
+    }
+
+    public void resetForRetry() { buf.position(0); }
 
     public static long  fileId(ByteBuffer b)     { return b.getLong(0); }
     public static int   baseSeq(ByteBuffer b)    { return b.getInt(8); }
     public static long  mask64(ByteBuffer b)     { return b.getLong(12); }
     public static long  timestamp(ByteBuffer b)  { return b.getLong(20); }
+    public static int   coveredEnd(ByteBuffer b) { return b.getInt(SIZE + 4); }
+
+    /**
+     * @param length bytes received
+     */
+    public static boolean isExtended(ByteBuffer b, int length) {
+        return length >= EXT_HEADER_SIZE && b.get(SIZE) == EXT_MARKER && b.get(SIZE + 1) == EXT_VERSION;
+    }
+
+    /**
+     * Hand every missing slice of an extended frame to {@code sink}, ascending.
+     * Slices outside [0, totalSeq) are skipped.
+     *
+     * @return slices delivered to the sink, or -1 if the frame is malformed
+     */
+    public static int forEachMissing(ByteBuffer b, int length, int totalSeq, IntConsumer sink) {
+        if (!isExtended(b, length)) {
+            return -1;
+        }
+        int entries = b.getShort(SIZE + 2) & 0xFFFF;
+        int pos = EXT_HEADER_SIZE;
+        int count = 0;
+        for (int e = 0; e < entries; e++) {
+            if (pos + 1 > length) return -1;
+            byte type = b.get(pos);
+            if (type == ENTRY_RANGE) {
+                if (pos + RANGE_ENTRY_SIZE > length) return -1;
+                long start = b.getInt(pos + 1);
+                long end = Math.min(start + b.getInt(pos + 5), totalSeq);
+                for (long s = Math.max(0, start); s < end; s++) {
+                    sink.accept((int) s);
+                    count++;
+                }
+                pos += RANGE_ENTRY_SIZE;
+            } else if (type == ENTRY_BITMAP) {
+                if (pos + BITMAP_HEADER_SIZE > length) return -1;
+                int start = b.getInt(pos + 1);
+                int bits = b.getShort(pos + 5) & 0xFFFF;
+                int bytes = (bits + 7) >>> 3;
+                int data = pos + BITMAP_HEADER_SIZE;
+                if (data + bytes > length) return -1;
+                for (int i = 0; i < bits; i++) {
+                    if ((b.get(data + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                        long s = (long) start + i;
+                        if (s >= 0 && s < totalSeq) {
+                            sink.accept((int) s);
+                            count++;
+                        }
+                    }
+                }
+                pos = data + bytes;
+            } else {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Greedy densest encoding: neighbouring hole runs are merged into one
+     * cluster while a single entry for the merged span is no longer than
+     * keeping the next run as its own range. Each cluster is then written as
+     * ranges or as one bitmap, whichever is shorter. When the frame is full
+     * the covered end is pulled back to the first slice left out; the next
+     * frame repeats the rest.
+     *
+     * @return end position; sets {@link #encodedEntries} and {@link #encodedCoveredEnd}
+     */
+    private int encodeRuns(int pos, int[] runs, int runCount, int coveredEnd) {
+        int entries = 0;
+        int covered = coveredEnd;
+        int i = 0;
+        fill:
+        while (i < runCount) {
+            int cs = runs[2 * i];
+            int ce = runs[2 * i + 1];
+            int k = 1;
+            int j = i + 1;
+            while (j < runCount) {
+                int ne = runs[2 * j + 1];
+                if ((long) ne - cs > MAX_BITMAP_BITS) break;
+                long separate = clusterCost(cs, ce, k) + RANGE_ENTRY_SIZE;
+                if (clusterCost(cs, ne, k + 1) > separate) break;
+                ce = ne;
+                k++;
+                j++;
+            }
+
+            if (ce - cs <= MAX_BITMAP_BITS && bitmapCost(cs, ce) < (long) k * RANGE_ENTRY_SIZE) {
+                int room = MAX_SIZE - pos - BITMAP_HEADER_SIZE;
+                if (room <= 0) {
+                    covered = cs;
+                    break;
+                }
+                int bits = Math.min(ce - cs, room * 8);
+                int bytes = (bits + 7) >>> 3;
+                buf.put(pos, ENTRY_BITMAP);
+                buf.putInt(pos + 1, cs);
+                buf.putShort(pos + 5, (short) bits);
+                int data = pos + BITMAP_HEADER_SIZE;
+                for (int b = 0; b < bytes; b++) {
+                    buf.put(data + b, (byte) 0);
+                }
+                for (int r = i; r < j; r++) {
+                    int from = runs[2 * r] - cs;
+                    int to = Math.min(runs[2 * r + 1] - cs, bits);
+                    for (int bit = from; bit < to; bit++) {
+                        int at = data + (bit >>> 3);
+                        buf.put(at, (byte) (buf.get(at) | (1 << (bit & 7))));
+                    }
+                }
+                pos = data + bytes;
+                entries++;
+                if (bits < ce - cs) {
+                    covered = cs + bits; // frame full
+                    break;
+                }
+            } else {
+                for (int r = i; r < j; r++) {
+                    if (pos + RANGE_ENTRY_SIZE > MAX_SIZE) {
+                        covered = runs[2 * r];
+                        break fill;
+                    }
+                    buf.put(pos, ENTRY_RANGE);
+                    buf.putInt(pos + 1, runs[2 * r]);
+                    buf.putInt(pos + 5, runs[2 * r + 1] - runs[2 * r]);
+                    pos += RANGE_ENTRY_SIZE;
+                    entries++;
+                }
+            }
+            i = j;
+        }
+        encodedEntries = entries;
+        encodedCoveredEnd = covered;
+        return pos;
+    }
+
+    private static long bitmapCost(int start, int end) {
+        return BITMAP_HEADER_SIZE + ((end - (long) start + 7) >>> 3);
+    }
+
+    private static long clusterCost(int start, int end, int runs) {
+        long ranges = (long) runs * RANGE_ENTRY_SIZE;
+        return end - (long) start <= MAX_BITMAP_BITS ? Math.min(ranges, bitmapCost(start, end)) : ranges;
+    }
 }
@@ -5,10 +5,16 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.LockSupport;
 import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class NackSender implements Runnable{
 	public final long fileId;
@@ -24,7 +30,41 @@ public class NackSender implements Runnable{
 	public volatile Runnable onTransferComplete = null;
 	
 	// Enhanced congestion control reference  
-	public volatile HybridCongestionController hybridControl = null;
+	public volatile CongestionController congestionControl = null;
+	
+	// Resume support: periodic bitmap checkpoint next to the output file
+	private volatile ResumeCheckpoint checkpoint = null;
+	private int lastCheckpointCount = -1;
+	public static final long CHECKPOINT_INTERVAL_MS =
+		Long.getLong("saferoom.transfer.checkpoint.intervalMs", 2000L);
+	
+	// Block compression: fragments are collected on the socket thread and
+	// inflated on a separate pool so the read loop never runs the codec.
+	// staged = covered by a complete-or-collecting block, not yet on disk
+	private final BitSet staged = new BitSet();
+	private final Map<Integer, BlockAssembly> assemblies = new HashMap<>();
+	private ExecutorService inflaters;
+	private final AtomicInteger inflating = new AtomicInteger();
+	private static final ThreadLocal<Inflater> INFLATER =
+		ThreadLocal.withInitial(() -> new Inflater(true));
+	
+	// FEC: parity groups rebuild lost slices locally (created on first parity)
+	private FecDecoder fec;
+	private final ByteBuffer sliceCopy = ByteBuffer.allocate(FileTransferReceiver.SLICE_SIZE); // readSlice in chunk mode
+	
+	// Extended NACK: holes beyond the 64-slice window as ranges / bitmaps
+	public static final boolean EXTENDED_NACK_ENABLED = Boolean.parseBoolean(
+		System.getProperty("saferoom.transfer.nack.extended", "true"));
+	static final int MAX_EXTENDED_RUNS = 4096;
+	private final int[] holeRuns = new int[2 * MAX_EXTENDED_RUNS];
+	private int holeLimit; // end of the range described by holeRuns (highest received + 1)
+	
+	// Staged receive (reader / verifiers / writer), null = everything on the socket thread
+	private ReceivePipeline pipeline;
+	
+	// Merkle leaves from the SYN, null = CRC32C only
+	private MerkleVerifier merkle;
+	private final int[] hashRequests = new int[MerkleTree.MAX_REQUEST];
 
 	// Legacy constructor (backward compatibility)
 	public NackSender(DatagramChannel channel, long fileId, long file_size,
@@ -41,7 +81,7 @@ public class NackSender implements Runnable{
 	
 	// Enhanced constructor with congestion control
 	public NackSender(DatagramChannel channel, long fileId, long file_size,
-			int total_seq, MappedByteBuffer mem_buf, HybridCongestionController hybridControl){
+			int total_seq, MappedByteBuffer mem_buf, CongestionController congestionControl){
 		this.channel = channel;
 		this.fileId = fileId;
 		this.file_size = file_size;
@@ -50,12 +90,12 @@ public class NackSender implements Runnable{
 		this.chunkManager = null;
 		this.recv = new BitSet(total_seq);
 		this.frame = new NackFrame();
-		this.hybridControl = hybridControl;
+		this.congestionControl = congestionControl;
 	}
 	
 	// FULL constructor with ChunkManager (for large files > 256MB)
 	public NackSender(DatagramChannel channel, long fileId, long file_size,
-			int total_seq, ChunkManager chunkManager, HybridCongestionController hybridControl){
+			int total_seq, ChunkManager chunkManager, CongestionController congestionControl){
 		this.channel = channel;
 		this.fileId = fileId;
 		this.file_size = file_size;
@@ -64,7 +104,7 @@ public class NackSender implements Runnable{
 		this.chunkManager = chunkManager;
 		this.recv = new BitSet(total_seq);
 		this.frame = new NackFrame();
-		this.hybridControl = hybridControl;
+		this.congestionControl = congestionControl;
 	}
 
 	public volatile int cum_Ack = 0;
@@ -83,12 +123,97 @@ public class NackSender implements Runnable{
 	public CRC32C crc = new CRC32C();
 
 	public synchronized boolean isTransferComplete(){
-		return recv.cardinality() == total_seq;	
+		return recv.cardinality() == total_seq && (merkle == null || merkle.isComplete());
 	}
 	
 	public boolean isTransferCompleted() {
 		return transferCompleted;
 	}
+	
+	/**
+	 * Resume: mark every slice held by the checkpoint as received.
+	 * Must be called before {@link #run()}.
+	 */
+	public void restore(ResumeCheckpoint cp) {
+		synchronized(this) {
+			recv.or(cp.received());
+			if (recv.length() > total_seq) {
+				recv.clear(total_seq, recv.length());
+			}
+			cum_Ack = 0;
+			while(cum_Ack < total_seq && recv.get(cum_Ack)) {
+				cum_Ack++;
+			}
+			lastCheckpointCount = recv.cardinality();
+			if(merkle != null) {
+				merkle.onHeld(0, total_seq, recv); // restored slices are verified like received ones
+			}
+		}
+		enableCheckpoints(cp);
+		System.out.printf("[RESUME] Restored %d/%d slices (cumAck=%d)%n",
+			lastCheckpointCount, total_seq, cum_Ack);
+	}
+	
+	/**
+	 * Move CRC checks and disk writes off the socket thread; raw slices are
+	 * written through {@code out} instead of the mapping.
+	 * Must be called before {@link #run()}.
+	 */
+	public void enablePipeline(FileChannel out) throws IOException {
+		pipeline = new ReceivePipeline(this, out);
+	}
+	
+	/**
+	 * Verify the file against the sender's Merkle leaves (leaf = leafSlices
+	 * slices). Must be called before {@link #restore} and {@link #run()}.
+	 */
+	public void enableMerkle(int leafSlices) {
+		merkle = new MerkleVerifier(this, total_seq, leafSlices);
+	}
+	
+	/**
+	 * Periodically persist the received bitmap to the checkpoint sidecar.
+	 */
+	public void enableCheckpoints(ResumeCheckpoint cp) {
+		this.checkpoint = cp;
+	}
+	
+	/**
+	 * Snapshot bitmap, force mapped data, then write the sidecar.
+	 * Order matters: every slice in the snapshot was written before it was
+	 * marked, so forcing after the snapshot guarantees the sidecar never
+	 * claims a slice that is not on disk.
+	 */
+	public void checkpointNow() {
+		ResumeCheckpoint cp = checkpoint;
+		if (cp == null || transferCompleted) {
+			return;
+		}
+		BitSet snapshot;
+		int snapshotCumAck;
+		synchronized(this) {
+			snapshot = (BitSet) recv.clone();
+			snapshotCumAck = cum_Ack;
+		}
+		int count = snapshot.cardinality();
+		if (count == lastCheckpointCount) {
+			return; // nothing new since last checkpoint
+		}
+		try {
+			if (chunkManager != null) {
+				chunkManager.force(); // windows + file channel
+			} else if (mem_buf != null) {
+				mem_buf.force();
+				if (pipeline != null) {
+					pipeline.force(); // slices written by the pipeline writer
+				}
+			}
+			cp.save(snapshotCumAck, snapshot);
+			lastCheckpointCount = count;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("[RESUME] Checkpoint failed: " + e.getMessage());
+		}
+	}
 
 	private void updateCumulativeAck() {
     	synchronized(this) {
@@ -98,6 +223,9 @@ public class NackSender implements Runnable{
 	    if(isTransferComplete() && !transferCompleted){
 			transferCompleted = true;
 			stopNackLoop();
+			if(pipeline != null) {
+				pipeline.onComplete(); // fsync policy: on disk before anyone hears "done"
+			}
 			System.out.println("File transfer completed successfully! Shutting down receiver...");
 			
 			// Completion callback'ı çağır
@@ -114,77 +242,328 @@ public class NackSender implements Runnable{
 	}
 
 	public void onData(ByteBuffer fullPacket){
+		if(verify(fullPacket, crc)) {
+			onVerified(fullPacket);
+		}
+	}
+	
+	/**
+	 * Header checks and CRC32C of one datagram (position 0, limit = length).
+	 * Thread-safe with a per-thread {@code crc}; the buffer is left as it came.
+	 */
+	boolean verify(ByteBuffer fullPacket, CRC32C crc){
 		// Packet validation
 		if(fullPacket == null || fullPacket.remaining() < CRC32C_HEADER_SIZE) {
 			System.err.println("Invalid packet: null or too small");
-			return;
+			return false;
 		}
 		
 		int seqNo = CRC32C_Packet.seqNo(fullPacket);
 		int receivedCrc = CRC32C_Packet.crc32(fullPacket);
-		int payloadLen = CRC32C_Packet.plen(fullPacket);
+		int payloadLen = CRC32C_Packet.plen(fullPacket) & BlockCompression.PLEN_MASK;
 		
 		// Sequence number validation
 		if(seqNo < 0 || seqNo >= total_seq) {
 			System.err.println("Invalid sequence number: " + seqNo + " (total: " + total_seq + ")");
-			return;
+			return false;
 		}
 		
 		// Payload length validation
 		if(payloadLen <= 0 || payloadLen > PAYLOAD_SIZE) {
 			System.err.println("Invalid payload length: " + payloadLen);
-			return;
+			return false;
 		}
 		
 		// Packet size validation
-		if(fullPacket.remaining() < CRC32C_HEADER_SIZE + payloadLen) {
+		int length = fullPacket.limit();
+		if(length < CRC32C_HEADER_SIZE + payloadLen) {
 			System.err.println("Packet too small for declared payload length");
-			return;
+			return false;
 		}
 		
+		// CRC validation over the payload in place (no slice per packet)
+		crc.reset();
+		fullPacket.limit(CRC32C_HEADER_SIZE + payloadLen).position(CRC32C_HEADER_SIZE);
+		crc.update(fullPacket);
+		fullPacket.limit(length).position(0);
+		
+		if((int) crc.getValue() != receivedCrc) {
+			// CRC mismatch - bu paketi alınmamış olarak işaretle
+			synchronized(this) {
+				recv.clear(seqNo);
+			}
+			// NACK-based: CRC mismatch sadece log, sender NACK alınca tekrar gönderecek
+			// CRC mismatch - sessizce ignore et (network'te bozulmuş paket)
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * A datagram that passed {@link #verify}: store or route it. Single
+	 * thread only (socket thread, or the pipeline writer).
+	 */
+	void onVerified(ByteBuffer fullPacket){
+		int seqNo = CRC32C_Packet.seqNo(fullPacket);
+		int plenField = CRC32C_Packet.plen(fullPacket);
+		int payloadLen = plenField & BlockCompression.PLEN_MASK;
+		
 		// Extract payload - safely slice (Java 8 uyumlu)
 		fullPacket.position(CRC32C_HEADER_SIZE);
 		fullPacket.limit(CRC32C_HEADER_SIZE + payloadLen);
 		ByteBuffer payload = fullPacket.slice();
 		fullPacket.clear(); // Reset position/limit
 		
+		if(MerkleTree.isHashFrame(plenField)){
+			onHashFrame(seqNo, fullPacket.getInt(OFF_TOTAL), payload, payloadLen);
+		} else if(BlockCompression.isCompressed(plenField)){
+			onFragment(seqNo, payload, payloadLen);
+		} else if(FecCodec.isParity(plenField)){
+			onParity(seqNo, fullPacket.getInt(OFF_TOTAL), payload, payloadLen);
+		} else {
+			if(!writeSlice(seqNo, payload, payloadLen)) {
+				return;
+			}
+			onStored(seqNo);
+			updateCumulativeAck();
+		}
+	}
+	
+	/** A raw slice reached the file: it may complete an FEC group */
+	private void onStored(int seqNo) {
+		if(fec != null) {
+			try {
+				fec.onData(seqNo);
+			} catch(IOException e) {
+				System.err.println("FEC recovery error near seq " + seqNo + ": " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Pipeline writer: [firstSeq, firstSeq + count) were written through the
+	 * file channel.
+	 */
+	void onSlicesWritten(int firstSeq, int count) {
+		synchronized(this) {
+			recv.set(firstSeq, firstSeq + count);
+			if(merkle != null) {
+				merkle.onHeld(firstSeq, firstSeq + count, recv);
+			}
+		}
+		for(int seq = firstSeq; seq < firstSeq + count; seq++) {
+			onStored(seq);
+		}
+		updateCumulativeAck();
+	}
+	
+	/**
+	 * Leaf or root hash from the sender (seq = leaf index, total = kind)
+	 */
+	private void onHashFrame(int index, int kind, ByteBuffer payload, int payloadLen) {
+		if(merkle == null || payloadLen != MerkleTree.HASH_SIZE) {
+			return;
+		}
+		byte[] hash = new byte[MerkleTree.HASH_SIZE];
+		payload.get(0, hash);
+		synchronized(this) {
+			if(kind == MerkleTree.KIND_ROOT) {
+				merkle.onRoot(hash);
+			} else {
+				merkle.onHash(index, hash);
+			}
+		}
+		updateCumulativeAck(); // the root may be the last thing missing
+	}
+	
+	/**
+	 * Merkle pool: hash of a complete leaf as it is on disk
+	 */
+	byte[] hashLeaf(int firstSeq, int endSeq) throws IOException {
+		if (chunkManager != null) {
+			return MerkleTree.hashLeaf(chunkManager, firstSeq, endSeq);
+		}
+		ByteBuffer view = mem_buf.duplicate();
+		view.position(firstSeq * PAYLOAD_SIZE).limit((int) Math.min(file_size, (long) endSeq * PAYLOAD_SIZE));
+		return MerkleTree.hashLeaf(view);
+	}
+	
+	/**
+	 * Merkle pool verdict. A failed leaf is dropped from the bitmap, so the
+	 * next NACK frames ask for exactly its slices (fragments for compressed blocks).
+	 */
+	void onLeafChecked(int leaf, byte[] actual) {
+		synchronized(this) {
+			if(merkle.onChecked(leaf, actual)) {
+				int first = merkle.leafStart(leaf);
+				int end = merkle.leafEnd(leaf);
+				recv.clear(first, end);
+				staged.clear(first, end);
+				cum_Ack = Math.min(cum_Ack, first); // back into the NACK window
+				return;
+			}
+		}
+		updateCumulativeAck();
+	}
+	
+	/**
+	 * NACK tick: ask again for hashes that did not show up (lost hash frames)
+	 */
+	private void sendHashRequests() {
+		int n;
+		synchronized(this) {
+			n = merkle.collectRequests(hashRequests);
+		}
+		if(n == 0) {
+			return;
+		}
+		try {
+			channel.write(MerkleTree.request(fileId, hashRequests, n));
+		} catch(IOException e) {
+			System.err.println("Merkle hash request failed: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Socket thread without the pipeline: everything is held and only leaf
+	 * verification is left - completion happens on the Merkle pool while this
+	 * thread would sit in read() with nothing on the wire.
+	 */
+	private void awaitVerification() {
+		while(!transferCompleted) {
+			synchronized(this) {
+				if(merkle.busy() == 0 || recv.cardinality() != total_seq) {
+					return;
+				}
+			}
+			LockSupport.parkNanos(100_000);
+		}
+	}
+	
+	synchronized boolean isHeld(int seqNo) {
+		return recv.get(seqNo) || staged.get(seqNo);
+	}
+	
+	/**
+	 * File position of a slice
+	 */
+	long fileOffset(int seqNo) {
+		if (chunkManager != null) {
+			ChunkMetadata meta = chunkManager.getChunkMetadata(chunkManager.findChunkForSequence(seqNo));
+			return meta.fileOffset + (long) meta.toLocalSequence(seqNo) * PAYLOAD_SIZE;
+		}
+		return (long) seqNo * PAYLOAD_SIZE;
+	}
 
-		// CRC validation
-		crc.reset();
-		crc.update(payload.duplicate());
-		int calculatedCrc = (int) crc.getValue();
+	/**
+	 * Parity packet (socket thread). Recovered slices go through writeSlice
+	 * like received ones, so they never appear in a NACK.
+	 */
+	private void onParity(int groupStart, int descriptor, ByteBuffer payload, int payloadLen) {
+		if(fec == null) {
+			fec = new FecDecoder(new FecDecoder.SliceStore() {
+				@Override
+				public boolean has(int seqNo) {
+					synchronized(NackSender.this) {
+						return recv.get(seqNo);
+					}
+				}
+				
+				@Override
+				public ByteBuffer read(int seqNo) throws IOException {
+					return readSlice(seqNo);
+				}
+				
+				@Override
+				public int payloadSize(int seqNo) {
+					return sliceSize(seqNo);
+				}
+				
+				@Override
+				public void recover(int seqNo, ByteBuffer data) {
+					if(writeSlice(seqNo, data, data.remaining())) {
+						updateCumulativeAck();
+					}
+				}
+			}, total_seq);
+		}
+		try {
+			if(!fec.onParity(groupStart, descriptor, payload, payloadLen, cum_Ack)) {
+				System.err.println("Invalid parity descriptor at seq " + groupStart);
+			}
+		} catch(IOException e) {
+			System.err.println("FEC recovery error at group " + groupStart + ": " + e);
+		}
+	}
+	
+	/**
+	 * Length of a slice in the file
+	 */
+	int sliceSize(int seqNo) {
+		if (chunkManager != null) {
+			ChunkMetadata meta = chunkManager.getChunkMetadata(chunkManager.findChunkForSequence(seqNo));
+			return meta.getPayloadSize(meta.toLocalSequence(seqNo), PAYLOAD_SIZE);
+		}
+		return (int) Math.min(PAYLOAD_SIZE, file_size - (long) seqNo * PAYLOAD_SIZE);
+	}
+	
+	/**
+	 * An already written slice. In chunk mode the bytes are copied out: the
+	 * mapping window may be unmapped once the reference is released.
+	 * Valid until the next call (FEC decode reads one sibling at a time).
+	 */
+	private ByteBuffer readSlice(int seqNo) throws IOException {
+		int len = sliceSize(seqNo);
+		if (chunkManager != null) {
+			MappedWindow window = chunkManager.acquireWindow(seqNo);
+			try {
+				int off = window.offsetOf(seqNo);
+				ByteBuffer view = window.buffer.duplicate();
+				view.position(off).limit(off + len);
+				sliceCopy.clear();
+				sliceCopy.put(view).flip();
+				return sliceCopy;
+			} finally {
+				window.release();
+			}
+		}
+		int off = seqNo * PAYLOAD_SIZE;
+		ByteBuffer view = mem_buf.duplicate();
+		view.position(off).limit(off + len);
+		return view.slice();
+	}
+	
+	/**
+	 * Store one raw slice and mark it received.
+	 *
+	 * @return false if it was already held or could not be written
+	 */
+	private boolean writeSlice(int seqNo, ByteBuffer payload, int payloadLen) {
+		int off = seqNo * PAYLOAD_SIZE;
 		
-		if(calculatedCrc == receivedCrc){
-			int off = seqNo * PAYLOAD_SIZE;
-			
-			// Chunk-aware write logic
-			if (chunkManager != null) {
-				// Large file mode: use ChunkManager
+		// Chunk-aware write logic
+		if (chunkManager != null) {
+			// Large file mode: use ChunkManager
+			try {
+				// CRITICAL FIX: Do I/O operations OUTSIDE synchronized block to prevent deadlock!
+				MappedWindow window = chunkManager.acquireWindow(seqNo);
 				try {
-					// CRITICAL FIX: Do I/O operations OUTSIDE synchronized block to prevent deadlock!
-					int chunkIdx = chunkManager.findChunkForSequence(seqNo);
-					if (chunkIdx < 0) {
-						System.err.println("No chunk found for sequence: " + seqNo);
-						return;
-					}
-					
-					ChunkMetadata chunkMeta = chunkManager.getChunkMetadata(chunkIdx);
-					MappedByteBuffer chunkBuffer = chunkManager.getChunk(chunkIdx);
-					int localSeq = chunkMeta.toLocalSequence(seqNo);
-					int localOff = chunkMeta.getLocalOffset(localSeq, PAYLOAD_SIZE);
+					chunkManager.prefetchAfter(window); // no-op unless this is a new window
+					int localOff = window.offsetOf(seqNo);
+					MappedByteBuffer windowBuffer = window.buffer;
 					
 					// Bounds check BEFORE synchronized block
-					if(localOff + payloadLen > chunkBuffer.capacity()) {
+					if(localOff + payloadLen > windowBuffer.capacity()) {
 						System.err.println("️Chunk bounds exceeded: localOff=" + localOff + 
-							", payloadLen=" + payloadLen + ", capacity=" + chunkBuffer.capacity() + 
+							", payloadLen=" + payloadLen + ", capacity=" + windowBuffer.capacity() + 
 							", seqNo=" + seqNo);
 						// Adjust payload length to fit
-						payloadLen = chunkBuffer.capacity() - localOff;
+						payloadLen = windowBuffer.capacity() - localOff;
 						System.out.println("Adjusted payloadLen to: " + payloadLen);
 					}
 					
 					// Prepare buffer views OUTSIDE synchronized block
-					MappedByteBuffer view = chunkBuffer.duplicate();
+					MappedByteBuffer view = windowBuffer.duplicate();
 					view.position(localOff);
 					view.limit(localOff + payloadLen);
 					
@@ -194,69 +573,322 @@ public class NackSender implements Runnable{
 					
 					// NOW enter synchronized block - ONLY for BitSet update and write
 					synchronized(this) {
-						if(recv.get(seqNo)) return; // Already received
+						if(recv.get(seqNo)) return false; // Already received
 						
 						view.put(payloadToPut);
 						recv.set(seqNo);
+						if(merkle != null) {
+							merkle.onHeld(seqNo, seqNo + 1, recv);
+						}
 					}
-				} catch(IOException e) {
-					System.err.println("Chunk write error for seq " + seqNo + ": " + e);
-					return;
-				}
-			} else {
-				// Legacy mode: use single MappedByteBuffer
-				if(off < 0 || off >= mem_buf.capacity()) {
-					System.err.println("Buffer bounds error: seqNo=" + seqNo + ", off=" + off + ", capacity=" + mem_buf.capacity());
-					return;
+				} finally {
+					window.release();
 				}
+			} catch(IOException e) {
+				System.err.println("Chunk write error for seq " + seqNo + ": " + e);
+				return false;
+			}
+		} else {
+			// Legacy mode: use single MappedByteBuffer
+			if(off < 0 || off >= mem_buf.capacity()) {
+				System.err.println("Buffer bounds error: seqNo=" + seqNo + ", off=" + off + ", capacity=" + mem_buf.capacity());
+				return false;
+			}
+			
+			// Adjust payload if it exceeds buffer
+			if(off + payloadLen > mem_buf.capacity()) {
+				System.out.println("Adjusting payload: off=" + off + ", payloadLen=" + payloadLen + " → " + (mem_buf.capacity() - off));
+				payloadLen = mem_buf.capacity() - off;
+			}
+			
+			// Prepare buffer views OUTSIDE synchronized block
+			MappedByteBuffer view = mem_buf.duplicate();
+			view.position(off);
+			view.limit(off + payloadLen);
+			
+			ByteBuffer payloadToPut = payload.duplicate();
+			payloadToPut.limit(payloadLen);
+			payloadToPut.rewind();
+			
+			// NOW enter synchronized block - ONLY for BitSet update and write
+			synchronized(this) {
+				if(recv.get(seqNo)) return false; // Already received
 				
-				// Adjust payload if it exceeds buffer
-				if(off + payloadLen > mem_buf.capacity()) {
-					System.out.println("Adjusting payload: off=" + off + ", payloadLen=" + payloadLen + " → " + (mem_buf.capacity() - off));
-					payloadLen = mem_buf.capacity() - off;
+				view.put(payloadToPut);
+				recv.set(seqNo);
+				if(merkle != null) {
+					merkle.onHeld(seqNo, seqNo + 1, recv);
 				}
-				
-				// Prepare buffer views OUTSIDE synchronized block
-				MappedByteBuffer view = mem_buf.duplicate();
-				view.position(off);
-				view.limit(off + payloadLen);
-				
-				ByteBuffer payloadToPut = payload.duplicate();
-				payloadToPut.limit(payloadLen);
-				payloadToPut.rewind();
-				
-				// NOW enter synchronized block - ONLY for BitSet update and write
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compressed fragment (socket thread): collect it; a complete block is
+	 * handed to the inflater pool.
+	 */
+	private void onFragment(int seqNo, ByteBuffer payload, int payloadLen) {
+		if(payloadLen <= BlockCompression.DESC_SIZE) {
+			System.err.println("Invalid fragment length: " + payloadLen);
+			return;
+		}
+		int fragIndex = BlockCompression.fragIndex(payload);
+		int fragCount = BlockCompression.fragCount(payload);
+		int blockSlices = BlockCompression.blockSlices(payload);
+		int rawLen = BlockCompression.rawLen(payload);
+		int firstSeq = seqNo - fragIndex;
+		if(BlockCompression.codec(payload) != BlockCompression.CODEC_DEFLATE
+				|| fragIndex >= fragCount || fragCount >= blockSlices
+				|| blockSlices > BlockCompression.BLOCK_SLICES
+				|| firstSeq < 0 || firstSeq + blockSlices > total_seq
+				|| rawLen <= 0 || rawLen > blockSlices * PAYLOAD_SIZE) {
+			System.err.println("Invalid fragment descriptor at seq " + seqNo);
+			return;
+		}
+		
+		BlockAssembly block = assemblies.get(firstSeq);
+		synchronized(this) {
+			if(recv.get(seqNo)) return; // block already on disk
+			if(block == null && staged.get(seqNo)) return; // block is being inflated
+			// Implied slices count as received for NACK purposes from now on
+			staged.set(firstSeq + fragCount, firstSeq + blockSlices);
+			staged.set(seqNo);
+		}
+		if(block == null) {
+			block = new BlockAssembly(firstSeq, fragCount, blockSlices, rawLen);
+			assemblies.put(firstSeq, block);
+		} else if(!block.matches(fragCount, blockSlices, rawLen)) {
+			System.err.println("Fragment does not match block at seq " + firstSeq);
+			return;
+		}
+		byte[] data = new byte[payloadLen - BlockCompression.DESC_SIZE];
+		payload.get(BlockCompression.DESC_SIZE, data);
+		if(!block.add(fragIndex, data)) {
+			return;
+		}
+		assemblies.remove(firstSeq);
+		if(inflaters == null) {
+			inflaters = Executors.newFixedThreadPool(2, r -> {
+				Thread t = new Thread(r, "block-inflater");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		BlockAssembly complete = block;
+		inflating.incrementAndGet();
+		inflaters.execute(() -> inflateBlock(complete));
+		
+		// Nothing left on the wire: wait here, otherwise completion would happen on
+		// an inflater while this thread sits in read() with no packet coming
+		if(onlyStagedMissing()) {
+			while(inflating.get() > 0 && !transferCompleted) {
+				LockSupport.parkNanos(100_000);
+			}
+		}
+	}
+	
+	private synchronized boolean onlyStagedMissing() {
+		for(int i = recv.nextClearBit(cum_Ack); i < total_seq; i = recv.nextClearBit(i + 1)) {
+			if(!staged.get(i)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Inflater pool: decompress a complete block and store its slices.
+	 * Any failure un-stages the block so its fragments get NACKed again.
+	 */
+	private void inflateBlock(BlockAssembly block) {
+		boolean stored = false;
+		try {
+			stored = inflateAndStore(block);
+		} finally {
+			if(!stored) {
 				synchronized(this) {
-					if(recv.get(seqNo)) return; // Already received
-					
-					view.put(payloadToPut);
-					recv.set(seqNo);
+					staged.clear(block.firstSeq, block.firstSeq + block.blockSlices);
 				}
+			} else {
+				updateCumulativeAck();
 			}
-			
-			updateCumulativeAck();
-		} else {
-			// CRC mismatch - bu paketi alınmamış olarak işaretle
-			synchronized(this) {
-				recv.clear(seqNo);
+			inflating.decrementAndGet();
+		}
+	}
+	
+	private boolean inflateAndStore(BlockAssembly block) {
+		try {
+			byte[] raw = new byte[block.rawLen];
+			Inflater inflater = INFLATER.get();
+			inflater.reset();
+			inflater.setInput(block.joined());
+			int n = 0;
+			while(n < raw.length && !inflater.finished()) {
+				int r = inflater.inflate(raw, n, raw.length - n);
+				if(r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += r;
+			}
+			if(n != raw.length) {
+				System.err.printf("Block at seq %d inflated to %d bytes, expected %d%n",
+					block.firstSeq, n, raw.length);
+				return false;
+			}
+			return storeBlock(block.firstSeq, block.blockSlices, raw, n);
+		} catch(DataFormatException | IOException | RuntimeException e) {
+			System.err.println("Block inflate error at seq " + block.firstSeq + ": " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Write a decompressed block. The block must lie in one chunk and its
+	 * length must match the slices it covers.
+	 */
+	private boolean storeBlock(int firstSeq, int slices, byte[] raw, int rawLen) throws IOException {
+		int lastSeq = firstSeq + slices - 1;
+		if (chunkManager != null) {
+			MappedWindow window = chunkManager.acquireWindow(firstSeq);
+			try {
+				if(!window.contains(lastSeq)) {
+					System.err.println("Compressed block crosses chunk boundary at seq " + firstSeq);
+					return false;
+				}
+				int off = window.offsetOf(firstSeq);
+				int expected = window.offsetOf(lastSeq) + window.payloadSize(lastSeq) - off;
+				if(rawLen != expected) {
+					System.err.printf("Block length mismatch at seq %d: %d != %d%n", firstSeq, rawLen, expected);
+					return false;
+				}
+				ByteBuffer view = window.buffer.duplicate();
+				view.position(off).limit(off + rawLen);
+				putBlock(view, firstSeq, lastSeq, raw, rawLen);
+			} finally {
+				window.release();
+			}
+			return true;
+		}
+		long off = (long) firstSeq * PAYLOAD_SIZE;
+		long expected = Math.min(file_size, (long) (lastSeq + 1) * PAYLOAD_SIZE) - off;
+		if(rawLen != expected || off + rawLen > mem_buf.capacity()) {
+			System.err.printf("Block length mismatch at seq %d: %d != %d%n", firstSeq, rawLen, expected);
+			return false;
+		}
+		ByteBuffer view = mem_buf.duplicate();
+		view.position((int) off).limit((int) off + rawLen);
+		putBlock(view, firstSeq, lastSeq, raw, rawLen);
+		return true;
+	}
+	
+	private void putBlock(ByteBuffer view, int firstSeq, int lastSeq, byte[] raw, int rawLen) {
+		synchronized(this) {
+			view.put(raw, 0, rawLen);
+			recv.set(firstSeq, lastSeq + 1);
+			staged.clear(firstSeq, lastSeq + 1);
+			if(merkle != null) {
+				merkle.onHeld(firstSeq, lastSeq + 1, recv);
 			}
-			
-			// NACK-based: CRC mismatch sadece log, sender NACK alınca tekrar gönderecek
-			// CRC mismatch - sessizce ignore et (network'te bozulmuş paket)
 		}
 	}
 
 	public long build64(){
 		long mask = 0L;
-		int base = cum_Ack;
-		for(int i = 0; i < 64; i++)
-		{
-			if(base + i >= total_seq) break;
-			if(recv.get(base + i))
-					mask |= (1L << i);
+		synchronized(this) {
+			int base = cum_Ack;
+			// Staged slices (waiting for the inflater) are not NACKed, except in the
+			// final window: there an all-ones mask tells the sender we are done
+			boolean tail = base + 64 >= total_seq;
+			for(int i = 0; i < 64; i++)
+			{
+				if(base + i >= total_seq) break;
+				if(recv.get(base + i) || (!tail && staged.get(base + i)))
+						mask |= (1L << i);
+			}
+			// Merkle: held is not verified - keep the last slice open until the
+			// root checks out, or the sender would call it done
+			if(tail && merkle != null && !merkle.isComplete() && total_seq > base) {
+				mask &= ~(1L << (total_seq - 1 - base));
+			}
 		}
 		return mask;
 	}
+	
+	/**
+	 * Hole runs between the end of the NACK window and the highest received
+	 * slice, as [start, end) pairs in {@link #holeRuns}. Slices past the highest
+	 * received one may still be in flight and are not reported. Every slice of
+	 * [base + 64, {@link #holeLimit}) outside the runs is held.
+	 *
+	 * @return number of runs (capped at {@link #MAX_EXTENDED_RUNS})
+	 */
+	int collectHoleRuns(int base) {
+		int runs = 0;
+		synchronized(this) {
+			int limit = Math.min(total_seq, Math.max(recv.length(), staged.length()));
+			int i = base + 64;
+			while(i < limit && runs < MAX_EXTENDED_RUNS) {
+				// next slice that is neither received nor waiting for the inflater
+				i = recv.nextClearBit(i);
+				while(i < limit && staged.get(i)) {
+					i = recv.nextClearBit(staged.nextClearBit(i));
+				}
+				if(i >= limit) break;
+				int nextRecv = recv.nextSetBit(i);
+				int nextStaged = staged.nextSetBit(i);
+				int end = Math.min(nextRecv < 0 ? limit : nextRecv, nextStaged < 0 ? limit : nextStaged);
+				holeRuns[2 * runs] = i;
+				holeRuns[2 * runs + 1] = end;
+				runs++;
+				i = end;
+			}
+			holeLimit = runs == MAX_EXTENDED_RUNS ? Math.min(i, limit) : limit;
+		}
+		return runs;
+	}
+	
+	/**
+	 * Fragments of one compressed block (socket thread only).
+	 */
+	private static final class BlockAssembly {
+		final int firstSeq;
+		final int fragCount;
+		final int blockSlices;
+		final int rawLen;
+		private final byte[][] fragments;
+		private int received = 0;
+		
+		BlockAssembly(int firstSeq, int fragCount, int blockSlices, int rawLen) {
+			this.firstSeq = firstSeq;
+			this.fragCount = fragCount;
+			this.blockSlices = blockSlices;
+			this.rawLen = rawLen;
+			this.fragments = new byte[fragCount][];
+		}
+		
+		boolean matches(int fragCount, int blockSlices, int rawLen) {
+			return this.fragCount == fragCount && this.blockSlices == blockSlices && this.rawLen == rawLen;
+		}
+		
+		/** @return true once every fragment is present */
+		boolean add(int index, byte[] data) {
+			if(fragments[index] == null) {
+				fragments[index] = data;
+				received++;
+			}
+			return received == fragCount;
+		}
+		
+		/** Deflate stream + one dummy byte (nowrap inflater may need it) */
+		byte[] joined() {
+			int total = 1;
+			for(byte[] f : fragments) total += f.length;
+			byte[] out = new byte[total];
+			int pos = 0;
+			for(byte[] f : fragments) {
+				System.arraycopy(f, 0, out, pos, f.length);
+				pos += f.length;
+			}
+			return out;
+		}
+	}
 
 	// controlFrames() method removed - use isTransferComplete() instead
 	// isTransferComplete() has O(1) complexity vs controlFrames() O(N)
@@ -268,20 +900,35 @@ public class NackSender implements Runnable{
 		
 		// RTT ve congestion info
 		String congestionInfo = "";
-		if(hybridControl != null) {
-			long rttMs = hybridControl.getSmoothedRtt() / 1_000_000;
-			long cwndPkts = hybridControl.getCongestionWindow() / PAYLOAD_SIZE;
+		if(congestionControl != null) {
+			long rttMs = congestionControl.getSmoothedRtt() / 1_000_000;
+			long cwndPkts = congestionControl.getCongestionWindow() / PAYLOAD_SIZE;
 			congestionInfo = String.format(", RTT=%dms, CWND=%d pkts", rttMs, cwndPkts);
 		}
 		
+		if(pipeline != null) {
+			congestionInfo += ", " + pipeline.depths();
+		}
+		
 		System.out.printf("Transfer Status: %.2f%% (%d/%d packets, %d missing, cumAck=%d%s)%n", 
 		    progress, received, total_seq, missing, cum_Ack, congestionInfo);
 	}
 	
 
 	public void send_Nack_Frame(){
-		long mask = build64();
-		frame.fill(fileId, cum_Ack, mask);
+		int base;
+		long mask;
+		int runs;
+		synchronized(this) { // one consistent cum_Ack for window and ranges
+			base = cum_Ack;
+			mask = build64();
+			runs = EXTENDED_NACK_ENABLED ? collectHoleRuns(base) : 0;
+		}
+		if(runs > 0) {
+			frame.fillExtended(fileId, base, mask, holeRuns, runs, holeLimit);
+		} else {
+			frame.fill(fileId, base, mask);
+		}
 
 		int r;
 		int retries = 0;
@@ -297,8 +944,8 @@ public class NackSender implements Runnable{
 					long backoffNs = Math.min(baseBackoff << retries, maxBackoff);
 					
 					// Additional congestion-aware adjustment
-					if(hybridControl != null) {
-						long pacingInterval = hybridControl.getPacingInterval();
+					if(congestionControl != null) {
+						long pacingInterval = congestionControl.getPacingInterval();
 						backoffNs = Math.max(backoffNs, pacingInterval / 2);
 					}
 					
@@ -327,18 +974,31 @@ public class NackSender implements Runnable{
 		return t;
 	};
 
+	// 2 threads: a slow checkpoint (force) must not delay NACKs
 	public final ScheduledExecutorService scheduler = 
-		Executors.newScheduledThreadPool(1, daemonFactory);
+		Executors.newScheduledThreadPool(2, daemonFactory);
 
 	public final Runnable nack_service = () -> {
 		try{
 			send_Nack_Frame();
+			if(merkle != null) {
+				sendHashRequests();
+			}
 		}catch(Exception e){
 			System.err.println("Thread Error[nack-scheduler]: " + e); 
 		}
 	};
 
 	public ScheduledFuture<?> nackHandle;
+	private ScheduledFuture<?> checkpointHandle;
+	
+	public final Runnable checkpoint_service = () -> {
+		try{
+			checkpointNow();
+		}catch(Exception e){
+			System.err.println("Thread Error[checkpoint]: " + e);
+		}
+	};
 
 	public void startNackLoop()
 	{
@@ -346,8 +1006,8 @@ public class NackSender implements Runnable{
 		{
 			// Dynamic NACK interval based on RTT
 			long nackIntervalMs = 25; // Default 25ms
-			if(hybridControl != null) {
-				long rttMs = hybridControl.getSmoothedRtt() / 1_000_000; // ns to ms
+			if(congestionControl != null) {
+				long rttMs = congestionControl.getSmoothedRtt() / 1_000_000; // ns to ms
 				if(rttMs > 0) {
 					// NACK interval = RTT/4, min 10ms, max 50ms
 					nackIntervalMs = Math.max(10, Math.min(50, rttMs / 4));
@@ -355,6 +1015,10 @@ public class NackSender implements Runnable{
 			}
 			nackHandle = scheduler.scheduleAtFixedRate(nack_service, 0, nackIntervalMs, TimeUnit.MILLISECONDS);
 		}
+		if(checkpoint != null && checkpointHandle == null && CHECKPOINT_INTERVAL_MS > 0) {
+			checkpointHandle = scheduler.scheduleWithFixedDelay(checkpoint_service,
+				CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
 	}
 	public void stopNackLoop(){
 		if(nackHandle != null){
@@ -368,7 +1032,15 @@ public class NackSender implements Runnable{
 	}
 	
 	public void cleanup() {
+		if (pipeline != null) {
+			pipeline.shutdown(); // queued slices land before the final checkpoint
+			System.out.println(pipeline);
+		}
 		stopNackLoop();
+		if (checkpointHandle != null) {
+			checkpointHandle.cancel(false);
+			checkpointHandle = null;
+		}
 		shutdownScheduler();
 		try {
 			if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -378,6 +1050,45 @@ public class NackSender implements Runnable{
 			scheduler.shutdownNow();
 			Thread.currentThread().interrupt();
 		}
+		if (inflaters != null) {
+			inflaters.shutdown(); // queued blocks still land before the final checkpoint
+			try {
+				if (!inflaters.awaitTermination(2, TimeUnit.SECONDS)) {
+					inflaters.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				inflaters.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if (fec != null) {
+			System.out.println(fec);
+		}
+		if (merkle != null) {
+			merkle.shutdown();
+			System.out.println(merkle);
+		}
+		
+		// Resume sidecar: drop it when done, otherwise persist the final state
+		ResumeCheckpoint cp = checkpoint;
+		if (cp != null) {
+			if (transferCompleted) {
+				ResumeCheckpoint.delete(cp.outputFile);
+			} else {
+				// Interrupted thread would close the channels during force/write
+				boolean interrupted = Thread.interrupted();
+				try {
+					checkpointNow();
+				} finally {
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				System.out.printf("[RESUME] Transfer incomplete - checkpoint kept at %s%n",
+					ResumeCheckpoint.sidecarFor(cp.outputFile));
+			}
+		}
 	}
 
 	@Override
@@ -390,8 +1101,20 @@ public class NackSender implements Runnable{
 		System.out.printf("[NACK-SENDER] Starting receive loop for fileId=%d%n", fileId);
 		
 		try {
+			// Resumed with every slice already on disk - complete immediately
+			if (cum_Ack >= total_seq) {
+				updateCumulativeAck();
+			}
 			startNackLoop();
 			
+			if (pipeline != null) {
+				pipeline.run();
+				if(transferCompleted) {
+					System.out.println("NackSender: All packets received, transfer complete!");
+				}
+				return;
+			}
+			
 			int packetCount = 0;
 			while(!Thread.currentThread().isInterrupted() && !transferCompleted){
 				buf.clear();
@@ -436,6 +1159,9 @@ public class NackSender implements Runnable{
 
 				onData(buf);
 				buf.clear();
+				if(merkle != null) {
+					awaitVerification();
+				}
 			}
 			
 			if(transferCompleted) {
@@ -0,0 +1,198 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.saferoom.transport.BatchingEndpoint;
+
+/**
+ * Builds a burst of header+payload frames and flushes them together.
+ *
+ * - DatagramChannel: one gathering write per frame (the JDK has no sendmmsg),
+ *   but pacing/backpressure/bookkeeping happen once per burst instead of per packet
+ * - BatchingEndpoint (DataChannelWrapper): the whole burst is one underlying send
+ *
+ * Thread-safety: one batcher per sending thread; {@link Stats} is shared.
+ */
+final class PacketBatcher {
+
+    /** Upper bound for one burst (also sizes the per-batcher header slab) */
+    static final int MAX_BURST = 32;
+
+    private final DatagramChannel channel;
+    private final BatchingEndpoint batchEndpoint;
+    private final Stats stats;
+
+    private final CRC32C_Packet[] headers = new CRC32C_Packet[MAX_BURST];
+    private final ByteBuffer[] payloads = new ByteBuffer[MAX_BURST];
+    private final ByteBuffer[][] frames = new ByteBuffer[MAX_BURST][];
+    private final int[] seqs = new int[MAX_BURST];
+    private final int[] lengths = new int[MAX_BURST];
+    private final int[] flags = new int[MAX_BURST];
+    private int size = 0;
+    private long pendingBytes = 0;
+    private long overheadBytes = 0; // parity payload: on the wire, not file data
+    private int lastDataSeq = -1;
+
+    PacketBatcher(DatagramChannel channel, Stats stats) {
+        this.channel = channel;
+        this.batchEndpoint = channel instanceof BatchingEndpoint be ? be : null;
+        this.stats = stats;
+        for (int i = 0; i < MAX_BURST; i++) {
+            headers[i] = new CRC32C_Packet();
+            frames[i] = new ByteBuffer[2];
+        }
+    }
+
+    int size() { return size; }
+
+    boolean isFull() { return size == MAX_BURST; }
+
+    long pendingBytes() { return pendingBytes; }
+
+    int seqAt(int index) { return seqs[index]; }
+
+    boolean isParityAt(int index) { return (flags[index] & CRC32C_Packet.FLAG_PARITY) != 0; }
+
+    /** Payload bytes of staged frames that carry no file data (FEC parity) */
+    long overheadBytes() { return overheadBytes; }
+
+    /** Highest file slice staged, -1 if the burst holds parity only */
+    int lastDataSeq() { return lastDataSeq; }
+
+    int packetBytesAt(int index) { return lengths[index]; }
+
+    ByteBuffer payloadAt(int index) { return payloads[index]; }
+
+    /**
+     * Stage one slice. The payload must stay valid until {@link #flush()} returns.
+     */
+    void add(long fileId, int seqNo, int totalSeq, ByteBuffer payload, int take, int crc32c) {
+        add(fileId, seqNo, totalSeq, payload, take, 0, crc32c);
+    }
+
+    /**
+     * Stage one frame with flag bits in the plen field (e.g. compressed fragment).
+     */
+    void add(long fileId, int seqNo, int totalSeq, ByteBuffer payload, int take, int plenFlags, int crc32c) {
+        if (size == MAX_BURST) {
+            throw new IllegalStateException("Batch full");
+        }
+        CRC32C_Packet header = headers[size];
+        header.fillHeader(fileId, seqNo, totalSeq, take | plenFlags, crc32c);
+        ByteBuffer body = payload.duplicate();
+        body.position(0).limit(take);
+        frames[size][0] = header.headerBuffer();
+        frames[size][1] = body;
+        payloads[size] = payload;
+        seqs[size] = seqNo;
+        flags[size] = plenFlags;
+        lengths[size] = CRC32C_Packet.HEADER_SIZE + take;
+        pendingBytes += lengths[size];
+        if ((plenFlags & CRC32C_Packet.FLAG_PARITY) != 0) {
+            overheadBytes += take;
+        } else {
+            lastDataSeq = seqNo;
+        }
+        size++;
+    }
+
+    /**
+     * Write every staged frame. Batch-capable endpoints get a single send;
+     * bursts larger than the endpoint limit are split.
+     *
+     * @return packets written
+     */
+    int flush() throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        int writes = 0;
+        if (batchEndpoint != null) {
+            int start = 0;
+            int limit = batchEndpoint.maxBatchBytes();
+            while (start < size) {
+                int count = 0;
+                long bytes = 0;
+                while (start + count < size && (count == 0 || bytes + lengths[start + count] <= limit)) {
+                    bytes += lengths[start + count];
+                    count++;
+                }
+                if (start == 0 && count == size) {
+                    batchEndpoint.writeBatch(frames, size);
+                } else {
+                    ByteBuffer[][] part = new ByteBuffer[count][];
+                    System.arraycopy(frames, start, part, 0, count);
+                    batchEndpoint.writeBatch(part, count);
+                }
+                writes++;
+                start += count;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                channel.write(frames[i]);
+                writes++;
+            }
+        }
+        stats.record(size, writes, pendingBytes);
+        return size;
+    }
+
+    /** Forget staged frames (after flush or on error) */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            frames[i][1] = null;
+            payloads[i] = null;
+        }
+        size = 0;
+        pendingBytes = 0;
+        overheadBytes = 0;
+        lastDataSeq = -1;
+    }
+
+    /**
+     * Counters shared by every batcher of one sender.
+     */
+    static final class Stats {
+        private final AtomicLong packets = new AtomicLong();
+        private final AtomicLong writeCalls = new AtomicLong();
+        private final AtomicLong bursts = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        void record(int packetCount, int writes, long byteCount) {
+            packets.addAndGet(packetCount);
+            writeCalls.addAndGet(writes);
+            bursts.incrementAndGet();
+            bytes.addAndGet(byteCount);
+        }
+
+        long packets() { return packets.get(); }
+
+        long writeCalls() { return writeCalls.get(); }
+
+        double packetsPerSyscall() {
+            long calls = writeCalls.get();
+            return calls > 0 ? (double) packets.get() / calls : 0.0;
+        }
+
+        double averageBurst() {
+            long b = bursts.get();
+            return b > 0 ? (double) packets.get() / b : 0.0;
+        }
+
+        void reset() {
+            packets.set(0);
+            writeCalls.set(0);
+            bursts.set(0);
+            bytes.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Batch: %d pkts, %d write calls, %.2f pkts/syscall, avg burst %.1f",
+                packets.get(), writeCalls.get(), packetsPerSyscall(), averageBurst());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.saferoom.file_transfer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Seq-indexed send timestamp table for RTT sampling (replaces
+ * ConcurrentHashMap&lt;Integer, Long&gt; - no boxing, no entry objects).
+ *
+ * Slot = seq &amp; mask. Each slot keeps the owning seq as a tag next to the
+ * timestamp, so a late lookup for an overwritten seq misses instead of
+ * returning a wrong RTT. Footprint is fixed (12 bytes x capacity) and old
+ * entries are simply overwritten - no periodic cleanup needed.
+ *
+ * Writers: sending lanes + retransmission thread. Reader/remover: NACK listener.
+ */
+final class PacketTimestampRing {
+
+    /** Returned by {@link #take(int)} when no timestamp is held (nanoTime may be negative) */
+    static final long MISSING = Long.MIN_VALUE;
+
+    private static final int NO_SEQ = -1;
+    private static final VarHandle TAG = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final int mask;
+    private final long[] sendTimes;
+    private final int[] tags;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    PacketTimestampRing(int requestedCapacity) {
+        int cap = Integer.highestOneBit(Math.max(64, requestedCapacity));
+        if (cap < requestedCapacity) {
+            cap <<= 1;
+        }
+        this.mask = cap - 1;
+        this.sendTimes = new long[cap];
+        this.tags = new int[cap];
+        Arrays.fill(tags, NO_SEQ);
+    }
+
+    /** Same sizing rule as the retransmission ring */
+    static PacketTimestampRing forTransfer(int totalSeq) {
+        return new PacketTimestampRing(Math.min(Math.max(totalSeq, 64), 1 << 16));
+    }
+
+    void record(int seqNo, long nowNs) {
+        int idx = seqNo & mask;
+        int previous = (int) TAG.getAndSet(tags, idx, NO_SEQ); // invalidate while writing
+        sendTimes[idx] = nowNs;
+        TAG.setRelease(tags, idx, seqNo);
+        if (previous == NO_SEQ) {
+            pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove and return the send time of {@code seqNo}.
+     *
+     * @return send time in ns, or {@link #MISSING} if unknown / overwritten
+     */
+    long take(int seqNo) {
+        int idx = seqNo & mask;
+        if ((int) TAG.getAcquire(tags, idx) != seqNo) {
+            return MISSING;
+        }
+        long sentAt = sendTimes[idx];
+        // Claim the slot; fails if a writer replaced it meanwhile
+        if (!TAG.compareAndSet(tags, idx, seqNo, NO_SEQ)) {
+            return MISSING;
+        }
+        pending.decrementAndGet();
+        return sentAt;
+    }
+
+    /** Approximate number of un-acked timestamps */
+    int pending() {
+        return Math.max(0, pending.get());
+    }
+
+    void clear() {
+        for (int i = 0; i < tags.length; i++) {
+            TAG.setRelease(tags, i, NO_SEQ);
+        }
+        pending.set(0);
+    }
+}
@@ -0,0 +1,493 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+import com.saferoom.transport.PooledReceiveEndpoint;
+
+/**
+ * Staged receive path for {@link NackSender}. The socket thread only reads;
+ * CRC32C and disk I/O run on their own threads so they never hold up the
+ * next read (a full socket buffer drops packets).
+ *
+ *   nack-sender (read) -> verify rings -> rx-verify-N (CRC32C)
+ *                      -> write ring   -> rx-writer (dispatch, coalesced positional writes)
+ *
+ * Datagrams live in a fixed set of direct slots; only slot indices travel
+ * through the rings ({@link IntMpscRing}), so the steady state allocates
+ * nothing per packet. Each verifier has its own ring (one producer, one
+ * consumer); the write ring is fed by every verifier. A slot goes back to the
+ * free ring once the writer copied it out - when no slot is free the reader
+ * stops reading and the kernel socket buffer absorbs the burst.
+ *
+ * The writer is the only thread that runs NackSender dispatch (fragments,
+ * parity, FEC), so that code keeps its single-thread assumptions. Raw slices
+ * with adjacent file offsets are collected into one staging buffer and go to
+ * disk with a single positional write; they are marked received only after
+ * the write returned, which keeps resume checkpoints honest.
+ *
+ * On a {@link PooledReceiveEndpoint} (DataChannel) the reader borrows the
+ * transport's own slots instead of copying into ours: handles from SLOTS up
+ * name a borrowed slot and go back to the endpoint instead of the free ring.
+ */
+final class ReceivePipeline {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(
+        System.getProperty("saferoom.transfer.rx.pipeline", "true"));
+    static final int SLOTS = Math.max(64, Integer.getInteger("saferoom.transfer.rx.slots", 4096));
+    static final int VERIFIERS = Math.max(1, Integer.getInteger("saferoom.transfer.rx.verifiers",
+        Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() - 2))));
+    static final int COALESCE_SLICES = Math.max(1,
+        Integer.getInteger("saferoom.transfer.rx.coalesceSlices", 128));
+    /** Size the file once up front instead of growing it with every write past the end */
+    static final boolean PREALLOCATE = Boolean.parseBoolean(
+        System.getProperty("saferoom.transfer.rx.preallocate", "true"));
+    static final FsyncPolicy FSYNC = FsyncPolicy.parse(
+        System.getProperty("saferoom.transfer.rx.fsync", "end"));
+    static final long FSYNC_INTERVAL_BYTES =
+        Math.max(1, Long.getLong("saferoom.transfer.rx.fsyncIntervalMB", 64L)) << 20;
+
+    private static final int HEADER = CRC32C_Packet.HEADER_SIZE;
+    private static final int SLOT_SIZE = FileTransferReceiver.PACKET_SIZE;
+    private static final int SPINS = 64;
+
+    /**
+     * When positional writes are forced to storage. Checkpoints force on
+     * their own schedule regardless.
+     */
+    enum FsyncPolicy {
+        /** Leave write-back to the OS */
+        NONE,
+        /** Once, before completion is reported */
+        END,
+        /** Every saferoom.transfer.rx.fsyncIntervalMB written, and at the end */
+        INTERVAL;
+
+        static FsyncPolicy parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("[RX-PIPELINE] Unknown fsync policy '" + value + "', using END");
+                return END;
+            }
+        }
+    }
+
+    private final NackSender receiver;
+    private final DatagramChannel channel;
+    private final FileChannel out;
+
+    private final ByteBuffer[] slots = new ByteBuffer[SLOTS];
+    private final IntMpscRing free = new IntMpscRing(SLOTS);
+    private final IntMpscRing[] verifyRings = new IntMpscRing[VERIFIERS];
+    private final IntMpscRing writeRing;
+    private final PooledReceiveEndpoint pooled;
+    private final Thread[] verifiers = new Thread[VERIFIERS];
+    private final Thread writer;
+
+    private volatile boolean readerDone = false;
+    private final AtomicInteger verifiersLeft = new AtomicInteger(VERIFIERS);
+
+    // Writer state: one run of file-adjacent slices
+    private final ByteBuffer staging;
+    private int runFirstSeq;
+    private int runCount = 0;
+    private long runFileOffset;
+    private long runEndOffset;
+    private long bytesSinceSync = 0;
+
+    // Stats (single writer per field unless atomic)
+    private volatile long packets = 0;
+    private volatile long readerStalls = 0;
+    private volatile int peakVerifyDepth = 0;
+    private volatile int peakWriteDepth = 0;
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long duplicates = 0;
+    private volatile long writes = 0;
+    private volatile long slicesWritten = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long syncs = 0;
+
+    ReceivePipeline(NackSender receiver, FileChannel out) throws IOException {
+        this.receiver = receiver;
+        this.channel = receiver.channel;
+        this.out = out;
+        this.pooled = channel instanceof PooledReceiveEndpoint p ? p : null;
+        int handles = SLOTS + (pooled != null ? pooled.maxMessages() : 0);
+        this.writeRing = new IntMpscRing(handles);
+        if (PREALLOCATE && receiver.file_size > 0 && out.size() < receiver.file_size) {
+            // No fallocate in NIO: writing the last byte sets the final length in one step
+            out.write(ByteBuffer.wrap(new byte[1]), receiver.file_size - 1);
+        }
+
+        ByteBuffer arena = ByteBuffer.allocateDirect(SLOTS * SLOT_SIZE);
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = arena.slice(i * SLOT_SIZE, SLOT_SIZE).order(ByteOrder.BIG_ENDIAN);
+            free.offer(i);
+        }
+        this.staging = ByteBuffer.allocateDirect(COALESCE_SLICES * FileTransferReceiver.SLICE_SIZE);
+
+        for (int i = 0; i < VERIFIERS; i++) {
+            IntMpscRing ring = new IntMpscRing(handles); // never full: at most that many handles exist
+            verifyRings[i] = ring;
+            verifiers[i] = new Thread(() -> verifyLoop(ring), "rx-verify-" + i);
+            verifiers[i].setDaemon(true);
+        }
+        writer = new Thread(this::writeLoop, "rx-writer");
+        writer.setDaemon(true);
+
+        System.out.printf("[RX-PIPELINE] %d slots%s, %d verifier(s), coalesce %d slices, fsync=%s%n",
+            SLOTS, pooled != null ? " (borrowing transport slots)" : "", VERIFIERS, COALESCE_SLICES, FSYNC);
+    }
+
+    /**
+     * Socket reader; runs on the calling (nack-sender) thread until the
+     * transfer completes or the thread is interrupted, then drains the stages.
+     */
+    void run() {
+        for (Thread t : verifiers) {
+            t.start();
+        }
+        writer.start();
+
+        // Completion now happens on the writer or an inflater: a reader blocked
+        // in read() with nothing left on the wire would never notice it
+        boolean wasBlocking = setBlocking(false);
+        int slot = IntMpscRing.EMPTY;
+        int next = 0;
+        try {
+            if (pooled != null) {
+                readPooled();
+            }
+            while (pooled == null && !Thread.currentThread().isInterrupted() && !receiver.isTransferCompleted()) {
+                if (slot == IntMpscRing.EMPTY) {
+                    slot = free.poll();
+                    if (slot == IntMpscRing.EMPTY) {
+                        readerStalls++;
+                        LockSupport.parkNanos(20_000);
+                        continue;
+                    }
+                }
+                ByteBuffer b = slots[slot];
+                b.clear();
+                int x;
+                try {
+                    x = channel.read(b);
+                } catch (PortUnreachableException e) {
+                    System.err.println("Sender port unreachable - connection may be closed: " + e.getMessage());
+                    LockSupport.parkNanos(10_000_000);
+                    continue;
+                } catch (IOException e) {
+                    System.err.println("read failed: " + e);
+                    return;
+                }
+                if (x <= 0) {
+                    LockSupport.parkNanos(100_000);
+                    continue;
+                }
+                if (x < HEADER || x > SLOT_SIZE || b.getLong(CRC32C_Packet.OFF_FILE_ID) != receiver.fileId) {
+                    continue; // keep the slot for the next datagram
+                }
+                b.flip();
+                verifyRings[next].offer(slot);
+                slot = IntMpscRing.EMPTY;
+                if (++next == VERIFIERS) {
+                    next = 0;
+                }
+                if ((++packets & 255) == 0) {
+                    sampleDepths();
+                }
+            }
+        } finally {
+            if (slot != IntMpscRing.EMPTY) {
+                free.offer(slot);
+            }
+            if (wasBlocking) {
+                setBlocking(true);
+            }
+        }
+    }
+
+    /** Reader on a pooled endpoint: hand its slots to the verifiers as they are */
+    private void readPooled() {
+        int next = 0;
+        while (!Thread.currentThread().isInterrupted() && !receiver.isTransferCompleted()) {
+            int h;
+            try {
+                h = pooled.pollMessage(100_000);
+            } catch (IOException e) {
+                System.err.println("read failed: " + e);
+                break;
+            }
+            if (h == PooledReceiveEndpoint.EMPTY) {
+                continue;
+            }
+            ByteBuffer b = pooled.message(h);
+            int x = b.remaining();
+            if (x < HEADER || x > SLOT_SIZE || b.getLong(CRC32C_Packet.OFF_FILE_ID) != receiver.fileId) {
+                pooled.release(h);
+                continue;
+            }
+            verifyRings[next].offer(SLOTS + h);
+            if (++next == VERIFIERS) {
+                next = 0;
+            }
+            if ((++packets & 255) == 0) {
+                sampleDepths();
+            }
+        }
+    }
+
+    private ByteBuffer slot(int handle) {
+        return handle < SLOTS ? slots[handle] : pooled.message(handle - SLOTS);
+    }
+
+    private void recycle(int handle) {
+        if (handle < SLOTS) {
+            free.offer(handle);
+        } else {
+            pooled.release(handle - SLOTS);
+        }
+    }
+
+    /** @return previous mode */
+    private boolean setBlocking(boolean block) {
+        boolean was = channel.isBlocking();
+        if (was != block && channel.isOpen()) {
+            try {
+                channel.configureBlocking(block);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[RX-PIPELINE] Cannot change blocking mode: " + e);
+            }
+        }
+        return was;
+    }
+
+    private void verifyLoop(IntMpscRing in) {
+        CRC32C crc = new CRC32C();
+        int idle = 0;
+        try {
+            while (true) {
+                int slot = in.poll();
+                if (slot == IntMpscRing.EMPTY) {
+                    if (readerDone && in.isEmpty()) {
+                        return;
+                    }
+                    idle = idle(idle);
+                    continue;
+                }
+                idle = 0;
+                if (receiver.verify(slot(slot), crc)) {
+                    writeRing.offer(slot); // never full, see constructor
+                } else {
+                    rejected.incrementAndGet();
+                    recycle(slot);
+                }
+            }
+        } finally {
+            verifiersLeft.decrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        int idle = 0;
+        while (true) {
+            int slot = writeRing.poll();
+            if (slot == IntMpscRing.EMPTY) {
+                if (idle == SPINS) {
+                    flushRun(); // nothing behind it: do not sit on a partial run
+                }
+                if (verifiersLeft.get() == 0 && writeRing.isEmpty()) {
+                    break;
+                }
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            try {
+                onVerified(slot(slot));
+            } catch (RuntimeException e) {
+                System.err.println("[RX-PIPELINE] Dispatch error: " + e);
+            } finally {
+                recycle(slot);
+            }
+        }
+        flushRun();
+    }
+
+    private static int idle(int idle) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idle + 1;
+    }
+
+    /** Writer thread: a verified datagram */
+    private void onVerified(ByteBuffer pkt) {
+        int plen = CRC32C_Packet.plen(pkt);
+        if (BlockCompression.isCompressed(plen) || FecCodec.isParity(plen)) {
+            flushRun(); // FEC (and Merkle hash frames, both bits set) see every arrived slice as held
+            receiver.onVerified(pkt);
+            return;
+        }
+        int seqNo = CRC32C_Packet.seqNo(pkt);
+        int len = plen & CRC32C_Packet.PLEN_MASK;
+        if (len != receiver.sliceSize(seqNo)) {
+            System.err.println("Invalid payload length: " + len + " for seq " + seqNo);
+            return;
+        }
+        if (receiver.isHeld(seqNo)) {
+            duplicates++;
+            return;
+        }
+        long off = receiver.fileOffset(seqNo);
+        if (runCount > 0 && (seqNo != runFirstSeq + runCount || off != runEndOffset
+                || runCount == COALESCE_SLICES)) {
+            flushRun();
+        }
+        if (runCount == 0) {
+            runFirstSeq = seqNo;
+            runFileOffset = off;
+            runEndOffset = off;
+            staging.clear();
+        }
+        staging.put(staging.position(), pkt, HEADER, len);
+        staging.position(staging.position() + len);
+        runCount++;
+        runEndOffset += len;
+    }
+
+    /** Writer thread: one positional write for the pending run, then mark it */
+    private void flushRun() {
+        if (runCount == 0) {
+            return;
+        }
+        int first = runFirstSeq;
+        int count = runCount;
+        runCount = 0;
+        staging.flip();
+        int bytes = staging.remaining();
+        try {
+            long pos = runFileOffset;
+            while (staging.hasRemaining()) {
+                pos += out.write(staging, pos);
+            }
+            if (FSYNC == FsyncPolicy.INTERVAL && (bytesSinceSync += bytes) >= FSYNC_INTERVAL_BYTES) {
+                out.force(false);
+                bytesSinceSync = 0;
+                syncs++;
+            }
+        } catch (IOException e) {
+            // Not marked: the slices show up in the next NACK again
+            System.err.printf("[RX-PIPELINE] Write error at seq %d (+%d): %s%n", first, count, e);
+            return;
+        }
+        writes++;
+        slicesWritten += count;
+        bytesWritten += bytes;
+        receiver.onSlicesWritten(first, count);
+    }
+
+    /** Called once before completion is reported */
+    void onComplete() {
+        if (FSYNC == FsyncPolicy.NONE) {
+            return;
+        }
+        try {
+            force();
+        } catch (IOException e) {
+            System.err.println("[RX-PIPELINE] Final fsync failed: " + e);
+        }
+    }
+
+    void force() throws IOException {
+        out.force(false);
+        syncs++;
+    }
+
+    /**
+     * Reader has returned: let the verifiers and the writer drain what is
+     * queued, then stop them. Safe to call more than once.
+     */
+    void shutdown() {
+        readerDone = true;
+        boolean interrupted = Thread.interrupted(); // join must not be cut short
+        try {
+            for (Thread t : verifiers) {
+                join(t);
+            }
+            join(writer);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void join(Thread t) {
+        if (t.getState() == Thread.State.NEW) {
+            return;
+        }
+        try {
+            t.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sampleDepths() {
+        int v = verifyQueueDepth();
+        int w = writeQueueDepth();
+        if (v > peakVerifyDepth) {
+            peakVerifyDepth = v;
+        }
+        if (w > peakWriteDepth) {
+            peakWriteDepth = w;
+        }
+    }
+
+    /** Datagrams read but not yet CRC-checked */
+    int verifyQueueDepth() {
+        int depth = 0;
+        for (IntMpscRing ring : verifyRings) {
+            depth += ring.size();
+        }
+        return depth;
+    }
+
+    /** Verified datagrams waiting for the writer */
+    int writeQueueDepth() {
+        return writeRing.size();
+    }
+
+    int freeSlots() {
+        return free.size();
+    }
+
+    /** Current queue depths, for the periodic status line */
+    String depths() {
+        return String.format("verifyQ=%d, writeQ=%d, free=%d/%d",
+            verifyQueueDepth(), writeQueueDepth(), freeSlots(), SLOTS);
+    }
+
+    @Override
+    public String toString() {
+        long w = writes;
+        return String.format(
+            "[RX-PIPELINE] %,d packets, %,d rejected, %,d duplicates, %,d reader stalls | "
+                + "peak verifyQ=%d, writeQ=%d | %,d writes (%.1f slices, %.0f KB avg), %d fsync",
+            packets, rejected.get(), duplicates, readerStalls, peakVerifyDepth, peakWriteDepth,
+            w, w == 0 ? 0.0 : (double) slicesWritten / w, w == 0 ? 0.0 : bytesWritten / 1024.0 / w, syncs);
+    }
+}
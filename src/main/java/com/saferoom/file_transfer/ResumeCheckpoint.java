@@ -0,0 +1,195 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+/**
+ * Receiver-side resume checkpoint, stored as a sidecar next to the partial output
+ * ({@code <output>.resume}).
+ *
+ * Layout (big endian):
+ * <pre>
+ *  0  magic      int   'SRCK'
+ *  4  version    byte
+ *  5  fileId     long
+ * 13  fileSize   long
+ * 21  totalSeq   int
+ * 25  cumAck     int
+ * 29  words      int   (bitmap length in longs)
+ * 33  bitmap     long[words]
+ *  .  crc32c     int   (over everything before it)
+ * </pre>
+ *
+ * A checkpoint is only accepted if fileId, size and totalSeq all match the new
+ * SYN, the CRC is valid and the partial output still exists. The sidecar is
+ * written to a temp file and atomically renamed, so a crash mid-write leaves
+ * the previous checkpoint intact.
+ *
+ * The bitmap must only describe slices that are already forced to disk -
+ * {@link NackSender#checkpointNow()} snapshots, forces, then saves.
+ */
+public final class ResumeCheckpoint {
+
+    public static final String SUFFIX = ".resume";
+
+    private static final int MAGIC = 0x5352434B; // "SRCK"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 33;
+
+    public final Path outputFile;
+    public final long fileId;
+    public final long fileSize;
+    public final int totalSeq;
+
+    private int cumAck;
+    private BitSet received;
+
+    public ResumeCheckpoint(Path outputFile, long fileId, long fileSize, int totalSeq) {
+        this.outputFile = outputFile;
+        this.fileId = fileId;
+        this.fileSize = fileSize;
+        this.totalSeq = totalSeq;
+        this.cumAck = 0;
+        this.received = new BitSet(totalSeq);
+    }
+
+    public static Path sidecarFor(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName() + SUFFIX);
+    }
+
+    public int cumAck() {
+        return cumAck;
+    }
+
+    /** Slices the receiver already holds (read-only view for callers) */
+    public BitSet received() {
+        return received;
+    }
+
+    public int receivedCount() {
+        return received.cardinality();
+    }
+
+    /**
+     * Load a checkpoint for the given transfer.
+     *
+     * @return checkpoint, or null if none exists / it belongs to another transfer / is corrupt
+     */
+    public static ResumeCheckpoint load(Path outputFile, long fileId, long fileSize, int totalSeq) {
+        if (outputFile == null) {
+            return null;
+        }
+        Path sidecar = sidecarFor(outputFile);
+        if (!Files.exists(sidecar)) {
+            return null;
+        }
+        if (!Files.exists(outputFile)) {
+            System.out.println("[RESUME] Partial output missing, ignoring checkpoint: " + sidecar);
+            return null;
+        }
+        try {
+            byte[] raw = Files.readAllBytes(sidecar);
+            ByteBuffer b = ByteBuffer.wrap(raw).order(ByteOrder.BIG_ENDIAN);
+            if (raw.length < HEADER_SIZE + 4 || b.getInt(0) != MAGIC || b.get(4) != VERSION) {
+                System.err.println("[RESUME] Unrecognized checkpoint format: " + sidecar);
+                return null;
+            }
+            int words = b.getInt(29);
+            if (words < 0 || raw.length != HEADER_SIZE + words * 8 + 4) {
+                System.err.println("[RESUME] Truncated checkpoint: " + sidecar);
+                return null;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(raw, 0, raw.length - 4);
+            if ((int) crc.getValue() != b.getInt(raw.length - 4)) {
+                System.err.println("[RESUME] Checkpoint CRC mismatch: " + sidecar);
+                return null;
+            }
+            long cpFileId = b.getLong(5);
+            long cpFileSize = b.getLong(13);
+            int cpTotalSeq = b.getInt(21);
+            if (cpFileId != fileId || cpFileSize != fileSize || cpTotalSeq != totalSeq) {
+                System.out.printf("[RESUME] Checkpoint belongs to another transfer (fileId=%d, size=%d, seqs=%d)%n",
+                    cpFileId, cpFileSize, cpTotalSeq);
+                return null;
+            }
+            long[] bits = new long[words];
+            b.position(HEADER_SIZE);
+            for (int i = 0; i < words; i++) {
+                bits[i] = b.getLong();
+            }
+            ResumeCheckpoint cp = new ResumeCheckpoint(outputFile, fileId, fileSize, totalSeq);
+            cp.received = BitSet.valueOf(bits);
+            if (cp.received.length() > totalSeq) {
+                cp.received.clear(totalSeq, cp.received.length());
+            }
+            // cum_Ack is re-derived from the bitmap, the stored value is only a hint
+            int cum = cp.received.nextClearBit(0);
+            cp.cumAck = Math.min(cum, totalSeq);
+            return cp;
+        } catch (IOException e) {
+            System.err.println("[RESUME] Checkpoint read error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Persist a snapshot. Caller guarantees the slices in {@code snapshot} are on disk.
+     */
+    public void save(int cumAckSnapshot, BitSet snapshot) throws IOException {
+        long[] bits = snapshot.toLongArray();
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + bits.length * 8 + 4).order(ByteOrder.BIG_ENDIAN);
+        b.putInt(MAGIC);
+        b.put(VERSION);
+        b.putLong(fileId);
+        b.putLong(fileSize);
+        b.putInt(totalSeq);
+        b.putInt(cumAckSnapshot);
+        b.putInt(bits.length);
+        for (long w : bits) {
+            b.putLong(w);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), 0, b.position());
+        b.putInt((int) crc.getValue());
+        b.flip();
+
+        Path sidecar = sidecarFor(outputFile);
+        Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (b.hasRemaining()) {
+                ch.write(b);
+            }
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+        }
+        this.cumAck = cumAckSnapshot;
+        this.received = snapshot;
+    }
+
+    /** Remove the sidecar once the output is complete */
+    public static void delete(Path outputFile) {
+        if (outputFile == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(sidecarFor(outputFile));
+        } catch (IOException e) {
+            System.err.println("[RESUME] Failed to delete checkpoint: " + e.getMessage());
+        }
+    }
+}
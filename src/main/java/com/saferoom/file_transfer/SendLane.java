@@ -0,0 +1,121 @@
+package com.saferoom.file_transfer;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * One striped lane of the multi-lane sending engine.
+ *
+ * The sequence space is cut into stripes of {@link #STRIPE_SLICES} slices and the
+ * stripes are dealt round-robin to lanes: lane {@code i} of {@code n} sends stripes
+ * i, i+n, i+2n, ... in ascending order. A stripe is exactly one NACK window, so the
+ * receiver's 64-bit mask around cum_Ack only ever spans one or two lanes.
+ *
+ * Every lane owns its CRC32C / header instances, its PacketBatcher and its own
+ * pacing clock; the congestion window stays shared through the single
+ * CongestionController.
+ *
+ * Thread-safety: a lane is driven by exactly one thread, only the progress
+ * frontier is read by other threads (retransmission task).
+ */
+final class SendLane {
+
+    /** Slices per stripe - matches the 64-bit NackFrame window */
+    static final int STRIPE_SLICES = 64;
+
+    final int laneId;
+    final int laneCount;
+
+    // Per-lane hot path state (never shared)
+    final CRC32C crc = new CRC32C();
+    private long lastSendNs = 0;
+    private int lastBurst = 1;
+    final PacketBatcher batcher;
+
+    // Referenced mapping window of the current stripe - one lookup per window, not per slice
+    MappedWindow currentWindow;
+
+    // Block compression / FEC parity (null when disabled)
+    BlockCompressor compressor;
+    FecEncoder fec;
+
+    /** First sequence this lane has NOT sent yet (initial pass only) */
+    private volatile int frontier = 0;
+
+    SendLane(int laneId, int laneCount, PacketBatcher batcher) {
+        if (laneCount <= 0 || laneId < 0 || laneId >= laneCount) {
+            throw new IllegalArgumentException("Invalid lane " + laneId + "/" + laneCount);
+        }
+        this.laneId = laneId;
+        this.laneCount = laneCount;
+        this.batcher = batcher;
+    }
+
+    /** First sequence of this lane's first stripe */
+    int firstSeq() {
+        return laneId * STRIPE_SLICES;
+    }
+
+    /** Distance between two consecutive stripes of this lane */
+    int stripeStride() {
+        return laneCount * STRIPE_SLICES;
+    }
+
+    /**
+     * Shared window gate + per-lane pacing for a burst of {@code packets} frames.
+     * Each lane paces at laneCount x controller interval, so the aggregate
+     * rate of all lanes still equals the controller's pacing rate. The wait
+     * pays off the previous burst (burst x interval) in one park; a full
+     * window only adds to it, it never replaces the pacing clock.
+     */
+    void pace(CongestionController control, int packets) {
+        if (control == null) {
+            return;
+        }
+        control.throttleOnFullWindow();
+        long interval = control.getPacingInterval() * laneCount;
+        if (interval > 0) {
+            long now = System.nanoTime();
+            long due = lastSendNs + interval * lastBurst;
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            // Clock advances from the due time: park oversleep (50-200μs) is paid
+            // back by the next burst, at most one burst of credit is kept
+            lastSendNs = Math.max(due, System.nanoTime() - interval * lastBurst);
+        }
+        lastBurst = packets;
+    }
+
+    void markSent(int seqNo) {
+        frontier = seqNo + 1;
+    }
+
+    /** Give back the lane's window (its staged zero-copy slices must be on the wire) */
+    void releaseWindow() {
+        if (currentWindow != null) {
+            currentWindow.release();
+            currentWindow = null;
+        }
+    }
+
+    void markFinished() {
+        frontier = Integer.MAX_VALUE;
+    }
+
+    boolean hasSent(int seqNo) {
+        return seqNo < frontier;
+    }
+
+    static int laneOf(int seqNo, int laneCount) {
+        return (seqNo / STRIPE_SLICES) % laneCount;
+    }
+
+    /**
+     * True if the initial pass already put this sequence on the wire.
+     * NACKs for stripes a lane has not reached yet are just "not sent", not loss.
+     */
+    static boolean isSent(SendLane[] lanes, int seqNo) {
+        return lanes[laneOf(seqNo, lanes.length)].hasSent(seqNo);
+    }
+}
@@ -0,0 +1,491 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput regression harness: real sender and receiver over localhost
+ * DatagramChannels through an in-JVM impairment proxy.
+ * Kullanım: java TransferImpairmentHarness [sizes_mb=1,8,32] [profile_filter] [seed]
+ *
+ * The proxy sits between EnhancedFileTransferSender and FileTransferReceiver
+ * and applies per direction:
+ * - random or burst loss (Gilbert-Elliott, data direction only - the
+ *   completion signal is a single datagram and would turn a loss into a
+ *   300s sender timeout)
+ * - one-way delay and reordering (a share of packets held back a few ms)
+ * - a bandwidth cap with a tail-drop queue
+ *
+ * Every size x profile run is checked byte for byte and reports goodput,
+ * retransmit ratio (data packets on the wire beyond one per slice),
+ * completion time and the allocation rate of everything except the proxy.
+ * Profiles with delay are reached via 127.0.0.2 so the sender picks its WAN
+ * mode, as it would on a real path. Exits with 1 if any run failed.
+ *
+ * Properties: saferoom.transfer.harness.timeoutSec (default 120) per run,
+ * saferoom.transfer.harness.verbose=true keeps the transfer logs on stdout.
+ * Sender options (saferoom.transfer.cc, .lanes, ...) apply as usual.
+ */
+public class TransferImpairmentHarness {
+
+    private static final long RUN_TIMEOUT_SEC = Long.getLong("saferoom.transfer.harness.timeoutSec", 120);
+    private static final boolean VERBOSE = Boolean.getBoolean("saferoom.transfer.harness.verbose");
+
+    /**
+     * @param loss       average loss rate of the data direction
+     * @param burstLen   mean loss burst length in packets (1 = independent loss)
+     * @param reorder    share of packets delivered {@code reorderMs} late
+     * @param delayMs    one-way delay, both directions
+     * @param rateMbps   bottleneck rate, both directions (0 = uncapped)
+     * @param queueMs    bottleneck buffer in milliseconds at {@code rateMbps}
+     */
+    record Profile(String name, double loss, double burstLen, double reorder, double reorderMs,
+                   double delayMs, double rateMbps, double queueMs) {
+        boolean wan() {
+            return delayMs > 0;
+        }
+    }
+
+    private static final Profile[] PROFILES = {
+        new Profile("clean",                      0.0,    1,  0.0,  0,  0,   0,   0),
+        new Profile("loss 1%",                    0.01,   1,  0.0,  0,  0,   0,   0),
+        new Profile("burst 2% x32",               0.02,  32,  0.0,  0,  0,   0,   0),
+        new Profile("reorder 5% +3ms, 10ms RTT",  0.0,    1,  0.05, 3,  5,   0,   0),
+        new Profile("100Mbps 40ms RTT 1xBDP",     0.0,    1,  0.0,  0, 20, 100,  40),
+        new Profile("20Mbps 60ms RTT 0.5% loss",  0.005,  1,  0.0,  0, 30,  20,  60),
+    };
+
+    record Result(Profile profile, int sizeMb, boolean ok, String error, double seconds,
+                  double goodputMbps, double retxRatio, double allocMBps, long allocPerSlice,
+                  Proxy.Link data) { }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = parseSizes(args.length > 0 ? args[0] : "1,8,32");
+        String filter = args.length > 1 ? args[1].toLowerCase() : "";
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 7L;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Path dir = Files.createTempDirectory("saferoom-impair");
+        PrintStream stdout = System.out;
+        List<Result> results = new ArrayList<>();
+        ExecutorService peers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "harness-peer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int sizeMb : sizes) {
+                Path source = dir.resolve("source-" + sizeMb + ".bin");
+                byte[] data = new byte[sizeMb << 20];
+                new Random(seed + sizeMb).nextBytes(data);
+                Files.write(source, data);
+                data = null;
+
+                for (Profile p : PROFILES) {
+                    if (!p.name().toLowerCase().contains(filter)) {
+                        continue;
+                    }
+                    stdout.printf("[HARNESS] %d MB / %s ...%n", sizeMb, p.name());
+                    if (!VERBOSE) {
+                        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                    }
+                    Result r;
+                    try {
+                        r = runOnce(p, sizeMb, source, dir.resolve("out-" + sizeMb + ".bin"), seed, threads, peers);
+                    } finally {
+                        System.setOut(stdout);
+                    }
+                    results.add(r);
+                    stdout.printf("[HARNESS]   %s%n", r.ok() ? String.format("%.2fs", r.seconds()) : r.error());
+                }
+                Files.deleteIfExists(source);
+            }
+        } finally {
+            peers.shutdownNow();
+            EnhancedFileTransferSender.shutdownThreadPool();
+            try (var files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(f);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        System.out.println();
+        System.out.printf("=== Transfer impairment matrix (cc=%s, lanes=%d, seed=%d) ===%n",
+            System.getProperty("saferoom.transfer.cc", CongestionController.HYBRID),
+            Integer.getInteger("saferoom.transfer.lanes", 1), seed);
+        System.out.printf("%-28s %5s %-7s %8s %9s %7s %9s %9s %8s %8s%n",
+            "Profile", "MB", "status", "time s", "goodput", "retx", "alloc", "B/slice", "lost", "q-drop");
+        boolean failed = false;
+        for (Result r : results) {
+            failed |= !r.ok();
+            System.out.printf("%-28s %5d %-7s %8.2f %6.1f Mb %6.1f%% %6.1f MB/s %9d %8d %8d%n",
+                r.profile().name(), r.sizeMb(), r.ok() ? "ok" : "FAIL", r.seconds(), r.goodputMbps(),
+                r.retxRatio() * 100, r.allocMBps(), r.allocPerSlice(),
+                r.data().lost, r.data().queueDrops + r.data().overflowDrops);
+        }
+        for (Result r : results) {
+            if (!r.ok()) {
+                System.out.printf("FAIL %s / %d MB: %s%n", r.profile().name(), r.sizeMb(), r.error());
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static Result runOnce(Profile p, int sizeMb, Path source, Path out, long seed,
+                                  com.sun.management.ThreadMXBean threads, ExecutorService peers) throws Exception {
+        Files.deleteIfExists(out);
+        long fileSize = Files.size(source);
+        int totalSeq = (int) ((fileSize + EnhancedFileTransferSender.SLICE_SIZE - 1) / EnhancedFileTransferSender.SLICE_SIZE);
+        String proxyHost = p.wan() ? "127.0.0.2" : "127.0.0.1";
+
+        try (DatagramChannel senderCh = openChannel("127.0.0.1");
+             DatagramChannel receiverCh = openChannel("127.0.0.1");
+             Proxy proxy = new Proxy(p, proxyHost, senderCh, receiverCh, seed)) {
+            senderCh.connect(proxy.front.getLocalAddress());
+            Thread proxyThread = new Thread(proxy, "impairment-proxy");
+            proxyThread.setDaemon(true);
+            proxyThread.start();
+
+            FileTransferReceiver receiver = new FileTransferReceiver();
+            receiver.channel = receiverCh;
+            receiver.filePath = out;
+            EnhancedFileTransferSender sender = new EnhancedFileTransferSender(senderCh);
+            long fileId = System.nanoTime();
+
+            long alloc0 = threads.getTotalThreadAllocatedBytes();
+            long proxyAlloc0 = threads.getThreadAllocatedBytes(proxyThread.threadId());
+            long t0 = System.nanoTime();
+            Future<?> rx = peers.submit(receiver::ReceiveData);
+            Future<?> tx = peers.submit(() -> {
+                sender.sendFile(source, fileId);
+                return null;
+            });
+
+            String error = null;
+            try {
+                tx.get(RUN_TIMEOUT_SEC, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                error = "timeout after " + RUN_TIMEOUT_SEC + "s";
+                sender.requestStop();
+            } catch (Exception e) {
+                error = "sender: " + e.getCause();
+            }
+            long elapsed = System.nanoTime() - t0;
+            try {
+                rx.get(error == null ? 15 : 1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                error = error != null ? error : "receiver did not finish";
+            } catch (Exception e) {
+                error = error != null ? error : "receiver: " + e.getCause();
+            }
+            long alloc = threads.getTotalThreadAllocatedBytes() - alloc0
+                - (threads.getThreadAllocatedBytes(proxyThread.threadId()) - proxyAlloc0);
+            proxy.stop();
+            proxyThread.join(1_000);
+            rx.cancel(true);
+            tx.cancel(true);
+
+            if (error == null) {
+                long mismatch = Files.exists(out) ? Files.mismatch(source, out) : 0;
+                if (mismatch != -1) {
+                    error = "output differs at byte " + mismatch;
+                }
+            }
+            double seconds = elapsed / 1e9;
+            long dataPackets = proxy.dataLink.received - proxy.dataLink.handshakes;
+            return new Result(p, sizeMb, error == null, error, seconds,
+                fileSize * 8 / seconds / 1e6,
+                Math.max(0, dataPackets - totalSeq) / (double) totalSeq,
+                alloc / seconds / (1 << 20), alloc / totalSeq, proxy.dataLink);
+        } finally {
+            Files.deleteIfExists(out);
+        }
+    }
+
+    private static int[] parseSizes(String csv) {
+        String[] parts = csv.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    private static DatagramChannel openChannel(String host) throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        ch.setOption(java.net.StandardSocketOptions.SO_SNDBUF, 16 * 1024 * 1024);
+        ch.setOption(java.net.StandardSocketOptions.SO_RCVBUF, 16 * 1024 * 1024);
+        ch.bind(new InetSocketAddress(host, 0));
+        ch.configureBlocking(false); // same mode as the P2P path (KeepAliveManager)
+        return ch;
+    }
+
+    /**
+     * Single-threaded UDP relay: {@code front} talks to the sender, {@code back}
+     * to the receiver. Packets wait in a per-direction heap ordered by their
+     * delivery time; buffers are preallocated so the proxy does not show up
+     * in the allocation numbers.
+     */
+    static final class Proxy implements Runnable, AutoCloseable {
+        final DatagramChannel front;
+        final DatagramChannel back;
+        final Link dataLink;
+        final Link ackLink;
+        private volatile boolean running = true;
+
+        Proxy(Profile p, String host, DatagramChannel sender, DatagramChannel receiver, long seed) throws IOException {
+            this.front = openChannel(host);
+            this.back = openChannel("127.0.0.1");
+            front.connect(sender.getLocalAddress());
+            back.connect(receiver.getLocalAddress());
+            this.dataLink = new Link(front, back, p, true, 16_384, new SplittableRandom(seed));
+            this.ackLink = new Link(back, front, p, false, 1_024, new SplittableRandom(seed + 1));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long now = System.nanoTime();
+                    boolean busy = dataLink.pump(now) | ackLink.pump(now);
+                    if (!busy) {
+                        LockSupport.parkNanos(20_000);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Impairment proxy error: " + e);
+                }
+            }
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            front.close();
+            back.close();
+        }
+
+        /**
+         * One direction of the proxy.
+         */
+        static final class Link {
+            private final DatagramChannel in;
+            private final DatagramChannel out;
+            private final SplittableRandom rnd;
+            private final boolean lossy;
+            private final double enterBurst;  // good -> bad
+            private final double leaveBurst;  // bad -> good
+            private final double reorder;
+            private final long reorderNs;
+            private final long delayNs;
+            private final double nsPerByte;   // 0 = uncapped
+            private final long queueNs;
+
+            private final ByteBuffer[] slots;
+            private final ByteBuffer scratch = ByteBuffer.allocateDirect(NackFrame.MAX_SIZE);
+            private final int[] free;
+            private int freeCount;
+            // Min-heap of pending packets by (due, arrival order)
+            private final long[] heapDue;
+            private final long[] heapOrder;
+            private final int[] heapSlot;
+            private int heapSize;
+            private long arrivals;
+            private boolean inBurst;
+            private long linkFreeAt;
+
+            long received;
+            long handshakes;
+            long lost;
+            long queueDrops;
+            long overflowDrops;
+
+            Link(DatagramChannel in, DatagramChannel out, Profile p, boolean dataDirection, int capacity,
+                 SplittableRandom rnd) {
+                this.in = in;
+                this.out = out;
+                this.rnd = rnd;
+                this.lossy = dataDirection && p.loss() > 0;
+                double burst = Math.max(1.0, p.burstLen());
+                this.leaveBurst = 1.0 / burst;
+                this.enterBurst = lossy ? p.loss() / (burst * (1 - p.loss())) : 0;
+                this.reorder = p.reorder();
+                this.reorderNs = (long) (p.reorderMs() * 1e6);
+                this.delayNs = (long) (p.delayMs() * 1e6);
+                this.nsPerByte = p.rateMbps() > 0 ? 8e3 / p.rateMbps() : 0;
+                this.queueNs = (long) (p.queueMs() * 1e6);
+                this.slots = new ByteBuffer[capacity];
+                this.free = new int[capacity];
+                for (int i = 0; i < capacity; i++) {
+                    slots[i] = ByteBuffer.allocateDirect(NackFrame.MAX_SIZE);
+                    free[i] = i;
+                }
+                this.freeCount = capacity;
+                this.heapDue = new long[capacity];
+                this.heapOrder = new long[capacity];
+                this.heapSlot = new int[capacity];
+            }
+
+            /**
+             * Take everything readable, then deliver what is due.
+             *
+             * @return true if a packet moved
+             */
+            boolean pump(long now) throws IOException {
+                boolean moved = false;
+                while (freeCount > 0) {
+                    int slot = free[freeCount - 1];
+                    ByteBuffer b = slots[slot];
+                    b.clear();
+                    int n;
+                    try {
+                        n = in.read(b);
+                    } catch (java.net.PortUnreachableException e) {
+                        continue; // peer socket not up yet / already gone
+                    }
+                    if (n <= 0) {
+                        break;
+                    }
+                    moved = true;
+                    received++;
+                    if (HandShake_Packet.isSynSize(n)) {
+                        handshakes++;
+                    }
+                    if (drop()) {
+                        lost++;
+                        continue;
+                    }
+                    long due = now;
+                    if (nsPerByte > 0) {
+                        long start = Math.max(now, linkFreeAt);
+                        if (start - now > queueNs) {
+                            queueDrops++;
+                            continue;
+                        }
+                        linkFreeAt = start + (long) (n * nsPerByte);
+                        due = linkFreeAt;
+                    }
+                    due += delayNs;
+                    if (reorder > 0 && rnd.nextDouble() < reorder) {
+                        due += reorderNs;
+                    }
+                    b.flip();
+                    freeCount--;
+                    push(due, slot);
+                }
+                if (freeCount == 0) {
+                    // Delay line full: drop so the socket buffer keeps moving
+                    scratch.clear();
+                    while (in.read(scratch) > 0) {
+                        received++;
+                        overflowDrops++;
+                        scratch.clear();
+                    }
+                }
+                while (heapSize > 0 && heapDue[0] <= now) {
+                    int slot = heapSlot[0];
+                    ByteBuffer b = slots[slot];
+                    try {
+                        if (out.write(b) == 0) {
+                            break; // socket buffer full, retry next round
+                        }
+                    } catch (java.net.PortUnreachableException e) {
+                        // receiver already closed: packet is gone
+                    }
+                    pop();
+                    free[freeCount++] = slot;
+                    moved = true;
+                }
+                return moved;
+            }
+
+            private boolean drop() {
+                if (!lossy) {
+                    return false;
+                }
+                if (inBurst) {
+                    inBurst = rnd.nextDouble() >= leaveBurst;
+                } else {
+                    inBurst = rnd.nextDouble() < enterBurst;
+                }
+                return inBurst;
+            }
+
+            private void push(long due, int slot) {
+                int i = heapSize++;
+                long order = arrivals++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (!before(due, order, heapDue[parent], heapOrder[parent])) {
+                        break;
+                    }
+                    heapDue[i] = heapDue[parent];
+                    heapOrder[i] = heapOrder[parent];
+                    heapSlot[i] = heapSlot[parent];
+                    i = parent;
+                }
+                heapDue[i] = due;
+                heapOrder[i] = order;
+                heapSlot[i] = slot;
+            }
+
+            private void pop() {
+                int last = --heapSize;
+                long due = heapDue[last];
+                long order = heapOrder[last];
+                int slot = heapSlot[last];
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= last) {
+                        break;
+                    }
+                    if (child + 1 < last && before(heapDue[child + 1], heapOrder[child + 1], heapDue[child], heapOrder[child])) {
+                        child++;
+                    }
+                    if (!before(heapDue[child], heapOrder[child], due, order)) {
+                        break;
+                    }
+                    heapDue[i] = heapDue[child];
+                    heapOrder[i] = heapOrder[child];
+                    heapSlot[i] = heapSlot[child];
+                    i = child;
+                }
+                heapDue[i] = due;
+                heapOrder[i] = order;
+                heapSlot[i] = slot;
+            }
+
+            private static boolean before(long dueA, long orderA, long dueB, long orderB) {
+                return dueA != dueB ? dueA - dueB < 0 : orderA < orderB;
+            }
+        }
+    }
+}
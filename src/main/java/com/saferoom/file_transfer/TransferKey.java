@@ -0,0 +1,43 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stable fileId for a file: the same name, size and modification time give
+ * the same id on every send, so a re-send finds the receiver's partial output
+ * and its {@link ResumeCheckpoint} (both are keyed by fileId). A changed file
+ * gets a new id and is received from scratch.
+ *
+ * The id is derived, not stored: the sender recomputes it, the receiver's
+ * checkpoint sidecar is what persists it. The top byte is always 0, like the
+ * millisecond ids used before, and the id is never 0.
+ */
+public final class TransferKey {
+
+    private TransferKey() { }
+
+    public static long of(Path file) throws IOException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        return of(file.getFileName().toString(), size, modified);
+    }
+
+    static long of(String name, long size, long modifiedMillis) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        sha.update(name.getBytes(StandardCharsets.UTF_8));
+        sha.update(ByteBuffer.allocate(17).put((byte) 0).putLong(size).putLong(modifiedMillis).array());
+        long id = ByteBuffer.wrap(sha.digest()).getLong() & 0x00FF_FFFF_FFFF_FFFFL;
+        return id != 0 ? id : 1;
+    }
+}
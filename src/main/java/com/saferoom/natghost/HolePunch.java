@@ -0,0 +1,260 @@
+package com.saferoom.natghost;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One hole punch as a state machine on the {@link NatReactor}: a burst timer
+ * sends to the target port(s) from one or more local sockets, the sockets are
+ * tapped for the peer's answer, a timeout ends it. No thread of its own - a
+ * hundred concurrent punches are a hundred timers on the same loop.
+ *
+ * Shapes the strategies need:
+ * - one socket, one target port (STANDARD, direct punch after a notification)
+ * - one socket, a port range walked round-robin, or the predicted ports of
+ *   a {@link PortPredictor.Schedule} (ASYMMETRIC_SCAN)
+ * - a pool of fresh sockets, one target port - given, or the predicted
+ *   middle of the peer's next allocations (SYMMETRIC_BURST, MIDPOINT)
+ *
+ * The result is the socket that heard the peer and the peer's address, or
+ * null on timeout. Sockets the punch opened itself are closed, except the
+ * winner, which is handed over (no longer on the loop).
+ */
+final class HolePunch {
+
+    /** Burst datagram for {@code socket} (index in the pool), round {@code seq}, to {@code port} */
+    @FunctionalInterface
+    interface Burst {
+        ByteBuffer packet(int socket, int seq, int port);
+    }
+
+    /** Which datagram counts as the peer's answer; the source IP is already checked */
+    @FunctionalInterface
+    interface Answer {
+        boolean matches(ByteBuffer frame, InetSocketAddress from);
+    }
+
+    /** Where each socket bursts on round {@code tick}: {@code sink.send(socket, port)} per datagram */
+    @FunctionalInterface
+    interface Plan {
+        void plan(int tick, int sockets, Sink sink);
+    }
+
+    @FunctionalInterface
+    interface Sink {
+        void send(int socket, int port);
+    }
+
+    static final Answer ANY = (frame, from) -> true;
+
+    record Result(DatagramChannel channel, InetSocketAddress peer, int bursts, long elapsedMs) { }
+
+    private final NatReactor reactor;
+    private final String tag;
+    private final InetAddress targetIP;
+    private final Plan plan;
+    private final List<DatagramChannel> sockets;
+    private final boolean ownsSockets;
+    private final Burst burst;
+    private final Answer answer;
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+    // Loop thread only
+    private final List<Runnable> untaps = new ArrayList<>();
+    private NatReactor.Timer tick;
+    private NatReactor.Timer timeout;
+    private long startNanos;
+    private int seq;
+    private int bursts;
+
+    private HolePunch(NatReactor reactor, String tag, InetAddress targetIP, Plan plan,
+                      List<DatagramChannel> sockets, boolean ownsSockets, Burst burst, Answer answer) {
+        this.reactor = reactor;
+        this.tag = tag;
+        this.targetIP = targetIP;
+        this.plan = plan;
+        this.sockets = sockets;
+        this.ownsSockets = ownsSockets;
+        this.burst = burst;
+        this.answer = answer;
+    }
+
+    /** Every socket bursts {@code port} every round */
+    static Plan everySocketTo(int port) {
+        return (tick, sockets, sink) -> {
+            for (int s = 0; s < sockets; s++) {
+                sink.send(s, port);
+            }
+        };
+    }
+
+    /** {@code portsPerTick} ports of {@code minPort..maxPort} per round, round-robin, from socket 0 */
+    static Plan roundRobin(int minPort, int maxPort, int portsPerTick) {
+        int perTick = Math.max(1, Math.min(portsPerTick, maxPort - minPort + 1));
+        int[] next = { minPort };
+        return (tick, sockets, sink) -> {
+            int port = next[0];
+            for (int p = 0; p < perTick; p++) {
+                sink.send(0, port);
+                port = port == maxPort ? minPort : port + 1;
+            }
+            next[0] = port;
+        };
+    }
+
+    /** Burst {@code target} from {@code channel} (shared: tapped, left open) */
+    static HolePunch toPort(NatReactor reactor, String tag, DatagramChannel channel,
+                            InetSocketAddress target, Burst burst, Answer answer) {
+        return new HolePunch(reactor, tag, target.getAddress(), everySocketTo(target.getPort()),
+            List.of(channel), false, burst, answer);
+    }
+
+    /** Burst {@code targetIP} from {@code channel} wherever {@code plan} says (shared: tapped, left open) */
+    static HolePunch planned(NatReactor reactor, String tag, DatagramChannel channel, InetAddress targetIP,
+                             Plan plan, Burst burst, Answer answer) {
+        return new HolePunch(reactor, tag, targetIP, plan, List.of(channel), false, burst, answer);
+    }
+
+    /** {@code numPorts} fresh ephemeral sockets all bursting {@code target} */
+    static HolePunch portPool(NatReactor reactor, String tag, int numPorts,
+                              InetSocketAddress target, Burst burst, Answer answer) throws IOException {
+        return portPool(reactor, tag, numPorts, target.getAddress(), everySocketTo(target.getPort()), burst, answer);
+    }
+
+    /** {@code numPorts} fresh ephemeral sockets bursting {@code targetIP} wherever {@code plan} says */
+    static HolePunch portPool(NatReactor reactor, String tag, int numPorts, InetAddress targetIP,
+                              Plan plan, Burst burst, Answer answer) throws IOException {
+        List<DatagramChannel> pool = new ArrayList<>(numPorts);
+        try {
+            for (int i = 0; i < numPorts; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                pool.add(channel);
+                channel.socket().setReuseAddress(true);
+                channel.bind(new InetSocketAddress(0)); // Ephemeral port
+            }
+        } catch (IOException e) {
+            closeAll(pool, null);
+            throw e;
+        }
+        return new HolePunch(reactor, tag, targetIP, plan, pool, true, burst, answer);
+    }
+
+    /** Start bursting every {@code intervalMs}; gives up after {@code timeoutMs} */
+    CompletableFuture<Result> start(long intervalMs, long timeoutMs) {
+        reactor.execute(() -> {
+            startNanos = System.nanoTime();
+            for (int i = 0; i < sockets.size(); i++) {
+                DatagramChannel channel = sockets.get(i);
+                untaps.add(reactor.tap(channel, (frame, from, ch) -> onDatagram(frame, from, ch)));
+            }
+            tick = reactor.scheduleAtFixedRate(this::burst, 0, intervalMs, TimeUnit.MILLISECONDS);
+            timeout = reactor.schedule(() -> finish(null), timeoutMs, TimeUnit.MILLISECONDS);
+        });
+        return result;
+    }
+
+    CompletableFuture<Result> result() {
+        return result;
+    }
+
+    /** Stop early (duplicate instruction, shutdown); the result completes with null */
+    void cancel() {
+        reactor.execute(() -> finish(null));
+    }
+
+    private void burst() {
+        if (result.isDone()) {
+            return;
+        }
+        int open = 0;
+        for (DatagramChannel channel : sockets) {
+            if (channel.isOpen()) {
+                open++;
+            }
+        }
+        if (open == 0) {
+            System.err.printf("[%s] ❌ All punch sockets closed%n", tag);
+            finish(null);
+            return;
+        }
+        plan.plan(seq, sockets.size(), this::send);
+        seq++;
+        if (seq % 100 == 0) {
+            System.out.printf("[%s] Still bursting... %d packets sent (%.1f seconds)%n",
+                tag, bursts, elapsedMs() / 1000.0);
+        }
+    }
+
+    private void send(int socket, int port) {
+        DatagramChannel channel = sockets.get(socket);
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            channel.send(burst.packet(socket, seq, port), new InetSocketAddress(targetIP, port));
+            bursts++;
+        } catch (IOException e) {
+            // ICMP unreachable from a closed port, or a socket closed under us
+        }
+    }
+
+    private void onDatagram(ByteBuffer frame, InetSocketAddress from, DatagramChannel channel) {
+        if (result.isDone()) {
+            return;
+        }
+        // ⚠️ VALIDATE: Response must be from target IP (server echoes are not the peer)
+        if (!from.getAddress().equals(targetIP) || !answer.matches(frame, from)) {
+            return;
+        }
+        System.out.printf("[%s] 🎉 Peer answered from %s after %d ms (%d bursts)%n",
+            tag, from, elapsedMs(), bursts);
+        finish(new Result(channel, from, bursts, elapsedMs()));
+    }
+
+    private void finish(Result outcome) {
+        if (result.isDone()) {
+            return;
+        }
+        if (tick != null) {
+            tick.cancel();
+        }
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        untaps.forEach(Runnable::run);
+        if (ownsSockets) {
+            DatagramChannel keep = outcome != null ? outcome.channel() : null;
+            for (DatagramChannel channel : sockets) {
+                reactor.deregister(channel);
+            }
+            closeAll(sockets, keep);
+        }
+        if (outcome == null) {
+            System.err.printf("[%s] ❌ No answer from %s after %d ms (%d bursts)%n",
+                tag, targetIP.getHostAddress(), elapsedMs(), bursts);
+        }
+        result.complete(outcome);
+    }
+
+    private long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static void closeAll(List<DatagramChannel> channels, DatagramChannel keep) {
+        for (DatagramChannel channel : channels) {
+            if (channel != keep) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
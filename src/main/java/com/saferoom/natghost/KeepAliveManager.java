@@ -1,14 +1,9 @@
 package com.saferoom.natghost;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.*;
@@ -16,31 +11,26 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public final class KeepAliveManager implements AutoCloseable {
 
-    private final ScheduledExecutorService exec;
+    private final NatReactor reactor;
     private final long intervalMs;
-    private final Map<String, ScheduledFuture<?>> tasks = new ConcurrentHashMap<>();
+    private final Map<String, NatReactor.Timer> tasks = new ConcurrentHashMap<>();
     
-    // Message listening support
-    private Thread messageListenerThread = null;
+    // Message listening support: datagrams are read on the reactor's loop
     private volatile boolean listening = false;
     private DatagramChannel activeChannel = null; // 🆕 Store channel reference for buffer flushing
     
-    // 🔒 SERVER IP BLACKLIST - Never accept burst packets from signaling server!
-    private static InetAddress SERVER_IP = null;
-    static {
-        try {
-            SERVER_IP = InetAddress.getByName("35.198.64.68"); // Google Cloud signaling server
-        } catch (Exception e) {
-            System.err.println("⚠️ Failed to resolve server IP for blacklist: " + e.getMessage());
-        }
-    }
+    // Received datagrams: handler per LLS signal
+    static final int RECEIVE_BUFFER = NatReactor.RECEIVE_BUFFER;
+    private final PacketDispatcher dispatcher;
 
     public KeepAliveManager(long intervalMs) {
+        this(intervalMs, PeerPacketHandlers.create(NatAnalyzer.peers), NatReactor.shared());
+    }
+
+    public KeepAliveManager(long intervalMs, PacketDispatcher dispatcher, NatReactor reactor) {
         this.intervalMs = intervalMs;
-        this.exec = Executors.newScheduledThreadPool(
-                1,
-                r -> { Thread t = new Thread(r, "KeepAliveScheduler"); t.setDaemon(false); return t; }
-        );
+        this.dispatcher = Objects.requireNonNull(dispatcher, "dispatcher");
+        this.reactor = Objects.requireNonNull(reactor, "reactor");
     }
 
     /** Aynı (localPort->remotePort) için ikinci kez çağırırsan tekrar job açmaz. */
@@ -54,7 +44,7 @@ public final class KeepAliveManager implements AutoCloseable {
 
         tasks.computeIfAbsent(key, k -> {
             AtomicLong seq = new AtomicLong();
-            return exec.scheduleAtFixedRate(() -> {
+            return reactor.scheduleAtFixedRate(() -> {
                 try {
                     // DNS Query for firewall bypass - looks like legitimate DNS traffic
                     ByteBuffer pkt = LLS.New_DNSQuery_Packet();
@@ -87,463 +77,72 @@ public final class KeepAliveManager implements AutoCloseable {
      * Start message listening on the channel (integrated with keep-alive)
      */
     public void startMessageListening(DatagramChannel channel) {
-        // 🔧 FIX: Check if thread is actually alive, not just non-null
-        if (listening && messageListenerThread != null && messageListenerThread.isAlive()) {
+        if (listening && channel == activeChannel) {
             System.out.println("[KA] ⚠️ Message listener already running");
             return; // Already listening
         }
         
-        // Clean up dead thread if exists
-        if (messageListenerThread != null && !messageListenerThread.isAlive()) {
-            System.out.println("[KA] 🧹 Cleaning up dead message listener thread");
-            messageListenerThread = null;
-        }
-        
         // Store channel reference for later buffer flushing
         this.activeChannel = channel;
-        
         listening = true;
-        messageListenerThread = new Thread(() -> {
-            System.out.println("[KA] 📡 Integrated message listener started");
-            
-            try (Selector selector = Selector.open()) {
-                channel.register(selector, SelectionKey.OP_READ);
-                
-                while (listening && channel.isOpen()) {
-                    if (selector.select(500) == 0) continue; // 500ms timeout
-                    
-                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-                    while (it.hasNext()) {
-                        SelectionKey key = it.next();
-                        it.remove();
-                        
-                        if (!key.isReadable()) continue;
-                        
-                        DatagramChannel dc = (DatagramChannel) key.channel();
-                        ByteBuffer buf = ByteBuffer.allocate(2048); // Increased buffer
-                        SocketAddress from = dc.receive(buf);
-                        if (from == null) {
-                            System.out.println("[KA] ⚠️ receive() returned null");
-                            continue;
-                        }
-                        
-                        buf.flip();
-                        
-                        if (!LLS.hasWholeFrame(buf)) {
-                            System.out.printf("[KA] ⚠️ Incomplete frame: %d bytes from %s%n", buf.remaining(), from);
-                            continue;
-                        }
-                        byte type = LLS.peekType(buf);
-                        int size = buf.remaining();
-                        
-                        // Skip logging for late DATA packets (type 0x00 with valid size)
-                        boolean isLateDataPacket = (type == 0x00 && size >= 22);
-                        
-                        if (!isLateDataPacket) {
-                            System.out.printf("[KA] 📦 RAW packet received: %d bytes from %s%n", size, from);
-                            System.out.printf("[KA] 📡 Received packet type: 0x%02X from %s%n", type, from);
-                        }
-                        
-                        if (type == LLS.SIG_MESSAGE) {
-                            System.out.println("[KA] 🎯 SIG_MESSAGE detected - forwarding to NatAnalyzer");
-                            
-                            // 🔄 UPDATE PEER ADDRESS - Peer may have switched to different port!
-                            try {
-                                // Parse message to get sender username
-                                ByteBuffer msgBuf = buf.duplicate();
-                                msgBuf.get(); // Skip type
-                                msgBuf.getShort(); // Skip length
-                                byte[] senderBytes = new byte[20];
-                                msgBuf.get(senderBytes);
-                                String sender = new String(senderBytes).trim();
-                                
-                                // Update activePeers with new address
-                                java.lang.reflect.Field activePeersField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("activePeers");
-                                activePeersField.setAccessible(true);
-                                @SuppressWarnings("unchecked")
-                                Map<String, InetSocketAddress> activePeers = 
-                                    (Map<String, InetSocketAddress>) activePeersField.get(null);
-                                
-                                InetSocketAddress oldAddr = activePeers.get(sender);
-                                InetSocketAddress newAddr = (InetSocketAddress) from;
-                                
-                                if (oldAddr == null || !oldAddr.equals(newAddr)) {
-                                    activePeers.put(sender, newAddr);
-                                    System.out.printf("[KA-UPDATE] 🔄 Updated %s address: %s → %s%n", 
-                                        sender, oldAddr, newAddr);
-                                }
-                                
-                                // Update last activity
-                                java.lang.reflect.Field lastActivityField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("lastActivity");
-                                lastActivityField.setAccessible(true);
-                                @SuppressWarnings("unchecked")
-                                Map<String, Long> lastActivity = 
-                                    (Map<String, Long>) lastActivityField.get(null);
-                                lastActivity.put(sender, System.currentTimeMillis());
-                                
-                            } catch (Exception e) {
-                                System.err.println("[KA] Warning: Could not update peer address: " + e.getMessage());
-                            }
-                            
-                            // Forward to NatAnalyzer for processing
-                            try {
-                                java.lang.reflect.Method method = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredMethod("handleIncomingMessage", ByteBuffer.class, SocketAddress.class);
-                                method.setAccessible(true);
-                                method.invoke(null, buf.duplicate(), from);
-                            } catch (Exception e) {
-                                System.err.println("[KA] Error forwarding message: " + e.getMessage());
-                            }
-                        } else if (type == LLS.SIG_PUNCH_INSTRUCT) {
-                            System.out.printf("[KA] 🧠 SIG_PUNCH_INSTRUCT detected from %s - forwarding to NatAnalyzer%n", from);
-                            // Forward intelligent punch instruction to NatAnalyzer for processing
-                            try {
-                                java.lang.reflect.Method method = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredMethod("handleIncomingPunchInstruction", ByteBuffer.class, SocketAddress.class);
-                                method.setAccessible(true);
-                                method.invoke(null, buf.duplicate(), from);
-                                System.out.println("[KA] ✅ Punch instruction forwarded successfully");
-                            } catch (Exception e) {
-                                System.err.println("[KA] ❌ Error forwarding punch instruction: " + e.getMessage());
-                                e.printStackTrace();
-                            }
-                        } else if (type == LLS.SIG_P2P_NOTIFY) {
-                            System.out.printf("[KA] 📢 SIG_P2P_NOTIFY detected from %s - forwarding to NatAnalyzer%n", from);
-                            // Forward P2P notification to NatAnalyzer for processing
-                            try {
-                                java.lang.reflect.Method method = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredMethod("handleIncomingP2PNotification", ByteBuffer.class, SocketAddress.class);
-                                method.setAccessible(true);
-                                method.invoke(null, buf.duplicate(), from);
-                                System.out.println("[KA] ✅ P2P notification forwarded successfully");
-                            } catch (Exception e) {
-                                System.err.println("[KA] ❌ Error forwarding P2P notification: " + e.getMessage());
-                                e.printStackTrace();
-                            }
-                        } else if (type == LLS.SIG_DNS_QUERY) {
-                            // Keep-alive DNS packet - UPDATE PEER ADDRESS if needed
-                            System.out.printf("[KA] 🔄 Keep-alive DNS from %s%n", from);
-                            
-                            // 🔄 Try to identify sender and update address
-                            try {
-                                java.lang.reflect.Field activePeersField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("activePeers");
-                                activePeersField.setAccessible(true);
-                                @SuppressWarnings("unchecked")
-                                Map<String, InetSocketAddress> activePeers = 
-                                    (Map<String, InetSocketAddress>) activePeersField.get(null);
-                                
-                                // Find which peer this address belongs to by IP
-                                InetSocketAddress fromAddr = (InetSocketAddress) from;
-                                for (Map.Entry<String, InetSocketAddress> entry : activePeers.entrySet()) {
-                                    if (entry.getValue().getAddress().equals(fromAddr.getAddress())) {
-                                        // Same IP, but port may have changed
-                                        if (!entry.getValue().equals(fromAddr)) {
-                                            InetSocketAddress oldAddr = entry.getValue();
-                                            activePeers.put(entry.getKey(), fromAddr);
-                                            System.out.printf("[KA-UPDATE] 🔄 Updated %s address: %s → %s (from DNS keepalive)%n", 
-                                                entry.getKey(), oldAddr, fromAddr);
-                                        }
-                                        
-                                        // Update last activity
-                                        java.lang.reflect.Field lastActivityField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                            .getDeclaredField("lastActivity");
-                                        lastActivityField.setAccessible(true);
-                                        @SuppressWarnings("unchecked")
-                                        Map<String, Long> lastActivity = 
-                                            (Map<String, Long>) lastActivityField.get(null);
-                                        lastActivity.put(entry.getKey(), System.currentTimeMillis());
-                                        break;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[KA] Warning: Could not update peer from DNS: " + e.getMessage());
-                            }
-                        } else if (type == LLS.SIG_PUNCH_BURST) {
-                            System.out.printf("[KA] 🎯 SIG_PUNCH_BURST detected from %s%n", from);
-                            
-                            // 🔒 BLACKLIST CHECK: NEVER accept burst packets from signaling server!
-                            InetSocketAddress senderAddr = (InetSocketAddress) from;
-                            if (SERVER_IP != null && senderAddr.getAddress().equals(SERVER_IP)) {
-                                System.out.printf("[KA-BURST] ⛔ BLOCKED: Burst from SIGNALING SERVER %s - THIS SHOULD NEVER HAPPEN!%n", from);
-                                System.out.println("[KA-BURST] ⛔ Server should COORDINATE, not send burst packets!");
-                                continue; // Ignore server burst packets
-                            }
-                            
-                            // Auto-respond to burst packets to establish bidirectional NAT mapping
-                            try {
-                                // Parse burst packet to get usernames
-                                java.util.List<Object> parsed = LLS.parseBurstPacket(buf.duplicate());
-                                String senderUsername = (String) parsed.get(2);
-                                String receiverUsername = (String) parsed.get(3);
-                                String payload = (String) parsed.get(4);
-                                
-                                // 🔧 PREVENT INFINITE LOOP: Don't respond to ACK packets!
-                                if ("BURST-ACK".equals(payload)) {
-                                    System.out.printf("[KA-BURST] ✅ Received ACK from %s - NAT hole confirmed%n", 
-                                        senderUsername);
-                                    
-                                    // Register peer but don't respond
-                                    try {
-                                        java.lang.reflect.Field activePeersField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                            .getDeclaredField("activePeers");
-                                        activePeersField.setAccessible(true);
-                                        @SuppressWarnings("unchecked")
-                                        Map<String, InetSocketAddress> activePeers = 
-                                            (Map<String, InetSocketAddress>) activePeersField.get(null);
-                                        activePeers.put(senderUsername, (InetSocketAddress) from);
-                                        System.out.printf("[KA-BURST] 📝 Registered %s for P2P messaging%n", senderUsername);
-                                    } catch (Exception e) {
-                                        System.err.printf("[KA-BURST] ⚠️ Failed to register peer: %s%n", e.getMessage());
-                                    }
-                                    
-                                    continue; // Don't respond to ACK packets!
-                                }
-                                
-                                System.out.println("[KA-BURST] ✅ Source validated - AUTO-RESPONDING");
-                                
-                                System.out.printf("[KA-BURST] Burst from %s -> %s: %s%n", 
-                                    senderUsername, receiverUsername, payload);
-                                
-                                // Send immediate response to establish NAT hole (ONLY if not an ACK)
-                                ByteBuffer response = LLS.New_Burst_Packet(
-                                    receiverUsername,  // Me
-                                    senderUsername,    // Them
-                                    "BURST-ACK"
-                                );
-                                dc.send(response, (InetSocketAddress) from);
-                                
-                                System.out.printf("[KA-BURST] ✅ Auto-responded to %s - NAT hole established%n", 
-                                    senderUsername);
-                                
-                                // Register peer in NatAnalyzer for messaging
-                                try {
-                                    java.lang.reflect.Field activePeersField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                        .getDeclaredField("activePeers");
-                                    activePeersField.setAccessible(true);
-                                    @SuppressWarnings("unchecked")
-                                    Map<String, InetSocketAddress> activePeers = 
-                                        (Map<String, InetSocketAddress>) activePeersField.get(null);
-                                    activePeers.put(senderUsername, (InetSocketAddress) from);
-                                    
-                                    java.lang.reflect.Field lastActivityField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                        .getDeclaredField("lastActivity");
-                                    lastActivityField.setAccessible(true);
-                                    @SuppressWarnings("unchecked")
-                                    Map<String, Long> lastActivity = 
-                                        (Map<String, Long>) lastActivityField.get(null);
-                                    lastActivity.put(senderUsername, System.currentTimeMillis());
-                                    
-                                    System.out.printf("[KA-BURST] 📝 Registered %s for P2P messaging%n", senderUsername);
-                                } catch (Exception e) {
-                                    System.err.println("[KA-BURST] Warning: Could not register peer: " + e.getMessage());
-                                }
-                                
-                            } catch (Exception e) {
-                                System.err.println("[KA-BURST] ❌ Error handling burst: " + e.getMessage());
-                                e.printStackTrace();
-                            }
-                        } else if (type == LLS.SIG_RMSG_DATA) {
-                            // 🆕 Reliable message DATA chunk
-                            System.out.printf("[KA] 📦 Reliable DATA chunk from %s%n", from);
-                            try {
-                                Object[] parsed = LLS.parseReliableMessageChunk(buf.duplicate());
-                                
-                                // Forward to ReliableMessageReceiver via NatAnalyzer
-                                java.lang.reflect.Field receiverField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("reliableReceiver");
-                                receiverField.setAccessible(true);
-                                ReliableMessageReceiver receiver = (ReliableMessageReceiver) receiverField.get(null);
-                                
-                                if (receiver != null) {
-                                    receiver.handleDataChunk(parsed, (InetSocketAddress) from);
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[KA] ❌ Error handling reliable DATA: " + e.getMessage());
-                            }
-                        } else if (type == LLS.SIG_RMSG_ACK) {
-                            // 🆕 Reliable message ACK
-                            System.out.printf("[KA] ✅ Reliable ACK from %s%n", from);
-                            try {
-                                Object[] parsed = LLS.parseReliableMessageACK(buf.duplicate());
-                                
-                                // Forward to ReliableMessageSender via NatAnalyzer
-                                java.lang.reflect.Field senderField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("reliableSender");
-                                senderField.setAccessible(true);
-                                ReliableMessageSender sender = (ReliableMessageSender) senderField.get(null);
-                                
-                                if (sender != null) {
-                                    sender.handleACK((long) parsed[4], (int) parsed[5], (long) parsed[6]);
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[KA] ❌ Error handling reliable ACK: " + e.getMessage());
-                            }
-                        } else if (type == LLS.SIG_RMSG_NACK) {
-                            // 🆕 Reliable message NACK
-                            System.out.printf("[KA] ⚠️  Reliable NACK from %s%n", from);
-                            try {
-                                Object[] parsed = LLS.parseReliableMessageNACK(buf.duplicate());
-                                
-                                // Forward to ReliableMessageSender via NatAnalyzer
-                                java.lang.reflect.Field senderField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("reliableSender");
-                                senderField.setAccessible(true);
-                                ReliableMessageSender sender = (ReliableMessageSender) senderField.get(null);
-                                
-                                if (sender != null) {
-                                    sender.handleNACK((long) parsed[4], (int[]) parsed[5], (InetSocketAddress) from);
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[KA] ❌ Error handling reliable NACK: " + e.getMessage());
-                            }
-                        } else if (type == LLS.SIG_RMSG_FIN) {
-                            // 🆕 Reliable message FIN
-                            System.out.printf("[KA] 🏁 Reliable FIN from %s%n", from);
-                            try {
-                                Object[] parsed = LLS.parseReliableMessageFIN(buf.duplicate());
-                                
-                                // Forward to ReliableMessageReceiver via NatAnalyzer
-                                java.lang.reflect.Field receiverField = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                    .getDeclaredField("reliableReceiver");
-                                receiverField.setAccessible(true);
-                                ReliableMessageReceiver receiver = (ReliableMessageReceiver) receiverField.get(null);
-                                
-                                if (receiver != null) {
-                                    receiver.handleFIN((long) parsed[4]);
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[KA] ❌ Error handling reliable FIN: " + e.getMessage());
-                            }
-                        } else {
-                            // 📁 File transfer packet detection by size and structure
-                            // Note: size already defined at top of loop
-                            boolean isFilePacket = false;
-                            String packetType = null;
-                            
-                            // HandShake_Packet: 21 bytes (type + fileId + state + seqNum + ackNum)
-                            if (size == 21) {
-                                packetType = "HANDSHAKE";
-                                isFilePacket = true;
-                            }
-                            // NackFrame: 28 bytes (type + fileId + lostSeqStart + bitmap + timestamp)
-                            else if (size == 28) {
-                                packetType = "NACK";
-                                isFilePacket = true;
-                            }
-                            // Completion signal: 8 bytes
-                            else if (size == 8) {
-                                packetType = "COMPLETION";
-                                isFilePacket = true;
-                            }
-                            // CRC32C_Packet: 22+ bytes (type + fileId + seqNum + CRC32 + data)
-                            else if (size >= 22 && type == 0x00) {
-                                // Verify it has fileId structure (8 bytes after type)
-                                ByteBuffer verify = buf.duplicate();
-                                verify.get(); // Skip type
-                                long fileId = verify.getLong(); // Read fileId
-                                
-                                if (fileId != 0) { // Valid fileId
-                                    packetType = "DATA";
-                                    isFilePacket = true;
-                                }
-                            }
-                            
-                            if (isFilePacket) {
-                                // Only log non-data packets to avoid spam
-                                if (!"DATA".equals(packetType)) {
-                                    System.out.printf("[KA] 📁 File %s packet detected (%d bytes) from %s%n", 
-                                        packetType, size, from);
-                                }
-                                
-                                // Forward to NatAnalyzer.FileTransferDispatcher
-                                try {
-                                    java.lang.reflect.Method method = Class.forName("com.saferoom.natghost.NatAnalyzer")
-                                        .getDeclaredMethod("onFileTransferPacket", ByteBuffer.class, SocketAddress.class);
-                                    method.setAccessible(true);
-                                    method.invoke(null, buf.duplicate(), from);
-                                    
-                                    // Only log forwarding for non-data packets
-                                    if (!"DATA".equals(packetType)) {
-                                        System.out.println("[KA] ✅ File packet forwarded to NatAnalyzer");
-                                    }
-                                } catch (Exception e) {
-                                    System.err.println("[KA] ❌ Error forwarding file packet: " + e.getMessage());
-                                    e.printStackTrace();
-                                }
-                            } else if (type == 0x00 && size >= 22) {
-                                // Late DATA packet - file transfer probably finished, silently drop
-                                // (This prevents spam from in-flight packets after transfer completion)
-                            } else {
-                                System.out.printf("[KA] ❓ Unknown packet type 0x%02X (%d bytes) from %s%n", type, size, from);
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("[KA] Message listener error: " + e.getMessage());
-            }
-            
-            System.out.println("[KA] 📡 Message listener stopped");
-        }, "KA-MessageListener");
-        
-        messageListenerThread.setDaemon(true);
-        messageListenerThread.start();
+        reactor.register(channel, this::onDatagram).join();
+        System.out.println("[KA] 📡 Integrated message listener started");
+    }
+    
+    private void onDatagram(ByteBuffer buf, InetSocketAddress from, DatagramChannel dc) {
+        if (!LLS.hasWholeFrame(buf)) {
+            System.out.printf("[KA] ⚠️ Incomplete frame: %d bytes from %s%n", buf.remaining(), from);
+            return;
+        }
+        byte type = LLS.peekType(buf);
+        if (dispatcher.handles(type) && type != LLS.SIG_DNS_QUERY) {
+            System.out.printf("[KA] 📡 Received packet type: 0x%02X (%d bytes) from %s%n",
+                type, buf.remaining(), from);
+        }
+        dispatcher.dispatch(buf, from, dc);
     }
     
     /**
-     * Stop message listening (for temporary selector changes during hole punch)
+     * Stop message listening (a file transfer drives the channel meanwhile)
      */
     public void stopMessageListening() {
         if (!listening) return;
         
         listening = false;
-        if (messageListenerThread != null) {
-            messageListenerThread.interrupt();
-            try {
-                messageListenerThread.join(1000); // Wait up to 1 second
-            } catch (InterruptedException e) {
-                // Ignore
-            }
-            messageListenerThread = null;
-        }
+        DatagramChannel channel = activeChannel;
+        if (channel == null) return;
         
         // ⚡ CRITICAL: Flush any pending packets in the channel buffer!
         // When KeepAliveManager stops, there might be stale SERVER packets (punch instructions)
-        // that were already processed but still in UDP buffer. If executeStandardHolePunch
-        // reads these old packets, it thinks server is responding during hole punch!
-        if (activeChannel != null && activeChannel.isOpen()) {
-            try {
-                activeChannel.configureBlocking(false);
-                ByteBuffer flushBuffer = ByteBuffer.allocate(2048);
-                int flushedCount = 0;
-                
-                // Drain all pending packets from buffer
-                while (activeChannel.receive(flushBuffer) != null) {
-                    flushedCount++;
-                    flushBuffer.clear();
-                }
-                
-                if (flushedCount > 0) {
-                    System.out.printf("[KA] 🧹 Flushed %d stale packet(s) from channel buffer%n", flushedCount);
-                }
-            } catch (Exception e) {
-                System.err.println("[KA] ⚠️ Warning: Could not flush channel buffer: " + e.getMessage());
+        // that were already processed but still in UDP buffer. Done on the loop, right after
+        // it stops reading, so no datagram is both dispatched and flushed.
+        int flushedCount = reactor.pause(channel).thenCompose(v -> reactor.submit(() -> {
+            if (!channel.isOpen()) return 0;
+            ByteBuffer flushBuffer = ByteBuffer.allocate(RECEIVE_BUFFER);
+            int flushed = 0;
+            while (channel.receive(flushBuffer) != null) {
+                flushed++;
+                flushBuffer.clear();
             }
-        }
+            return flushed;
+        })).exceptionally(e -> {
+            System.err.println("[KA] ⚠️ Warning: Could not flush channel buffer: " + e.getMessage());
+            return 0;
+        }).join();
         
+        if (flushedCount > 0) {
+            System.out.printf("[KA] 🧹 Flushed %d stale packet(s) from channel buffer%n", flushedCount);
+        }
         System.out.println("[KA] 📡 Message listener stopped");
     }
 
     @Override
     public void close() {
         listening = false;
-        if (messageListenerThread != null) {
-            messageListenerThread.interrupt();
+        tasks.values().forEach(NatReactor.Timer::cancel);
+        tasks.clear();
+        if (activeChannel != null && reactor.isRunning()) {
+            reactor.deregister(activeChannel);
         }
-        tasks.values().forEach(f -> f.cancel(true));
-        exec.shutdownNow();
     }
 }
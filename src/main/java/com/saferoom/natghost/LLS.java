@@ -472,14 +472,24 @@ public class LLS {
     // NEW: Create NAT profile packet
     // Structure: type(1) + len(2) + user(20) + natType(1) + minPort(4) + maxPort(4) + profiledPorts(4) = 36 bytes
     public static byte[] createNATProfilePacket(String username, byte natType, int minPort, int maxPort, int profiledPorts) {
-        ByteBuffer buffer = ByteBuffer.allocate(36);
+        return createNATProfilePacket(username, natType, minPort, maxPort, profiledPorts, null);
+    }
+
+    // Same, plus the port allocation model when known: + PortPredictor.WIRE_BYTES = 47 bytes
+    static byte[] createNATProfilePacket(String username, byte natType, int minPort, int maxPort, int profiledPorts,
+                                         PortPredictor.Model model) {
+        int len = 36 + (model != null ? PortPredictor.WIRE_BYTES : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(len);
         buffer.put(SIG_NAT_PROFILE);
-        buffer.putShort((short) 36);
+        buffer.putShort((short) len);
         putFixedString(buffer, username, 20);
         buffer.put(natType);
         buffer.putInt(minPort);
         buffer.putInt(maxPort);
         buffer.putInt(profiledPorts);
+        if (model != null) {
+            PortPredictor.write(model, buffer);
+        }
         return buffer.array();
     }
 
@@ -500,21 +510,34 @@ public class LLS {
         parsed.add(maxPort);
         int profiledPorts = buffer.getInt();
         parsed.add(profiledPorts);
-        return parsed; // [type, len, user, natType, minPort, maxPort, profiledPorts]
+        if (len >= 36 + PortPredictor.WIRE_BYTES && buffer.remaining() >= PortPredictor.WIRE_BYTES) {
+            parsed.add(PortPredictor.read(buffer, minPort, maxPort));
+        }
+        return parsed; // [type, len, user, natType, minPort, maxPort, profiledPorts, model?]
     }
 
     // NEW: Create punch instruction packet for symmetric NAT side
     // Structure: type(1) + len(2) + user(20) + target(20) + targetIP(4) + targetPort(4) + strategy(1) + numPorts(4) = 56 bytes
     public static byte[] createPunchInstructPacket(String username, String target, InetAddress targetIP, int targetPort, byte strategy, int numPorts) {
-        ByteBuffer buffer = ByteBuffer.allocate(56);
+        return createPunchInstructPacket(username, target, targetIP, targetPort, strategy, numPorts, null);
+    }
+
+    // Same, plus the target's port allocation model (from its NAT profile): + PortPredictor.WIRE_BYTES = 67 bytes
+    static byte[] createPunchInstructPacket(String username, String target, InetAddress targetIP, int targetPort,
+                                            byte strategy, int numPorts, PortPredictor.Model targetModel) {
+        int len = 56 + (targetModel != null ? PortPredictor.WIRE_BYTES : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(len);
         buffer.put(SIG_PUNCH_INSTRUCT);
-        buffer.putShort((short) 56);
+        buffer.putShort((short) len);
         putFixedString(buffer, username, 20);
         putFixedString(buffer, target, 20);
         buffer.put(targetIP.getAddress());
         buffer.putInt(targetPort);
         buffer.put(strategy); // 0x01 = symmetric burst, 0x02 = asymmetric scan
         buffer.putInt(numPorts);
+        if (targetModel != null) {
+            PortPredictor.write(targetModel, buffer);
+        }
         return buffer.array();
     }
 
@@ -539,7 +562,10 @@ public class LLS {
         parsed.add(strategy);
         int numPorts = buffer.getInt();
         parsed.add(numPorts);
-        return parsed; // [type, len, user, target, targetIP, targetPort, strategy, numPorts]
+        if (len >= 56 + PortPredictor.WIRE_BYTES && buffer.remaining() >= PortPredictor.WIRE_BYTES) {
+            parsed.add(PortPredictor.read(buffer, targetPort, targetPort + Math.max(1, numPorts) - 1));
+        }
+        return parsed; // [type, len, user, target, targetIP, targetPort, strategy, numPorts, targetModel?]
     }
     
     /**
@@ -5,15 +5,9 @@ import com.saferoom.server.SafeRoomServer;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ClosedByInterruptException;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
 import java.util.Enumeration;
 
 public class NatAnalyzer {
@@ -29,7 +23,8 @@ public class NatAnalyzer {
     // Global KeepAliveManager instance (ONE per application)
     private static KeepAliveManager globalKeepAlive = null;
     
-    // 🆕 Dedicated thread pool for P2P operations (prevents ForkJoinPool exhaustion)
+    // 🆕 Dedicated thread pool for blocking file transfers (the transfer engine drives
+    // stunChannel itself while the reactor is paused on it); everything else runs on NatReactor
     private static final ExecutorService P2P_EXECUTOR = Executors.newCachedThreadPool(r -> {
         Thread t = new Thread(r, "P2P-Worker");
         t.setDaemon(true);
@@ -39,21 +34,34 @@ public class NatAnalyzer {
     // 🆕 P2P Connection Futures - for async coordination
     private static final Map<String, CompletableFuture<Boolean>> pendingP2PConnections = new ConcurrentHashMap<>();
     
-    // 🆕 Active punch threads - prevent duplicate punch execution
-    private static final Map<String, Thread> activePunchThreads = new ConcurrentHashMap<>();
+    // 🆕 Punches in progress (reactor state machines) - prevent duplicate punch execution
+    private static final Map<String, CompletableFuture<Boolean>> activePunches = new ConcurrentHashMap<>();
     
     // Multiple peer connections support
     private static final Map<String, InetSocketAddress> activePeers = new ConcurrentHashMap<>();
     private static final Map<String, Long> lastActivity = new ConcurrentHashMap<>();
+    // Same maps, typed, for KeepAliveManager's packet handlers
+    static final PeerDirectory peers = new PeerDirectory(activePeers, lastActivity);
     
     // 🆕 Pending file transfers - store filename from chat message
     private static final Map<String, String> pendingFileNames = new ConcurrentHashMap<>();
+    // Senders whose next transfer is a folder (batch stream, unpacked on completion)
+    private static final java.util.Set<String> pendingBatchSenders = ConcurrentHashMap.newKeySet();
+    private static final String FOLDER_ANNOUNCE = "📁 Sending folder: ";
     
     // 🆕 Reliable Messaging components
-    private static ReliableMessageSender reliableSender = null;
-    private static ReliableMessageReceiver reliableReceiver = null;
+    private static volatile ReliableMessageSender reliableSender = null;
+    private static volatile ReliableMessageReceiver reliableReceiver = null;
     private static String currentUsername = null;
     
+    static ReliableMessageSender reliableSender() {
+        return reliableSender;
+    }
+    
+    static ReliableMessageReceiver reliableReceiver() {
+        return reliableReceiver;
+    }
+    
     // 🆕 Callback for received reliable messages
     @FunctionalInterface
     public interface ReliableMessageCallback {
@@ -68,6 +76,7 @@ public class NatAnalyzer {
         public int maxPort;
         public int profiledPorts;
         public List<Integer> observedPorts;
+        public String publicIP; // mapped address when saved: a saved profile is only reused behind the same one
         
         public NATProfile(byte natType, int minPort, int maxPort, int profiledPorts, List<Integer> observedPorts) {
             this.natType = natType;
@@ -76,9 +85,18 @@ public class NatAnalyzer {
             this.profiledPorts = profiledPorts;
             this.observedPorts = observedPorts;
         }
+        
+        /** How this NAT allocates ports (observedPorts are in allocation order), see PortPredictor */
+        PortPredictor.Model model() {
+            return observedPorts.isEmpty() ? PortPredictor.uniform(minPort, maxPort) : PortPredictor.fit(observedPorts);
+        }
     }
     
     private static NATProfile cachedProfile = null;
+    // True when cachedProfile needs no deep profiling (non-symmetric, or loaded/saved for this network)
+    private static volatile boolean cachedProfileComplete = false;
+    private static final NatProfileStore profileStore = NatProfileStore.defaultStore();
+    private static volatile String networkKey = null;
 
     private static final SecureRandom RNG = new SecureRandom();
     public static final String[][] stunServers = {
@@ -91,6 +109,14 @@ public class NatAnalyzer {
     private static final long  HOLE_TIMEOUT_MS    = 10_000;
     private static final long  RESEND_INTERVAL_MS = 1_000;
     private static final long  SELECT_BLOCK_MS    = 50;
+    // STUN probes: resend unanswered every 500ms (RFC 5389 initial RTO), per-probe deadline for deep profiling
+    private static final long  STUN_RESEND_MS     = 500;
+    private static final long  PROFILE_PROBE_DEADLINE_MS = 3_000;
+    // Deep profiling: ephemeral sockets open at once, and answers without a wider range before stopping
+    private static final int   PROFILE_IN_FLIGHT  = 256;
+    private static final int   PROFILE_STABLE_SAMPLES = 100;
+    // Asymmetric scan of a predictable peer: candidates ranked ahead of its last known port
+    private static final int   PREDICTED_CANDIDATES = 1024;
 
     public static ByteBuffer stunPacket() {
         ByteBuffer p = ByteBuffer.allocate(20);
@@ -250,73 +276,55 @@ public class NatAnalyzer {
             stunChannel = null;
         }
         
-        Selector selector = Selector.open();
         stunChannel = DatagramChannel.open(); // KEEP THIS OPEN!
         stunChannel.configureBlocking(false);
         stunChannel.bind(new InetSocketAddress(0));
-        stunChannel.register(selector, SelectionKey.OP_READ);
         
         InetSocketAddress localAddr = (InetSocketAddress) stunChannel.getLocalAddress();
         localPort = localAddr.getPort();
         System.out.println("[NAT] Bound to local port: " + localPort + " (KEEPING OPEN FOR HOLE PUNCH)");
 
-        // Send STUN requests to multiple servers in parallel
-        int sentCount = 0;
-        for (String[] server : servers) {
-            try {
-                InetAddress.getByName(server[0]);
-                stunChannel.send(stunPacket().duplicate(), 
-                    new InetSocketAddress(server[0], Integer.parseInt(server[1])));
-                sentCount++;
-                System.out.println("[NAT] STUN request sent to " + server[0] + ":" + server[1]);
-            } catch (UnknownHostException e) {
-                System.err.println("[NAT] Invalid STUN server: " + server[0]);
-            }
-        }
-
-        if (sentCount == 0) {
+        // Probe every server at once, each with its own deadline (resent while unanswered)
+        List<InetSocketAddress> targets = StunProbe.resolve("NAT", servers);
+        if (targets.isEmpty()) {
             System.err.println("[NAT] No valid STUN servers found");
             stunChannel.close();
             stunChannel = null;
-            selector.close();
             return (byte)0xFE;
         }
+        int sentCount = targets.size();
 
-        // Wait for responses
-        long deadline = System.currentTimeMillis() + STUN_TIMEOUT_MS;
-        while (System.currentTimeMillis() < deadline && Public_PortList.size() < sentCount) {
-            if (selector.select(SELECT_BLOCK_MS) == 0) continue;
-            
-            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next(); 
-                it.remove();
-                
-                if (!key.isReadable()) continue;
-                
-                DatagramChannel rc = (DatagramChannel) key.channel();
-                ByteBuffer recv = ByteBuffer.allocate(512);
-                SocketAddress from = rc.receive(recv);
-                if (from == null) continue;
-                
-                recv.flip();
-                System.out.printf("[NAT] STUN response received from %s, buffer size: %d%n", from, recv.remaining());
-                
-                // Debug: Show first few bytes of response
-                if (recv.remaining() >= 20) {
-                    recv.mark();
-                    System.out.printf("[NAT] STUN header: %02X %02X %02X %02X%n", 
-                        recv.get(), recv.get(), recv.get(), recv.get());
-                    recv.reset();
-                }
-                
-                parseStunResponse(recv, Public_PortList);
-                System.out.printf("[NAT] After parsing - Public_PortList size: %d%n", Public_PortList.size());
+        // A saved profile for this network already knows the NAT type: the first answer will do
+        NATProfile saved = loadSavedProfile();
+        long probeStart = System.nanoTime();
+        List<StunProbe.Response> responses = StunProbe.fromChannel(NatReactor.shared(), "NAT", stunChannel, targets,
+                saved != null ? StunProbe.first() : StunProbe.mappingDecided())
+            .start(STUN_TIMEOUT_MS, STUN_RESEND_MS)
+            .join();
+        if (saved != null && !responses.isEmpty()) {
+            // Same interface, address and gateway is common (192.168.1.x behind 192.168.1.1): check the public side
+            String publicIP = responses.get(0).mapped().getAddress().getHostAddress();
+            if (!publicIP.equals(saved.publicIP)) {
+                System.out.println("[NAT-DETECT] Saved profile was made behind " + saved.publicIP + ", now "
+                    + publicIP + " - classifying again");
+                saved = null;
+                responses = StunProbe.fromChannel(NatReactor.shared(), "NAT", stunChannel, targets,
+                        StunProbe.mappingDecided())
+                    .start(STUN_TIMEOUT_MS, STUN_RESEND_MS)
+                    .join();
             }
         }
+        Public_PortList.clear(); // this channel's mappings only
+        for (StunProbe.Response response : responses) {
+            System.out.printf("[NAT] STUN response from %s: mapped %s (%d ms)%n",
+                response.server(), response.mapped(), response.rttMs());
+            myPublicIP = response.mapped().getAddress().getHostAddress();
+            Public_PortList.add(response.mapped().getPort());
+        }
+        System.out.printf("[NAT] STUN probing done: %d/%d responses in %d ms%n", responses.size(), sentCount,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeStart));
 
         // DON'T close the channel! Keep it for hole punching
-        selector.close();
         System.out.println("[NAT] STUN analysis complete - Channel remains OPEN for hole punch");
 
         // Analyze results
@@ -336,6 +344,9 @@ public class NatAnalyzer {
         if (uniquePorts.isEmpty()) {
             System.err.println("[NAT-DETECT] ❌ No STUN responses received - network error");
             signal = (byte)0xFE;
+        } else if (saved != null) {
+            System.out.println("[NAT-DETECT] ⚡ NAT type from saved profile for this network (skipping classification)");
+            signal = saved.natType;
         } else if (uniquePorts.size() == 1) {
             System.out.println("[NAT-DETECT] ✅ All " + totalResponses + " responses used SAME port (" + uniquePorts.get(0) + ")");
             System.out.println("[NAT-DETECT] → NAT Type: NON-SYMMETRIC (Full Cone or Restricted)");
@@ -354,12 +365,23 @@ public class NatAnalyzer {
                 // Non-Symmetric: Single stable port (minPort = maxPort)
                 int port = uniquePorts.get(0);
                 cachedProfile = new NATProfile(signal, port, port, 1, uniquePorts);
+                // Complete once two servers agreed (or the saved profile said so); nothing to deep-profile
+                cachedProfileComplete = saved != null || totalResponses > 1;
+                if (saved == null && cachedProfileComplete) {
+                    saveProfile(cachedProfile);
+                }
                 System.out.println("[NAT-DETECT] 📝 Cached NON-SYMMETRIC profile (single port: " + port + ")");
+            } else if (saved != null) {
+                // Symmetric, range already mapped on this network
+                cachedProfile = saved;
+                cachedProfileComplete = true;
+                System.out.println("[NAT-DETECT] 📝 Using saved SYMMETRIC profile (range: " + saved.minPort + "-" + saved.maxPort + ")");
             } else if (signal == 0x11) {
                 // Symmetric: Multiple ports detected, cache min/max range for now
                 int minPort = Collections.min(uniquePorts);
                 int maxPort = Collections.max(uniquePorts);
                 cachedProfile = new NATProfile(signal, minPort, maxPort, uniquePorts.size(), uniquePorts);
+                cachedProfileComplete = false;
                 System.out.println("[NAT-DETECT] 📝 Cached SYMMETRIC basic profile (range: " + minPort + "-" + maxPort + ")");
                 System.out.println("[NAT-DETECT] ⚠️ Deep profiling recommended for accurate range!");
             }
@@ -368,6 +390,35 @@ public class NatAnalyzer {
         return signal;
     }
     
+    /**
+     * This network's saved NAT profile (interface + gateway, within the TTL),
+     * or null: then the NAT type is classified from scratch. The caller still
+     * compares its public IP with the first STUN answer.
+     */
+    private static NATProfile loadSavedProfile() {
+        try {
+            networkKey = NatProfileStore.networkKey(getRealLocalIP());
+        } catch (Exception e) {
+            System.err.println("[NAT-PROFILE] Cannot identify network: " + e.getMessage());
+            networkKey = null;
+            return null;
+        }
+        NATProfile saved = profileStore.load(networkKey);
+        if (saved != null) {
+            System.out.printf("[NAT-PROFILE] ✅ Saved profile for network %s: 0x%02X, ports %d-%d%n",
+                networkKey, saved.natType, saved.minPort, saved.maxPort);
+        }
+        return saved;
+    }
+    
+    private static void saveProfile(NATProfile profile) {
+        if (networkKey != null) {
+            profile.publicIP = myPublicIP;
+            profileStore.save(networkKey, profile);
+            System.out.println("[NAT-PROFILE] 💾 Profile saved for network " + networkKey);
+        }
+    }
+    
     // Legacy method for backward compatibility
     public static byte analyzer(String[][] servers) throws Exception {
         return analyzeSinglePort(servers);
@@ -410,46 +461,27 @@ public class NatAnalyzer {
         stunChannel.send(holeRequest, signalingServer);
         System.out.println("[P2P] Extended hole punch request sent (public + local) using local port: " + localPort);
         
-        // Step 3: Wait for peer info from signaling server
-        Selector peerSelector = Selector.open();
-        stunChannel.register(peerSelector, SelectionKey.OP_READ);
-        
-        long deadline = System.currentTimeMillis() + HOLE_TIMEOUT_MS;
-        InetAddress peerIP = null;
-        int peerPort = 0;
-        boolean peerInfoReceived = false;
-        
-        while (System.currentTimeMillis() < deadline && !peerInfoReceived) {
-            if (peerSelector.select(SELECT_BLOCK_MS) == 0) continue;
-            
-            Iterator<SelectionKey> it = peerSelector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next();
-                it.remove();
-                
-                if (!key.isReadable()) continue;
-                
-                DatagramChannel dc = (DatagramChannel) key.channel();
-                ByteBuffer buf = ByteBuffer.allocate(512);
-                SocketAddress from = dc.receive(buf);
-                if (from == null) continue;
-                buf.flip();
-                
-                if (!LLS.hasWholeFrame(buf)) continue;
-                byte type = LLS.peekType(buf);
-                
-                if (type == LLS.SIG_PORT) {
-                    List<Object> info = LLS.parsePortInfo(buf.duplicate());
-                    peerIP = (InetAddress) info.get(0);
-                    peerPort = (Integer) info.get(1);
-                    peerInfoReceived = true;
-                    System.out.println("[P2P] Peer info received: " + peerIP + ":" + peerPort);
-                    break;
-                }
+        // Step 3: Wait for peer info from signaling server (read on the reactor)
+        NatReactor reactor = NatReactor.shared();
+        CompletableFuture<InetSocketAddress> peerInfo = new CompletableFuture<>();
+        reactor.register(stunChannel, (buf, from, ch) -> {
+            if (LLS.hasWholeFrame(buf) && LLS.peekType(buf) == LLS.SIG_PORT) {
+                List<Object> info = LLS.parsePortInfo(buf.duplicate());
+                peerInfo.complete(new InetSocketAddress((InetAddress) info.get(0), (Integer) info.get(1)));
             }
+        }).join();
+        
+        InetSocketAddress peerAddr;
+        try {
+            peerAddr = peerInfo.get(HOLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            System.out.println("[P2P] Peer info received: " + peerAddr);
+        } catch (TimeoutException e) {
+            peerAddr = null;
+        } finally {
+            reactor.deregister(stunChannel).join();
         }
         
-        if (!peerInfoReceived) {
+        if (peerAddr == null) {
             System.err.println("[P2P] Timeout waiting for peer info");
             if (stunChannel != null) {
                 try {
@@ -459,66 +491,18 @@ public class NatAnalyzer {
                 }
                 stunChannel = null;
             }
-            peerSelector.close();
             return false;
         }
         
-        // Step 4: Start DNS packet exchange using SAME channel WITH response listening
-        InetSocketAddress peerAddr = new InetSocketAddress(peerIP, peerPort);
+        // Step 4: STUN Binding burst + response listening on the SAME channel, as a reactor state machine
         System.out.println("[P2P] Starting 10-second STUN Binding burst with response listening on port: " + localPort);
-        
-        // Setup selector for concurrent burst + response listening
-        Selector burstSelector = Selector.open();
-        stunChannel.register(burstSelector, SelectionKey.OP_READ);
-        
-        long burstStart = System.currentTimeMillis();
-        long burstDuration = 10000; // 10 seconds - much longer for hole punch
-        long burstInterval = 100;    // Every 100ms
-        long lastSend = 0;
-        int packetCount = 0;
-        boolean responseReceived = false;
-        
-        // CONCURRENT: Send STUN Binding burst + Listen for response (ICE-like approach)
-        while ((System.currentTimeMillis() - burstStart) < burstDuration && !responseReceived) {
-            // Send STUN Binding packet if it's time
-            if ((System.currentTimeMillis() - lastSend) >= burstInterval) {
-                ByteBuffer stunBinding = stunPacket(); // Use STUN Binding Request instead of DNS
-                stunChannel.send(stunBinding, peerAddr);
-                packetCount++;
-                System.out.println("[P2P] STUN Binding burst #" + packetCount + " sent to " + peerAddr + " from port " + localPort);
-                lastSend = System.currentTimeMillis();
-            }
-            
-            // Check for response (non-blocking)
-            if (burstSelector.selectNow() > 0) {
-                Iterator<SelectionKey> it = burstSelector.selectedKeys().iterator();
-                while (it.hasNext()) {
-                    SelectionKey key = it.next();
-                    it.remove();
-                    
-                    if (!key.isReadable()) continue;
-                    
-                    DatagramChannel dc = (DatagramChannel) key.channel();
-                    ByteBuffer buf = ByteBuffer.allocate(1024);
-                    SocketAddress from = dc.receive(buf);
-                    if (from == null) continue;
-                    
-                    buf.flip();
-                    System.out.printf("[P2P] 📥 Response received during burst from %s - hole punch confirmed!%n", from);
-                    responseReceived = true;
-                    break;
-                }
-            }
-            
-            Thread.sleep(10); // Small sleep to prevent busy loop
-        }
-        
-        burstSelector.close();
-        
-        System.out.println("[P2P] STUN Binding burst complete: " + packetCount + " packets sent over " + (System.currentTimeMillis() - burstStart) + "ms");
+        HolePunch.Result punched = HolePunch.toPort(reactor, "P2P", stunChannel, peerAddr,
+                (socket, seq, port) -> stunPacket(), HolePunch.ANY)
+            .start(100, 10_000) // every 100ms for 10 seconds - much longer for hole punch
+            .join();
         
         // Check if response was received during burst
-        if (!responseReceived) {
+        if (punched == null) {
             System.err.println("[P2P] ❌ No STUN response received during burst - hole punch failed");
             if (stunChannel != null) {
                 try {
@@ -528,6 +512,7 @@ public class NatAnalyzer {
             }
             return false;
         }
+        System.out.println("[P2P] STUN Binding burst complete: " + punched.bursts() + " packets sent over " + punched.elapsedMs() + "ms");
         
         // Initialize global KeepAliveManager ONCE if not already started
         if (globalKeepAlive == null) {
@@ -540,8 +525,6 @@ public class NatAnalyzer {
         // Register this peer with global KeepAliveManager
         globalKeepAlive.register(stunChannel, peerAddr);
         
-        peerSelector.close();
-        
         // Store peer address for messaging (multiple peer support)
         activePeers.put(targetUsername, peerAddr);
         lastActivity.put(targetUsername, System.currentTimeMillis());
@@ -624,57 +607,40 @@ public class NatAnalyzer {
             
             System.out.println("[P2P] Registration packet sent to server");
             
-            // Step 3: Wait for acknowledgment from server
-            // CRITICAL: Ensure channel is non-blocking and properly registered
-            stunChannel.configureBlocking(false);
-            Selector regSelector = Selector.open();
-            stunChannel.register(regSelector, SelectionKey.OP_READ);
-            
-            long deadline = System.currentTimeMillis() + 5000; // 5 second timeout
-            boolean ackReceived = false;
-            
-            System.out.println("[P2P] ⏳ Waiting for registration ACK from server...");
-            
-            while (System.currentTimeMillis() < deadline && !ackReceived) {
-                if (regSelector.select(500) == 0) continue; // 500ms wait
+            // Step 3: Wait for acknowledgment from server (read on the reactor)
+            NatReactor reactor = NatReactor.shared();
+            CompletableFuture<Void> ack = new CompletableFuture<>();
+            reactor.register(stunChannel, (buf, from, ch) -> {
+                System.out.printf("[P2P] 📦 Received packet during registration wait (size: %d, from: %s)%n", 
+                    buf.remaining(), from);
                 
-                Iterator<SelectionKey> it = regSelector.selectedKeys().iterator();
-                while (it.hasNext()) {
-                    SelectionKey key = it.next();
-                    it.remove();
-                    
-                    if (!key.isReadable()) continue;
-                    
-                    DatagramChannel dc = (DatagramChannel) key.channel();
-                    ByteBuffer buf = ByteBuffer.allocate(512);
-                    SocketAddress from = dc.receive(buf);
-                    if (from == null) continue;
-                    
-                    buf.flip();
-                    
-                    System.out.printf("[P2P] 📦 Received packet during registration wait (size: %d, from: %s)%n", 
-                        buf.remaining(), from);
-                    
-                    if (!LLS.hasWholeFrame(buf)) {
-                        System.err.println("[P2P] ⚠️ Incomplete frame, skipping");
-                        continue;
-                    }
-                    
-                    byte type = LLS.peekType(buf);
-                    System.out.printf("[P2P] 📨 Packet type: 0x%02X%n", type);
-                    
-                    if (type == LLS.SIG_ALL_DONE) {
-                        ackReceived = true;
-                        System.out.println("[P2P] ✅ Registration acknowledged by server");
-                        break;
-                    } else {
-                        System.out.printf("[P2P] ⚠️ Unexpected packet type during registration: 0x%02X (expected SIG_ALL_DONE=0x%02X)%n", 
-                            type, LLS.SIG_ALL_DONE);
-                    }
+                if (!LLS.hasWholeFrame(buf)) {
+                    System.err.println("[P2P] ⚠️ Incomplete frame, skipping");
+                    return;
                 }
-            }
+                
+                byte type = LLS.peekType(buf);
+                System.out.printf("[P2P] 📨 Packet type: 0x%02X%n", type);
+                
+                if (type == LLS.SIG_ALL_DONE) {
+                    System.out.println("[P2P] ✅ Registration acknowledged by server");
+                    ack.complete(null);
+                } else {
+                    System.out.printf("[P2P] ⚠️ Unexpected packet type during registration: 0x%02X (expected SIG_ALL_DONE=0x%02X)%n", 
+                        type, LLS.SIG_ALL_DONE);
+                }
+            }).join();
             
-            regSelector.close();
+            System.out.println("[P2P] ⏳ Waiting for registration ACK from server...");
+            boolean ackReceived;
+            try {
+                ack.get(5000, TimeUnit.MILLISECONDS); // 5 second timeout
+                ackReceived = true;
+            } catch (TimeoutException e) {
+                ackReceived = false;
+            } finally {
+                reactor.deregister(stunChannel).join();
+            }
             
             if (!ackReceived) {
                 System.err.println("[P2P] Registration timeout - no acknowledgment from server");
@@ -746,7 +712,7 @@ public class NatAnalyzer {
             System.out.println("[P2P] 📤 P2P connection request sent to server");
             
             // Set timeout on the future (completes after 10s if not resolved)
-            CompletableFuture.delayedExecutor(10, TimeUnit.SECONDS, P2P_EXECUTOR).execute(() -> {
+            NatReactor.shared().schedule(() -> {
                 if (!connectionFuture.isDone()) {
                     System.out.println("[P2P] ⏰ Connection timeout for " + targetUsername);
                     pendingP2PConnections.remove(targetUsername);
@@ -755,7 +721,7 @@ public class NatAnalyzer {
                     boolean connected = activePeers.containsKey(targetUsername);
                     connectionFuture.complete(connected);
                 }
-            });
+            }, 10, TimeUnit.SECONDS);
             
             return connectionFuture;
             
@@ -840,38 +806,40 @@ public class NatAnalyzer {
             
             // Start hole punching to requester
             InetSocketAddress requesterAddr = new InetSocketAddress(targetIP, targetPort);
-            boolean success = performDirectHolePunching(requesterAddr, requester);
+            // Runs on the reactor: this handler returns at once, the punch answers later
+            performDirectHolePunching(requesterAddr, requester).thenAccept(success -> {
             
-            if (success) {
-                System.out.printf("[P2P] ✅ P2P connection established with %s (incoming request)%n", requester);
+                if (success) {
+                    System.out.printf("[P2P] ✅ P2P connection established with %s (incoming request)%n", requester);
                 
-                // Notify GUI about new P2P connection and switch to Messages
-                try {
-                    javafx.application.Platform.runLater(() -> {
-                        try {
-                            // First, switch to Messages tab in MainController
-                            com.saferoom.gui.controller.MainController mainController = 
-                                com.saferoom.gui.controller.MainController.getInstance();
-                            if (mainController != null) {
-                                System.out.printf("[P2P] 📱 Switching to Messages tab for incoming P2P from %s%n", requester);
-                                mainController.switchToMessages(); // This method needs to be added
-                            }
+                    // Notify GUI about new P2P connection and switch to Messages
+                    try {
+                        javafx.application.Platform.runLater(() -> {
+                            try {
+                                // First, switch to Messages tab in MainController
+                                com.saferoom.gui.controller.MainController mainController = 
+                                    com.saferoom.gui.controller.MainController.getInstance();
+                                if (mainController != null) {
+                                    System.out.printf("[P2P] 📱 Switching to Messages tab for incoming P2P from %s%n", requester);
+                                    mainController.switchToMessages(); // This method needs to be added
+                                }
                             
-                            // Then open chat with the requester (no bot message)
-                            System.out.printf("[P2P] 💬 Opening chat with requester: %s%n", requester);
-                            com.saferoom.gui.controller.MessagesController.openChatWithUser(requester);
+                                // Then open chat with the requester (no bot message)
+                                System.out.printf("[P2P] 💬 Opening chat with requester: %s%n", requester);
+                                com.saferoom.gui.controller.MessagesController.openChatWithUser(requester);
                                 
-                        } catch (Exception e) {
-                            System.err.println("[P2P] Error in GUI notification: " + e.getMessage());
-                            e.printStackTrace();
-                        }
-                    });
-                } catch (Exception e) {
-                    System.err.println("[P2P] Error notifying GUI: " + e.getMessage());
+                            } catch (Exception e) {
+                                System.err.println("[P2P] Error in GUI notification: " + e.getMessage());
+                                e.printStackTrace();
+                            }
+                        });
+                    } catch (Exception e) {
+                        System.err.println("[P2P] Error notifying GUI: " + e.getMessage());
+                    }
+                } else {
+                    System.err.printf("[P2P] ❌ Failed to establish P2P connection with %s%n", requester);
                 }
-            } else {
-                System.err.printf("[P2P] ❌ Failed to establish P2P connection with %s%n", requester);
-            }
+            });
             
         } catch (Exception e) {
             System.err.printf("[P2P] Error handling P2P notification from %s: %s%n", from, e.getMessage());
@@ -903,15 +871,20 @@ public class NatAnalyzer {
             int targetPort = (Integer) parsed.get(5);
             byte strategy = (Byte) parsed.get(6);
             int numPorts = (Integer) parsed.get(7);
+            // Servers that forward NAT models append the requester's port allocation model
+            PortPredictor.Model targetModel = parsed.size() > 8 ? (PortPredictor.Model) parsed.get(8) : null;
             
             System.out.printf("[P2P-INCOMING] 📨 Punch instruction parsed:%n");
             System.out.printf("  Requester: %s → Me: %s%n", target, username);
             System.out.printf("  Requester IP: %s:%d%n", targetIP.getHostAddress(), targetPort);
             System.out.printf("  Strategy: 0x%02X, Ports: %d%n", strategy, numPorts);
+            if (targetModel != null) {
+                System.out.printf("  Requester NAT: %s%n", targetModel);
+            }
             
             // 🆕 Check if punch already in progress for this target
-            Thread existingThread = activePunchThreads.get(target);
-            if (existingThread != null && existingThread.isAlive()) {
+            CompletableFuture<Boolean> existingPunch = activePunches.get(target);
+            if (existingPunch != null && !existingPunch.isDone()) {
                 System.out.printf("[P2P-INCOMING] ⏳ Punch already in progress for %s - ignoring duplicate instruction%n", target);
                 return;
             }
@@ -923,80 +896,42 @@ public class NatAnalyzer {
             }
             
             // 🆕 IMMEDIATELY notify GUI about incoming P2P request (don't wait for punch to complete!)
-            javafx.application.Platform.runLater(() -> {
-                try {
-                    // First, switch to Messages tab
-                    com.saferoom.gui.controller.MainController mainController = 
-                        com.saferoom.gui.controller.MainController.getInstance();
-                    if (mainController != null) {
-                        System.out.printf("[P2P-INCOMING] 📱 Switching to Messages tab for incoming P2P from %s%n", target);
-                        mainController.switchToMessages();
-                    }
-                    
-                    // Then open chat with the requester
-                    System.out.printf("[P2P-INCOMING] 💬 Opening chat with requester: %s%n", target);
-                    com.saferoom.gui.controller.MessagesController.openChatWithUser(target);
-                } catch (Exception e) {
-                    System.err.printf("[P2P-INCOMING] ❌ GUI notification error: %s%n", e.getMessage());
-                }
-            });
-            
-            // Execute the coordinated strategy asynchronously
-            Thread punchThread = new Thread(() -> {
-                try {
-                    switch (strategy) {
-                        case 0x00 -> {
-                            // STANDARD: Basic hole punch
-                            System.out.println("[P2P-INCOMING] ⚡ Executing STANDARD hole punch");
-                            executeStandardHolePunch(targetIP, targetPort, username, target);
-                        }
-                        case 0x01 -> {
-                            // SYMMETRIC_BURST: Open port pool and burst
-                            System.out.println("[P2P-INCOMING] 🔥 Executing SYMMETRIC BURST strategy");
-                            System.out.printf("  Opening %d ports, bursting to %s:%d%n", 
-                                numPorts, targetIP.getHostAddress(), targetPort);
-                            symmetricPortPoolExpansion(targetIP, targetPort, numPorts, username, target);
-                        }
-                        case 0x02 -> {
-                            // ASYMMETRIC_SCAN: Scan port range
-                            System.out.println("[P2P-INCOMING] 🔍 Executing ASYMMETRIC SCAN strategy");
-                            int maxPort = targetPort + numPorts - 1;
-                            System.out.printf("  Scanning port range %d-%d on %s%n", 
-                                targetPort, maxPort, targetIP.getHostAddress());
-                            scanPortRange(targetIP, targetPort, maxPort, username, target);
-                        }
-                        case 0x03 -> {
-                            // SYMMETRIC_MIDPOINT_BURST: Birthday Paradox
-                            System.out.println("[P2P-INCOMING] 🎯 Executing SYMMETRIC MIDPOINT BURST (Birthday Paradox)");
-                            System.out.printf("  Opening %d ports, bursting to peer's midpoint %s:%d%n", 
-                                numPorts, targetIP.getHostAddress(), targetPort);
-                            symmetricMidpointBurst(targetIP, targetPort, numPorts, username, target);
-                        }
-                        default -> {
-                            System.err.printf("[P2P-INCOMING] ❌ Unknown strategy: 0x%02X%n", strategy);
-                            return;
+            // Headless (no FX toolkit): runLater throws, the punch still has to run
+            try {
+                javafx.application.Platform.runLater(() -> {
+                    try {
+                        // First, switch to Messages tab
+                        com.saferoom.gui.controller.MainController mainController = 
+                            com.saferoom.gui.controller.MainController.getInstance();
+                        if (mainController != null) {
+                            System.out.printf("[P2P-INCOMING] 📱 Switching to Messages tab for incoming P2P from %s%n", target);
+                            mainController.switchToMessages();
                         }
-                    }
                     
+                        // Then open chat with the requester
+                        System.out.printf("[P2P-INCOMING] 💬 Opening chat with requester: %s%n", target);
+                        com.saferoom.gui.controller.MessagesController.openChatWithUser(target);
+                    } catch (Exception e) {
+                        System.err.printf("[P2P-INCOMING] ❌ GUI notification error: %s%n", e.getMessage());
+                    }
+                });
+            } catch (Exception e) {
+                System.err.printf("[P2P-INCOMING] ❌ GUI unavailable: %s%n", e.getMessage());
+            }
+            
+            // Execute the coordinated strategy on the reactor (no thread per punch)
+            CompletableFuture<Boolean> punch = runPunchStrategy("P2P-INCOMING", strategy,
+                targetIP, targetPort, numPorts, targetModel, username, target);
+            activePunches.put(target, punch);
+            punch.whenComplete((connected, error) -> {
+                if (error != null) {
+                    System.err.printf("[P2P-INCOMING] ❌ Strategy execution failed: %s%n", error.getMessage());
+                } else if (Boolean.TRUE.equals(connected)) {
                     System.out.printf("[P2P-INCOMING] ✅ Connection established with %s (incoming request)%n", target);
-                    
-                } catch (Exception e) {
-                    System.err.printf("[P2P-INCOMING] ❌ Strategy execution failed: %s%n", e.getMessage());
-                    e.printStackTrace();
                 }
-                
-                // 🆕 Cleanup: remove from active punch threads
-                finally {
-                    activePunchThreads.remove(target);
-                    System.out.printf("[P2P-INCOMING] 🧹 Removed punch thread for %s%n", target);
-                }
-            }, "IncomingPunch-" + target);
-            
-            // 🆕 Register thread before starting
-            activePunchThreads.put(target, punchThread);
-            
-            punchThread.setDaemon(true);
-            punchThread.start();
+                // 🆕 Cleanup: remove from active punches
+                activePunches.remove(target, punch);
+            });
             
         } catch (Exception e) {
             System.err.printf("[P2P-INCOMING] ❌ Error handling punch instruction: %s%n", e.getMessage());
@@ -1005,88 +940,44 @@ public class NatAnalyzer {
     }
     
     /**
-     * Perform direct hole punching to specific peer address
+     * Perform direct hole punching to specific peer address (a reactor state
+     * machine; completes with true once the peer answered)
      */
-    private static boolean performDirectHolePunching(InetSocketAddress peerAddr, String targetUsername) {
-        try {
-            System.out.printf("[P2P] Starting direct hole punching to %s%n", peerAddr);
-            
-            // Setup selector for concurrent burst + response listening
-            Selector burstSelector = Selector.open();
-            stunChannel.register(burstSelector, SelectionKey.OP_READ);
-            
-            long burstStart = System.currentTimeMillis();
-            long burstDuration = 10000; // 10 seconds
-            long burstInterval = 100;    // Every 100ms
-            long lastSend = 0;
-            int packetCount = 0;
-            boolean responseReceived = false;
-            
-            // CONCURRENT: Send STUN Binding burst + Listen for response
-            while ((System.currentTimeMillis() - burstStart) < burstDuration && !responseReceived) {
-                // Send STUN Binding packet if it's time
-                if ((System.currentTimeMillis() - lastSend) >= burstInterval) {
-                    ByteBuffer stunBinding = stunPacket();
-                    stunChannel.send(stunBinding, peerAddr);
-                    packetCount++;
-                    System.out.printf("[P2P] STUN burst #%d sent to %s from port %d%n", 
-                        packetCount, peerAddr, localPort);
-                    lastSend = System.currentTimeMillis();
+    private static CompletableFuture<Boolean> performDirectHolePunching(InetSocketAddress peerAddr, String targetUsername) {
+        System.out.printf("[P2P] Starting direct hole punching to %s%n", peerAddr);
+        
+        // CONCURRENT: Send STUN Binding burst + Listen for response, every 100ms for 10 seconds
+        return HolePunch.toPort(NatReactor.shared(), "P2P", stunChannel, peerAddr,
+                (socket, seq, port) -> stunPacket(), HolePunch.ANY)
+            .start(100, 10_000)
+            .thenApply(punched -> {
+                if (punched == null) {
+                    System.err.printf("[P2P] ❌ No response received during burst to %s%n", peerAddr);
+                    return false;
                 }
-                
-                // Check for response (non-blocking)
-                if (burstSelector.selectNow() > 0) {
-                    Iterator<SelectionKey> it = burstSelector.selectedKeys().iterator();
-                    while (it.hasNext()) {
-                        SelectionKey key = it.next();
-                        it.remove();
-                        
-                        if (!key.isReadable()) continue;
-                        
-                        DatagramChannel dc = (DatagramChannel) key.channel();
-                        ByteBuffer buf = ByteBuffer.allocate(1024);
-                        SocketAddress from = dc.receive(buf);
-                        if (from == null) continue;
-                        
-                        buf.flip();
-                        System.out.printf("[P2P] 📥 Response received during burst from %s - hole punch confirmed!%n", from);
-                        responseReceived = true;
-                        break;
+                try {
+                    // Initialize global KeepAliveManager if not already started
+                    if (globalKeepAlive == null) {
+                        System.out.println("[P2P] 🔧 Initializing global KeepAliveManager");
+                        globalKeepAlive = new KeepAliveManager(20_000); // 20 seconds keep-alive
+                        globalKeepAlive.installShutdownHook();
+                        globalKeepAlive.startMessageListening(stunChannel);
                     }
+                    
+                    // Register this peer with global KeepAliveManager
+                    globalKeepAlive.register(stunChannel, peerAddr);
+                } catch (Exception e) {
+                    System.err.printf("[P2P] Direct hole punching error: %s%n", e.getMessage());
+                    return false;
                 }
                 
-                Thread.sleep(10); // Small sleep to prevent busy loop
-            }
-            
-            burstSelector.close();
-            
-            if (!responseReceived) {
-                System.err.printf("[P2P] ❌ No response received during burst to %s%n", peerAddr);
-                return false;
-            }
-            
-            // Initialize global KeepAliveManager if not already started
-            if (globalKeepAlive == null) {
-                System.out.println("[P2P] 🔧 Initializing global KeepAliveManager");
-                globalKeepAlive = new KeepAliveManager(20_000); // 20 seconds keep-alive
-                globalKeepAlive.installShutdownHook();
-                globalKeepAlive.startMessageListening(stunChannel);
-            }
-            
-            // Register this peer with global KeepAliveManager
-            globalKeepAlive.register(stunChannel, peerAddr);
-            
-            // Store peer address for messaging
-            activePeers.put(targetUsername, peerAddr);
-            lastActivity.put(targetUsername, System.currentTimeMillis());
-            
-            System.out.printf("[P2P] ✅ Direct hole punching successful to %s%n", targetUsername);
-            return true;
-            
-        } catch (Exception e) {
-            System.err.printf("[P2P] Direct hole punching error: %s%n", e.getMessage());
-            return false;
-        }
+                // Store peer address for messaging
+                activePeers.put(targetUsername, peerAddr);
+                lastActivity.put(targetUsername, System.currentTimeMillis());
+                
+                System.out.printf("[P2P] ✅ Direct hole punching successful to %s%n", targetUsername);
+                return true;
+            });
     }
     
     // ============================================
@@ -1218,11 +1109,14 @@ public class NatAnalyzer {
     
     /**
      * Profiles the NAT behavior intelligently:
-     * 1. First detects NAT type using existing analyzeSinglePort() method
-     * 2. If NON-SYMMETRIC: Returns profile with single port (no need for 1000 queries)
-     * 3. If SYMMETRIC: Performs deep profiling with 1000+ queries to map port range
+     * 1. Uses a complete profile if there is one (saved for this network, or non-symmetric)
+     * 2. Otherwise detects NAT type using existing analyzeSinglePort() method
+     * 3. If NON-SYMMETRIC: Returns profile with single port (no need for 1000 queries)
+     * 4. If SYMMETRIC: Fires up to maxProbeCount STUN queries from fresh sockets at once
+     *    and stops as soon as the observed port range settles
      * 
-     * This avoids unnecessary STUN traffic for non-symmetric NAT users.
+     * The result is saved per network (see NatProfileStore), so later sessions
+     * skip profiling until the network changes or the profile expires.
      * 
      * @param maxProbeCount Maximum number of STUN queries (only used for symmetric NAT)
      * @return NATProfile containing NAT type and port range information
@@ -1233,12 +1127,7 @@ public class NatAnalyzer {
         try {
             // PHASE 1: Use cached profile if available (avoids re-running detection and closing stunChannel!)
             byte natType;
-            if (cachedProfile != null) {
-                natType = cachedProfile.natType;
-                System.out.println("[NAT-PROFILE] ✅ Using cached NAT type from previous detection: 0x" + 
-                    String.format("%02X", natType) + " (" + (natType == 0x11 ? "SYMMETRIC" : "NON-SYMMETRIC") + ")");
-                System.out.println("[NAT-PROFILE] ⚡ Skipping re-detection to keep stunChannel open for hole punching!");
-            } else {
+            if (cachedProfile == null) {
                 System.out.println("[NAT-PROFILE] Phase 1: Detecting NAT type...");
                 natType = analyzeSinglePort(stunServers);
                 
@@ -1250,6 +1139,13 @@ public class NatAnalyzer {
                 String natTypeStr = (natType == 0x11) ? "SYMMETRIC" : "NON-SYMMETRIC";
                 System.out.println("[NAT-PROFILE] Detected NAT type: " + natTypeStr);
             }
+            if (cachedProfile != null && cachedProfileComplete) {
+                System.out.println("[NAT-PROFILE] ⚡ Profile already complete for this network - skipping profiling");
+                return cachedProfile;
+            }
+            natType = cachedProfile.natType;
+            System.out.println("[NAT-PROFILE] ✅ Using NAT type from detection: 0x" + 
+                String.format("%02X", natType) + " (" + (natType == 0x11 ? "SYMMETRIC" : "NON-SYMMETRIC") + ")");
             
             // PHASE 2: If NON-SYMMETRIC, no need for deep profiling
             if (natType == 0x00) {
@@ -1274,69 +1170,52 @@ public class NatAnalyzer {
                 );
                 
                 cachedProfile = profile;
+                cachedProfileComplete = true;
+                saveProfile(profile);
                 System.out.println("[NAT-PROFILE] ✅ Profile complete (Non-Symmetric - no deep profiling needed)");
                 return profile;
             }
             
-            // PHASE 3: SYMMETRIC NAT - perform deep profiling to map port range
-            System.out.println("[NAT-PROFILE] Symmetric NAT detected - performing deep port profiling with " + maxProbeCount + " probes...");
-            
-            List<Integer> observedPorts = new ArrayList<>();
-            ExecutorService executor = Executors.newFixedThreadPool(20); // Parallel STUN queries
-            List<Future<Integer>> futures = new ArrayList<>();
-            
-            // Launch parallel STUN queries
-            for (int i = 0; i < maxProbeCount; i++) {
-                final int probeIndex = i;
-                futures.add(executor.submit(() -> {
-                    try {
-                        return querySingleSTUNPort(probeIndex);
-                    } catch (Exception e) {
-                        System.err.println("[NAT-PROFILE] Probe " + probeIndex + " failed: " + e.getMessage());
-                        return null;
-                    }
-                }));
-            }
+            // PHASE 3: SYMMETRIC NAT - all probes at once on the reactor, each from its own socket
+            System.out.println("[NAT-PROFILE] Symmetric NAT detected - performing deep port profiling with up to " + maxProbeCount + " probes...");
             
-            // Collect results
-            int successCount = 0;
-            for (Future<Integer> future : futures) {
-                try {
-                    Integer port = future.get(10, TimeUnit.SECONDS);
-                    if (port != null && port > 0) {
-                        synchronized (observedPorts) {
-                            observedPorts.add(port);
-                        }
-                        successCount++;
-                        
-                        // Progress indicator every 100 samples
-                        if (successCount % 100 == 0) {
-                            System.out.println("[NAT-PROFILE] Collected " + successCount + "/" + maxProbeCount + " samples...");
-                        }
-                    }
-                } catch (TimeoutException e) {
-                    System.err.println("[NAT-PROFILE] Probe timed out");
-                } catch (Exception e) {
-                    System.err.println("[NAT-PROFILE] Error collecting probe result: " + e.getMessage());
-                }
+            List<InetSocketAddress> targets = StunProbe.resolve("NAT-PROFILE", stunServers);
+            if (targets.isEmpty()) {
+                System.err.println("[NAT-PROFILE] No valid STUN servers found");
+                return null;
             }
+            long probeStart = System.nanoTime();
+            List<StunProbe.Response> samples = StunProbe.fromFreshSockets(NatReactor.shared(), "NAT-PROFILE",
+                    maxProbeCount, PROFILE_IN_FLIGHT, targets, StunProbe.rangeSettled(PROFILE_STABLE_SAMPLES))
+                .start(PROFILE_PROBE_DEADLINE_MS, STUN_RESEND_MS)
+                .join();
+            System.out.printf("[NAT-PROFILE] Collected %d samples in %d ms%n", samples.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeStart));
             
-            executor.shutdown();
-            
-            if (observedPorts.isEmpty()) {
+            if (samples.isEmpty()) {
                 System.err.println("[NAT-PROFILE] Failed to collect any port samples!");
                 return null;
             }
+            // Probes open their sockets in index order: that is the NAT's allocation order
+            List<StunProbe.Response> allocationOrder = new ArrayList<>(samples);
+            allocationOrder.sort(Comparator.comparingInt(StunProbe.Response::probe));
+            List<Integer> observedPorts = new ArrayList<>(samples.size());
+            for (StunProbe.Response sample : allocationOrder) {
+                observedPorts.add(sample.mapped().getPort());
+            }
             
             // Analyze port behavior for symmetric NAT
             NATProfile profile = analyzePortBehavior(observedPorts);
             profile.natType = 0x11; // Force to symmetric (we already detected it)
             cachedProfile = profile;
+            cachedProfileComplete = true;
+            saveProfile(profile);
             
             System.out.println("[NAT-PROFILE] ✅ Symmetric NAT profile complete:");
             System.out.println("  Port Range: " + profile.minPort + " - " + profile.maxPort);
             System.out.println("  Sampled Ports: " + profile.profiledPorts);
             System.out.println("  Unique Ports: " + new HashSet<>(observedPorts).size());
+            System.out.println("  Allocation: " + profile.model());
             
             return profile;
             
@@ -1347,98 +1226,9 @@ public class NatAnalyzer {
         }
     }
     
-    /**
-     * Sends a single STUN query on a new ephemeral port and returns the observed external port.
-     */
-    private static Integer querySingleSTUNPort(int probeIndex) throws Exception {
-        DatagramChannel channel = null;
-        try {
-            // Create ephemeral socket (OS assigns local port)
-            channel = DatagramChannel.open();
-            channel.socket().setReuseAddress(true);
-            channel.bind(new InetSocketAddress(0)); // Bind to random port
-            channel.configureBlocking(false);
-            
-            // Select random STUN server
-            String[] stunServer = stunServers[probeIndex % stunServers.length];
-            InetSocketAddress stunAddr = new InetSocketAddress(
-                InetAddress.getByName(stunServer[0]), 
-                Integer.parseInt(stunServer[1])
-            );
-            
-            // Send STUN binding request
-            ByteBuffer request = stunPacket();
-            channel.send(request, stunAddr);
-            
-            // Wait for response
-            Selector selector = Selector.open();
-            channel.register(selector, SelectionKey.OP_READ);
-            
-            long deadline = System.currentTimeMillis() + 3000; // 3 second timeout
-            while (System.currentTimeMillis() < deadline) {
-                if (selector.select(500) > 0) {
-                    ByteBuffer response = ByteBuffer.allocate(512);
-                    channel.receive(response);
-                    response.flip();
-                    
-                    // Parse MAPPED-ADDRESS or XOR-MAPPED-ADDRESS
-                    Integer port = extractPortFromSTUN(response);
-                    if (port != null) {
-                        selector.close();
-                        return port;
-                    }
-                }
-            }
-            
-            selector.close();
-            return null;
-            
-        } finally {
-            if (channel != null && channel.isOpen()) {
-                channel.close();
-            }
-        }
-    }
-    
-    /**
-     * Extracts the external port from a STUN response packet.
-     */
-    private static Integer extractPortFromSTUN(ByteBuffer buffer) {
-        if (buffer.remaining() < 20) return null;
-        
-        buffer.position(20); // Skip STUN header
-        
-        while (buffer.remaining() >= 4) {
-            short attrType = buffer.getShort();
-            short attrLen = buffer.getShort();
-            
-            if (attrLen < 0 || attrLen > buffer.remaining()) break;
-            
-            // MAPPED-ADDRESS (0x0001) or XOR-MAPPED-ADDRESS (0x0020)
-            if (attrType == 0x0001 || attrType == 0x0020) {
-                if (attrLen >= 8) {
-                    buffer.get(); // Skip reserved byte
-                    byte family = buffer.get();
-                    int port = buffer.getShort() & 0xFFFF;
-                    
-                    // XOR port if needed
-                    if (attrType == 0x0020) {
-                        port ^= 0x2112; // XOR with magic cookie high 16 bits
-                    }
-                    
-                    return port;
-                }
-            } else {
-                // Skip unknown attribute
-                buffer.position(buffer.position() + attrLen);
-            }
-        }
-        
-        return null;
-    }
-    
     /**
      * Analyzes the list of observed ports to determine NAT type and port range.
+     * The ports stay in allocation order for the port predictor.
      */
     private static NATProfile analyzePortBehavior(List<Integer> ports) {
         Set<Integer> uniquePorts = new HashSet<>(ports);
@@ -1459,8 +1249,7 @@ public class NatAnalyzer {
                 + String.format("%.2f%%", uniqueRatio * 100) + ")");
         }
         
-        return new NATProfile(natType, minPort, maxPort, ports.size(), 
-            new ArrayList<>(uniquePorts).stream().sorted().collect(Collectors.toList()));
+        return new NATProfile(natType, minPort, maxPort, ports.size(), new ArrayList<>(ports));
     }
     
     /**
@@ -1473,12 +1262,17 @@ public class NatAnalyzer {
         }
         
         try {
+            // Symmetric: the allocation model lets the peer aim at predicted ports,
+            // from where the NAT is now (this session's mappings), not where it was when profiled
+            PortPredictor.Model model = cachedProfile.natType == 0x11
+                ? PortPredictor.reanchor(cachedProfile.model(), Public_PortList) : null;
             byte[] packet = LLS.createNATProfilePacket(
                 username,
                 cachedProfile.natType,
                 cachedProfile.minPort,
                 cachedProfile.maxPort,
-                cachedProfile.profiledPorts
+                cachedProfile.profiledPorts,
+                model
             );
             
             if (stunChannel != null && stunChannel.isOpen()) {
@@ -1506,159 +1300,63 @@ public class NatAnalyzer {
      * @param targetPort The peer's port (stable for non-symmetric, or midpoint for symmetric)
      * @param numPorts Number of ports to open (typically N/2 from profiled range)
      */
-    public static void symmetricPortPoolExpansion(InetAddress targetIP, int targetPort, int numPorts, String localUsername, String targetUsername) {
+    public static CompletableFuture<Boolean> symmetricPortPoolExpansion(InetAddress targetIP, int targetPort, int numPorts, String localUsername, String targetUsername) {
         System.out.println("\n[SYMMETRIC-PUNCH] 🔥 Starting CONTINUOUS port pool expansion");
         System.out.printf("  Target: %s:%d (username: %s)%n", targetIP.getHostAddress(), targetPort, targetUsername);
         System.out.printf("  Opening %d local ports for continuous burst...%n", numPorts);
-        
-        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numPorts, 50));
-        List<DatagramChannel> channels = Collections.synchronizedList(new ArrayList<>());
-        AtomicBoolean connectionEstablished = new AtomicBoolean(false);
-        AtomicReference<DatagramChannel> successfulChannel = new AtomicReference<>(null);
-        AtomicReference<InetSocketAddress> peerAddress = new AtomicReference<>(null);
-        
-        long startTime = System.currentTimeMillis();
-        
+        return portPoolPunch("SYMMETRIC-PUNCH", "SYM-BURST-", targetIP, HolePunch.everySocketTo(targetPort),
+            numPorts, localUsername, targetUsername);
+    }
+    
+    /**
+     * Both symmetric strategies: {@code numPorts} fresh sockets bursting
+     * where {@code plan} says until one hears the peer, 30s at most. Every
+     * 50ms per socket (20 bursts/sec each), slower for big pools so the pool
+     * stays within PortPredictor.BUDGET_PPS. All sockets are served by the
+     * reactor - no thread per port.
+     */
+    private static CompletableFuture<Boolean> portPoolPunch(String tag, String label, InetAddress targetIP,
+                                                            HolePunch.Plan plan, int numPorts,
+                                                            String localUsername, String targetUsername) {
+        HolePunch punch;
         try {
-            // Phase 1: Open port pool and start CONTINUOUS bursting
-            for (int i = 0; i < numPorts; i++) {
-                final int portIndex = i;
-                executor.submit(() -> {
-                    try {
-                        DatagramChannel channel = DatagramChannel.open();
-                        channel.configureBlocking(false);
-                        channel.socket().setReuseAddress(true);
-                        channel.bind(new InetSocketAddress(0)); // Ephemeral port
-                        
-                        channels.add(channel);
-                        
-                        InetSocketAddress target = new InetSocketAddress(targetIP, targetPort);
-                        
-                        int burstCount = 0;
-                        
-                        // CONTINUOUS bursting until collision detected
-                        while (!connectionEstablished.get()) {
-                            ByteBuffer burstPayload = LLS.New_Burst_Packet(
-                                localUsername,
-                                targetUsername,
-                                "SYM-BURST-" + portIndex + "-" + burstCount
-                            );
-                            
-                            channel.send(burstPayload, target);
-                            burstCount++;
-                            
-                            // Check for incoming response (collision detection)
-                            ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
-                            InetSocketAddress sender = (InetSocketAddress) channel.receive(receiveBuffer);
-                            
-                            if (sender != null) {
-                                // ⚠️ VALIDATE: Response must be from target IP
-                                boolean isFromTarget = sender.getAddress().equals(targetIP);
-                                
-                                if (!isFromTarget) {
-                                    System.out.printf("[SYMMETRIC-PUNCH] ⚠️ Port %d: Response from WRONG source: %s (expected: %s)%n", 
-                                        portIndex, sender, targetIP.getHostAddress());
-                                    continue; // Ignore non-target responses
-                                }
-                                
-                                if (!connectionEstablished.getAndSet(true)) {
-                                    // 🎉 COLLISION DETECTED!
-                                    long collisionTime = System.currentTimeMillis() - startTime;
-                                    System.out.printf("\n[SYMMETRIC-PUNCH] 🎉 COLLISION! Port %d received response after %d ms%n",
-                                        portIndex, collisionTime);
-                                    System.out.printf("  Local port: %d%n", channel.socket().getLocalPort());
-                                    System.out.printf("  Peer responded from: %s (VALIDATED ✅)%n", sender);
-                                    System.out.printf("  Total bursts sent: %d%n", burstCount);
-                                    
-                                    successfulChannel.set(channel);
-                                    peerAddress.set(sender);
-                                    return; // Keep this channel alive
-                                }
-                            }
-                            
-                            Thread.sleep(50); // 50ms between bursts = 20 bursts/sec
-                        }
-                        
-                    } catch (ClosedByInterruptException | InterruptedException e) {
-                        // Expected when connection established
-                    } catch (Exception e) {
-                        if (!connectionEstablished.get()) {
-                            System.err.printf("[SYMMETRIC-PUNCH] Port %d error: %s%n", 
-                                portIndex, e.getMessage());
-                        }
-                    }
-                });
-            }
-            
-            // Phase 2: Wait for collision (max 30 seconds)
-            System.out.println("[SYMMETRIC-PUNCH] ⏳ All ports bursting... waiting for collision...");
-            
-            for (int i = 0; i < 300; i++) { // 30 seconds timeout
-                Thread.sleep(100);
-                
-                if (connectionEstablished.get()) {
-                    break;
-                }
-                
-                // Progress indicator every 5 seconds
-                if ((i + 1) % 50 == 0) {
-                    System.out.printf("[SYMMETRIC-PUNCH] Still bursting... (%d seconds elapsed)%n", 
-                        (i + 1) / 10);
-                }
-            }
-            
-            // Phase 3: Cleanup and connection establishment
-            executor.shutdownNow();
-            
-            if (connectionEstablished.get()) {
-                DatagramChannel workingChannel = successfulChannel.get();
-                InetSocketAddress peer = peerAddress.get();
-                
-                System.out.println("\n[SYMMETRIC-PUNCH] ✅ Connection Established!");
-                System.out.printf("  Using local port: %d%n", 
-                    workingChannel.socket().getLocalPort());
-                System.out.printf("  Peer address: %s%n", peer);
-                
-                // Close all other channels
-                for (DatagramChannel ch : channels) {
-                    if (ch != workingChannel && ch.isOpen()) {
-                        try { ch.close(); } catch (Exception e) {}
-                    }
-                }
-                
-                // Register peer with activePeers map
-                System.out.println("[SYMMETRIC-PUNCH] 💓 Registering peer");
-                activePeers.put(targetUsername, peer);
-                lastActivity.put(targetUsername, System.currentTimeMillis());
-                
-                // WARNING: workingChannel != stunChannel!
-                // Start dedicated keep-alive thread for this channel
-                startKeepAlive(workingChannel, peer, targetUsername);
-                System.out.println("[SYMMETRIC-PUNCH] ✅ Connection ready for messaging");
-                
-            } else {
-                System.err.println("\n[SYMMETRIC-PUNCH] ❌ TIMEOUT: No collision detected after 30 seconds");
+            punch = HolePunch.portPool(NatReactor.shared(), tag, numPorts, targetIP, plan,
+                (socket, seq, port) -> LLS.New_Burst_Packet(localUsername, targetUsername, label + socket + "-" + seq),
+                HolePunch.ANY);
+        } catch (java.io.IOException e) {
+            System.err.printf("[%s] ❌ Cannot open port pool: %s%n", tag, e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+        long intervalMs = PortPredictor.poolIntervalMs(numPorts, PortPredictor.BUDGET_PPS, 50);
+        System.out.printf("[%s] ⏳ All ports bursting every %d ms... waiting for collision...%n", tag, intervalMs);
+        
+        return punch.start(intervalMs, 30_000).thenApply(punched -> {
+            if (punched == null) {
+                System.err.printf("%n[%s] ❌ TIMEOUT: No collision detected after 30 seconds%n", tag);
                 System.err.println("  Possible causes:");
                 System.err.println("  - Both sides might have strict firewalls");
                 System.err.println("  - Port range calculation mismatch");
                 System.err.println("  - Network congestion dropping burst packets");
-                
-                // Close all channels
-                for (DatagramChannel ch : channels) {
-                    try { ch.close(); } catch (Exception e) {}
-                }
+                return false;
             }
             
-        } catch (Exception e) {
-            System.err.println("[SYMMETRIC-PUNCH] ❌ Fatal error: " + e.getMessage());
-            e.printStackTrace();
+            DatagramChannel workingChannel = punched.channel();
+            InetSocketAddress peer = punched.peer();
+            System.out.printf("%n[%s] ✅ Connection Established!%n", tag);
+            System.out.printf("  Using local port: %d%n", workingChannel.socket().getLocalPort());
+            System.out.printf("  Peer address: %s (VALIDATED ✅)%n", peer);
             
-            // Emergency cleanup
-            executor.shutdownNow();
-            for (DatagramChannel ch : channels) {
-                try { ch.close(); } catch (Exception ex) {}
-            }
-        }
+            // Register peer with activePeers map
+            System.out.printf("[%s] 💓 Registering peer%n", tag);
+            activePeers.put(targetUsername, peer);
+            lastActivity.put(targetUsername, System.currentTimeMillis());
+            
+            // WARNING: workingChannel != stunChannel!
+            // Dedicated keep-alive timer for this channel
+            startKeepAlive(workingChannel, peer, targetUsername);
+            System.out.printf("[%s] ✅ Connection ready for messaging%n", tag);
+            return true;
+        });
     }
     
     /**
@@ -1674,7 +1372,19 @@ public class NatAnalyzer {
      * @param minPort Start of the symmetric peer's port range
      * @param maxPort End of the symmetric peer's port range
      */
-    public static void scanPortRange(InetAddress targetIP, int minPort, int maxPort, String localUsername, String targetUsername) {
+    public static CompletableFuture<Boolean> scanPortRange(InetAddress targetIP, int minPort, int maxPort, String localUsername, String targetUsername) {
+        return scanPortRange(targetIP, minPort, maxPort, null, localUsername, targetUsername);
+    }
+    
+    /**
+     * Same, aimed by the peer's port allocation model when there is one:
+     * ranked candidates (predicted next ports first) at PortPredictor.BUDGET_PPS,
+     * the candidate window widening every 0.5s. Without a model the range is
+     * still swept in order, within the same budget.
+     */
+    static CompletableFuture<Boolean> scanPortRange(InetAddress targetIP, int minPort, int maxPort,
+                                                    PortPredictor.Model targetModel,
+                                                    String localUsername, String targetUsername) {
         System.out.println("\n[ASYMMETRIC-SCAN] 🔍 Starting CONTINUOUS range scan");
         System.out.printf("  Target: %s (username: %s)%n", targetIP.getHostAddress(), targetUsername);
         System.out.printf("  Port range: %d-%d (%d ports)%n", minPort, maxPort, (maxPort - minPort + 1));
@@ -1682,125 +1392,66 @@ public class NatAnalyzer {
         
         if (stunChannel == null || !stunChannel.isOpen()) {
             System.err.println("[ASYMMETRIC-SCAN] ❌ No active STUN channel!");
-            return;
+            completePendingConnection(targetUsername, false);
+            return CompletableFuture.completedFuture(false);
         }
         
-        try {
-            // Configure channel for non-blocking
-            stunChannel.configureBlocking(false);
-            Selector selector = Selector.open();
-            stunChannel.register(selector, SelectionKey.OP_READ);
-            
-            int rangeSize = maxPort - minPort + 1;
-            long startTime = System.currentTimeMillis();
-            long timeout = 30000; // 30 seconds timeout
-            boolean connectionEstablished = false;
-            int scanCycle = 0;
-            
-            System.out.println("[ASYMMETRIC-SCAN] ⏳ Starting continuous range scan...");
-            
-            // Continuous range scanning until peer response or timeout
-            while (!connectionEstablished && (System.currentTimeMillis() - startTime) < timeout) {
-                // Scan entire port range in this cycle
-                for (int port = minPort; port <= maxPort && !connectionEstablished; port++) {
-                    // Send burst packet to this port with proper LLS format
-                    InetSocketAddress target = new InetSocketAddress(targetIP, port);
-                    ByteBuffer burstPayload = LLS.New_Burst_Packet(
-                        localUsername,
-                        targetUsername,
-                        "ASYM-SCAN-" + scanCycle + "-" + port
-                    );
-                    
-                    stunChannel.send(burstPayload, target);
-                    
-                    // Check for peer response every few packets (non-blocking)
-                    if (port % 10 == 0 && selector.select(1) > 0) { // Check every 10 ports
-                        selector.selectedKeys().clear();
-                        
-                        ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
-                        InetSocketAddress sender = (InetSocketAddress) stunChannel.receive(receiveBuffer);
-                        
-                        if (sender != null) {
-                            // ⚠️ VALIDATE: Response must be from target IP
-                            boolean isFromTarget = sender.getAddress().equals(targetIP);
-                            
-                            if (!isFromTarget) {
-                                System.out.printf("[ASYMMETRIC-SCAN] ⚠️ Response from WRONG source: %s (expected target IP: %s)%n", 
-                                    sender, targetIP.getHostAddress());
-                                System.out.println("[ASYMMETRIC-SCAN] ⚠️ Likely server echo - ignoring, continuing scan...");
-                                continue; // Ignore non-target responses
-                            }
-                            
-                            long responseTime = System.currentTimeMillis() - startTime;
-                            System.out.printf("\n[ASYMMETRIC-SCAN] 🎉 COLLISION! Response received after %d ms%n", responseTime);
-                            System.out.printf("  Peer responded from: %s (VALIDATED ✅)%n", sender);
-                            System.out.printf("  Total scan cycles: %d%n", scanCycle);
-                            System.out.printf("  Current port in scan: %d%n", port);
-                            
-                            connectionEstablished = true;
-                            
-                            // Register peer with global KeepAliveManager
-                            System.out.println("[ASYMMETRIC-SCAN] 💓 Registering peer with KeepAliveManager");
-                            if (globalKeepAlive == null) {
-                                System.out.println("[ASYMMETRIC-SCAN] 🔧 Initializing global KeepAliveManager");
-                                globalKeepAlive = new KeepAliveManager(20_000); // 20 seconds keep-alive
-                                globalKeepAlive.installShutdownHook();
-                                globalKeepAlive.startMessageListening(stunChannel);
-                            }
-                            globalKeepAlive.register(stunChannel, sender);
-                            
-                            activePeers.put(targetUsername, sender);
-                            lastActivity.put(targetUsername, System.currentTimeMillis());
-                            System.out.println("[ASYMMETRIC-SCAN] ✅ Connection ready for messaging");
-                            
-                            // 🆕 Complete the pending P2P connection future
-                            CompletableFuture<Boolean> future = pendingP2PConnections.get(targetUsername);
-                            if (future != null && !future.isDone()) {
-                                future.complete(true);
-                                System.out.println("[ASYMMETRIC-SCAN] ✅ Notified waiting thread");
-                            }
-                            
-                            break;
-                        }
-                    }
+        DatagramChannel channel = stunChannel;
+        PortPredictor.Model model = targetModel != null ? targetModel : PortPredictor.uniform(minPort, maxPort);
+        int limit = model.predictable() ? PREDICTED_CANDIDATES : maxPort - minPort + 1;
+        PortPredictor.Schedule schedule = PortPredictor.schedule(PortPredictor.rank(model, limit),
+            PortPredictor.BUDGET_PPS, 10);
+        System.out.printf("[ASYMMETRIC-SCAN] ⏳ Starting continuous range scan (%s, %d ports/tick)...%n",
+            model.pattern(), schedule.packetsPerTick());
+        // Ranked candidates every 10ms within the budget, answers seen at once
+        return HolePunch.planned(NatReactor.shared(), "ASYMMETRIC-SCAN", channel, targetIP, schedule,
+                (socket, seq, port) -> LLS.New_Burst_Packet(localUsername, targetUsername, "ASYM-SCAN-" + seq + "-" + port),
+                HolePunch.ANY)
+            .start(10, 30_000)
+            .thenApply(punched -> {
+                if (punched == null) {
+                    System.err.println("\n[ASYMMETRIC-SCAN] ❌ TIMEOUT: No response after 30 seconds");
+                    completePendingConnection(targetUsername, false);
+                    return false;
                 }
                 
-                scanCycle++;
+                InetSocketAddress sender = punched.peer();
+                System.out.printf("%n[ASYMMETRIC-SCAN] 🎉 COLLISION! Response received after %d ms%n", punched.elapsedMs());
+                System.out.printf("  Peer responded from: %s (VALIDATED ✅)%n", sender);
+                System.out.printf("  Total ports scanned: %d%n", punched.bursts());
                 
-                // Progress indicator every 5 cycles
-                if (scanCycle % 5 == 0) {
-                    long elapsed = System.currentTimeMillis() - startTime;
-                    System.out.printf("[ASYMMETRIC-SCAN] Still scanning... cycle %d (%.1f seconds)%n", 
-                        scanCycle, elapsed / 1000.0);
+                try {
+                    // Register peer with global KeepAliveManager
+                    System.out.println("[ASYMMETRIC-SCAN] 💓 Registering peer with KeepAliveManager");
+                    if (globalKeepAlive == null) {
+                        System.out.println("[ASYMMETRIC-SCAN] 🔧 Initializing global KeepAliveManager");
+                        globalKeepAlive = new KeepAliveManager(20_000); // 20 seconds keep-alive
+                        globalKeepAlive.installShutdownHook();
+                        globalKeepAlive.startMessageListening(channel);
+                    }
+                    globalKeepAlive.register(channel, sender);
+                } catch (Exception e) {
+                    System.err.println("[ASYMMETRIC-SCAN] ❌ Failed: " + e.getMessage());
+                    completePendingConnection(targetUsername, false);
+                    return false;
                 }
                 
-                // Small delay between full range scans
-                Thread.sleep(10); // 10ms delay between range cycles
-            }
-            
-            selector.close();
-            
-            if (!connectionEstablished) {
-                System.err.println("\n[ASYMMETRIC-SCAN] ❌ TIMEOUT: No response after 30 seconds");
-                System.err.printf("  Total scan cycles completed: %d%n", scanCycle);
-                System.err.printf("  Total ports scanned: %d%n", scanCycle * rangeSize);
+                activePeers.put(targetUsername, sender);
+                lastActivity.put(targetUsername, System.currentTimeMillis());
+                System.out.println("[ASYMMETRIC-SCAN] ✅ Connection ready for messaging");
                 
-                // 🆕 Complete the pending future with failure
-                CompletableFuture<Boolean> future = pendingP2PConnections.get(targetUsername);
-                if (future != null && !future.isDone()) {
-                    future.complete(false);
-                }
-            }
-            
-        } catch (Exception e) {
-            System.err.println("[ASYMMETRIC-SCAN] ❌ Failed: " + e.getMessage());
-            e.printStackTrace();
-            
-            // 🆕 Complete the pending future with failure
-            CompletableFuture<Boolean> future = pendingP2PConnections.get(targetUsername);
-            if (future != null && !future.isDone()) {
-                future.complete(false);
-            }
+                // 🆕 Complete the pending P2P connection future
+                completePendingConnection(targetUsername, true);
+                return true;
+            });
+    }
+    
+    /** Wakes whoever waits in {@link #requestP2PConnectionAsync} for {@code username} */
+    private static void completePendingConnection(String username, boolean connected) {
+        CompletableFuture<Boolean> future = pendingP2PConnections.get(username);
+        if (future != null && !future.isDone()) {
+            future.complete(connected);
+            System.out.printf("[P2P] ✅ Notified waiting thread (%s: %s)%n", username, connected ? "connected" : "failed");
         }
     }
     
@@ -1831,54 +1482,70 @@ public class NatAnalyzer {
             int targetPort = (Integer) parsed.get(5);
             byte strategy = (Byte) parsed.get(6);
             int numPorts = (Integer) parsed.get(7);
+            PortPredictor.Model targetModel = parsed.size() > 8 ? (PortPredictor.Model) parsed.get(8) : null;
             
             System.out.printf("[P2P-INSTRUCT] 📨 Received punch instruction from server%n");
             System.out.printf("  User: %s → Target: %s%n", username, target);
             System.out.printf("  Target IP: %s:%d%n", targetIP.getHostAddress(), targetPort);
             System.out.printf("  Strategy: 0x%02X, Ports: %d%n", strategy, numPorts);
-            
-            switch (strategy) {
-                case 0x01 -> {
-                    // SYMMETRIC_BURST: Open port pool and send bursts
-                    System.out.println("[P2P-INSTRUCT] 🔥 Executing SYMMETRIC BURST strategy");
-                    System.out.printf("  Opening %d ports, sending bursts to %s:%d%n", 
-                        numPorts, targetIP.getHostAddress(), targetPort);
-                    symmetricPortPoolExpansion(targetIP, targetPort, numPorts, username, target);
-                }
-                case 0x02 -> {
-                    // ASYMMETRIC_SCAN: Scan port range
-                    System.out.println("[P2P-INSTRUCT] 🔍 Executing ASYMMETRIC SCAN strategy");
-                    int maxPort = targetPort + numPorts - 1;
-                    System.out.printf("  Scanning port range %d-%d on %s%n", 
-                        targetPort, maxPort, targetIP.getHostAddress());
-                    scanPortRange(targetIP, targetPort, maxPort, username, target);
-                }
-                case 0x03 -> {
-                    // SYMMETRIC_MIDPOINT_BURST: Birthday Paradox for Symmetric ↔ Symmetric
-                    System.out.println("[P2P-INSTRUCT] 🎯 Executing SYMMETRIC MIDPOINT BURST (Birthday Paradox)");
-                    System.out.printf("  Opening %d ports, bursting to peer's midpoint %s:%d%n", 
-                        numPorts, targetIP.getHostAddress(), targetPort);
-                    System.out.println("  Strategy: Continuous burst until connection established");
-                    symmetricMidpointBurst(targetIP, targetPort, numPorts, username, target);
-                }
-                case 0x00 -> {
-                    // STANDARD: Basic hole punch
-                    System.out.println("[P2P-INSTRUCT] ⚡ Executing STANDARD hole punch");
-                    System.out.printf("  Punching to %s:%d%n", 
-                        targetIP.getHostAddress(), targetPort);
-                    executeStandardHolePunch(targetIP, targetPort, username, target);
-                }
-                default -> {
-                    System.err.printf("[P2P-INSTRUCT] ❌ Unknown strategy: 0x%02X%n", strategy);
-                }
+            if (targetModel != null) {
+                System.out.printf("  Target NAT: %s%n", targetModel);
             }
             
+            runPunchStrategy("P2P-INSTRUCT", strategy, targetIP, targetPort, numPorts, targetModel, username, target);
+            
         } catch (Exception e) {
             System.err.println("[P2P-INSTRUCT] ❌ Failed to handle punch instruction: " + e.getMessage());
             e.printStackTrace();
         }
     }
     
+    /**
+     * Starts the server's strategy for {@code target} on the reactor.
+     * Completes with true once the peer answered and is registered.
+     * {@code targetModel} (null if the server did not send one) aims the
+     * scan and the symmetric midpoint burst at the target's predicted ports.
+     */
+    private static CompletableFuture<Boolean> runPunchStrategy(String tag, byte strategy, InetAddress targetIP,
+                                                               int targetPort, int numPorts,
+                                                               PortPredictor.Model targetModel,
+                                                               String username, String target) {
+        switch (strategy) {
+            case 0x00 -> {
+                // STANDARD: Basic hole punch
+                System.out.printf("[%s] ⚡ Executing STANDARD hole punch to %s:%d%n",
+                    tag, targetIP.getHostAddress(), targetPort);
+                return executeStandardHolePunch(targetIP, targetPort, username, target);
+            }
+            case 0x01 -> {
+                // SYMMETRIC_BURST: Open port pool and burst
+                System.out.printf("[%s] 🔥 Executing SYMMETRIC BURST strategy%n", tag);
+                System.out.printf("  Opening %d ports, bursting to %s:%d%n", 
+                    numPorts, targetIP.getHostAddress(), targetPort);
+                return symmetricPortPoolExpansion(targetIP, targetPort, numPorts, username, target);
+            }
+            case 0x02 -> {
+                // ASYMMETRIC_SCAN: Scan port range
+                int maxPort = targetPort + numPorts - 1;
+                System.out.printf("[%s] 🔍 Executing ASYMMETRIC SCAN strategy%n", tag);
+                System.out.printf("  Scanning port range %d-%d on %s%n", 
+                    targetPort, maxPort, targetIP.getHostAddress());
+                return scanPortRange(targetIP, targetPort, maxPort, targetModel, username, target);
+            }
+            case 0x03 -> {
+                // SYMMETRIC_MIDPOINT_BURST: Birthday Paradox
+                System.out.printf("[%s] 🎯 Executing SYMMETRIC MIDPOINT BURST (Birthday Paradox)%n", tag);
+                System.out.printf("  Opening %d ports, bursting to peer's midpoint %s:%d%n", 
+                    numPorts, targetIP.getHostAddress(), targetPort);
+                return symmetricMidpointBurst(targetIP, targetPort, numPorts, targetModel, username, target);
+            }
+            default -> {
+                System.err.printf("[%s] ❌ Unknown strategy: 0x%02X%n", tag, strategy);
+                return CompletableFuture.completedFuture(false);
+            }
+        }
+    }
+    
     /**
      * BIRTHDAY PARADOX STRATEGY for Symmetric ↔ Symmetric NAT traversal.
      * 
@@ -1894,159 +1561,24 @@ public class NatAnalyzer {
      * @param numPorts Number of local ports to open (100-500)
      * @param targetUsername Target peer's username for registration
      */
-    private static void symmetricMidpointBurst(InetAddress targetIP, int targetPort, 
-                                                int numPorts, String localUsername, String targetUsername) {
+    private static CompletableFuture<Boolean> symmetricMidpointBurst(InetAddress targetIP, int targetPort, 
+                                                int numPorts, PortPredictor.Model targetModel,
+                                                String localUsername, String targetUsername) {
         System.out.println("\n[BIRTHDAY-PARADOX] 🎯 Starting Symmetric Midpoint Burst");
-        System.out.printf("  Target: %s:%d (~midpoint)%n", targetIP.getHostAddress(), targetPort);
         System.out.printf("  Opening %d local ports for burst...%n", numPorts);
-        
-        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numPorts, 50));
-        List<DatagramChannel> channels = Collections.synchronizedList(new ArrayList<>());
-        AtomicBoolean connectionEstablished = new AtomicBoolean(false);
-        AtomicReference<DatagramChannel> successfulChannel = new AtomicReference<>(null);
-        AtomicReference<InetSocketAddress> peerAddress = new AtomicReference<>(null);
-        
-        long startTime = System.currentTimeMillis();
-        
-        try {
-            // Phase 1: Open port pool and start continuous bursting
-            for (int i = 0; i < numPorts; i++) {
-                final int portIndex = i;
-                executor.submit(() -> {
-                    try {
-                        DatagramChannel channel = DatagramChannel.open();
-                        channel.configureBlocking(false);
-                        channel.socket().setReuseAddress(true);
-                        channel.bind(new InetSocketAddress(0)); // Ephemeral port
-                        
-                        channels.add(channel);
-                        
-                        InetSocketAddress target = new InetSocketAddress(targetIP, targetPort);
-                        
-                        int burstCount = 0;
-                        
-                        // Continuous bursting until collision detected
-                        while (!connectionEstablished.get()) {
-                            ByteBuffer burstPayload = LLS.New_Burst_Packet(
-                                localUsername,
-                                targetUsername,
-                                "MIDPOINT-BURST-" + portIndex + "-" + burstCount
-                            );
-                            
-                            channel.send(burstPayload, target);
-                            burstCount++;
-                            
-                            // Check for incoming response (collision detection)
-                            ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
-                            InetSocketAddress sender = (InetSocketAddress) channel.receive(receiveBuffer);
-                            
-                            if (sender != null) {
-                                // ✅ VALIDATE: Response must be from target peer IP
-                                boolean isFromTarget = sender.getAddress().equals(targetIP);
-                                
-                                if (!isFromTarget) {
-                                    System.out.printf("[BIRTHDAY-PARADOX] ⚠️ Response from WRONG source: %s (expected: %s)%n",
-                                        sender, target);
-                                    continue; // Ignore server echo or wrong peer, keep bursting
-                                }
-                                
-                                if (!connectionEstablished.getAndSet(true)) {
-                                    // 🎉 COLLISION DETECTED!
-                                    long collisionTime = System.currentTimeMillis() - startTime;
-                                    System.out.printf("\n[BIRTHDAY-PARADOX] 🎉 COLLISION! Port %d received response after %d ms%n",
-                                        portIndex, collisionTime);
-                                    System.out.printf("  Peer responded from: %s (VALIDATED ✅)%n", sender);
-                                    System.out.printf("  Total bursts sent: %d%n", burstCount);
-                                    
-                                    successfulChannel.set(channel);
-                                    peerAddress.set(sender);
-                                    return; // Keep this channel alive
-                                }
-                            }
-                            
-                            Thread.sleep(50); // 50ms between bursts = 20 bursts/sec
-                        }
-                        
-                    } catch (ClosedByInterruptException | InterruptedException e) {
-                        // Expected when connection established
-                    } catch (Exception e) {
-                        if (!connectionEstablished.get()) {
-                            System.err.printf("[BIRTHDAY-PARADOX] Port %d error: %s%n", 
-                                portIndex, e.getMessage());
-                        }
-                    }
-                });
-            }
-            
-            // Phase 2: Wait for collision (max 30 seconds)
-            System.out.println("[BIRTHDAY-PARADOX] ⏳ All ports bursting... waiting for collision...");
-            
-            for (int i = 0; i < 300; i++) { // 30 seconds timeout
-                Thread.sleep(100);
-                
-                if (connectionEstablished.get()) {
-                    break;
-                }
-                
-                // Progress indicator every 5 seconds
-                if ((i + 1) % 50 == 0) {
-                    System.out.printf("[BIRTHDAY-PARADOX] Still bursting... (%d seconds elapsed)%n", 
-                        (i + 1) / 10);
-                }
-            }
-            
-            // Phase 3: Cleanup and connection establishment
-            executor.shutdownNow();
-            
-            if (connectionEstablished.get()) {
-                DatagramChannel workingChannel = successfulChannel.get();
-                InetSocketAddress peer = peerAddress.get();
-                
-                System.out.println("\n[BIRTHDAY-PARADOX] ✅ Connection Established!");
-                System.out.printf("  Using local port: %d%n", 
-                    workingChannel.socket().getLocalPort());
-                System.out.printf("  Peer address: %s%n", peer);
-                
-                // Close all other channels
-                for (DatagramChannel ch : channels) {
-                    if (ch != workingChannel && ch.isOpen()) {
-                        try { ch.close(); } catch (Exception e) {}
-                    }
-                }
-                
-                // Register peer with activePeers map
-                activePeers.put(targetUsername, peer);
-                lastActivity.put(targetUsername, System.currentTimeMillis());
-                
-                // WARNING: workingChannel != stunChannel!
-                // We need to ensure messages use the same channel as keep-alive
-                // For now, start a dedicated keep-alive thread for this channel
-                System.out.println("[BIRTHDAY-PARADOX] 💓 Starting dedicated keep-alive for working channel");
-                startKeepAlive(workingChannel, peer, targetUsername);
-                
-            } else {
-                System.err.println("\n[BIRTHDAY-PARADOX] ❌ TIMEOUT: No collision detected after 30 seconds");
-                System.err.println("  Possible causes:");
-                System.err.println("  - Both sides might have strict firewalls");
-                System.err.println("  - Port range midpoint calculation mismatch");
-                System.err.println("  - Network congestion dropping burst packets");
-                
-                // Close all channels
-                for (DatagramChannel ch : channels) {
-                    try { ch.close(); } catch (Exception e) {}
-                }
-            }
-            
-        } catch (Exception e) {
-            System.err.println("[BIRTHDAY-PARADOX] ❌ Fatal error: " + e.getMessage());
-            e.printStackTrace();
-            
-            // Emergency cleanup
-            executor.shutdownNow();
-            for (DatagramChannel ch : channels) {
-                try { ch.close(); } catch (Exception ex) {}
-            }
+        HolePunch.Plan plan;
+        if (targetModel != null && targetModel.predictable()) {
+            // Aim at the middle of the block the peer's NAT will allocate for its pool,
+            // not at the middle of the range it was profiled in
+            int predicted = PortPredictor.blockMidpoint(targetModel, numPorts);
+            System.out.printf("  Target: %s:%d (predicted block midpoint, %s)%n",
+                targetIP.getHostAddress(), predicted, targetModel);
+            plan = HolePunch.everySocketTo(predicted);
+        } else {
+            System.out.printf("  Target: %s:%d (~midpoint)%n", targetIP.getHostAddress(), targetPort);
+            plan = HolePunch.everySocketTo(targetPort);
         }
+        return portPoolPunch("BIRTHDAY-PARADOX", "MIDPOINT-BURST-", targetIP, plan, numPorts, localUsername, targetUsername);
     }
     
     /**
@@ -2054,35 +1586,30 @@ public class NatAnalyzer {
      * Sends periodic heartbeat messages to maintain NAT mapping.
      */
     private static void startKeepAlive(DatagramChannel channel, InetSocketAddress peer, String username) {
-        Thread keepAliveThread = new Thread(() -> {
+        ByteBuffer keepAlivePayload = ByteBuffer.allocate(64);
+        int[] sequenceNumber = {0};
+        NatReactor.Timer[] timer = new NatReactor.Timer[1];
+        timer[0] = NatReactor.shared().scheduleAtFixedRate(() -> {
+            if (!channel.isOpen()) {
+                System.out.println("[KEEP-ALIVE] Channel closed for: " + username);
+                if (timer[0] != null) timer[0].cancel();
+                return;
+            }
             try {
-                ByteBuffer keepAlivePayload = ByteBuffer.allocate(64);
-                int sequenceNumber = 0;
+                keepAlivePayload.clear();
+                keepAlivePayload.put(LLS.SIG_KEEP);
+                keepAlivePayload.put(("KEEPALIVE-" + sequenceNumber[0]++).getBytes());
+                keepAlivePayload.flip();
                 
-                while (channel.isOpen() && !Thread.interrupted()) {
-                    keepAlivePayload.clear();
-                    keepAlivePayload.put(LLS.SIG_KEEP);
-                    keepAlivePayload.put(("KEEPALIVE-" + sequenceNumber++).getBytes());
-                    keepAlivePayload.flip();
-                    
-                    channel.send(keepAlivePayload, peer);
-                    
-                    // Update activity timestamp
-                    lastActivity.put(username, System.currentTimeMillis());
-                    
-                    Thread.sleep(15000); // 15 seconds interval
-                }
+                channel.send(keepAlivePayload, peer);
                 
-            } catch (InterruptedException e) {
-                System.out.println("[KEEP-ALIVE] Thread interrupted for: " + username);
+                // Update activity timestamp
+                lastActivity.put(username, System.currentTimeMillis());
             } catch (Exception e) {
                 System.err.println("[KEEP-ALIVE] Error for " + username + ": " + e.getMessage());
+                if (timer[0] != null) timer[0].cancel();
             }
-        });
-        
-        keepAliveThread.setName("KeepAlive-" + username);
-        keepAliveThread.setDaemon(true);
-        keepAliveThread.start();
+        }, 0, 15, TimeUnit.SECONDS); // 15 seconds interval
     }
     
     /**
@@ -2090,201 +1617,48 @@ public class NatAnalyzer {
      * Sends multiple packets to establish NAT mapping and listens for peer response.
      * Uses continuous burst until peer response or timeout (30 seconds).
      * 
-     * 🔧 REVERTED: Using own Selector for immediate peer response (like old working version)
-     * ⚠️ CRITICAL: Temporarily stops KeepAliveManager to avoid Selector conflict!
+     * Runs on the reactor next to KeepAliveManager's listener: no second
+     * Selector on stunChannel, nothing to stop and restart.
      */
-    private static void executeStandardHolePunch(InetAddress targetIP, int targetPort, String localUsername, String targetUsername) {
-        try {
-            if (stunChannel == null || !stunChannel.isOpen()) {
-                System.err.println("[P2P-INSTRUCT] ❌ No active STUN channel!");
-                return;
-            }
-            
-            InetSocketAddress targetAddr = new InetSocketAddress(targetIP, targetPort);
-            System.out.printf("[STANDARD-PUNCH] 📤 Starting continuous burst to %s%n", targetAddr);
-            System.out.println("[STANDARD-PUNCH] Will burst until peer response or 30s timeout");
-            System.out.printf("[STANDARD-PUNCH] 🔍 DEBUG: targetIP=%s, targetPort=%d%n", targetIP.getHostAddress(), targetPort);
-            System.out.printf("[STANDARD-PUNCH] 🔍 DEBUG: stunChannel local=%s, connected=%b%n", 
-                stunChannel.getLocalAddress(), stunChannel.isConnected());
-            
-            // ⚠️ CRITICAL: Stop KeepAliveManager temporarily to avoid Selector conflict
-            // (A channel can only be registered with ONE Selector at a time!)
-            boolean keepAliveWasActive = false;
-            if (globalKeepAlive != null) {
-                System.out.println("[STANDARD-PUNCH] ⏸️ Temporarily stopping KeepAliveManager for punch...");
-                globalKeepAlive.stopMessageListening();
-                keepAliveWasActive = true;
-            }
-            
-            // 🔧 REVERTED: Use own Selector for immediate response detection
-            stunChannel.configureBlocking(false);
-            Selector selector = Selector.open();
-            stunChannel.register(selector, SelectionKey.OP_READ);
-            
-            long startTime = System.currentTimeMillis();
-            long timeout = 30000; // 30 seconds timeout
-            boolean peerResponseReceived = false;
-            int burstCount = 0;
-            int selectorWakeups = 0;
-            int serverPackets = 0;
-            int otherPackets = 0;
-            
-            System.out.println("[STANDARD-PUNCH] 🎯 Starting burst loop...");
-            System.out.printf("[STANDARD-PUNCH] 📍 Listening on LOCAL: %s%n", stunChannel.getLocalAddress());
-            System.out.printf("[STANDARD-PUNCH] 📍 Sending to REMOTE: %s%n", targetAddr);
-            
-            // Continuous burst with immediate response listening
-            while (!peerResponseReceived && (System.currentTimeMillis() - startTime) < timeout) {
-                // Send burst packet with proper LLS format
-                ByteBuffer burstPayload = LLS.New_Burst_Packet(
-                    localUsername, 
-                    targetUsername, 
-                    "STANDARD-BURST-" + burstCount
-                );
-                
-                int bytesSent = stunChannel.send(burstPayload, targetAddr);
-                if (burstCount == 0) {
-                    System.out.printf("[STANDARD-PUNCH] 📤 First burst sent: %d bytes to %s%n", bytesSent, targetAddr);
+    private static CompletableFuture<Boolean> executeStandardHolePunch(InetAddress targetIP, int targetPort, String localUsername, String targetUsername) {
+        if (stunChannel == null || !stunChannel.isOpen()) {
+            System.err.println("[P2P-INSTRUCT] ❌ No active STUN channel!");
+            completePendingConnection(targetUsername, false);
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        InetSocketAddress targetAddr = new InetSocketAddress(targetIP, targetPort);
+        System.out.printf("[STANDARD-PUNCH] 📤 Starting continuous burst to %s%n", targetAddr);
+        System.out.println("[STANDARD-PUNCH] Will burst until peer response or 30s timeout");
+        
+        // KeepAliveManager keeps listening: the punch taps the same channel on the
+        // reactor, and the peer's burst is auto-ACKed by the listener as usual
+        return HolePunch.toPort(NatReactor.shared(), "STANDARD-PUNCH", stunChannel, targetAddr,
+                (socket, seq, port) -> LLS.New_Burst_Packet(localUsername, targetUsername, "STANDARD-BURST-" + seq),
+                (frame, from) -> frame.get(0) == LLS.SIG_PUNCH_BURST)
+            .start(50, 30_000)
+            .thenApply(punched -> {
+                if (punched == null) {
+                    System.err.println("\n[STANDARD-PUNCH] ❌ TIMEOUT: No peer response after 30 seconds");
+                    System.err.println("  ⚠️ Peer burst packets NEVER arrived at this socket!");
+                    System.err.printf("  🔍 Was sending to: %s%n", targetAddr);
+                    completePendingConnection(targetUsername, false);
+                    return false;
                 }
-                burstCount++;
                 
-                // Check for peer response (non-blocking, immediate)
-                int readyKeys = selector.select(50); // 50ms wait
-                if (readyKeys > 0) {
-                    selectorWakeups++;
-                    System.out.printf("[STANDARD-PUNCH] 🔔 Selector wakeup #%d (ready keys: %d)%n", selectorWakeups, readyKeys);
-                    
-                    selector.selectedKeys().clear();
-                    
-                    // ⚡ CRITICAL FIX: Read ALL available packets in buffer!
-                    // UDP buffer can contain MULTIPLE packets (server + peer)
-                    // If we only read ONE packet and it's from server, peer packet is lost!
-                    int packetsRead = 0;
-                    while (true) {
-                        ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
-                        InetSocketAddress sender = (InetSocketAddress) stunChannel.receive(receiveBuffer);
-                        
-                        if (sender == null) {
-                            // No more packets available
-                            break;
-                        }
-                        
-                        packetsRead++;
-                        receiveBuffer.flip();
-                        System.out.printf("[STANDARD-PUNCH] 📦 Packet #%d: %d bytes from %s%n", 
-                            packetsRead, receiveBuffer.remaining(), sender);
-                        
-                        long responseTime = System.currentTimeMillis() - startTime;
-                        
-                        // Track packet source
-                        boolean isFromTarget = sender.getAddress().equals(targetIP);
-                        boolean isFromServer = sender.getAddress().getHostAddress().equals("35.198.64.68");
-                        
-                        if (isFromServer) {
-                            serverPackets++;
-                            System.out.printf("[STANDARD-PUNCH] 📊 SERVER packet (ignoring, checking next)%n");
-                            continue; // Skip server, check next packet in buffer
-                        }
-                        
-                        if (!isFromTarget) {
-                            otherPackets++;
-                            System.out.printf("[STANDARD-PUNCH] ⚠️ Unknown source: %s (ignoring)%n", sender);
-                            continue; // Skip unknown, check next
-                        }
-                        
-                        // ✅ PEER PACKET FOUND!
-                        receiveBuffer.position(0);
-                        byte msgType = receiveBuffer.get();
-                        
-                        if (msgType == LLS.SIG_PUNCH_BURST) {
-                            System.out.printf("\n[STANDARD-PUNCH] ✅ PEER RESPONSE RECEIVED after %d ms!%n", responseTime);
-                            System.out.printf("  Peer address: %s (VALIDATED ✅)%n", sender);
-                            System.out.printf("  Total bursts sent: %d%n", burstCount);
-                            System.out.printf("  Packets in buffer: %d (server=%d, peer=1)%n", 
-                                packetsRead, serverPackets);
-                            
-                            peerResponseReceived = true;
-                            
-                            // Register peer connection info
-                            activePeers.put(targetUsername, sender);
-                            lastActivity.put(targetUsername, System.currentTimeMillis());
-                            
-                            System.out.println("[STANDARD-PUNCH] 💓 Peer connection registered");
-                            
-                            // 🆕 Complete the pending P2P connection future
-                            CompletableFuture<Boolean> future = pendingP2PConnections.get(targetUsername);
-                            if (future != null && !future.isDone()) {
-                                future.complete(true);
-                                System.out.println("[STANDARD-PUNCH] ✅ Notified waiting thread - connection established");
-                            }
-                            
-                            break; // Exit packet reading loop
-                        }
-                    }
-                    
-                    if (packetsRead > 0 && !peerResponseReceived) {
-                        System.out.printf("[STANDARD-PUNCH] 📊 Stats: wakeup=%d, packets=%d, server=%d, other=%d%n",
-                            selectorWakeups, packetsRead, serverPackets, otherPackets);
-                    }
-                    
-                    if (peerResponseReceived) {
-                        break; // Exit burst loop
-                    }
-                }
+                System.out.printf("%n[STANDARD-PUNCH] ✅ PEER RESPONSE RECEIVED after %d ms!%n", punched.elapsedMs());
+                System.out.printf("  Peer address: %s (VALIDATED ✅)%n", punched.peer());
+                System.out.printf("  Total bursts sent: %d%n", punched.bursts());
                 
-                // Progress logging every 5 seconds
-                long elapsed = System.currentTimeMillis() - startTime;
-                if (burstCount % 100 == 0 && burstCount > 0) {
-                    System.out.printf("[STANDARD-PUNCH] Still bursting... %d packets sent (%.1f seconds)%n", 
-                        burstCount, elapsed / 1000.0);
-                }
-            }
-            
-            selector.close();
-            
-            // ⚠️ CRITICAL: Restart KeepAliveManager after punch completes
-            if (keepAliveWasActive && globalKeepAlive != null) {
-                System.out.println("[STANDARD-PUNCH] ▶️ Restarting KeepAliveManager...");
-                globalKeepAlive.startMessageListening(stunChannel);
-            }
-            
-            // Timeout check
-            if (!peerResponseReceived) {
-                System.err.println("\n[STANDARD-PUNCH] ❌ TIMEOUT: No peer response after 30 seconds");
-                System.err.printf("  Total bursts sent: %d%n", burstCount);
-                System.err.printf("  Selector wakeups: %d (server packets: %d, other: %d)%n", 
-                    selectorWakeups, serverPackets, otherPackets);
-                System.err.println("  ⚠️ Peer burst packets NEVER arrived at this socket!");
-                System.err.printf("  🔍 Was listening on: %s%n", stunChannel.getLocalAddress());
-                System.err.printf("  🔍 Was sending to: %s%n", targetAddr);
+                // Register peer connection info
+                activePeers.put(targetUsername, punched.peer());
+                lastActivity.put(targetUsername, System.currentTimeMillis());
+                System.out.println("[STANDARD-PUNCH] 💓 Peer connection registered");
                 
-                // 🆕 Complete the pending future with failure
-                CompletableFuture<Boolean> future = pendingP2PConnections.get(targetUsername);
-                if (future != null && !future.isDone()) {
-                    future.complete(false);
-                }
-            }
-            
-        } catch (Exception e) {
-            System.err.println("[STANDARD-PUNCH] ❌ Failed: " + e.getMessage());
-            e.printStackTrace();
-            
-            // Ensure KeepAliveManager is restarted even on error
-            try {
-                if (globalKeepAlive != null) {
-                    System.out.println("[STANDARD-PUNCH] 🔧 Restarting KeepAliveManager after error...");
-                    globalKeepAlive.startMessageListening(stunChannel);
-                }
-            } catch (Exception restartEx) {
-                System.err.println("[STANDARD-PUNCH] ⚠️ Failed to restart KeepAliveManager: " + restartEx.getMessage());
-            }
-            
-            // 🆕 Complete the pending future with failure
-            CompletableFuture<Boolean> future = pendingP2PConnections.get(targetUsername);
-            if (future != null && !future.isDone()) {
-                future.complete(false);
-            }
-        }
+                // 🆕 Complete the pending P2P connection future
+                completePendingConnection(targetUsername, true);
+                return true;
+            });
     }
     
     // ============================================
@@ -2373,6 +1747,15 @@ public class NatAnalyzer {
             } catch (Exception e) {
                 System.err.println("[NAT] ⚠️ Failed to parse filename: " + e.getMessage());
             }
+        } else if (message.startsWith(FOLDER_ANNOUNCE)) {
+            // Parse: "📁 Sending folder: name (N files, size)"
+            int nameEnd = message.lastIndexOf(" (");
+            if (nameEnd > FOLDER_ANNOUNCE.length()) {
+                String folder = message.substring(FOLDER_ANNOUNCE.length(), nameEnd).trim();
+                pendingFileNames.put(sender, folder);
+                pendingBatchSenders.add(sender);
+                System.out.printf("[NAT] 📁 Folder announced by %s: %s%n", sender, folder);
+            }
         }
         
         // Forward to registered callback if available
@@ -2485,7 +1868,13 @@ public class NatAnalyzer {
         }
         
         return CompletableFuture.runAsync(() -> {
-            long fileId = System.currentTimeMillis();
+            // Same file, same id: a re-send resumes the receiver's checkpoint
+            long fileId;
+            try {
+                fileId = com.saferoom.file_transfer.TransferKey.of(filePath);
+            } catch (java.io.IOException e) {
+                fileId = System.currentTimeMillis(); // unreadable: the send below reports it
+            }
             
             try {
                 System.out.printf("[FILE-SEND] 📤 Sending %s to %s%n",
@@ -2494,8 +1883,7 @@ public class NatAnalyzer {
                 // STOP KeepAliveManager
                 if (globalKeepAlive != null) {
                     System.out.println("[FILE-SEND] ⏸️  Stopping KeepAliveManager");
-                    globalKeepAlive.stopMessageListening();
-                    Thread.sleep(100);
+                    globalKeepAlive.stopMessageListening(); // returns once the reactor stopped reading
                 }
                 
                 // Connect stunChannel to peer for file transfer
@@ -2540,6 +1928,45 @@ public class NatAnalyzer {
         }, P2P_EXECUTOR);
     }
     
+    /**
+     * Send a folder to peer as one transfer (SENDER role): the manifest and
+     * all its files spooled into one batch stream, so 5,000 small files cost
+     * one handshake instead of 5,000. The receiver rebuilds the tree on
+     * completion (announced first, like the file name of a single file).
+     */
+    public static CompletableFuture<Void> sendFolder(String targetUser, java.nio.file.Path folder) {
+        if (!activePeers.containsKey(targetUser)) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("No P2P connection to " + targetUser)
+            );
+        }
+        
+        java.nio.file.Path spool;
+        com.saferoom.file_transfer.BatchManifest manifest;
+        try (com.saferoom.file_transfer.BatchSource source = com.saferoom.file_transfer.BatchSource.of(folder)) {
+            manifest = source.manifest();
+            spool = java.nio.file.Files.createTempFile("saferoom-batch-", ".bin");
+            source.writeTo(spool);
+        } catch (java.io.IOException e) {
+            System.err.printf("[FILE-SEND] ❌ Cannot pack %s: %s%n", folder, e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+        System.out.printf("[FILE-SEND] 📁 Folder %s: %d files, %,d bytes in one batch%n",
+            folder.getFileName(), manifest.fileCount(), manifest.totalBytes());
+        
+        String announce = String.format("%s%s (%d files, %d bytes)",
+            FOLDER_ANNOUNCE, folder.getFileName(), manifest.fileCount(), manifest.totalBytes());
+        return sendReliableMessage(targetUser, announce)
+            .thenCompose(ok -> Boolean.TRUE.equals(ok) ? sendFile(targetUser, spool)
+                : CompletableFuture.<Void>failedFuture(new IllegalStateException("Folder announce not delivered")))
+            .whenComplete((v, ex) -> {
+                try {
+                    java.nio.file.Files.deleteIfExists(spool);
+                } catch (java.io.IOException ignored) {
+                }
+            });
+    }
+    
     /**
      * Accept incoming file transfer (DEPRECATED - now auto-accepts)
      * Kept for compatibility
@@ -2562,7 +1989,7 @@ public class NatAnalyzer {
             int packetSize = packet.remaining();
             
             // Handshake detection
-            if (packetSize == com.saferoom.file_transfer.HandShake_Packet.HEADER_SIZE) {
+            if (com.saferoom.file_transfer.HandShake_Packet.isSynSize(packetSize)) {
                 byte signal = packet.get(0);
                 
                 if (signal == com.saferoom.file_transfer.HandShake_Packet.SYN) {
@@ -2589,6 +2016,7 @@ public class NatAnalyzer {
             
             // Get filename from pending map (set by chat message callback)
             String extractedName = pendingFileNames.remove(senderUsername);
+            final boolean batch = pendingBatchSenders.remove(senderUsername);
             final String fileName;
             if (extractedName == null) {
                 // Fallback to generic name
@@ -2608,8 +2036,7 @@ public class NatAnalyzer {
             // Stop KeepAliveManager
             if (globalKeepAlive != null) {
                 try {
-                    globalKeepAlive.stopMessageListening();
-                    Thread.sleep(100);
+                    globalKeepAlive.stopMessageListening(); // on the reactor: inline, nothing to wait for
                 } catch (Exception e) {
                     System.err.println("[FILE-RECV] ⚠️ Error stopping KeepAliveManager: " + e.getMessage());
                 }
@@ -2639,6 +2066,9 @@ public class NatAnalyzer {
                             receiver.ReceiveData();
                             
                             System.out.printf("[FILE-RECV] ✅ File received successfully: %s%n", savePath);
+                            if (batch) {
+                                unpackFolder(senderUsername, fileId, savePath);
+                            }
                             
                             if (fileTransferCallback != null) {
                                 fileTransferCallback.onFileTransferComplete(senderUsername, fileId, savePath);
@@ -2665,6 +2095,26 @@ public class NatAnalyzer {
         }
     }
     
+    /** A received batch stream at {@code savePath}: build the folder in its place */
+    private static void unpackFolder(String peer, long fileId, java.nio.file.Path savePath) throws java.io.IOException {
+        java.nio.file.Path stream = savePath.resolveSibling(savePath.getFileName() + ".batch");
+        java.nio.file.Files.move(savePath, stream, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        try {
+            com.saferoom.file_transfer.BatchManifest manifest = com.saferoom.file_transfer.BatchMaterializer.unpack(
+                stream, savePath, new com.saferoom.file_transfer.BatchMaterializer.Listener() {
+                    @Override
+                    public void onProgress(int filesDone, int fileCount, long bytesDone, long totalBytes) {
+                        if (fileTransferCallback != null) {
+                            fileTransferCallback.onFileTransferProgress(peer, fileId, filesDone, fileCount);
+                        }
+                    }
+                });
+            System.out.printf("[FILE-RECV] 📁 Folder unpacked: %d files -> %s%n", manifest.fileCount(), savePath);
+        } finally {
+            java.nio.file.Files.deleteIfExists(stream);
+        }
+    }
+    
     /**
      * Called by KeepAliveManager when file transfer packet detected
      */
@@ -0,0 +1,229 @@
+package com.saferoom.natghost;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * NAT profiles remembered across sessions, one per network: the key is the
+ * local interface, its address and the default gateway, so a laptop moving
+ * between home and office keeps both and re-profiles neither until the TTL
+ * runs out. A different network is a different key - nothing stale is used.
+ *
+ * Stored as a properties file (~/SafeRoom_Data/nat-profile.properties):
+ * {@code <key>.natType}, {@code .minPort}, {@code .maxPort},
+ * {@code .profiledPorts}, {@code .observedPorts}, {@code .publicIP}, {@code .savedAt}.
+ */
+final class NatProfileStore {
+
+    static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(
+        Long.getLong("saferoom.nat.profile.ttlHours", 12));
+
+    private final Path file;
+    private final long ttlMs;
+    private final LongSupplier clock;
+
+    NatProfileStore(Path file, long ttlMs, LongSupplier clock) {
+        this.file = file;
+        this.ttlMs = ttlMs;
+        this.clock = clock;
+    }
+
+    /** The application's store; {@code saferoom.nat.profile.file} overrides the location */
+    static NatProfileStore defaultStore() {
+        String override = System.getProperty("saferoom.nat.profile.file");
+        Path file = override != null ? Paths.get(override)
+            : Paths.get(System.getProperty("user.home"), "SafeRoom_Data", "nat-profile.properties");
+        return new NatProfileStore(file, DEFAULT_TTL_MS, System::currentTimeMillis);
+    }
+
+    /** The profile saved for {@code network}, or null if none, expired or unreadable */
+    synchronized NatAnalyzer.NATProfile load(String network) {
+        Properties props = read();
+        String savedAt = props.getProperty(network + ".savedAt");
+        if (savedAt == null) {
+            return null;
+        }
+        try {
+            long age = clock.getAsLong() - Long.parseLong(savedAt);
+            if (age < 0 || age > ttlMs) {
+                return null;
+            }
+            List<Integer> observed = new ArrayList<>();
+            String ports = props.getProperty(network + ".observedPorts", "");
+            for (String port : ports.split(",")) {
+                if (!port.isBlank()) {
+                    observed.add(Integer.parseInt(port.trim()));
+                }
+            }
+            NatAnalyzer.NATProfile profile = new NatAnalyzer.NATProfile(
+                (byte) Integer.parseInt(props.getProperty(network + ".natType")),
+                Integer.parseInt(props.getProperty(network + ".minPort")),
+                Integer.parseInt(props.getProperty(network + ".maxPort")),
+                Integer.parseInt(props.getProperty(network + ".profiledPorts")),
+                observed);
+            profile.publicIP = props.getProperty(network + ".publicIP"); // null in older files: never matches
+            return profile;
+        } catch (RuntimeException e) {
+            System.err.println("[NAT-PROFILE] Ignoring damaged saved profile for " + network);
+            return null;
+        }
+    }
+
+    /** Save {@code profile} for {@code network}; expired entries of other networks are dropped */
+    synchronized void save(String network, NatAnalyzer.NATProfile profile) {
+        Properties props = read();
+        long now = clock.getAsLong();
+        for (String name : props.stringPropertyNames()) {
+            if (name.endsWith(".savedAt")) {
+                String other = name.substring(0, name.length() - ".savedAt".length());
+                if (isExpired(props.getProperty(name), now)) {
+                    props.keySet().removeIf(k -> ((String) k).startsWith(other + "."));
+                }
+            }
+        }
+        props.setProperty(network + ".natType", Integer.toString(profile.natType & 0xFF));
+        props.setProperty(network + ".minPort", Integer.toString(profile.minPort));
+        props.setProperty(network + ".maxPort", Integer.toString(profile.maxPort));
+        props.setProperty(network + ".profiledPorts", Integer.toString(profile.profiledPorts));
+        StringBuilder observed = new StringBuilder();
+        for (Integer port : profile.observedPorts) {
+            if (observed.length() > 0) {
+                observed.append(',');
+            }
+            observed.append(port);
+        }
+        props.setProperty(network + ".observedPorts", observed.toString());
+        if (profile.publicIP != null) {
+            props.setProperty(network + ".publicIP", profile.publicIP);
+        } else {
+            props.remove(network + ".publicIP");
+        }
+        props.setProperty(network + ".savedAt", Long.toString(now));
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, "SafeRoom NAT profiles (per network, TTL " + ttlMs / 60_000 + " min)");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[NAT-PROFILE] Cannot save profile: " + e.getMessage());
+        }
+    }
+
+    private boolean isExpired(String savedAt, long now) {
+        try {
+            return now - Long.parseLong(savedAt) > ttlMs;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private Properties read() {
+        Properties props = new Properties();
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                props.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("[NAT-PROFILE] Cannot read saved profiles: " + e.getMessage());
+            }
+        }
+        return props;
+    }
+
+    // ============= NETWORK IDENTITY =============
+
+    /**
+     * Which network we are on: interface name, its address, default gateway.
+     * The gateway is "?" where it cannot be found; the TTL still bounds how
+     * long such a profile is trusted.
+     */
+    static String networkKey(InetAddress localIP) {
+        String ifName = "?";
+        try {
+            NetworkInterface ni = NetworkInterface.getByInetAddress(localIP);
+            if (ni != null) {
+                ifName = ni.getName();
+            }
+        } catch (IOException ignored) {
+        }
+        String gateway = defaultGateway();
+        // Properties keys: no separators or whitespace
+        return (ifName + "_" + localIP.getHostAddress() + "_gw" + (gateway != null ? gateway : "?"))
+            .replaceAll("[^A-Za-z0-9._-]", "-");
+    }
+
+    /** IPv4 default gateway: /proc/net/route on Linux, {@code netstat -rn} elsewhere; null if unknown */
+    static String defaultGateway() {
+        Path route = Paths.get("/proc/net/route");
+        if (Files.isReadable(route)) {
+            try {
+                return gatewayFromProcRoute(Files.readAllLines(route));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        try {
+            Process netstat = new ProcessBuilder("netstat", "-rn").redirectErrorStream(true).start();
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(netstat.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+            if (!netstat.waitFor(2, TimeUnit.SECONDS)) {
+                netstat.destroy();
+            }
+            return gatewayFromNetstat(lines);
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /** Linux: destination 00000000, gateway as little-endian hex */
+    static String gatewayFromProcRoute(List<String> lines) {
+        for (String line : lines) {
+            String[] cols = line.trim().split("\\s+");
+            if (cols.length > 2 && cols[1].equals("00000000") && !cols[2].equals("00000000")) {
+                long gw = Long.parseLong(cols[2], 16);
+                return (gw & 0xFF) + "." + ((gw >> 8) & 0xFF) + "." + ((gw >> 16) & 0xFF) + "." + ((gw >> 24) & 0xFF);
+            }
+        }
+        return null;
+    }
+
+    /** macOS/BSD: "default  192.168.1.1 ..."; Windows: "0.0.0.0  0.0.0.0  192.168.1.1 ..." */
+    static String gatewayFromNetstat(List<String> lines) {
+        for (String line : lines) {
+            String[] cols = line.trim().split("\\s+");
+            if (cols.length > 1 && cols[0].equals("default") && cols[1].matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+                return cols[1];
+            }
+            if (cols.length > 2 && cols[0].equals("0.0.0.0") && cols[1].equals("0.0.0.0")
+                    && cols[2].matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+                return cols[2];
+            }
+        }
+        return null;
+    }
+}
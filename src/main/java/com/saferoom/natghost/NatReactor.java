@@ -0,0 +1,384 @@
+package com.saferoom.natghost;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One NIO event loop for every NAT traversal socket: the STUN/hole-punch
+ * channel, the symmetric NAT port pools, keep-alives and their timers.
+ *
+ * A channel is registered with one {@link PacketHandler}; every datagram it
+ * receives is read into the loop's buffer and handed over (the frame is only
+ * valid during the call). Taps see the same datagrams before the handler -
+ * a hole punch waiting for its peer taps the channel the keep-alive listener
+ * owns, instead of opening a second Selector on it.
+ *
+ * Timers and per-peer state machines run on the loop thread too, so their
+ * state needs no locks. One thread however many peers or punch sockets there
+ * are: nothing on the loop may block (no sleep, no Future.get).
+ */
+public final class NatReactor implements AutoCloseable {
+
+    static final int RECEIVE_BUFFER = 2048;
+    // Datagrams read from one channel per wakeup, so a busy channel cannot starve the rest
+    private static final int READS_PER_WAKEUP = 64;
+
+    private static NatReactor shared;
+
+    /** The application's loop, started on first use */
+    public static synchronized NatReactor shared() {
+        if (shared == null || !shared.isRunning()) {
+            shared = new NatReactor("NAT-Reactor");
+        }
+        return shared;
+    }
+
+    /** A scheduled task; cancel() from any thread */
+    public static final class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long period;
+        private long seq;
+        private long deadline;
+        private volatile boolean cancelled;
+
+        private Timer(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            int c = Long.compare(deadline, o.deadline);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /** Key attachment: the channel's handler and its taps */
+    private static final class Registration {
+        PacketHandler handler;
+        final List<PacketHandler> taps = new ArrayList<>(2);
+
+        Registration(PacketHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // loop thread only
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER);
+    private long timerSeq;
+    private volatile boolean running = true;
+
+    public NatReactor(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector", e);
+        }
+        this.thread = new Thread(this::loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Run {@code task} on the loop (queued even when called from it) */
+    public void execute(Runnable task) {
+        if (!running) {
+            throw new IllegalStateException("NatReactor closed");
+        }
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * {@code task} on the loop, its result (or exception) as a future. Called
+     * from the loop itself (a handler) it runs inline, so joining the future
+     * is safe from anywhere.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable run = () -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        };
+        if (inEventLoop()) {
+            run.run();
+        } else {
+            execute(run);
+        }
+        return result;
+    }
+
+    public Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        return addTimer(task, unit.toNanos(delay), 0);
+    }
+
+    /** First run after {@code initialDelay}, then every {@code period} (no catch-up bursts) */
+    public Timer scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return addTimer(task, unit.toNanos(initialDelay), unit.toNanos(period));
+    }
+
+    private Timer addTimer(Runnable task, long delayNanos, long periodNanos) {
+        Timer timer = new Timer(task, System.nanoTime() + Math.max(0, delayNanos), periodNanos);
+        execute(() -> {
+            if (!timer.cancelled) {
+                timer.seq = timerSeq++; // equal deadlines run in scheduling order
+                timers.add(timer);
+            }
+        });
+        return timer;
+    }
+
+    /**
+     * Read {@code channel} on the loop and give each datagram to
+     * {@code handler}. Registering again replaces the handler, taps stay.
+     */
+    public CompletableFuture<Void> register(DatagramChannel channel, PacketHandler handler) {
+        return submit(() -> {
+            registration(channel).handler = handler;
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            return null;
+        });
+    }
+
+    /**
+     * Let {@code tap} see every datagram {@code channel} receives, before its
+     * handler. Registers the channel (no handler) if nobody owns it yet.
+     *
+     * @return removes the tap
+     */
+    public Runnable tap(DatagramChannel channel, PacketHandler tap) {
+        execute(() -> {
+            try {
+                registration(channel).taps.add(tap);
+            } catch (IOException e) {
+                System.err.printf("[REACTOR] ❌ Cannot tap %s: %s%n", channel, e.getMessage());
+            }
+        });
+        return () -> execute(() -> {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null) {
+                ((Registration) key.attachment()).taps.remove(tap);
+            }
+        });
+    }
+
+    private Registration registration(DatagramChannel channel) throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            return (Registration) key.attachment();
+        }
+        Registration registration = new Registration(null);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, registration);
+        return registration;
+    }
+
+    /**
+     * Stop reading {@code channel} until {@link #resume}: a file transfer
+     * drives the channel itself meanwhile. Completes once the loop will not
+     * touch it any more.
+     */
+    public CompletableFuture<Void> pause(DatagramChannel channel) {
+        return setInterest(channel, 0);
+    }
+
+    public CompletableFuture<Void> resume(DatagramChannel channel) {
+        return setInterest(channel, SelectionKey.OP_READ);
+    }
+
+    private CompletableFuture<Void> setInterest(DatagramChannel channel, int ops) {
+        return submit(() -> {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Forget {@code channel}'s handler and taps and stop reading it; the
+     * channel stays open for its new owner. The key is parked rather than
+     * cancelled (closing the channel cancels it), so registering again later
+     * needs no extra select.
+     */
+    public CompletableFuture<Void> deregister(DatagramChannel channel) {
+        return submit(() -> {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(0);
+                Registration registration = (Registration) key.attachment();
+                registration.handler = null;
+                registration.taps.clear();
+            }
+            return null;
+        });
+    }
+
+    private void loop() {
+        System.out.println("[REACTOR] 📡 NAT event loop started");
+        try {
+            while (running) {
+                long timeoutMs = runTimers();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (timeoutMs < 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, timeoutMs));
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("[REACTOR] ❌ Event loop error: " + e.getMessage());
+            }
+        } finally {
+            running = false;
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            System.out.println("[REACTOR] 📡 NAT event loop stopped");
+        }
+    }
+
+    private void read(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Registration registration = (Registration) key.attachment();
+        for (int i = 0; i < READS_PER_WAKEUP && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0; i++) {
+            InetSocketAddress from;
+            receiveBuffer.clear();
+            try {
+                from = (InetSocketAddress) channel.receive(receiveBuffer);
+            } catch (ClosedChannelException e) {
+                key.cancel();
+                return;
+            } catch (IOException e) {
+                // e.g. ICMP port unreachable from a burst to a closed port
+                continue;
+            }
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            for (int t = 0; t < registration.taps.size(); t++) {
+                deliver(registration.taps.get(t), from, channel);
+            }
+            if (registration.handler != null) {
+                deliver(registration.handler, from, channel);
+            }
+        }
+    }
+
+    private void deliver(PacketHandler handler, InetSocketAddress from, DatagramChannel channel) {
+        int limit = receiveBuffer.limit();
+        try {
+            handler.handle(receiveBuffer, from, channel);
+        } catch (Exception e) {
+            System.err.printf("[REACTOR] ❌ Handler error for datagram from %s: %s%n", from, e.getMessage());
+        }
+        receiveBuffer.limit(limit).position(0); // next tap/handler sees the whole frame
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.err.println("[REACTOR] ❌ Task failed: " + t);
+            }
+        }
+    }
+
+    /** Due timers run; returns ms until the next one, -1 for none */
+    private long runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null) {
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            if (timer.deadline - now > 0) {
+                return TimeUnit.NANOSECONDS.toMillis(timer.deadline - now + 999_999);
+            }
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (Throwable t) {
+                System.err.println("[REACTOR] ❌ Timer task failed: " + t);
+            }
+            if (timer.period > 0 && !timer.cancelled) {
+                timer.deadline = Math.max(timer.deadline + timer.period, now);
+                timers.add(timer);
+            }
+            now = System.nanoTime();
+        }
+        return -1;
+    }
+
+    /** Stops the loop; registered channels are left open for their owners */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (!inEventLoop()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.saferoom.natghost;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Signal-byte handler table for {@link KeepAliveManager}'s listener.
+ *
+ * One array slot per LLS type byte: a dispatch is an array load and an
+ * interface call. Frames with no registered handler (file transfer packets,
+ * which have no LLS header) go to the fallback. A handler's exception is
+ * logged and the listener carries on with the next datagram.
+ *
+ * Handlers are registered before the listener starts; the table is not
+ * meant to change while packets flow.
+ */
+public final class PacketDispatcher {
+
+    private final PacketHandler[] handlers = new PacketHandler[256];
+    private final String[] names = new String[256];
+    private PacketHandler fallback = (frame, from, channel) -> { };
+
+    /** Route {@code signal} to {@code handler}; {@code name} is for logs */
+    public PacketDispatcher on(byte signal, String name, PacketHandler handler) {
+        int i = signal & 0xFF;
+        handlers[i] = handler;
+        names[i] = name;
+        return this;
+    }
+
+    /** Frames whose type byte has no handler */
+    public PacketDispatcher otherwise(PacketHandler handler) {
+        this.fallback = handler;
+        return this;
+    }
+
+    public boolean handles(byte signal) {
+        return handlers[signal & 0xFF] != null;
+    }
+
+    /**
+     * Hand {@code frame} (position at the type byte) to its handler.
+     *
+     * @return false if it went to the fallback
+     */
+    public boolean dispatch(ByteBuffer frame, InetSocketAddress from, DatagramChannel channel) {
+        int i = frame.get(frame.position()) & 0xFF;
+        PacketHandler handler = handlers[i];
+        try {
+            if (handler != null) {
+                handler.handle(frame, from, channel);
+                return true;
+            }
+            fallback.handle(frame, from, channel);
+        } catch (Exception e) {
+            System.err.printf("[KA] ❌ Error handling %s from %s: %s%n",
+                handler != null ? names[i] : String.format("0x%02X", i), from, e.getMessage());
+        }
+        return handler != null;
+    }
+}
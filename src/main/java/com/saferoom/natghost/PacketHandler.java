@@ -0,0 +1,18 @@
+package com.saferoom.natghost;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Handler for one LLS signal on the hole-punched channel (see
+ * {@link PacketDispatcher}).
+ *
+ * {@code frame} starts at the type byte and is only valid during the call:
+ * it is the event loop's receive buffer, reused for the next datagram. Handlers that
+ * keep anything copy it out (the LLS parsers already do).
+ */
+@FunctionalInterface
+public interface PacketHandler {
+    void handle(ByteBuffer frame, InetSocketAddress from, DatagramChannel channel) throws Exception;
+}
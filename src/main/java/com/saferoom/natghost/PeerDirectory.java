@@ -0,0 +1,58 @@
+package com.saferoom.natghost;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * Typed view of the hole-punched peers: username -> current address and last
+ * activity. Wraps NatAnalyzer's maps so the listener updates them directly
+ * instead of finding them by reflection.
+ *
+ * A peer's NAT may move it to another port mid-session; every packet that
+ * identifies its sender refreshes the address.
+ */
+final class PeerDirectory {
+
+    private final Map<String, InetSocketAddress> addresses;
+    private final Map<String, Long> lastActivity;
+
+    PeerDirectory(Map<String, InetSocketAddress> addresses, Map<String, Long> lastActivity) {
+        this.addresses = addresses;
+        this.lastActivity = lastActivity;
+    }
+
+    InetSocketAddress addressOf(String username) {
+        return addresses.get(username);
+    }
+
+    /** A packet from {@code username} arrived from {@code from} */
+    void seen(String username, InetSocketAddress from) {
+        InetSocketAddress old = addresses.put(username, from);
+        if (old == null || !old.equals(from)) {
+            System.out.printf("[KA-UPDATE] 🔄 Updated %s address: %s → %s%n", username, old, from);
+        }
+        lastActivity.put(username, System.currentTimeMillis());
+    }
+
+    /** A packet that does not name its sender (DNS keep-alive): match by IP */
+    boolean seenFromIp(InetSocketAddress from) {
+        for (Map.Entry<String, InetSocketAddress> entry : addresses.entrySet()) {
+            if (entry.getValue().getAddress().equals(from.getAddress())) {
+                if (!entry.getValue().equals(from)) {
+                    // Same IP, but port may have changed
+                    System.out.printf("[KA-UPDATE] 🔄 Updated %s address: %s → %s (from DNS keepalive)%n",
+                        entry.getKey(), entry.getValue(), from);
+                    addresses.put(entry.getKey(), from);
+                }
+                lastActivity.put(entry.getKey(), System.currentTimeMillis());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Known peer at {@code from}, without touching its activity (burst ACK) */
+    void register(String username, InetSocketAddress from) {
+        addresses.put(username, from);
+    }
+}
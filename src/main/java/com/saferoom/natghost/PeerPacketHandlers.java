@@ -0,0 +1,140 @@
+package com.saferoom.natghost;
+
+import com.saferoom.file_transfer.HandShake_Packet;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+
+/**
+ * The hole-punched channel's handlers: LLS signals to NatAnalyzer, the
+ * reliable messaging endpoints and the peer table; everything else is tried
+ * as a file transfer packet.
+ */
+final class PeerPacketHandlers {
+
+    // 🔒 SERVER IP BLACKLIST - Never accept burst packets from signaling server!
+    private static InetAddress SERVER_IP = null;
+    static {
+        try {
+            SERVER_IP = InetAddress.getByName("35.198.64.68"); // Google Cloud signaling server
+        } catch (Exception e) {
+            System.err.println("⚠️ Failed to resolve server IP for blacklist: " + e.getMessage());
+        }
+    }
+
+    private PeerPacketHandlers() { }
+
+    static PacketDispatcher create(PeerDirectory peers) {
+        return new PacketDispatcher()
+            .on(LLS.SIG_MESSAGE, "message", (frame, from, channel) -> {
+                // 🔄 UPDATE PEER ADDRESS - Peer may have switched to different port!
+                byte[] senderBytes = new byte[20];
+                frame.get(frame.position() + 3, senderBytes); // after type + length
+                peers.seen(new String(senderBytes).trim(), from);
+                NatAnalyzer.handleIncomingMessage(frame.duplicate(), from);
+            })
+            .on(LLS.SIG_PUNCH_INSTRUCT, "punch instruction", (frame, from, channel) -> {
+                System.out.printf("[KA] 🧠 SIG_PUNCH_INSTRUCT detected from %s - forwarding to NatAnalyzer%n", from);
+                NatAnalyzer.handleIncomingPunchInstruction(frame.duplicate(), from);
+            })
+            .on(LLS.SIG_P2P_NOTIFY, "P2P notification", (frame, from, channel) -> {
+                System.out.printf("[KA] 📢 SIG_P2P_NOTIFY detected from %s - forwarding to NatAnalyzer%n", from);
+                NatAnalyzer.handleIncomingP2PNotification(frame.duplicate(), from);
+            })
+            .on(LLS.SIG_DNS_QUERY, "DNS keep-alive", (frame, from, channel) -> peers.seenFromIp(from))
+            .on(LLS.SIG_PUNCH_BURST, "burst", (frame, from, channel) -> onBurst(peers, frame, from, channel))
+            .on(LLS.SIG_RMSG_DATA, "reliable DATA", (frame, from, channel) -> {
+                ReliableMessageReceiver receiver = NatAnalyzer.reliableReceiver();
+                if (receiver != null) {
+                    receiver.handleDataChunk(LLS.parseReliableMessageChunk(frame.duplicate()), from);
+                }
+            })
+            .on(LLS.SIG_RMSG_ACK, "reliable ACK", (frame, from, channel) -> {
+                ReliableMessageSender sender = NatAnalyzer.reliableSender();
+                if (sender != null) {
+                    Object[] parsed = LLS.parseReliableMessageACK(frame.duplicate());
+                    sender.handleACK((long) parsed[4], (int) parsed[5], (long) parsed[6]);
+                }
+            })
+            .on(LLS.SIG_RMSG_NACK, "reliable NACK", (frame, from, channel) -> {
+                System.out.printf("[KA] ⚠️  Reliable NACK from %s%n", from);
+                ReliableMessageSender sender = NatAnalyzer.reliableSender();
+                if (sender != null) {
+                    Object[] parsed = LLS.parseReliableMessageNACK(frame.duplicate());
+                    sender.handleNACK((long) parsed[4], (int[]) parsed[5], from);
+                }
+            })
+            .on(LLS.SIG_RMSG_FIN, "reliable FIN", (frame, from, channel) -> {
+                ReliableMessageReceiver receiver = NatAnalyzer.reliableReceiver();
+                if (receiver != null) {
+                    receiver.handleFIN((long) LLS.parseReliableMessageFIN(frame.duplicate())[4]);
+                }
+            })
+            .otherwise(PeerPacketHandlers::onFilePacket);
+    }
+
+    private static void onBurst(PeerDirectory peers, ByteBuffer frame, InetSocketAddress from,
+                                DatagramChannel channel) throws Exception {
+        // 🔒 BLACKLIST CHECK: NEVER accept burst packets from signaling server!
+        if (SERVER_IP != null && from.getAddress().equals(SERVER_IP)) {
+            System.out.printf("[KA-BURST] ⛔ BLOCKED: Burst from SIGNALING SERVER %s - THIS SHOULD NEVER HAPPEN!%n", from);
+            return;
+        }
+        List<Object> parsed = LLS.parseBurstPacket(frame.duplicate());
+        String senderUsername = (String) parsed.get(2);
+        String receiverUsername = (String) parsed.get(3);
+        String payload = (String) parsed.get(4);
+
+        // 🔧 PREVENT INFINITE LOOP: Don't respond to ACK packets!
+        if ("BURST-ACK".equals(payload)) {
+            System.out.printf("[KA-BURST] ✅ Received ACK from %s - NAT hole confirmed%n", senderUsername);
+            peers.register(senderUsername, from);
+            return;
+        }
+
+        System.out.printf("[KA-BURST] Burst from %s -> %s: %s - AUTO-RESPONDING%n",
+            senderUsername, receiverUsername, payload);
+        // Immediate response to establish the NAT hole (ONLY if not an ACK)
+        channel.send(LLS.New_Burst_Packet(receiverUsername, senderUsername, "BURST-ACK"), from);
+        peers.seen(senderUsername, from);
+        System.out.printf("[KA-BURST] ✅ Auto-responded to %s - registered for P2P messaging%n", senderUsername);
+    }
+
+    /** No LLS header: file transfer packets, recognised by size and structure */
+    private static void onFilePacket(ByteBuffer frame, InetSocketAddress from, DatagramChannel channel) {
+        int size = frame.remaining();
+        byte type = frame.get(frame.position());
+        String packetType = classifyFilePacket(frame);
+
+        if (packetType == null) {
+            if (type != 0x00 || size < 22) {
+                System.out.printf("[KA] ❓ Unknown packet type 0x%02X (%d bytes) from %s%n", type, size, from);
+            }
+            return; // else a late DATA packet after the transfer finished: silently dropped
+        }
+        if (!"DATA".equals(packetType)) {
+            System.out.printf("[KA] 📁 File %s packet detected (%d bytes) from %s%n", packetType, size, from);
+        }
+        NatAnalyzer.onFileTransferPacket(frame.duplicate(), from);
+    }
+
+    /** HANDSHAKE, NACK, COMPLETION or DATA by size and structure; null if none */
+    static String classifyFilePacket(ByteBuffer frame) {
+        int size = frame.remaining();
+        byte type = frame.get(frame.position());
+        String packetType = null;
+        if (HandShake_Packet.isSynSize(size) && type != 0x00) {
+            packetType = "HANDSHAKE"; // type + fileId + fileSize + totalSeq [+ Merkle leaf layout]
+        } else if (size == 28) {
+            packetType = "NACK";      // type + fileId + lostSeqStart + bitmap + timestamp
+        } else if (size == 8) {
+            packetType = "COMPLETION";
+        } else if (size >= 22 && type == 0x00 && frame.getLong(frame.position() + 1) != 0) {
+            packetType = "DATA";      // type + fileId + seqNum + CRC32 + data (a 29-byte one: 7-byte last slice)
+        }
+        return packetType;
+    }
+}
@@ -0,0 +1,291 @@
+package com.saferoom.natghost;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Models how a NAT hands out external ports - from a profile's observed
+ * ports, in allocation order - and turns the model into ranked candidate
+ * ports and a rate-capped burst schedule, instead of sweeping a whole range
+ * at full speed.
+ *
+ * - stride: the most common step between consecutive allocations
+ * - consistency: share of steps that are 1..16 strides (other hosts behind
+ *   the NAT take the ports in between); gap: the average number of strides
+ * - randomness: entropy of the steps, 0 = always the same step, 1 = never
+ *
+ * SEQUENTIAL (consistency >= 0.6): the next mappings are a few strides past
+ * the last observed port, so candidates walk forward from there.
+ * RANDOM: candidates are the densest parts of the observed range first.
+ */
+final class PortPredictor {
+
+    enum Pattern { SEQUENTIAL, RANDOM }
+
+    static final double SEQUENTIAL_CONSISTENCY = 0.6;
+    // Burst budget (all sockets of one punch); routers start dropping or blocking well above this
+    static final int BUDGET_PPS = Integer.getInteger("saferoom.nat.punch.pps", 2000);
+    /** pattern(1) stride(2) consistency%(1) gap*100(2) randomness%(1) lastPort(4) */
+    static final int WIRE_BYTES = 11;
+
+    private static final int MAX_GAP = 16;
+    private static final int MAX_STRIDE = 256;
+    private static final int BUCKETS = 32;
+    private static final int LOWEST_PORT = 1024; // allocation wraps within 1024..65535
+    private static final int HIGHEST_PORT = 65535;
+    private static final long GROW_MS = 500;
+
+    record Model(Pattern pattern, int stride, double consistency, double gap, double randomness,
+                 int minPort, int maxPort, int lastPort, List<Integer> observed) {
+
+        boolean predictable() {
+            return pattern == Pattern.SEQUENTIAL;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s stride=%d consistency=%.2f gap=%.2f randomness=%.2f range=%d-%d last=%d",
+                pattern, stride, consistency, gap, randomness, minPort, maxPort, lastPort);
+        }
+    }
+
+    private PortPredictor() {
+    }
+
+    /** Fit a model to {@code ports}, in the order the NAT allocated them */
+    static Model fit(List<Integer> ports) {
+        if (ports.isEmpty()) {
+            throw new IllegalArgumentException("no observed ports");
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int port : ports) {
+            min = Math.min(min, port);
+            max = Math.max(max, port);
+        }
+        int last = ports.get(ports.size() - 1);
+        int steps = ports.size() - 1;
+        if (steps < 2) {
+            return new Model(Pattern.RANDOM, 0, 0, 1, 1, min, max, last, List.copyOf(ports));
+        }
+
+        Map<Integer, Integer> deltas = new HashMap<>();
+        for (int i = 1; i < ports.size(); i++) {
+            deltas.merge(ports.get(i) - ports.get(i - 1), 1, Integer::sum);
+        }
+        int stride = 0;
+        int strideCount = 0;
+        for (Map.Entry<Integer, Integer> e : deltas.entrySet()) {
+            int d = e.getKey();
+            int count = e.getValue();
+            if (d != 0 && (count > strideCount || count == strideCount && Math.abs(d) < Math.abs(stride))) {
+                stride = d;
+                strideCount = count;
+            }
+        }
+        if (stride == 0) {
+            return new Model(Pattern.RANDOM, 0, 0, 1, 1, min, max, last, List.copyOf(ports));
+        }
+
+        int near = 0;
+        long strides = 0;
+        double entropy = 0;
+        for (Map.Entry<Integer, Integer> e : deltas.entrySet()) {
+            int d = e.getKey();
+            int count = e.getValue();
+            if (d % stride == 0 && d / stride >= 1 && d / stride <= MAX_GAP) {
+                near += count;
+                strides += (long) (d / stride) * count;
+            }
+            double p = (double) count / steps;
+            entropy -= p * Math.log(p);
+        }
+        double consistency = (double) near / steps;
+        double gap = near > 0 ? (double) strides / near : 1;
+        double randomness = Math.min(1, entropy / Math.log(steps));
+        Pattern pattern = consistency >= SEQUENTIAL_CONSISTENCY && Math.abs(stride) <= MAX_STRIDE
+            ? Pattern.SEQUENTIAL : Pattern.RANDOM;
+        return new Model(pattern, stride, consistency, gap, randomness, min, max, last, List.copyOf(ports));
+    }
+
+    /** Nothing known but the range: every port equally likely */
+    static Model uniform(int minPort, int maxPort) {
+        return new Model(Pattern.RANDOM, 0, 0, 1, 1, minPort, maxPort, minPort, List.of());
+    }
+
+    /**
+     * Up to {@code limit} candidate ports for the NAT's next mappings, most
+     * likely first.
+     */
+    static int[] rank(Model model, int limit) {
+        Set<Integer> ranked = new LinkedHashSet<>();
+        if (model.predictable()) {
+            // Whole strides first (the next allocation, then one more host in between, ...)
+            int primary = Math.max(1, (int) Math.ceil(limit * model.consistency()));
+            for (int k = 1; ranked.size() < primary && k <= HIGHEST_PORT; k++) {
+                ranked.add(wrap((long) model.lastPort() + (long) model.stride() * k));
+            }
+            // Then every port in the allocation direction, for a shifted phase
+            int direction = Integer.signum(model.stride());
+            for (int offset = 1; ranked.size() < limit && offset <= HIGHEST_PORT; offset++) {
+                ranked.add(wrap((long) model.lastPort() + (long) direction * offset));
+            }
+        } else {
+            int lo = model.minPort();
+            int span = model.maxPort() - lo + 1;
+            int buckets = Math.min(BUCKETS, span);
+            int[] counts = new int[buckets];
+            for (int port : model.observed()) {
+                counts[(int) ((long) (port - lo) * buckets / span)]++;
+            }
+            // Densest buckets first; with no samples that is simply ascending
+            List<Integer> order = new ArrayList<>(buckets);
+            for (int b = 0; b < buckets; b++) {
+                order.add(b);
+            }
+            order.sort((a, b) -> counts[a] != counts[b] ? Integer.compare(counts[b], counts[a]) : Integer.compare(a, b));
+            for (int b : order) {
+                int start = lo + (int) ((long) b * span / buckets);
+                int end = lo + (int) ((long) (b + 1) * span / buckets);
+                for (int port = start; port < end && ranked.size() < limit; port++) {
+                    ranked.add(port);
+                }
+                if (ranked.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        int[] ports = new int[ranked.size()];
+        int i = 0;
+        for (int port : ranked) {
+            ports[i++] = port;
+        }
+        return ports;
+    }
+
+    /**
+     * The model with its last port moved up to the newest of {@code fresh}
+     * (mappings seen just now, e.g. this session's STUN answers): a saved
+     * profile can be hours old, and the NAT has allocated on since.
+     */
+    static Model reanchor(Model model, List<Integer> fresh) {
+        if (!model.predictable() || fresh.isEmpty()) {
+            return model;
+        }
+        long span = HIGHEST_PORT - LOWEST_PORT + 1;
+        int direction = Integer.signum(model.stride());
+        int newest = model.lastPort();
+        long furthest = 0;
+        for (int port : fresh) {
+            long ahead = Math.floorMod((long) (port - model.lastPort()) * direction, span);
+            if (ahead > furthest && ahead < span / 2) { // more than half the range ahead: behind, really
+                furthest = ahead;
+                newest = port;
+            }
+        }
+        return new Model(model.pattern(), model.stride(), model.consistency(), model.gap(), model.randomness(),
+            model.minPort(), model.maxPort(), newest, model.observed());
+    }
+
+    private static int wrap(long port) {
+        long span = HIGHEST_PORT - LOWEST_PORT + 1;
+        long p = (port - LOWEST_PORT) % span;
+        return (int) (LOWEST_PORT + (p < 0 ? p + span : p));
+    }
+
+    /**
+     * The middle of the block a predictable NAT will hand out for the peer's
+     * next {@code allocations} sockets: a symmetric NAT maps every new
+     * destination to a new port, so pool sockets must not roam - they all
+     * aim here, and drift up to half a block either way still lands inside.
+     */
+    static int blockMidpoint(Model model, int allocations) {
+        return wrap(model.lastPort() + Math.round(model.stride() * model.gap() * (allocations + 1) / 2.0));
+    }
+
+    /** Burst interval for a pool of {@code sockets}, so the pool stays within the budget */
+    static long poolIntervalMs(int sockets, int budgetPps, long minIntervalMs) {
+        return Math.max(minIntervalMs, (sockets * 1000L + budgetPps - 1) / budgetPps);
+    }
+
+    static Schedule schedule(int[] ranked, int budgetPps, long tickMs) {
+        int perTick = (int) Math.max(1, budgetPps * tickMs / 1000);
+        int initialWindow = Math.min(ranked.length, Math.max(perTick, 16));
+        int growTicks = (int) Math.max(1, GROW_MS / tickMs);
+        return new Schedule(ranked, perTick, initialWindow, growTicks);
+    }
+
+    /**
+     * Bursts over a ranked candidate list within a packet budget. Every tick
+     * sends {@code perTick} datagrams, cycling through a window of the best
+     * candidates; the window starts small and doubles every
+     * {@code growTicks}, so the top candidates are hit again and again
+     * before the tail is tried at all.
+     */
+    static final class Schedule implements HolePunch.Plan {
+        private final int[] ranked;
+        private final int perTick;
+        private final int initialWindow;
+        private final int growTicks;
+        private int cursor;
+
+        Schedule(int[] ranked, int perTick, int initialWindow, int growTicks) {
+            if (ranked.length == 0) {
+                throw new IllegalArgumentException("no candidates");
+            }
+            this.ranked = ranked;
+            this.perTick = perTick;
+            this.initialWindow = Math.max(1, initialWindow);
+            this.growTicks = growTicks;
+        }
+
+        int window(int tick) {
+            int doublings = Math.min(20, tick / growTicks);
+            return (int) Math.min(ranked.length, (long) initialWindow << doublings);
+        }
+
+        int packetsPerTick() {
+            return perTick;
+        }
+
+        @Override
+        public void plan(int tick, int sockets, HolePunch.Sink sink) {
+            int window = window(tick);
+            for (int i = 0; i < perTick; i++) {
+                cursor %= window;
+                sink.send(i % sockets, ranked[cursor++]);
+            }
+        }
+    }
+
+    // ============= WIRE FORMAT =============
+
+    static void write(Model model, ByteBuffer out) {
+        out.put((byte) model.pattern().ordinal());
+        out.putShort((short) model.stride());
+        out.put((byte) Math.round(model.consistency() * 100));
+        out.putShort((short) Math.min(Short.MAX_VALUE, Math.round(model.gap() * 100)));
+        out.put((byte) Math.round(model.randomness() * 100));
+        out.putInt(model.lastPort());
+    }
+
+    /** A peer's model from the wire; {@code minPort..maxPort} travel in the profile fields */
+    static Model read(ByteBuffer in, int minPort, int maxPort) {
+        int ordinal = in.get();
+        Pattern pattern = ordinal == Pattern.SEQUENTIAL.ordinal() ? Pattern.SEQUENTIAL : Pattern.RANDOM;
+        int stride = in.getShort();
+        double consistency = (in.get() & 0xFF) / 100.0;
+        double gap = in.getShort() / 100.0;
+        double randomness = (in.get() & 0xFF) / 100.0;
+        int lastPort = in.getInt();
+        if (pattern == Pattern.SEQUENTIAL && stride == 0) {
+            pattern = Pattern.RANDOM;
+        }
+        return new Model(pattern, stride, consistency, gap, randomness, minPort, maxPort, lastPort, List.of());
+    }
+}
@@ -0,0 +1,356 @@
+package com.saferoom.natghost;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * STUN Binding probes fired all at once on the {@link NatReactor}, each with
+ * its own deadline. Unanswered probes are resent until their deadline; the
+ * probe completes as soon as its {@link Quorum} has seen enough answers, or
+ * when every probe is answered or expired - never later than the slowest
+ * per-server deadline.
+ *
+ * Two shapes:
+ * - one channel, one probe per server (NAT type: same mapped port everywhere?)
+ * - fresh ephemeral sockets, round-robin over the servers (symmetric NAT port
+ *   range), at most {@code inFlight} sockets open at a time
+ *
+ * Responses are matched to their probe by transaction ID:
+ * [probe index (4)] [random (8)].
+ */
+final class StunProbe {
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+    private static final short BINDING_REQUEST = 0x0001;
+    private static final short BINDING_SUCCESS = 0x0101;
+    private static final int TICK_MS = 20;
+
+    private static final int PENDING = 0;
+    private static final int IN_FLIGHT = 1;
+    private static final int ANSWERED = 2;
+    private static final int EXPIRED = 3;
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    /** One answer: the probe, the server that answered, our address as the server saw it */
+    record Response(int probe, InetSocketAddress server, InetSocketAddress mapped, long rttMs) { }
+
+    /** Decides after each answer whether the caller has enough to go on */
+    @FunctionalInterface
+    interface Quorum {
+        boolean enough(List<Response> responses, Response latest);
+    }
+
+    private final NatReactor reactor;
+    private final String tag;
+    private final List<InetSocketAddress> servers;
+    private final DatagramChannel shared; // null: one fresh socket per probe
+    private final int count;
+    private final int inFlight;
+    private final Quorum quorum;
+    private final CompletableFuture<List<Response>> result = new CompletableFuture<>();
+
+    // Loop thread only
+    private final int[] state;
+    private final long[] nonce;
+    private final long[] sentAt;
+    private final long[] nextSend;
+    private final long[] deadline;
+    private final DatagramChannel[] sockets;
+    private final List<Response> responses = new ArrayList<>();
+    private NatReactor.Timer tick;
+    private long deadlineNanos;
+    private long resendNanos;
+    private int nextProbe;
+    private int open;
+    private int done;
+
+    private StunProbe(NatReactor reactor, String tag, List<InetSocketAddress> servers, DatagramChannel shared,
+                      int count, int inFlight, Quorum quorum) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("no STUN servers");
+        }
+        this.reactor = reactor;
+        this.tag = tag;
+        this.servers = servers;
+        this.shared = shared;
+        this.count = count;
+        this.inFlight = Math.max(1, inFlight);
+        this.quorum = quorum;
+        this.state = new int[count];
+        this.nonce = new long[count];
+        this.sentAt = new long[count];
+        this.nextSend = new long[count];
+        this.deadline = new long[count];
+        this.sockets = new DatagramChannel[count];
+    }
+
+    /** Probe every server once from {@code channel} (registered for the probe's duration, left open) */
+    static StunProbe fromChannel(NatReactor reactor, String tag, DatagramChannel channel,
+                                 List<InetSocketAddress> servers, Quorum quorum) {
+        return new StunProbe(reactor, tag, servers, channel, servers.size(), servers.size(), quorum);
+    }
+
+    /** {@code count} probes, each from its own ephemeral socket, at most {@code inFlight} open at once */
+    static StunProbe fromFreshSockets(NatReactor reactor, String tag, int count, int inFlight,
+                                      List<InetSocketAddress> servers, Quorum quorum) {
+        return new StunProbe(reactor, tag, servers, null, count, inFlight, quorum);
+    }
+
+    /** Resolve {@code {host, port}} pairs once; unknown hosts are logged and skipped */
+    static List<InetSocketAddress> resolve(String tag, String[][] servers) {
+        List<InetSocketAddress> resolved = new ArrayList<>(servers.length);
+        for (String[] server : servers) {
+            try {
+                resolved.add(new InetSocketAddress(InetAddress.getByName(server[0]), Integer.parseInt(server[1])));
+            } catch (UnknownHostException | NumberFormatException e) {
+                System.err.printf("[%s] Invalid STUN server: %s:%s%n", tag, server[0], server[1]);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Start probing; each probe is resent every {@code resendMs} until
+     * answered or {@code deadlineMs} after its first send. Completes with the
+     * answers in arrival order (possibly none).
+     */
+    CompletableFuture<List<Response>> start(long deadlineMs, long resendMs) {
+        reactor.execute(() -> {
+            deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+            resendNanos = TimeUnit.MILLISECONDS.toNanos(resendMs);
+            // On the loop, register() runs inline: done (or failed) by the next line
+            if (shared != null && reactor.register(shared, this::onDatagram).isCompletedExceptionally()) {
+                System.err.printf("[%s] Cannot read %s%n", tag, shared);
+                finish();
+                return;
+            }
+            tick = reactor.scheduleAtFixedRate(this::tick, 0, TICK_MS, TimeUnit.MILLISECONDS);
+        });
+        return result;
+    }
+
+    /** Stop early; completes with the answers so far */
+    void cancel() {
+        reactor.execute(this::finish);
+    }
+
+    private void tick() {
+        if (result.isDone()) {
+            return;
+        }
+        long now = System.nanoTime();
+        while (nextProbe < count && open < inFlight) {
+            launch(nextProbe++, now);
+        }
+        for (int i = 0; i < nextProbe; i++) {
+            if (state[i] != IN_FLIGHT) {
+                continue;
+            }
+            if (now - deadline[i] >= 0) {
+                retire(i, EXPIRED);
+            } else if (now - nextSend[i] >= 0) {
+                send(i, now);
+            }
+        }
+        if (done == count) {
+            finish();
+        }
+    }
+
+    private void launch(int i, long now) {
+        nonce[i] = RNG.nextLong();
+        if (shared == null) {
+            try {
+                DatagramChannel channel = DatagramChannel.open();
+                sockets[i] = channel;
+                channel.bind(new InetSocketAddress(0)); // Ephemeral port: a new NAT mapping
+                reactor.register(channel, this::onDatagram).join();
+            } catch (IOException | RuntimeException e) {
+                System.err.printf("[%s] Probe %d: cannot open socket: %s%n", tag, i, e.getMessage());
+                if (sockets[i] != null) {
+                    closeQuietly(sockets[i]);
+                }
+                retire(i, EXPIRED);
+                return;
+            }
+        } else {
+            sockets[i] = shared;
+        }
+        state[i] = IN_FLIGHT;
+        open++;
+        sentAt[i] = now;
+        deadline[i] = now + deadlineNanos;
+        send(i, now);
+    }
+
+    private void send(int i, long now) {
+        try {
+            sockets[i].send(request(i, nonce[i]), servers.get(i % servers.size()));
+        } catch (IOException e) {
+            // ICMP unreachable: the deadline retires it
+        }
+        nextSend[i] = now + resendNanos;
+    }
+
+    private void onDatagram(ByteBuffer frame, InetSocketAddress from, DatagramChannel channel) {
+        if (result.isDone() || frame.remaining() < 20
+                || frame.getShort(0) != BINDING_SUCCESS || frame.getInt(4) != MAGIC_COOKIE) {
+            return;
+        }
+        int i = frame.getInt(8);
+        if (i < 0 || i >= nextProbe || state[i] != IN_FLIGHT || frame.getLong(12) != nonce[i]
+                || sockets[i] != channel) {
+            return; // late retransmission answer, or not ours
+        }
+        InetSocketAddress mapped = mappedAddress(frame);
+        if (mapped == null) {
+            return;
+        }
+        Response response = new Response(i, from, mapped,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt[i]));
+        responses.add(response);
+        retire(i, ANSWERED);
+        if (quorum.enough(Collections.unmodifiableList(responses), response) || done == count) {
+            finish();
+        }
+    }
+
+    private void retire(int i, int outcome) {
+        if (state[i] == IN_FLIGHT) {
+            open--;
+            if (shared == null) {
+                closeQuietly(sockets[i]);
+            }
+        }
+        state[i] = outcome;
+        done++;
+    }
+
+    private void finish() {
+        if (result.isDone()) {
+            return;
+        }
+        if (tick != null) {
+            tick.cancel();
+        }
+        if (shared != null) {
+            reactor.deregister(shared);
+        } else {
+            for (int i = 0; i < nextProbe; i++) {
+                if (state[i] == IN_FLIGHT) {
+                    closeQuietly(sockets[i]);
+                }
+            }
+        }
+        result.complete(new ArrayList<>(responses));
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Binding Request, transaction ID = probe index + nonce */
+    static ByteBuffer request(int probe, long nonce) {
+        ByteBuffer p = ByteBuffer.allocate(20);
+        p.putShort(BINDING_REQUEST);
+        p.putShort((short) 0);
+        p.putInt(MAGIC_COOKIE);
+        p.putInt(probe);
+        p.putLong(nonce);
+        p.flip();
+        return p;
+    }
+
+    /** XOR-MAPPED-ADDRESS (preferred) or MAPPED-ADDRESS, IPv4 only; null if absent */
+    static InetSocketAddress mappedAddress(ByteBuffer frame) {
+        InetSocketAddress mapped = null;
+        int pos = frame.position() + 20;
+        int end = frame.limit();
+        while (end - pos >= 4) {
+            int type = frame.getShort(pos) & 0xFFFF;
+            int len = frame.getShort(pos + 2) & 0xFFFF;
+            int value = pos + 4;
+            if (len > end - value) {
+                break;
+            }
+            if ((type == 0x0001 || type == 0x0020) && len >= 8 && frame.get(value + 1) == 0x01) {
+                int port = frame.getShort(value + 2) & 0xFFFF;
+                int addr = frame.getInt(value + 4);
+                if (type == 0x0020) {
+                    port ^= MAGIC_COOKIE >>> 16;
+                    addr ^= MAGIC_COOKIE;
+                }
+                byte[] ip = { (byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8), (byte) addr };
+                try {
+                    mapped = new InetSocketAddress(InetAddress.getByAddress(ip), port);
+                } catch (UnknownHostException e) {
+                    return null; // cannot happen for 4 bytes
+                }
+                if (type == 0x0020) {
+                    return mapped;
+                }
+            }
+            pos = value + ((len + 3) & ~3); // attributes are padded to 4 bytes
+        }
+        return mapped;
+    }
+
+    /**
+     * NAT type quorum: two different mapped ports mean symmetric; the same
+     * port seen by two different server IPs means it does not depend on the
+     * destination. Either way the rest need not be waited for.
+     */
+    static Quorum mappingDecided() {
+        return (responses, latest) -> {
+            Set<Integer> ports = new HashSet<>();
+            Set<InetAddress> agreeing = new HashSet<>();
+            for (Response r : responses) {
+                ports.add(r.mapped().getPort());
+                if (r.mapped().getPort() == latest.mapped().getPort()) {
+                    agreeing.add(r.server().getAddress());
+                }
+            }
+            return ports.size() > 1 || agreeing.size() > 1;
+        };
+    }
+
+    /** The first answer is enough (NAT type already known, only the mapping is needed) */
+    static Quorum first() {
+        return (responses, latest) -> true;
+    }
+
+    /**
+     * Port range quorum: at least {@code stableSamples} answers, and the last
+     * {@code stableSamples} of them did not widen the observed min..max.
+     */
+    static Quorum rangeSettled(int stableSamples) {
+        int[] range = { Integer.MAX_VALUE, Integer.MIN_VALUE, 0 }; // min, max, samples since last widening
+        return (responses, latest) -> {
+            int port = latest.mapped().getPort();
+            if (port < range[0] || port > range[1]) {
+                range[0] = Math.min(range[0], port);
+                range[1] = Math.max(range[1], port);
+                range[2] = 0;
+            } else {
+                range[2]++;
+            }
+            return range[2] >= stableSamples;
+        };
+    }
+}
@@ -8,9 +8,13 @@ import com.saferoom.transport.TransportRegistry;
 import dev.onvoid.webrtc.RTCDataChannel;
 import dev.onvoid.webrtc.RTCDataChannelBuffer;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.*;
 
 /**
@@ -22,6 +26,18 @@ import java.util.concurrent.*;
  * 1. DataChannelWrapper: Wraps DataChannel as DatagramChannel
  * 2. EnhancedFileTransferSender: Original sender (QUIC, congestion control)
  * 3. FileTransferReceiver: Original receiver (ChunkManager, unlimited size)
+ * 4. DataChannelStreamTransfer: large-frame mode when the channel is reliable
+ *    and ordered (no CRC/NACK, bufferedAmount backpressure), several files at
+ *    once as multiplexed streams; falls back to 2/3 if the peer declines
+ *
+ * The datagram path (2/3) has one sender and one receiver per wrapper, so its
+ * sends run one at a time.
+ *
+ * Folders and file lists go as one batch session (sendFolder / sendBatch):
+ * one handshake and one sequence space for the manifest and all the files
+ * back to back. Large frames stream the batch straight from the files and the
+ * receiver builds the tree as it arrives; the datagram path sends a spooled
+ * copy (it maps one file) and unpacks it once complete.
  */
 public class DataChannelFileTransfer {
     
@@ -33,19 +49,30 @@ public class DataChannelFileTransfer {
     
     private final EnhancedFileTransferSender sender;
     private final FileTransferReceiver receiver;
+    private final DataChannelStreamTransfer streamTransfer;
     
     private final ExecutorService executor;
+    private final Object datagramSendLock = new Object();
     
     private final ConcurrentMap<Long, Path> pendingDownloadPaths = new ConcurrentHashMap<>();
     private final ConcurrentMap<Long, CompletableFuture<Void>> receiverReadySignals = new ConcurrentHashMap<>();
+    private final Set<Long> pendingBatches = ConcurrentHashMap.newKeySet();
     
     private FileTransferCallback transferCallback;
+    private volatile BatchProgressListener batchProgressListener;
     private volatile boolean receiverStarted = false;  // Track if receiver is running
     
     @FunctionalInterface
     public interface FileTransferCallback {
         void onFileReceived(String sender, long fileId, Path filePath, long fileSize);
     }
+
+    /** Receiver side: aggregate progress of an incoming batch (folder) */
+    @FunctionalInterface
+    public interface BatchProgressListener {
+        void onBatchProgress(String sender, long batchId, Path root,
+                             int filesDone, int fileCount, long bytesDone, long totalBytes);
+    }
     
     public DataChannelFileTransfer(String username, RTCDataChannel dataChannel, String remoteUsername) {
         this.username = username;
@@ -71,6 +98,10 @@ public class DataChannelFileTransfer {
             this.sender = new EnhancedFileTransferSender(channelWrapper, flowControlledEndpoint);
             this.receiver = new FileTransferReceiver();
             this.receiver.channel = channelWrapper;  // SAME wrapper as sender!
+            this.streamTransfer = new DataChannelStreamTransfer(channelWrapper::sendMessage,
+                channelWrapper::awaitWritable, this::takeDownloadPath, this::onStreamReceived);
+            this.streamTransfer.setBatchListener((batchId, root, filesDone, fileCount, bytesDone, totalBytes) ->
+                reportBatchProgress(batchId, root, filesDone, fileCount, bytesDone, totalBytes));
             
             System.out.printf("[DCFileTransfer] Initialized for %s (SHARED wrapper)%n", username);
         } catch (Exception e) {
@@ -82,12 +113,24 @@ public class DataChannelFileTransfer {
     public void setTransferCallback(FileTransferCallback callback) {
         this.transferCallback = callback;
     }
+
+    public void setBatchProgressListener(BatchProgressListener listener) {
+        this.batchProgressListener = listener;
+    }
     
     public CompletableFuture<Boolean> sendFile(Path filePath, long fileId) {
         return sendFile(filePath, fileId, null);
     }
 
     public CompletableFuture<Boolean> sendFile(Path filePath, long fileId, FileTransferObserver observer) {
+        return sendFile(filePath, fileId, observer, 1);
+    }
+
+    /**
+     * @param weight share of the channel against other files in flight to
+     *               the same peer (large-frame streams only)
+     */
+    public CompletableFuture<Boolean> sendFile(Path filePath, long fileId, FileTransferObserver observer, int weight) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
         
         System.out.println("[DCFileTransfer] ╔════════════════════════════════════════════════");
@@ -103,31 +146,25 @@ public class DataChannelFileTransfer {
         executor.execute(() -> {
             try {
                 System.out.printf("[DCFileTransfer] 📤 Executor thread started: %s%n", Thread.currentThread().getName());
-                System.out.printf("[DCFileTransfer] 🚀 Calling sender.sendFile()...%n");
-
-                sender.setTransferListener(new EnhancedFileTransferSender.TransferListener() {
-                    @Override
-                    public void onPacketProgress(long transferId, long bytesSent, long totalBytes) {
-                        if (observer != null) observer.onTransferProgress(transferId, bytesSent, totalBytes);
-                    }
 
-                    @Override
-                    public void onTransferComplete(long transferId) {
-                        if (observer != null) observer.onTransferCompleted(transferId);
-                        emitTransportStats(transferId, dropBaseline, observer);
+                if (useLargeFrames()) {
+                    boolean sent;
+                    try {
+                        sent = streamTransfer.send(filePath, fileId, observer, weight);
+                    } catch (Exception e) {
+                        if (observer != null) observer.onTransferFailed(fileId, e);
+                        throw e;
                     }
-
-                    @Override
-                    public void onTransferFailed(long transferId, Throwable error) {
-                        if (observer != null) observer.onTransferFailed(transferId, error);
-                        emitTransportStats(transferId, dropBaseline, observer);
+                    if (sent) {
+                        if (observer != null) observer.onTransferCompleted(fileId);
+                        emitTransportStats(fileId, dropBaseline, observer);
+                        future.complete(true);
+                        return;
                     }
-                });
-                try {
-                    sender.sendFile(filePath, fileId);
-                } finally {
-                    sender.setTransferListener(null);
+                    System.out.printf("[DCFileTransfer] Peer declined large frames, using datagram path%n");
                 }
+                System.out.printf("[DCFileTransfer] 🚀 Calling sender.sendFile()...%n");
+                sendDatagram(filePath, fileId, observer, dropBaseline);
                 
                 System.out.printf("[DCFileTransfer] ✅ sender.sendFile() returned successfully%n");
                 System.out.printf("[DCFileTransfer] Sent: %s%n", filePath.getFileName());
@@ -146,6 +183,98 @@ public class DataChannelFileTransfer {
         return future;
     }
     
+    /** Send every file under {@code dir} as one batch session */
+    public CompletableFuture<Boolean> sendFolder(Path dir, long batchId, FileTransferObserver observer) {
+        try {
+            return sendBatch(dir, BatchManifest.scan(dir), batchId, observer);
+        } catch (IOException e) {
+            System.err.printf("[DCFileTransfer] Cannot scan %s: %s%n", dir, e.getMessage());
+            if (observer != null) observer.onTransferFailed(batchId, e);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Send the manifest's files (relative to {@code root}) as one transfer.
+     * The observer sees one transfer of {@link BatchManifest#streamBytes()}.
+     */
+    public CompletableFuture<Boolean> sendBatch(Path root, BatchManifest manifest, long batchId,
+                                                FileTransferObserver observer) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        System.out.printf("[DCFileTransfer] Batch %d: %d files, %,d bytes from %s%n",
+            batchId, manifest.fileCount(), manifest.totalBytes(), root);
+        final long dropBaseline = flowControlledEndpoint != null ? flowControlledEndpoint.droppedPackets() : -1;
+
+        executor.execute(() -> {
+            Path spool = null;
+            try (BatchSource source = new BatchSource(root, manifest)) {
+                if (useLargeFrames()) {
+                    boolean sent;
+                    try {
+                        sent = streamTransfer.sendBatch(source, batchId, observer, 1);
+                    } catch (Exception e) {
+                        if (observer != null) observer.onTransferFailed(batchId, e);
+                        throw e;
+                    }
+                    if (sent) {
+                        if (observer != null) observer.onTransferCompleted(batchId);
+                        emitTransportStats(batchId, dropBaseline, observer);
+                        future.complete(true);
+                        return;
+                    }
+                    System.out.printf("[DCFileTransfer] Peer declined large frames, sending batch as one file%n");
+                }
+                // The datagram sender maps a single file: spool the batch stream into one
+                spool = Files.createTempFile("saferoom-batch-", ".bin");
+                source.writeTo(spool);
+                sendDatagram(spool, batchId, observer, dropBaseline);
+                System.out.printf("[DCFileTransfer] Sent batch %d%n", batchId);
+                future.complete(true);
+            } catch (Exception e) {
+                System.err.printf("[DCFileTransfer] Batch %d failed: %s%n", batchId, e.getMessage());
+                emitTransportStats(batchId, dropBaseline, observer);
+                future.complete(false);
+            } finally {
+                if (spool != null) {
+                    try {
+                        Files.deleteIfExists(spool);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+        return future;
+    }
+
+    private void sendDatagram(Path filePath, long fileId, FileTransferObserver observer,
+                              long dropBaseline) throws Exception {
+        synchronized (datagramSendLock) {
+            sender.setTransferListener(new EnhancedFileTransferSender.TransferListener() {
+                @Override
+                public void onPacketProgress(long transferId, long bytesSent, long totalBytes) {
+                    if (observer != null) observer.onTransferProgress(transferId, bytesSent, totalBytes);
+                }
+
+                @Override
+                public void onTransferComplete(long transferId) {
+                    if (observer != null) observer.onTransferCompleted(transferId);
+                    emitTransportStats(transferId, dropBaseline, observer);
+                }
+
+                @Override
+                public void onTransferFailed(long transferId, Throwable error) {
+                    if (observer != null) observer.onTransferFailed(transferId, error);
+                    emitTransportStats(transferId, dropBaseline, observer);
+                }
+            });
+            try {
+                sender.sendFile(filePath, fileId);
+            } finally {
+                sender.setTransferListener(null);
+            }
+        }
+    }
+    
     public void startReceiver(Path downloadPath) {
         if (receiverStarted) {
             System.out.printf("[DCFileTransfer] Receiver already started for %s%n", username);
@@ -169,6 +298,9 @@ public class DataChannelFileTransfer {
                 receiver.ReceiveData();
                 
                 System.out.printf("[DCFileTransfer] Received: %s%n", downloadPath);
+                if (pendingBatches.remove(receiver.fileId)) {
+                    unpackBatch(receiver.fileId, downloadPath);
+                }
                 
                 if (transferCallback != null) {
                     transferCallback.onFileReceived(remoteUsername, receiver.fileId, downloadPath, receiver.file_size);
@@ -184,6 +316,10 @@ public class DataChannelFileTransfer {
     
     public void handleIncomingMessage(RTCDataChannelBuffer buffer) {
         java.nio.ByteBuffer data = buffer.data.duplicate();
+        if (DataChannelStreamTransfer.isStreamMessage(data)) {
+            streamTransfer.onMessage(data); // written here, never queued
+            return;
+        }
         if (data.remaining() > 0) {
             byte signal = data.get(0);
             if (signal == 0x01 && !receiverStarted) {
@@ -197,7 +333,7 @@ public class DataChannelFileTransfer {
                 }
                 System.out.printf("[DCFileTransfer] SYN received without prepared receiver - starting fallback receiver (fileId=%d)%n",
                     fileId);
-                startPreparedReceiver(fileId);
+                startReceiver(takeDownloadPath(fileId)); // peer uses the datagram path
             }
         }
         
@@ -227,11 +363,20 @@ public class DataChannelFileTransfer {
         return target;
     }
     
+    /** Like {@link #prepareIncomingFile}, for a batch: the path becomes its root directory */
+    public Path prepareIncomingBatch(long batchId, String folderName) {
+        Path target = prepareIncomingFile(batchId, folderName);
+        pendingBatches.add(batchId);
+        return target;
+    }
+    
     public void startPreparedReceiver(long fileId) {
-        Path target = pendingDownloadPaths.remove(fileId);
-        if (target == null) {
-            target = createDefaultDownloadPath(fileId);
+        if (useLargeFrames()) {
+            // The OFFER picks up the prepared path; a SYN still starts the datagram receiver
+            System.out.printf("[FT-RECV] Large-frame mode: waiting for OFFER (fileId=%d)%n", fileId);
+            return;
         }
+        Path target = takeDownloadPath(fileId);
         
         System.out.println("[FT-RECV] ╔════════════════════════════════════════════════");
         System.out.printf("[FT-RECV] ║ startPreparedReceiver() called%n");
@@ -254,6 +399,49 @@ public class DataChannelFileTransfer {
         receiverReadySignals.remove(fileId);
     }
     
+    private boolean useLargeFrames() {
+        return DataChannelStreamTransfer.ENABLED && channelWrapper.isReliableOrdered();
+    }
+
+    private Path takeDownloadPath(long fileId) {
+        Path target = pendingDownloadPaths.remove(fileId);
+        return target != null ? target : createDefaultDownloadPath(fileId);
+    }
+
+    private void onStreamReceived(long fileId, Path path, long fileSize) {
+        pendingBatches.remove(fileId); // a batch stream arrives already unpacked
+        System.out.printf("[DCFileTransfer] Received: %s%n", path);
+        if (transferCallback != null) {
+            transferCallback.onFileReceived(remoteUsername, fileId, path, fileSize);
+        }
+    }
+
+    /** Datagram path: the batch arrived as one file at {@code target}; build the tree in its place */
+    private void unpackBatch(long batchId, Path target) throws IOException {
+        Path stream = target.resolveSibling(target.getFileName() + ".batch");
+        Files.move(target, stream, StandardCopyOption.REPLACE_EXISTING);
+        try {
+            BatchManifest manifest = BatchMaterializer.unpack(stream, target, new BatchMaterializer.Listener() {
+                @Override
+                public void onProgress(int filesDone, int fileCount, long bytesDone, long totalBytes) {
+                    reportBatchProgress(batchId, target, filesDone, fileCount, bytesDone, totalBytes);
+                }
+            });
+            System.out.printf("[DCFileTransfer] Unpacked batch %d: %d files -> %s%n",
+                batchId, manifest.fileCount(), target);
+        } finally {
+            Files.deleteIfExists(stream);
+        }
+    }
+
+    private void reportBatchProgress(long batchId, Path root, int filesDone, int fileCount,
+                                     long bytesDone, long totalBytes) {
+        BatchProgressListener l = batchProgressListener;
+        if (l != null) {
+            l.onBatchProgress(remoteUsername, batchId, root, filesDone, fileCount, bytesDone, totalBytes);
+        }
+    }
+
     private Path createDefaultDownloadPath(long fileId) {
         return Paths.get("downloads", "received_" + fileId + ".bin");
     }
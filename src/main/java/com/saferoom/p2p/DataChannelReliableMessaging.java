@@ -1,6 +1,8 @@
 package com.saferoom.p2p;
 
 import com.saferoom.natghost.LLS;
+import com.saferoom.transport.PrioritySendScheduler;
+import com.saferoom.transport.TrafficClass;
 import dev.onvoid.webrtc.RTCDataChannel;
 import dev.onvoid.webrtc.RTCDataChannelBuffer;
 import dev.onvoid.webrtc.RTCDataChannelState;
@@ -25,6 +27,9 @@ import java.util.zip.CRC32;
  * - RTT estimation
  * 
  * Protocol: Uses LLS packet format (SIG_RMSG_DATA, SIG_RMSG_ACK, SIG_RMSG_NACK, SIG_RMSG_FIN)
+ * 
+ * With a PrioritySendScheduler, chunks go out as INTERACTIVE and ACK/NACK as
+ * CONTROL, ahead of file data on the same peer connection.
  */
 public class DataChannelReliableMessaging {
     
@@ -39,6 +44,7 @@ public class DataChannelReliableMessaging {
     
     private final String username;
     private final RTCDataChannel dataChannel;
+    private final PrioritySendScheduler priority;
     private final ScheduledExecutorService scheduler;
     
     // Send state
@@ -56,8 +62,14 @@ public class DataChannelReliableMessaging {
     }
     
     public DataChannelReliableMessaging(String username, RTCDataChannel dataChannel) {
+        this(username, dataChannel, null);
+    }
+    
+    public DataChannelReliableMessaging(String username, RTCDataChannel dataChannel,
+                                        PrioritySendScheduler priority) {
         this.username = username;
         this.dataChannel = dataChannel;
+        this.priority = priority;
         this.scheduler = Executors.newScheduledThreadPool(1, r -> {
             Thread t = new Thread(r, "DCReliable-" + username);
             t.setDaemon(true);
@@ -161,8 +173,7 @@ public class DataChannelReliableMessaging {
             packet.put(chunkData);
             
             packet.flip();
-            RTCDataChannelBuffer dcBuffer = new RTCDataChannelBuffer(packet, true);
-            dataChannel.send(dcBuffer);
+            transmit(TrafficClass.INTERACTIVE, packet);
             
             chunk.lastSentTime = System.currentTimeMillis();
             chunk.retries++;
@@ -173,6 +184,19 @@ public class DataChannelReliableMessaging {
         }
     }
     
+    private void transmit(TrafficClass cls, ByteBuffer packet) throws Exception {
+        if (priority == null) {
+            dataChannel.send(new RTCDataChannelBuffer(packet, true));
+        } else {
+            try {
+                // Usually written by this call; otherwise wait for the drain that took it
+                priority.send(cls, packet, m -> dataChannel.send(new RTCDataChannelBuffer(m, true))).get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+    }
+    
     /**
      * Handle incoming data chunk
      */
@@ -309,8 +333,7 @@ public class DataChannelReliableMessaging {
             packet.putLong(state.getBitmap());
             
             packet.flip();
-            RTCDataChannelBuffer dcBuffer = new RTCDataChannelBuffer(packet, true);
-            dataChannel.send(dcBuffer);
+            transmit(TrafficClass.CONTROL, packet);
             
         } catch (Exception e) {
             System.err.printf("[DCReliable] Error sending ACK: %s%n", e.getMessage());
@@ -331,8 +354,7 @@ public class DataChannelReliableMessaging {
             packet.putInt(chunkId);
             
             packet.flip();
-            RTCDataChannelBuffer dcBuffer = new RTCDataChannelBuffer(packet, true);
-            dataChannel.send(dcBuffer);
+            transmit(TrafficClass.CONTROL, packet);
             
         } catch (Exception e) {
             System.err.printf("[DCReliable] Error sending NACK: %s%n", e.getMessage());
@@ -0,0 +1,619 @@
+package com.saferoom.p2p;
+
+import com.saferoom.file_transfer.BatchMaterializer;
+import com.saferoom.file_transfer.BatchSource;
+import com.saferoom.file_transfer.FileTransferReceiver;
+import com.saferoom.file_transfer.NackSender;
+import com.saferoom.file_transfer.ResumeCheckpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+
+/**
+ * Large-frame file transfer for a reliable, ordered DataChannel.
+ *
+ * SCTP already retransmits, orders and checksums every message, so the
+ * datagram machinery (1472-byte frames, CRC32C per slice, NACK windows) only
+ * adds one JNI send and one direct-buffer copy per 1.4 KB. Here a file goes
+ * out as 64-256 KB messages, paced by the bufferedAmount watermarks, with no
+ * NACK loop.
+ *
+ * Several files move at once: every transfer is a stream with its own id in
+ * the DATA header, the receiver keeps one open file per stream, and the
+ * senders take turns on the channel through a {@link StreamScheduler}
+ * (weighted fair share of the buffered-amount window).
+ *
+ * A batch (folder or file list) is one stream too: the {@link BatchSource}
+ * stream - manifest, then the files back to back - behind a single OFFER,
+ * cut back into files by a {@link BatchMaterializer} as DATA arrives.
+ *
+ * Wire format (first byte {@link #STREAM_SIGNAL}, never the first byte of a
+ * datagram-mode frame):
+ * <pre>
+ * OFFER  [sig][1][fileId(8)][fileSize(8)][frameBytes(4)][streamId(2)][flags(1)]  FLAG_BATCH: a batch stream
+ *                                                     FLAG_RESUMABLE: receiver may keep a checkpoint
+ * ACCEPT [sig][2][fileId(8)]
+ *        [sig][2][fileId(8)][resumeOffset(8)]         reply to FLAG_RESUMABLE: DATA starts there
+ * DATA   [sig][3][streamId(2)][fileOffset(8)][payload]  offset is a sanity check, order is the channel's
+ * END    [sig][4][fileId(8)][fileSize(8)]
+ * DONE   [sig][5][fileId(8)]                          file forced to disk
+ * REJECT [sig][6][fileId(8)]                          declined or aborted: sender falls back / fails,
+ *                                                     receiver drops the stream and its partial file
+ * </pre>
+ * The first transfer on a channel waits for ACCEPT (does the peer speak this
+ * at all?); after that DATA follows the OFFER without a round trip.
+ *
+ * Single files of at least {@link #RESUME_MIN_BYTES} are resumable: the
+ * sender always waits for ACCEPT, the receiver checkpoints the frames it has
+ * forced to disk in a {@link ResumeCheckpoint} sidecar and keeps the partial
+ * file when the stream breaks. A re-send with the same fileId (see
+ * {@code TransferKey}) is accepted at the first missing frame. Batches
+ * always start over.
+ *
+ * The receiver writes DATA on the DataChannel callback thread: a slow disk
+ * fills the SCTP receive window and shows up as bufferedAmount on the sender.
+ */
+final class DataChannelStreamTransfer {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(
+        System.getProperty("saferoom.transfer.dc.largeFrames", "true"));
+    static final int FRAME_BYTES = Math.max(64, Math.min(256,
+        Integer.getInteger("saferoom.transfer.dc.frameKB", 128))) * 1024;
+    static final int MAX_STREAMS = Math.max(1, Integer.getInteger("saferoom.transfer.dc.maxStreams", 8));
+    static final long ACCEPT_TIMEOUT_MS = Long.getLong("saferoom.transfer.dc.acceptTimeoutMs", 3000L);
+    static final long DONE_TIMEOUT_MS = Long.getLong("saferoom.transfer.dc.doneTimeoutMs", 60_000L);
+    static final long RESUME_MIN_BYTES = Long.getLong("saferoom.transfer.dc.resumeMinBytes", 1L << 20);
+
+    static final byte STREAM_SIGNAL = (byte) 0xB6;
+    static final byte OFFER = 1;
+    static final byte ACCEPT = 2;
+    static final byte DATA = 3;
+    static final byte END = 4;
+    static final byte DONE = 5;
+    static final byte REJECT = 6;
+
+    static final int CONTROL_SIZE = 10;
+    static final int OFFER_SIZE = 25;
+    static final byte FLAG_BATCH = 1;
+    static final byte FLAG_RESUMABLE = 2;
+    static final int ACCEPT_RESUME_SIZE = 18;
+    static final int END_SIZE = 18;
+    static final int DATA_HEADER = 12;
+
+    /** One DataChannel message; the buffer may be reused once send returns */
+    interface MessageSink {
+        void send(ByteBuffer message) throws IOException;
+    }
+
+    /** Parks the sender until {@code bytes} more fit in the channel's buffer */
+    interface Backpressure {
+        void awaitWritable(long bytes) throws IOException;
+    }
+
+    /** Receiver side: a file arrived and is on disk */
+    interface ReceiveListener {
+        void onReceived(long fileId, Path path, long fileSize);
+    }
+
+    /** Receiver side: progress of a batch materializing under {@code root} */
+    interface BatchListener {
+        void onBatchProgress(long fileId, Path root, int filesDone, int fileCount, long bytesDone, long totalBytes);
+    }
+
+    /** Positional reads, like {@link FileChannel#read(ByteBuffer, long)} */
+    private interface Source {
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    private final MessageSink out;
+    private final Backpressure backpressure;
+    private final LongFunction<Path> targetFor;
+    private final ReceiveListener listener;
+    private volatile BatchListener batchListener;
+
+    // Sender
+    private final StreamScheduler scheduler = new StreamScheduler();
+    private final Semaphore streamSlots = new Semaphore(MAX_STREAMS, true);
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private final Set<Integer> streamIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean peerAccepts;
+    // Replies by fileId: the awaited type (ACCEPT / DONE) or REJECT
+    private final Map<Long, Reply> replies = new ConcurrentHashMap<>();
+    // REJECT while streaming (receiver aborted), checked per frame
+    private final Set<Long> aborted = ConcurrentHashMap.newKeySet();
+    // Resume offsets from ACCEPT, taken by the waiting sender
+    private final Map<Long, Long> resumeOffsets = new ConcurrentHashMap<>();
+
+    // Receiver: open files by the peer's stream id (callback thread only)
+    private final Map<Integer, Incoming> incoming = new HashMap<>();
+
+    private record Reply(byte expected, CompletableFuture<Byte> future) { }
+
+    private static final class Incoming {
+        final long fileId;
+        final long size;
+        final Path path;
+        final FileChannel file;      // single file
+        final BatchMaterializer batch; // or a batch rooted at path
+        final ResumeCheckpoint checkpoint; // resumable single file, else null
+        final int frameBytes;
+        long written;
+        long checkpointedAt; // nanoTime of the last save
+
+        Incoming(long fileId, long size, Path path, FileChannel file, BatchMaterializer batch,
+                 ResumeCheckpoint checkpoint, int frameBytes) {
+            this.fileId = fileId;
+            this.size = size;
+            this.path = path;
+            this.file = file;
+            this.batch = batch;
+            this.checkpoint = checkpoint;
+            this.frameBytes = frameBytes;
+            this.checkpointedAt = System.nanoTime();
+        }
+
+        void close() throws IOException {
+            if (batch != null) {
+                batch.close();
+            } else {
+                file.close();
+            }
+        }
+    }
+
+    DataChannelStreamTransfer(MessageSink out, Backpressure backpressure,
+                              LongFunction<Path> targetFor, ReceiveListener listener) {
+        this.out = out;
+        this.backpressure = backpressure;
+        this.targetFor = targetFor;
+        this.listener = listener;
+    }
+
+    void setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    static boolean isStreamMessage(ByteBuffer b) {
+        int pos = b.position();
+        if (b.remaining() < CONTROL_SIZE || b.get(pos) != STREAM_SIGNAL) {
+            return false;
+        }
+        byte type = b.get(pos + 1);
+        return type >= OFFER && type <= REJECT;
+    }
+
+    // ---- sender ----
+
+    boolean send(Path file, long fileId, FileTransferObserver observer) throws IOException {
+        return send(file, fileId, observer, 1);
+    }
+
+    /**
+     * Send a file as large frames, alongside any other sends in progress.
+     *
+     * @param weight share of the channel relative to the other streams
+     * @return false if the peer declined (or never answered) the offer:
+     *         nothing was sent, the caller uses the datagram path
+     * @throws IOException if the transfer failed after the peer accepted
+     */
+    boolean send(Path file, long fileId, FileTransferObserver observer, int weight) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fc.size();
+            byte flags = size >= RESUME_MIN_BYTES ? FLAG_RESUMABLE : 0;
+            return send(fc::read, size, flags, file.getFileName().toString(), fileId, observer, weight);
+        }
+    }
+
+    /**
+     * Send a batch as one stream: one OFFER, one END/DONE, progress over the
+     * whole batch. Same return and failure contract as a single file.
+     */
+    boolean sendBatch(BatchSource batch, long fileId, FileTransferObserver observer, int weight) throws IOException {
+        String label = String.format("batch of %d files", batch.manifest().fileCount());
+        return send(batch::read, batch.size(), FLAG_BATCH, label, fileId, observer, weight);
+    }
+
+    private boolean send(Source source, long fileSize, byte flags, String label, long fileId,
+                         FileTransferObserver observer, int weight) throws IOException {
+        try {
+            streamSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a free stream", e);
+        }
+        int streamId = allocateStreamId();
+        try {
+            aborted.remove(fileId);
+            resumeOffsets.remove(fileId);
+            ByteBuffer control = ByteBuffer.allocateDirect(OFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            control.put(STREAM_SIGNAL).put(OFFER).putLong(fileId).putLong(fileSize)
+                .putInt(FRAME_BYTES).putShort((short) streamId).put(flags).flip();
+            if (peerAccepts && (flags & FLAG_RESUMABLE) == 0) {
+                out.send(control); // the peer is known to take streams: no round trip
+            } else if (await(fileId, control, ACCEPT, ACCEPT_TIMEOUT_MS) == ACCEPT) {
+                peerAccepts = true;
+            } else {
+                return false;
+            }
+            Long resumeAt = resumeOffsets.remove(fileId);
+            long offset = resumeAt != null ? resumeAt : 0;
+            if (offset < 0 || offset > fileSize || offset % FRAME_BYTES != 0 && offset != fileSize) {
+                reply(REJECT, fileId);
+                throw new IOException("Receiver asked to resume fileId " + fileId + " at offset " + offset);
+            }
+            System.out.printf("[DC-STREAM] Sending %s on stream %d: %,d bytes in %d KB frames (%d active)%s%n",
+                label, streamId, fileSize, FRAME_BYTES / 1024, scheduler.activeStreams() + 1,
+                offset > 0 ? String.format(", resuming at %,d", offset) : "");
+
+            long start = System.nanoTime();
+            sendFrames(source, fileId, fileSize, offset, streamId, weight, observer);
+
+            control = ByteBuffer.allocateDirect(END_SIZE).order(ByteOrder.BIG_ENDIAN);
+            control.put(STREAM_SIGNAL).put(END).putLong(fileId).putLong(fileSize).flip();
+            if (await(fileId, control, DONE, DONE_TIMEOUT_MS) != DONE) {
+                throw new IOException("Receiver did not confirm fileId " + fileId);
+            }
+            double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            System.out.printf("[DC-STREAM] Sent %,d bytes on stream %d in %.2f s (%.1f Mbps)%n",
+                fileSize - offset, streamId, secs, (fileSize - offset) * 8 / secs / 1e6);
+            return true;
+        } finally {
+            streamIds.remove(streamId);
+            streamSlots.release();
+        }
+    }
+
+    private void sendFrames(Source source, long fileId, long fileSize, long offset, int streamId, int weight,
+                            FileTransferObserver observer) throws IOException {
+        StreamScheduler.Stream stream = scheduler.open(streamId, weight);
+        try {
+            ByteBuffer frame = ByteBuffer.allocateDirect(DATA_HEADER + FRAME_BYTES).order(ByteOrder.BIG_ENDIAN);
+            boolean receiverAborted = false;
+            try {
+                while (offset < fileSize) {
+                    if (aborted.remove(fileId)) {
+                        receiverAborted = true;
+                        throw new IOException("Receiver aborted fileId " + fileId + " at offset " + offset);
+                    }
+                    int take = (int) Math.min(FRAME_BYTES, fileSize - offset);
+                    frame.clear();
+                    frame.put(STREAM_SIGNAL).put(DATA).putShort((short) streamId).putLong(offset);
+                    frame.limit(DATA_HEADER + take);
+                    while (frame.hasRemaining()) {
+                        if (source.read(frame, offset + frame.position() - DATA_HEADER) < 0) {
+                            throw new IOException("File shrank during transfer at offset " + offset);
+                        }
+                    }
+                    frame.flip();
+
+                    // Frame ready: wait for this stream's turn, then for room in the channel
+                    try {
+                        scheduler.acquire(stream);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for the channel", e);
+                    }
+                    int sent = 0;
+                    try {
+                        backpressure.awaitWritable(DATA_HEADER + take);
+                        out.send(frame);
+                        sent = DATA_HEADER + take;
+                    } finally {
+                        scheduler.release(stream, sent, sent > 0 && offset + take < fileSize);
+                    }
+                    offset += take;
+                    if (observer != null) {
+                        observer.onTransferProgress(fileId, offset, fileSize);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!receiverAborted) {
+                    reply(REJECT, fileId); // otherwise the receiver holds the partial file open
+                }
+                throw e;
+            }
+        } finally {
+            scheduler.close(stream);
+        }
+    }
+
+    private int allocateStreamId() {
+        while (true) {
+            int id = nextStreamId.getAndIncrement() & 0xFFFF;
+            if (streamIds.add(id)) {
+                return id;
+            }
+        }
+    }
+
+    /** Send a control message and wait for the peer's reply; 0 on timeout */
+    private byte await(long fileId, ByteBuffer message, byte expected, long timeoutMs) throws IOException {
+        Reply reply = new Reply(expected, new CompletableFuture<>());
+        replies.put(fileId, reply);
+        try {
+            out.send(message);
+            return reply.future().get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the receiver", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Reply failed", e.getCause());
+        } finally {
+            replies.remove(fileId, reply);
+        }
+    }
+
+    // ---- receiver (DataChannel callback thread) ----
+
+    void onMessage(ByteBuffer msg) {
+        ByteBuffer b = msg.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int pos = b.position();
+        byte type = b.get(pos + 1);
+        switch (type) {
+            case DATA -> onData(b, pos);
+            case OFFER -> onOffer(b, pos);
+            case END -> onEnd(b, pos);
+            default -> {
+                long fileId = b.getLong(pos + 2);
+                Reply reply = replies.get(fileId);
+                if (reply != null && (type == reply.expected() || type == REJECT)) {
+                    if (type == ACCEPT && b.remaining() >= ACCEPT_RESUME_SIZE) {
+                        resumeOffsets.put(fileId, b.getLong(pos + 10));
+                    }
+                    reply.future().complete(type);
+                } else if (type == REJECT && !discard(fileId)) {
+                    aborted.add(fileId);
+                }
+                // else: an ACCEPT nobody waited for (OFFER sent without a round trip)
+            }
+        }
+    }
+
+    private void onOffer(ByteBuffer b, int pos) {
+        long fileId = b.getLong(pos + 2);
+        // Older peers send no stream id: one stream at a time, id 0
+        int streamId = b.remaining() >= OFFER_SIZE - 1 ? Short.toUnsignedInt(b.getShort(pos + 22)) : 0;
+        byte flags = b.remaining() >= OFFER_SIZE ? b.get(pos + 24) : 0;
+        int frameBytes = b.getInt(pos + 18);
+        boolean resumable = (flags & FLAG_RESUMABLE) != 0;
+        if (!ENABLED || incoming.containsKey(streamId) || (flags & ~(FLAG_BATCH | FLAG_RESUMABLE)) != 0
+                || resumable && ((flags & FLAG_BATCH) != 0 || frameBytes <= 0)) {
+            reply(REJECT, fileId); // disabled, a stream id still in use or flags we do not take
+            return;
+        }
+        long size = b.getLong(pos + 10);
+        Path path = targetFor.apply(fileId);
+        long resumeAt = 0;
+        try {
+            if (path.getParent() != null) {
+                path.getParent().toFile().mkdirs();
+            }
+            if ((flags & FLAG_BATCH) != 0) {
+                // The tree is built under path as the stream arrives
+                incoming.put(streamId, new Incoming(fileId, size, path, null, newBatch(fileId, path), null, 0));
+            } else {
+                ResumeCheckpoint checkpoint = null;
+                if (resumable && FileTransferReceiver.RESUME_ENABLED) {
+                    int frames = (int) ((size + frameBytes - 1) / frameBytes);
+                    checkpoint = ResumeCheckpoint.load(path, fileId, size, frames);
+                    if (checkpoint != null) {
+                        resumeAt = Math.min(size, (long) checkpoint.cumAck() * frameBytes);
+                    } else {
+                        checkpoint = new ResumeCheckpoint(path, fileId, size, frames);
+                    }
+                }
+                FileChannel file;
+                if (resumeAt > 0) {
+                    file = FileChannel.open(path, StandardOpenOption.WRITE);
+                } else {
+                    ResumeCheckpoint.delete(path); // a stale sidecar must not describe the new file
+                    file = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                }
+                Incoming in = new Incoming(fileId, size, path, file, null, checkpoint, frameBytes);
+                in.written = resumeAt;
+                incoming.put(streamId, in);
+            }
+        } catch (IOException e) {
+            System.err.println("[DC-STREAM] Cannot open " + path + ": " + e);
+            reply(REJECT, fileId);
+            return;
+        }
+        System.out.printf("[DC-STREAM] Receiving fileId=%d on stream %d (%,d bytes) -> %s (%d active)%s%n",
+            fileId, streamId, size, path, incoming.size(),
+            resumeAt > 0 ? String.format(", resuming at %,d", resumeAt) : "");
+        if (resumable) {
+            ByteBuffer r = ByteBuffer.allocateDirect(ACCEPT_RESUME_SIZE).order(ByteOrder.BIG_ENDIAN);
+            r.put(STREAM_SIGNAL).put(ACCEPT).putLong(fileId).putLong(resumeAt).flip();
+            send(r);
+        } else {
+            reply(ACCEPT, fileId);
+        }
+    }
+
+    private void onData(ByteBuffer b, int pos) {
+        int streamId = Short.toUnsignedInt(b.getShort(pos + 2));
+        Incoming in = incoming.get(streamId);
+        if (in == null) {
+            return; // aborted stream: drain what is still in flight
+        }
+        try {
+            long offset = b.getLong(pos + 4);
+            if (offset != in.written || b.remaining() < DATA_HEADER) {
+                throw new IOException("Frame at offset " + offset + ", expected " + in.written);
+            }
+            b.position(pos + DATA_HEADER);
+            int len = b.remaining();
+            if (in.written + len > in.size) {
+                throw new IOException("Frame beyond the offered size at offset " + offset);
+            }
+            if (in.batch != null) {
+                in.batch.write(b);
+            } else {
+                while (b.hasRemaining()) {
+                    in.file.write(b, offset + (len - b.remaining()));
+                }
+            }
+            in.written += len;
+            if (in.checkpoint != null && NackSender.CHECKPOINT_INTERVAL_MS > 0
+                    && System.nanoTime() - in.checkpointedAt >= NackSender.CHECKPOINT_INTERVAL_MS * 1_000_000L) {
+                checkpoint(in);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[DC-STREAM] Receive error on stream " + streamId + ": " + e);
+            abort(streamId, in);
+        }
+    }
+
+    private void onEnd(ByteBuffer b, int pos) {
+        long fileId = b.getLong(pos + 2);
+        long size = b.getLong(pos + 10);
+        for (Iterator<Map.Entry<Integer, Incoming>> it = incoming.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Incoming> e = it.next();
+            Incoming in = e.getValue();
+            if (in.fileId != fileId) {
+                continue;
+            }
+            if (size != in.size || in.written != in.size) {
+                System.err.printf("[DC-STREAM] fileId=%d: received %d of %d bytes%n", fileId, in.written, size);
+                abort(e.getKey(), in);
+                return;
+            }
+            it.remove();
+            try {
+                if (in.batch != null) {
+                    in.batch.finish(); // every entry written; files are not forced one by one
+                    in.batch.close();
+                } else {
+                    in.file.force(false); // on disk before the sender hears DONE
+                    in.file.close();
+                    if (in.checkpoint != null) {
+                        ResumeCheckpoint.delete(in.path);
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("[DC-STREAM] Cannot finish " + in.path + ": " + ex);
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+                reply(REJECT, fileId);
+                return;
+            }
+            reply(DONE, fileId);
+            System.out.printf("[DC-STREAM] Received fileId=%d: %,d bytes%n", fileId, size);
+            if (listener != null) {
+                listener.onReceived(fileId, in.path, size);
+            }
+            return;
+        }
+        reply(REJECT, fileId); // unknown or already aborted
+    }
+
+    private void abort(int streamId, Incoming in) {
+        incoming.remove(streamId);
+        if (in.checkpoint != null) {
+            checkpoint(in);
+        }
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+        reply(REJECT, in.fileId);
+    }
+
+    /**
+     * Record the whole frames written so far, forced to disk first. A failed
+     * save only costs a longer resume.
+     */
+    private void checkpoint(Incoming in) {
+        in.checkpointedAt = System.nanoTime();
+        int frames = (int) (in.written / in.frameBytes);
+        if (frames == in.checkpoint.cumAck()) {
+            return; // nothing new since the last save
+        }
+        try {
+            in.file.force(false);
+            BitSet held = new BitSet(frames);
+            held.set(0, frames);
+            in.checkpoint.save(frames, held);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[DC-STREAM] Checkpoint failed for " + in.path + ": " + e);
+        }
+    }
+
+    /**
+     * Sender gave up mid-stream: close what arrived, no REJECT back. A
+     * resumable file keeps its partial output and checkpoint, anything else
+     * is deleted.
+     */
+    private boolean discard(long fileId) {
+        for (Iterator<Map.Entry<Integer, Incoming>> it = incoming.entrySet().iterator(); it.hasNext(); ) {
+            Incoming in = it.next().getValue();
+            if (in.fileId != fileId) {
+                continue;
+            }
+            it.remove();
+            System.err.printf("[DC-STREAM] Sender aborted fileId=%d at %,d of %,d bytes%n", fileId, in.written, in.size);
+            if (in.checkpoint != null) {
+                checkpoint(in);
+            }
+            try {
+                in.close(); // a batch removes its partial file, completed ones stay
+                if (in.batch == null && in.checkpoint == null) {
+                    Files.deleteIfExists(in.path);
+                }
+            } catch (IOException e) {
+                System.err.println("[DC-STREAM] Cannot remove " + in.path + ": " + e);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private BatchMaterializer newBatch(long fileId, Path root) {
+        return new BatchMaterializer(root, new BatchMaterializer.Listener() {
+            @Override
+            public void onProgress(int filesDone, int fileCount, long bytesDone, long totalBytes) {
+                BatchListener l = batchListener;
+                if (l != null) {
+                    l.onBatchProgress(fileId, root, filesDone, fileCount, bytesDone, totalBytes);
+                }
+            }
+        });
+    }
+
+    private void reply(byte type, long fileId) {
+        ByteBuffer r = ByteBuffer.allocateDirect(CONTROL_SIZE).order(ByteOrder.BIG_ENDIAN);
+        r.put(STREAM_SIGNAL).put(type).putLong(fileId).flip();
+        send(r);
+    }
+
+    private void send(ByteBuffer r) {
+        try {
+            out.send(r);
+        } catch (IOException e) {
+            System.err.println("[DC-STREAM] Reply failed: " + e.getMessage());
+        }
+    }
+}
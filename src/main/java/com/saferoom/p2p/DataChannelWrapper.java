@@ -12,12 +12,15 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.MembershipKey;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Set;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.saferoom.transport.BatchingEndpoint;
 import com.saferoom.transport.FlowControlledEndpoint;
+import com.saferoom.transport.PooledReceiveEndpoint;
+import com.saferoom.transport.PrioritySendScheduler;
+import com.saferoom.transport.WritableGate;
 
 /**
  * Wraps WebRTC RTCDataChannel as a DatagramChannel
@@ -27,19 +30,41 @@ import com.saferoom.transport.FlowControlledEndpoint;
  * 
  * Design:
  * - send() → dataChannel.send()
- * - receive() → polls from inbound queue (filled by onMessage callback)
+ * - receive() → copies from the pooled inbound slab (filled by onMessage callback);
+ *   pollMessage()/release() lend the slot itself (no second copy)
  * - No real socket address needed (P2P is already established)
  */
-public class DataChannelWrapper extends DatagramChannel implements FlowControlledEndpoint {
+public class DataChannelWrapper extends DatagramChannel
+        implements FlowControlledEndpoint, BatchingEndpoint, PooledReceiveEndpoint {
+    
+    /**
+     * Batch container: [0xB5][BATCH_TYPE][count:u16][length:u32] then
+     * count x [len:u16][packet bytes], length being the whole message.
+     * A data packet starts with its fileId high byte, which may be anything
+     * once ids are supplied, so the signal alone proves nothing: the type
+     * byte, the declared length and the entry tiling must all match too.
+     */
+    public static final byte BATCH_SIGNAL = (byte) 0xB5;
+    static final byte BATCH_TYPE = 0x42;
+    static final int BATCH_HEADER = 8;
+    private static final int BATCH_ENTRY_HEADER = 2;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final long RECEIVE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final ThreadLocal<ByteBuffer> BATCH_SCRATCH =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_BATCH_BYTES));
     
     private final RTCDataChannel dataChannel;
     private final String remoteUsername;
     
-    // Inbound message deque (handshake packets go to front, data packets to back)
-    private static final int MAX_QUEUE_SIZE = 50_000;
-    private final BlockingDeque<ByteBuffer> inboundQueue = new LinkedBlockingDeque<>(MAX_QUEUE_SIZE);
+    // Inbound messages in pooled slots (handshake packets on their own lane, read first)
+    private final InboundSlab inbound = new InboundSlab();
     private final AtomicLong droppedPackets = new AtomicLong();
     
+    // Senders park here past the high watermark, woken by onBufferedAmountChange
+    private final WritableGate writableGate;
+    // File data is BULK: it yields to chat / control on the same peer connection
+    private volatile PrioritySendScheduler priority;
+    
     // Fake addresses for compatibility
     private final FakeSocketAddress localAddress;
     private final FakeSocketAddress remoteAddress;
@@ -48,6 +73,7 @@ public class DataChannelWrapper extends DatagramChannel implements FlowControlle
         super(SelectorProvider.provider());
         this.dataChannel = dataChannel;
         this.remoteUsername = remoteUsername;
+        this.writableGate = new WritableGate(() -> bufferedAmount(dataChannel));
         this.localAddress = new FakeSocketAddress(localUsername);
         this.remoteAddress = new FakeSocketAddress(remoteUsername);
     }
@@ -57,28 +83,24 @@ public class DataChannelWrapper extends DatagramChannel implements FlowControlle
      */
     public void onDataChannelMessage(RTCDataChannelBuffer buffer) {
         ByteBuffer src = buffer.data;
-        ByteBuffer duplicate = src.duplicate();
-        ByteBuffer copy = ByteBuffer.allocateDirect(duplicate.remaining());
-        copy.put(duplicate);
-        copy.flip();
+        if (isBatchContainer(src)) {
+            unpackBatch(src);
+            return;
+        }
         
-        if (copy.remaining() > 0) {
-            byte signal = copy.get(copy.position());
+        if (src.remaining() > 0) {
+            byte signal = src.get(src.position());
             
-            // CRITICAL: Handshake packets (SYN, ACK, SYN_ACK) go to FRONT of queue
+            // CRITICAL: Handshake packets (SYN, ACK, SYN_ACK, RESUME) go to the priority lane
             // This ensures FileTransferReceiver.handshake() reads these BEFORE data flood
-            if (signal == 0x01 || signal == 0x10 || signal == 0x11) {
-                System.out.printf("[Wrapper] 📥 PRIORITY signal 0x%02X (%d bytes) from %s → FRONT of queue%n",
-                    signal, copy.remaining(), remoteUsername);
-                enqueuePriority(copy);
-            } else {
-                System.out.printf("[Wrapper] 📥 Received signal 0x%02X (%d bytes) from %s → queue (size: %d)%n",
-                    signal, copy.remaining(), remoteUsername, inboundQueue.size());
-                enqueueData(copy);
+            if (signal == 0x01 || signal == 0x10 || signal == 0x11 || signal == 0x12) {
+                System.out.printf("[Wrapper] 📥 PRIORITY signal 0x%02X (%d bytes) from %s → priority lane%n",
+                    signal, src.remaining(), remoteUsername);
+                enqueue(src, true);
+                return;
             }
-        } else {
-            enqueueData(copy);
         }
+        enqueue(src, false);
     }
     
     // ========== DatagramChannel Implementation ==========
@@ -114,32 +136,46 @@ public class DataChannelWrapper extends DatagramChannel implements FlowControlle
     
     @Override
     public SocketAddress receive(ByteBuffer dst) throws IOException {
+        // Priority lane first (handshake packets)
+        int slot = inbound.poll(RECEIVE_WAIT_NS);
+        if (slot == EMPTY) {
+            return null; // No data available
+        }
         try {
-            // Poll from front (handshake packets inserted via offerFirst)
-            ByteBuffer data = inboundQueue.pollFirst(50, TimeUnit.MILLISECONDS);
-            if (data == null) {
-                return null; // No data available
-            }
-            
-            // DEBUG: Log what we're reading from queue
-            if (data.remaining() > 0) {
-                byte signal = data.get(data.position());
-                System.out.printf("[Wrapper] 📖 Reading signal 0x%02X (%d bytes) from queue (remaining: %d)%n",
-                    signal, data.remaining(), inboundQueue.size());
-            }
-            
-            // Copy to destination buffer
+            // The one copy: pooled slot -> caller's buffer (pollMessage() skips it)
+            ByteBuffer data = inbound.buffer(slot);
             int toCopy = Math.min(dst.remaining(), data.remaining());
-            ByteBuffer slice = data.duplicate();
-            slice.limit(slice.position() + toCopy);
-            dst.put(slice);
-            
+            dst.put(dst.position(), data, 0, toCopy);
+            dst.position(dst.position() + toCopy);
             return remoteAddress;
-            
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return null;
+        } finally {
+            inbound.release(slot);
+        }
+    }
+
+    // ========== PooledReceiveEndpoint ==========
+
+    @Override
+    public int pollMessage(long timeoutNanos) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("DataChannel wrapper closed");
         }
+        return inbound.poll(timeoutNanos);
+    }
+
+    @Override
+    public ByteBuffer message(int handle) {
+        return inbound.buffer(handle);
+    }
+
+    @Override
+    public void release(int handle) {
+        inbound.release(handle);
+    }
+
+    @Override
+    public int maxMessages() {
+        return inbound.capacity();
     }
     
     @Override
@@ -177,7 +213,8 @@ public class DataChannelWrapper extends DatagramChannel implements FlowControlle
     
     @Override
     protected void implCloseSelectableChannel() throws IOException {
-        inboundQueue.clear();
+        inbound.clear();
+        writableGate.close(new IOException("DataChannel wrapper closed"));
     }
     
     @Override
@@ -282,7 +319,116 @@ public class DataChannelWrapper extends DatagramChannel implements FlowControlle
         return totalBytes;
     }
 
+    /**
+     * One DataChannel message for the whole burst instead of one JNI send per packet.
+     */
+    @Override
+    public int writeBatch(ByteBuffer[][] packets, int count) throws IOException {
+        if (count <= 0) {
+            return 0;
+        }
+        if (count == 1) {
+            write(packets[0], 0, packets[0].length);
+            return 1;
+        }
+        ByteBuffer merged = BATCH_SCRATCH.get();
+        merged.clear();
+        merged.put(BATCH_SIGNAL).put(BATCH_TYPE);
+        merged.putShort((short) count);
+        merged.putInt(0); // length, filled in once the entries are in
+        for (int i = 0; i < count; i++) {
+            ByteBuffer[] frame = packets[i];
+            int len = 0;
+            for (ByteBuffer part : frame) {
+                if (part != null) {
+                    len += part.remaining();
+                }
+            }
+            if (merged.remaining() < BATCH_ENTRY_HEADER + len) {
+                throw new IOException("Batch exceeds " + MAX_BATCH_BYTES + " bytes");
+            }
+            merged.putShort((short) len);
+            for (ByteBuffer part : frame) {
+                if (part != null) {
+                    merged.put(part.duplicate());
+                }
+            }
+        }
+        merged.putInt(4, merged.position());
+        merged.flip();
+        send(merged, remoteAddress);
+        return count;
+    }
+
+    @Override
+    public int maxBatchBytes() {
+        return MAX_BATCH_BYTES - BATCH_HEADER;
+    }
+
+    private static boolean isBatchContainer(ByteBuffer src) {
+        int pos = src.position();
+        if (src.remaining() < BATCH_HEADER || src.get(pos) != BATCH_SIGNAL
+                || src.get(pos + 1) != BATCH_TYPE || src.getInt(pos + 4) != src.remaining()) {
+            return false;
+        }
+        // Structural check: entries must tile the message exactly
+        int count = Short.toUnsignedInt(src.getShort(pos + 2));
+        int cursor = pos + BATCH_HEADER;
+        for (int i = 0; i < count; i++) {
+            if (cursor + BATCH_ENTRY_HEADER > src.limit()) {
+                return false;
+            }
+            cursor += BATCH_ENTRY_HEADER + Short.toUnsignedInt(src.getShort(cursor));
+        }
+        return count > 0 && cursor == src.limit();
+    }
+
+    private void unpackBatch(ByteBuffer src) {
+        int pos = src.position();
+        int count = Short.toUnsignedInt(src.getShort(pos + 2));
+        int cursor = pos + BATCH_HEADER;
+        for (int i = 0; i < count; i++) {
+            int len = Short.toUnsignedInt(src.getShort(cursor));
+            cursor += BATCH_ENTRY_HEADER;
+            enqueue(src.slice(cursor, len), false);
+            cursor += len;
+        }
+    }
+
+    /**
+     * Reliable + ordered channel (no maxRetransmits / maxPacketLifeTime):
+     * SCTP already does what CRC32C/NACK do for datagrams, so
+     * {@link DataChannelStreamTransfer} can send large frames instead.
+     */
+    public boolean isReliableOrdered() {
+        try {
+            return dataChannel.isOrdered() && dataChannel.isReliable();
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * One DataChannel message without the per-packet debug log (large-frame
+     * path). The native send copies, so {@code message} can be reused after.
+     */
+    public void sendMessage(ByteBuffer message) throws IOException {
+        if (dataChannel.getState() != RTCDataChannelState.OPEN) {
+            throw new IOException("DataChannel not open");
+        }
+        try {
+            dataChannel.send(new RTCDataChannelBuffer(message.duplicate(), true));
+            message.position(message.limit());
+        } catch (Exception e) {
+            throw new IOException("DataChannel send failed: " + e.getMessage(), e);
+        }
+    }
+
     public long getBufferedAmountSafe() {
+        return bufferedAmount(dataChannel);
+    }
+
+    private static long bufferedAmount(RTCDataChannel dataChannel) {
         try {
             return dataChannel.getBufferedAmount();
         } catch (Throwable t) {
@@ -309,19 +455,53 @@ public class DataChannelWrapper extends DatagramChannel implements FlowControlle
         return droppedPackets.get();
     }
 
-    private void enqueuePriority(ByteBuffer packet) {
-        while (!inboundQueue.offerFirst(packet)) {
-            ByteBuffer dropped = inboundQueue.pollLast();
-            if (dropped == null) {
-                droppedPackets.incrementAndGet();
-                break;
-            }
-            droppedPackets.incrementAndGet();
+    @Override
+    public long highWatermark() {
+        return writableGate.highWatermark();
+    }
+
+    @Override
+    public CompletableFuture<Void> writable(long bytes) {
+        return writableGate.writable(bytes);
+    }
+
+    /** Watermark first, then the peer connection's priority classes */
+    @Override
+    public void awaitWritable(long bytes) throws IOException {
+        FlowControlledEndpoint.super.awaitWritable(bytes);
+        PrioritySendScheduler p = priority;
+        if (p != null) {
+            p.awaitBulk(bytes);
         }
     }
 
-    private void enqueueData(ByteBuffer packet) {
-        if (!inboundQueue.offerLast(packet)) {
+    public void setPriorityScheduler(PrioritySendScheduler priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Called by P2PConnectionManager from the DataChannel observer: wakes
+     * parked senders once SCTP has drained to the low watermark.
+     */
+    public void onBufferedAmountChange(long previousAmount) {
+        writableGate.onBufferedAmountChange();
+        PrioritySendScheduler p = priority;
+        if (p != null) {
+            p.onBufferedAmountChange();
+        }
+    }
+
+    /** Channel closed or failed: parked senders get an IOException */
+    public void onChannelClosed() {
+        writableGate.close(new IOException("DataChannel closed"));
+    }
+
+    public WritableGate getWritableGate() {
+        return writableGate;
+    }
+
+    private void enqueue(ByteBuffer packet, boolean urgent) {
+        if (!inbound.offer(packet, urgent)) {
             droppedPackets.incrementAndGet();
         }
     }
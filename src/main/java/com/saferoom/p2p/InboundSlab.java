@@ -0,0 +1,143 @@
+package com.saferoom.p2p;
+
+import com.saferoom.file_transfer.IntMpscRing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Inbound DataChannel messages in one slab of fixed-size direct slots.
+ *
+ * Only slot indices move ({@link IntMpscRing}, like the receive pipeline):
+ * the DataChannel callback thread takes a free slot, copies the message in
+ * and publishes it on the priority lane (handshake signals) or the data lane;
+ * readers poll the priority lane first and give the slot back when done.
+ * Nothing is allocated per message and the callback thread never waits on a
+ * reader. When every slot is in use the message is dropped and counted (the
+ * NACK loop asks for it again), as the bounded deque did when full.
+ *
+ * Rings: free = many releasers -> callback thread; lanes = callback thread ->
+ * readers. DataChannel callbacks come from one native thread. Readers (the
+ * receiver and the sender's NACK listener share one wrapper) take turns with
+ * a CAS flag, so each ring keeps a single consumer.
+ */
+final class InboundSlab {
+
+    static final int SLOT_BYTES = Math.max(1500, Integer.getInteger("saferoom.transfer.dc.inboundSlotBytes", 2048));
+    static final int SLOTS = Math.max(64, Integer.getInteger("saferoom.transfer.dc.inboundSlots", 8192));
+    private static final int PRIORITY_SLOTS = 256;
+
+    private final ByteBuffer[] slots;
+    private final IntMpscRing free;
+    private final IntMpscRing priority = new IntMpscRing(PRIORITY_SLOTS);
+    private final IntMpscRing data;
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private volatile Thread parked;
+
+    InboundSlab() {
+        this(SLOTS, SLOT_BYTES);
+    }
+
+    InboundSlab(int slotCount, int slotBytes) {
+        this.free = new IntMpscRing(slotCount);
+        this.data = new IntMpscRing(slotCount);
+        int n = free.capacity();
+        this.slots = new ByteBuffer[n];
+        ByteBuffer arena = ByteBuffer.allocateDirect(n * slotBytes);
+        for (int i = 0; i < n; i++) {
+            slots[i] = arena.slice(i * slotBytes, slotBytes).order(ByteOrder.BIG_ENDIAN);
+            free.offer(i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Callback thread: copy {@code src} (position..limit, untouched) into a slot.
+     *
+     * @return false if it is larger than a slot or no slot is free (dropped)
+     */
+    boolean offer(ByteBuffer src, boolean urgent) {
+        if (src.remaining() > slots[0].capacity()) {
+            return false;
+        }
+        int slot = free.poll();
+        if (slot == IntMpscRing.EMPTY) {
+            return false;
+        }
+        ByteBuffer b = slots[slot];
+        b.clear();
+        b.put(0, src, src.position(), src.remaining());
+        b.limit(src.remaining());
+        if (!(urgent ? priority : data).offer(slot)) {
+            free.offer(slot); // priority lane full; the data lane is as big as the slab
+            return false;
+        }
+        Thread t = parked;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    /** @return next slot (priority lane first) or {@link IntMpscRing#EMPTY} */
+    int poll() {
+        if (!polling.compareAndSet(false, true)) {
+            return IntMpscRing.EMPTY; // another reader is polling right now
+        }
+        try {
+            int slot = priority.poll();
+            return slot != IntMpscRing.EMPTY ? slot : data.poll();
+        } finally {
+            polling.set(false);
+        }
+    }
+
+    int poll(long timeoutNanos) {
+        int slot = poll();
+        if (slot != IntMpscRing.EMPTY || timeoutNanos <= 0) {
+            return slot;
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        Thread me = Thread.currentThread();
+        while (true) {
+            parked = me;
+            slot = poll(); // a message published before 'parked' was set would not unpark us
+            if (slot != IntMpscRing.EMPTY) {
+                parked = null;
+                return slot;
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0 || me.isInterrupted()) {
+                parked = null;
+                return IntMpscRing.EMPTY;
+            }
+            LockSupport.parkNanos(this, left);
+        }
+    }
+
+    /** Slot bytes: position 0, limit = message length */
+    ByteBuffer buffer(int slot) {
+        return slots[slot];
+    }
+
+    void release(int slot) {
+        free.offer(slot); // never full: only slab slots circulate
+    }
+
+    int queued() {
+        return priority.size() + data.size();
+    }
+
+    /** Drop everything still queued */
+    void clear() {
+        int slot;
+        while ((slot = poll()) != IntMpscRing.EMPTY) {
+            release(slot);
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.saferoom.p2p;
 
+import com.saferoom.file_transfer.BatchManifest;
+import com.saferoom.file_transfer.TransferKey;
 import com.saferoom.webrtc.WebRTCSignalingClient;
 import com.saferoom.webrtc.WebRTCClient;
 import com.saferoom.grpc.SafeRoomProto.WebRTCSignal;
 import com.saferoom.grpc.SafeRoomProto.WebRTCSignal.SignalType;
+import com.saferoom.transport.PrioritySendScheduler;
+import com.saferoom.transport.TrafficClass;
 import dev.onvoid.webrtc.*;
 
 import java.nio.ByteBuffer;
@@ -16,6 +20,7 @@ import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * P2P Connection Manager for WebRTC-based messaging/file transfer
@@ -36,10 +41,15 @@ public class P2PConnectionManager {
     
     private static final String FILE_CTRL_PREFIX = "__FT_CTRL__";
     private static final String CTRL_UR_RECEIVER = "UR_RECEIVER";
+    private static final String CTRL_BATCH_FLAG = "BATCH";
     private static final String CTRL_OK_SNDFILE = "OK_SNDFILE";
     private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
     private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
     private static final long RECEIVER_READY_TIMEOUT_SEC = 30;
+    // Concurrent sends to one peer share a channel: ids must not collide within a millisecond
+    private static final AtomicLong lastFileId = new AtomicLong();
+    // Stable ids (TransferKey) of files being sent: the same file sent twice at once gets a fresh id
+    private static final java.util.Set<Long> sendingKeys = ConcurrentHashMap.newKeySet();
     
     private String myUsername;
     private WebRTCSignalingClient signalingClient;
@@ -499,28 +509,88 @@ public class P2PConnectionManager {
         
         try {
             long fileSize = Files.size(filePath);
-            long fileId = System.currentTimeMillis();
+            // A re-send of the same file reuses its id so the receiver resumes the partial output
+            long key = TransferKey.of(filePath);
+            boolean keyed = sendingKeys.add(key);
+            try {
+                long fileId = keyed ? key
+                    : lastFileId.updateAndGet(last -> Math.max(System.currentTimeMillis(), last + 1));
+                if (observer != null) {
+                    observer.onTransferStarted(fileId, filePath, fileSize);
+                }
+                System.out.println("[FT-SENDER] ═══════════════════════════════════════════════");
+                System.out.printf("[FT-SENDER] sendFile() called: fileId=%d, file=%s, size=%d bytes%n", 
+                    fileId, filePath.getFileName(), fileSize);
+                System.out.println("[FT-SENDER] ═══════════════════════════════════════════════");
+            
+                CompletableFuture<Void> readyFuture = connection.fileTransfer.awaitReceiverReady(fileId);
+                connection.sendControlMessage(connection.buildUrReceiverControl(
+                    fileId, fileSize, filePath.getFileName().toString()));
+            
+                return readyFuture.orTimeout(RECEIVER_READY_TIMEOUT_SEC, TimeUnit.SECONDS)
+                    .thenCompose(v -> connection.fileTransfer.sendFile(filePath, fileId, observer))
+                    .exceptionally(ex -> {
+                        System.err.printf("[P2P] File transfer failed: %s%n", ex.getMessage());
+                        if (observer != null) observer.onTransferFailed(fileId, ex);
+                        return false;
+                    })
+                    .whenComplete((ok, ex) -> {
+                        if (keyed) sendingKeys.remove(key);
+                    });
+            } catch (Exception e) {
+                if (keyed) sendingKeys.remove(key);
+                throw e;
+            }
+        } catch (Exception e) {
+            System.err.printf("[P2P] Error preparing file transfer: %s%n", e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+    
+    /**
+     * Send a folder as one batch session: one UR_RECEIVER / OK_SNDFILE round
+     * trip and one transfer for all its files. The observer reports the batch
+     * as a single transfer of manifest plus file bytes.
+     */
+    public CompletableFuture<Boolean> sendFolder(String targetUsername,
+                                                 java.nio.file.Path folder,
+                                                 FileTransferObserver observer) {
+        P2PConnection connection = activeConnections.get(targetUsername);
+        if (connection == null || !connection.isActive()) {
+            System.err.printf("[P2P] No active connection to %s%n", targetUsername);
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        if (connection.fileTransfer == null) {
+            connection.initializeFileTransfer();
+        }
+        if (connection.fileTransfer == null) {
+            System.err.printf("[P2P] File transfer not initialized for %s%n", targetUsername);
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        try {
+            BatchManifest manifest = BatchManifest.scan(folder);
+            long batchId = lastFileId.updateAndGet(last -> Math.max(System.currentTimeMillis(), last + 1));
             if (observer != null) {
-                observer.onTransferStarted(fileId, filePath, fileSize);
+                observer.onTransferStarted(batchId, folder, manifest.streamBytes());
             }
-            System.out.println("[FT-SENDER] ═══════════════════════════════════════════════");
-            System.out.printf("[FT-SENDER] sendFile() called: fileId=%d, file=%s, size=%d bytes%n", 
-                fileId, filePath.getFileName(), fileSize);
-            System.out.println("[FT-SENDER] ═══════════════════════════════════════════════");
+            System.out.printf("[FT-SENDER] sendFolder() called: batchId=%d, folder=%s, %d files, %d bytes%n",
+                batchId, folder.getFileName(), manifest.fileCount(), manifest.totalBytes());
             
-            CompletableFuture<Void> readyFuture = connection.fileTransfer.awaitReceiverReady(fileId);
+            CompletableFuture<Void> readyFuture = connection.fileTransfer.awaitReceiverReady(batchId);
             connection.sendControlMessage(connection.buildUrReceiverControl(
-                fileId, fileSize, filePath.getFileName().toString()));
+                batchId, manifest.streamBytes(), folder.getFileName().toString()) + "|" + CTRL_BATCH_FLAG);
             
             return readyFuture.orTimeout(RECEIVER_READY_TIMEOUT_SEC, TimeUnit.SECONDS)
-                .thenCompose(v -> connection.fileTransfer.sendFile(filePath, fileId, observer))
+                .thenCompose(v -> connection.fileTransfer.sendBatch(folder, manifest, batchId, observer))
                 .exceptionally(ex -> {
-                    System.err.printf("[P2P] File transfer failed: %s%n", ex.getMessage());
-                    if (observer != null) observer.onTransferFailed(fileId, ex);
+                    System.err.printf("[P2P] Folder transfer failed: %s%n", ex.getMessage());
+                    if (observer != null) observer.onTransferFailed(batchId, ex);
                     return false;
                 });
         } catch (Exception e) {
-            System.err.printf("[P2P] Error preparing file transfer: %s%n", e.getMessage());
+            System.err.printf("[P2P] Error preparing folder transfer: %s%n", e.getMessage());
             return CompletableFuture.completedFuture(false);
         }
     }
@@ -539,7 +609,11 @@ public class P2PConnectionManager {
         DataChannelReliableMessaging reliableMessaging;  // Reliable messaging protocol
         
         // File transfer: DataChannelFileTransfer coordinates roles, uses original file_transfer/
-        DataChannelFileTransfer fileTransfer;
+        volatile DataChannelFileTransfer fileTransfer;
+        
+        // Control / chat before file data, across both channels (one SCTP association)
+        final PrioritySendScheduler sendScheduler =
+            new PrioritySendScheduler(() -> bufferedAmount(dataChannel), () -> bufferedAmount(fileDataChannel));
         
         volatile boolean active = false;
         
@@ -679,7 +753,10 @@ public class P2PConnectionManager {
             this.dataChannel = channel;
             channel.registerObserver(new RTCDataChannelObserver() {
                 @Override
-                public void onBufferedAmountChange(long previousAmount) {}
+                public void onBufferedAmountChange(long previousAmount) {
+                    // Chat drained: file senders may be yielding to it
+                    sendScheduler.onBufferedAmountChange();
+                }
                 
                 @Override
                 public void onStateChange() {
@@ -713,7 +790,13 @@ public class P2PConnectionManager {
             this.fileDataChannel = channel;
             channel.registerObserver(new RTCDataChannelObserver() {
                 @Override
-                public void onBufferedAmountChange(long previousAmount) {}
+                public void onBufferedAmountChange(long previousAmount) {
+                    // Wakes file senders parked on the high watermark
+                    DataChannelFileTransfer ft = fileTransfer;
+                    if (ft != null) {
+                        ft.getWrapper().onBufferedAmountChange(previousAmount);
+                    }
+                }
                 
                 @Override
                 public void onStateChange() {
@@ -723,6 +806,11 @@ public class P2PConnectionManager {
                     
                     if (state == RTCDataChannelState.OPEN) {
                         initializeFileTransfer();
+                    } else if (state == RTCDataChannelState.CLOSING || state == RTCDataChannelState.CLOSED) {
+                        DataChannelFileTransfer ft = fileTransfer;
+                        if (ft != null) {
+                            ft.getWrapper().onChannelClosed();
+                        }
                     }
                 }
                 
@@ -746,7 +834,7 @@ public class P2PConnectionManager {
                 return;
             }
             
-            reliableMessaging = new DataChannelReliableMessaging(myUsername, dataChannel);
+            reliableMessaging = new DataChannelReliableMessaging(myUsername, dataChannel, sendScheduler);
             
             // Set callback for completed messages
             reliableMessaging.setCompletionCallback((sender, messageId, messageBytes) -> {
@@ -807,6 +895,7 @@ public class P2PConnectionManager {
             try {
                 // Create DataChannelFileTransfer (handles wrapper + original classes)
                 fileTransfer = new DataChannelFileTransfer(myUsername, fileDataChannel, remoteUsername);
+                fileTransfer.getWrapper().setPriorityScheduler(sendScheduler);
                 fileTransfer.setTransferCallback((sender, fileId, path, size) -> {
                     javafx.application.Platform.runLater(() -> {
                         com.saferoom.gui.service.ChatService.getInstance()
@@ -901,7 +990,11 @@ public class P2PConnectionManager {
                 }
                 
                 if (fileTransfer != null) {
-                    fileTransfer.prepareIncomingFile(fileId, fileName);
+                    if (parts.length > 5 && CTRL_BATCH_FLAG.equals(parts[5])) {
+                        fileTransfer.prepareIncomingBatch(fileId, fileName);
+                    } else {
+                        fileTransfer.prepareIncomingFile(fileId, fileName);
+                    }
                     
                     // 🔥 CRITICAL FIX: Send OK_SNDFILE BEFORE starting receiver!
                     System.out.println("[FT-CTRL-RECV] 🚀 Sending OK_SNDFILE to unblock sender...");
@@ -958,9 +1051,16 @@ public class P2PConnectionManager {
                 buffer.put(payloadBytes);
                 buffer.flip();
                 
-                RTCDataChannelBuffer dcBuffer = new RTCDataChannelBuffer(buffer, true);
-                dataChannel.send(dcBuffer);
-                System.out.println("[FT-CTRL-SEND] ✅ Control message sent DIRECTLY via DataChannel (signal 0xF0)");
+                RTCDataChannel channel = dataChannel;
+                sendScheduler.send(TrafficClass.CONTROL, buffer,
+                        m -> channel.send(new RTCDataChannelBuffer(m, true)))
+                    .whenComplete((ignored, error) -> {
+                        if (error == null) {
+                            System.out.println("[FT-CTRL-SEND] ✅ Control message sent DIRECTLY via DataChannel (signal 0xF0)");
+                        } else {
+                            System.err.printf("[FT-CTRL-SEND] ❌ Failed to send control message: %s%n", error.getMessage());
+                        }
+                    });
             } catch (Exception e) {
                 System.err.printf("[FT-CTRL-SEND] ❌ Failed to send control message: %s%n", e.getMessage());
                 e.printStackTrace();
@@ -992,6 +1092,16 @@ public class P2PConnectionManager {
             }
         }
         
+        /** 0 unless open: a dead channel must not hold file data back forever */
+        private long bufferedAmount(RTCDataChannel channel) {
+            try {
+                return channel != null && channel.getState() == RTCDataChannelState.OPEN
+                    ? channel.getBufferedAmount() : 0;
+            } catch (Throwable t) {
+                return 0;
+            }
+        }
+        
         boolean isActive() {
             return active && dataChannel != null && 
                    dataChannel.getState() == RTCDataChannelState.OPEN;
@@ -0,0 +1,124 @@
+package com.saferoom.p2p;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted fair share of one DataChannel between concurrent large-frame
+ * streams (stride scheduling).
+ *
+ * Every stream has a pass value that grows by bytes / weight with each frame
+ * it sends; of the streams waiting to send, the lowest pass goes next, one
+ * frame on the channel at a time. The holder of the turn also waits for
+ * bufferedAmount room, so the channel's window is what gets shared. A stream
+ * with more frames to come keeps its place while it reads the next one (a
+ * page-cache read, short next to the channel wait), otherwise every wakeup
+ * race would hand its turn to a lighter stream. A stream that joins late
+ * starts at the pass of the last turn given instead of claiming the time it
+ * was absent.
+ */
+final class StreamScheduler {
+
+    private static final int SCALE = 1 << 8;
+
+    static final class Stream {
+        final int id;
+        final int weight;
+        private long pass;
+        private boolean ready;
+        private long bytes;
+
+        private Stream(int id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+        long bytesSent() {
+            return bytes;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    private final List<Stream> streams = new ArrayList<>();
+    private boolean sending;
+    /** Pass of the stream that got the last turn */
+    private long virtualTime;
+
+    Stream open(int id, int weight) {
+        Stream s = new Stream(id, Math.max(1, weight));
+        lock.lock();
+        try {
+            s.pass = virtualTime;
+            streams.add(s);
+        } finally {
+            lock.unlock();
+        }
+        return s;
+    }
+
+    void close(Stream s) {
+        lock.lock();
+        try {
+            streams.remove(s);
+            s.ready = false;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wait until {@code s} is the ready stream with the lowest pass */
+    void acquire(Stream s) throws InterruptedException {
+        lock.lock();
+        try {
+            s.ready = true;
+            while (sending || !isNext(s)) {
+                turn.await();
+            }
+            sending = true;
+            s.ready = false;
+            virtualTime = Math.max(virtualTime, s.pass);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frame of {@code bytes} is on the channel (0 if the send failed).
+     *
+     * @param more another frame of this stream follows
+     */
+    void release(Stream s, int bytes, boolean more) {
+        lock.lock();
+        try {
+            sending = false;
+            s.pass += (long) bytes * SCALE / s.weight;
+            s.bytes += bytes;
+            s.ready = more;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int activeStreams() {
+        lock.lock();
+        try {
+            return streams.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isNext(Stream s) {
+        for (Stream r : streams) {
+            if (r != s && r.ready && (r.pass < s.pass || (r.pass == s.pass && r.id < s.id))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
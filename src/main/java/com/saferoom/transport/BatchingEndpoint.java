@@ -0,0 +1,19 @@
+package com.saferoom.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Endpoint that can put several datagrams on the wire with one underlying send.
+ * Each packet is a gathering array (header + payload); packet boundaries are
+ * preserved for the remote reader.
+ */
+public interface BatchingEndpoint extends TransportEndpoint {
+    /**
+     * @return number of packets written (all or nothing per call)
+     */
+    int writeBatch(ByteBuffer[][] packets, int count) throws IOException;
+
+    /** Largest batch (in bytes, all packets together) accepted by {@link #writeBatch}. */
+    int maxBatchBytes();
+}
@@ -1,10 +1,61 @@
 package com.saferoom.transport;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public interface FlowControlledEndpoint extends TransportEndpoint {
+    /** Safety net for a missed drain event: re-check this often while parked */
+    long RECHECK_MS = Long.getLong("saferoom.transfer.buffer.recheckMs", 50L);
+
     long bufferedAmount();
 
     default long droppedPackets() {
         return -1;
     }
-}
 
+    default long highWatermark() {
+        return WritableGate.HIGH_WATERMARK;
+    }
+
+    /**
+     * Completes when {@code bytes} more can be written without going past the
+     * high watermark. Endpoints without drain events get a short timed wakeup
+     * (the old polling behaviour); event-driven ones override this with a
+     * {@link WritableGate}.
+     */
+    default CompletableFuture<Void> writable(long bytes) {
+        if (bufferedAmount() + bytes <= highWatermark()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return new CompletableFuture<Void>().completeOnTimeout(null, 2, TimeUnit.MILLISECONDS);
+    }
+
+    /** Park the calling sender until {@link #writable} lets {@code bytes} through */
+    default void awaitWritable(long bytes) throws IOException {
+        while (true) {
+            if (!isOpen()) {
+                throw new IOException("Transport closed");
+            }
+            CompletableFuture<Void> writable = writable(bytes);
+            try {
+                if (writable.isDone()) {
+                    writable.join();
+                    return;
+                }
+                writable.get(RECHECK_MS, TimeUnit.MILLISECONDS);
+                // woken: ask again, another sender may have taken the room
+            } catch (TimeoutException e) {
+                // missed event or slow drain: look again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the transport to drain", e);
+            } catch (ExecutionException | CompletionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+    }
+}
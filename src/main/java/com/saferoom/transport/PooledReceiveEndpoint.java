@@ -0,0 +1,27 @@
+package com.saferoom.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Endpoint whose inbound messages already sit in pooled direct buffers: the
+ * consumer borrows the buffer by handle instead of copying it out with
+ * receive(), and gives it back with {@link #release}.
+ */
+public interface PooledReceiveEndpoint extends TransportEndpoint {
+    int EMPTY = -1;
+
+    /**
+     * @return handle of the next message (handshake signals first), or
+     *         {@link #EMPTY} if nothing arrived within {@code timeoutNanos}
+     */
+    int pollMessage(long timeoutNanos) throws IOException;
+
+    /** Message bytes: position 0, limit = length. Valid until {@link #release}. */
+    ByteBuffer message(int handle);
+
+    void release(int handle);
+
+    /** Handles are 0 .. maxMessages()-1; at most that many are out at once */
+    int maxMessages();
+}
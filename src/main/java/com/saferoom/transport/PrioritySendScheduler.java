@@ -0,0 +1,181 @@
+package com.saferoom.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Strict-priority send scheduler for one peer connection: CONTROL before
+ * INTERACTIVE before BULK ({@link TrafficClass}).
+ *
+ * CONTROL and INTERACTIVE messages are queued per class and written in
+ * class order by whichever caller gets the drain turn; they never wait for
+ * watermarks. BULK senders call {@link #awaitBulk} before every frame (after
+ * their own watermark wait) and yield:
+ * - while a higher-class message is queued here, or still sits in its own
+ *   channel's buffer ({@code urgentBuffered})
+ * - whenever the bulk channel already buffers {@link #BULK_YIELD_BYTES}
+ *
+ * The second rule is what bounds chat latency: both channels share one SCTP
+ * association, and nothing can overtake bulk bytes that are already in its
+ * buffer - a full 8 MB watermark is over a second at 50 Mbps, and the first
+ * chat message would wait behind all of it. 256 KB still keeps the link busy
+ * (drain events refill it long before it runs dry); raise it for very high
+ * bandwidth-delay paths.
+ */
+public final class PrioritySendScheduler {
+
+    public static final long BULK_YIELD_BYTES = Long.getLong("saferoom.transfer.priority.bulkBytes", 256L << 10);
+
+    @FunctionalInterface
+    public interface MessageSink {
+        void send(ByteBuffer message) throws Exception;
+    }
+
+    private record Pending(ByteBuffer message, MessageSink sink, CompletableFuture<Void> written) { }
+
+    private final LongSupplier urgentBuffered;
+    private final LongSupplier bulkBuffered;
+    private final long bulkYieldBytes;
+
+    // CONTROL, INTERACTIVE
+    private final Queue<Pending> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Pending> interactive = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // Parked bulk senders
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile int bulkWaiting;
+
+    // Stats
+    private final AtomicLong urgentSent = new AtomicLong();
+    private final AtomicLong urgentFailed = new AtomicLong();
+    private final AtomicLong bulkYields = new AtomicLong();
+    private final AtomicLong bulkYieldNanos = new AtomicLong();
+
+    /**
+     * @param urgentBuffered bytes the higher classes still have in their own
+     *                       channel's buffer (0 if they share the bulk channel)
+     * @param bulkBuffered   bufferedAmount of the bulk channel
+     */
+    public PrioritySendScheduler(LongSupplier urgentBuffered, LongSupplier bulkBuffered) {
+        this(urgentBuffered, bulkBuffered, BULK_YIELD_BYTES);
+    }
+
+    public PrioritySendScheduler(LongSupplier urgentBuffered, LongSupplier bulkBuffered, long bulkYieldBytes) {
+        this.urgentBuffered = urgentBuffered;
+        this.bulkBuffered = bulkBuffered;
+        this.bulkYieldBytes = bulkYieldBytes;
+    }
+
+    /**
+     * Send {@code message} through {@code sink} in class order. CONTROL /
+     * INTERACTIVE may be written by another caller's drain: the future
+     * completes once the sink returns, or with the sink's exception. BULK
+     * waits for {@link #awaitBulk}, writes on this thread and throws.
+     */
+    public CompletableFuture<Void> send(TrafficClass cls, ByteBuffer message, MessageSink sink) throws IOException {
+        if (cls == TrafficClass.BULK) {
+            awaitBulk(message.remaining());
+            try {
+                sink.send(message);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Bulk send failed: " + e.getMessage(), e);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        pending.incrementAndGet();
+        (cls == TrafficClass.CONTROL ? control : interactive).add(new Pending(message, sink, written));
+        drain();
+        return written;
+    }
+
+    /** Park a bulk sender while higher classes have data to go first */
+    public void awaitBulk(long bytes) throws IOException {
+        if (!mustYield(bytes)) {
+            return;
+        }
+        long start = System.nanoTime();
+        bulkYields.incrementAndGet();
+        lock.lock();
+        try {
+            bulkWaiting++;
+            while (mustYield(bytes)) {
+                // Timed: safety net for a missed drain event
+                changed.await(FlowControlledEndpoint.RECHECK_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while yielding to higher-priority traffic", e);
+        } finally {
+            bulkWaiting--;
+            lock.unlock();
+            bulkYieldNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /** Transport event on either channel: parked bulk senders look again */
+    public void onBufferedAmountChange() {
+        if (bulkWaiting == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean mustYield(long bytes) {
+        if (pending.get() > 0 || urgentBuffered.getAsLong() > 0) {
+            return true;
+        }
+        long buffered = bulkBuffered.getAsLong();
+        return buffered > 0 && buffered + bytes > bulkYieldBytes;
+    }
+
+    private void drain() {
+        // One caller writes at a time; the others leave their message to it
+        while (pending.get() > 0 && draining.compareAndSet(false, true)) {
+            try {
+                Pending p;
+                while ((p = control.poll()) != null || (p = interactive.poll()) != null) {
+                    try {
+                        p.sink().send(p.message());
+                        urgentSent.incrementAndGet();
+                        p.written().complete(null);
+                    } catch (Exception e) {
+                        urgentFailed.incrementAndGet();
+                        p.written().completeExceptionally(e); // the sender reports it
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+        onBufferedAmountChange();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrioritySendScheduler[urgent sent=%d, failed=%d, bulk yields=%d (%.1f ms), queued=%d]",
+            urgentSent.get(), urgentFailed.get(), bulkYields.get(), bulkYieldNanos.get() / 1e6, pending.get());
+    }
+}
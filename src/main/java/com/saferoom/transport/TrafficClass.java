@@ -0,0 +1,14 @@
+package com.saferoom.transport;
+
+/**
+ * Strict-priority classes of a peer connection's outbound traffic, highest
+ * first (see {@link PrioritySendScheduler}).
+ */
+public enum TrafficClass {
+    /** File-transfer control strings, message ACK/NACK, keep-alives */
+    CONTROL,
+    /** Chat message chunks */
+    INTERACTIVE,
+    /** File data frames */
+    BULK
+}
@@ -0,0 +1,108 @@
+package com.saferoom.transport;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Buffered-amount watermarks for a transport that reports drain events
+ * (DataChannel onBufferedAmountChange).
+ *
+ * A sender may write while bufferedAmount + bytes stays under the high mark;
+ * past it, it gets a future that completes once the buffer has drained to the
+ * low mark. The gap between the marks keeps senders from waking for every
+ * message SCTP puts on the wire.
+ */
+public final class WritableGate {
+
+    public static final long HIGH_WATERMARK = Long.getLong("saferoom.transfer.buffer.maxBytes", 8L << 20);
+    public static final long LOW_WATERMARK = Math.min(HIGH_WATERMARK,
+        Long.getLong("saferoom.transfer.buffer.lowBytes", HIGH_WATERMARK / 4));
+
+    private static final CompletableFuture<Void> WRITABLE = CompletableFuture.completedFuture(null);
+
+    private final LongSupplier bufferedAmount;
+    private final long high;
+    private final long low;
+    private final Queue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private volatile IOException closed;
+
+    // Stats
+    private final AtomicLong parks = new AtomicLong();
+    private final AtomicLong wakeups = new AtomicLong();
+
+    public WritableGate(LongSupplier bufferedAmount) {
+        this(bufferedAmount, HIGH_WATERMARK, LOW_WATERMARK);
+    }
+
+    public WritableGate(LongSupplier bufferedAmount, long high, long low) {
+        this.bufferedAmount = bufferedAmount;
+        this.high = high;
+        this.low = Math.min(low, high);
+    }
+
+    public long highWatermark() {
+        return high;
+    }
+
+    public long lowWatermark() {
+        return low;
+    }
+
+    /**
+     * @return a completed future if {@code bytes} fit under the high mark now
+     *         (or the buffer is at the low mark, for messages larger than the gap),
+     *         otherwise one that completes when the buffer drains to the low mark
+     *         (exceptionally if the transport closes first)
+     */
+    public CompletableFuture<Void> writable(long bytes) {
+        IOException cause = closed;
+        if (cause != null) {
+            return CompletableFuture.failedFuture(cause);
+        }
+        long amount = bufferedAmount.getAsLong();
+        if (amount + bytes <= high || amount <= low) {
+            return WRITABLE;
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        parks.incrementAndGet();
+        // The drain may have fired between the check and the add
+        onBufferedAmountChange();
+        if (closed != null) {
+            close(closed);
+        }
+        return waiter;
+    }
+
+    /** Transport event: bufferedAmount changed (any thread) */
+    public void onBufferedAmountChange() {
+        if (waiters.isEmpty() || bufferedAmount.getAsLong() > low) {
+            return;
+        }
+        CompletableFuture<Void> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.complete(null)) {
+                wakeups.incrementAndGet();
+            }
+        }
+    }
+
+    /** Fail every waiter and every later {@link #writable} call */
+    public void close(IOException cause) {
+        closed = cause;
+        CompletableFuture<Void> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.completeExceptionally(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WritableGate[high=%d, low=%d, parks=%d, wakeups=%d, waiting=%d]",
+            high, low, parks.get(), wakeups.get(), waiters.size());
+    }
+}
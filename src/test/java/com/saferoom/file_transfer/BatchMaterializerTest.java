@@ -0,0 +1,164 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for batch sessions: manifest, continuous stream and the receiver's tree
+ */
+public class BatchMaterializerTest {
+
+    @Test
+    public void testTreeSurvivesArbitraryChunking() throws Exception {
+        Path dir = Files.createTempDirectory("batch-test");
+        Path source = dir.resolve("src");
+        Path target = dir.resolve("out");
+        Random random = new Random(3);
+        try {
+            for (int i = 0; i < 50; i++) {
+                Path f = source.resolve("a" + (i % 4)).resolve("f" + i);
+                Files.createDirectories(f.getParent());
+                byte[] data = new byte[i % 5 == 0 ? 0 : random.nextInt(5000)];
+                random.nextBytes(data);
+                Files.write(f, data);
+            }
+            Files.createDirectories(source.resolve("a1").resolve("empty"));
+
+            List<Path> done = new ArrayList<>();
+            long[] progress = new long[2];
+            try (BatchSource batch = BatchSource.of(source);
+                 BatchMaterializer out = new BatchMaterializer(target, new BatchMaterializer.Listener() {
+                     @Override
+                     public void onFileMaterialized(Path file, long size) {
+                         done.add(file);
+                     }
+
+                     @Override
+                     public void onProgress(int filesDone, int fileCount, long bytesDone, long totalBytes) {
+                         assertEquals(50, fileCount);
+                         progress[0] = filesDone;
+                         progress[1] = bytesDone;
+                     }
+                 })) {
+                assertEquals(50, batch.manifest().fileCount());
+                assertEquals(51, batch.manifest().count());
+
+                // Odd-sized reads and writes: boundaries never line up with files
+                long position = 0;
+                while (position < batch.size()) {
+                    ByteBuffer chunk = ByteBuffer.allocate(1 + random.nextInt(3000));
+                    while (chunk.hasRemaining() && position < batch.size()) {
+                        position += batch.read(chunk, position);
+                    }
+                    out.write(chunk.flip());
+                    if (position > batch.manifest().manifestBytes()) {
+                        assertTrue(out.manifest() != null, "manifest decoded before the file bytes");
+                    }
+                }
+                assertEquals(-1, batch.read(ByteBuffer.allocate(1), position));
+                out.finish();
+                assertEquals(50, done.size(), "every file reported once");
+                assertEquals(50, progress[0]);
+                assertEquals(batch.manifest().totalBytes(), progress[1]);
+            }
+            assertTreesEqual(source, target);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testSpoolRoundTripAndTruncation() throws Exception {
+        Path dir = Files.createTempDirectory("batch-test");
+        Path source = dir.resolve("src");
+        Path spool = dir.resolve("batch.bin");
+        try {
+            Files.createDirectories(source.resolve("x"));
+            Files.write(source.resolve("x").resolve("one.txt"), "hello".getBytes(StandardCharsets.UTF_8));
+            Files.write(source.resolve("two.bin"), new byte[70_000]);
+            try (BatchSource batch = BatchSource.of(source)) {
+                batch.writeTo(spool);
+                assertEquals(batch.size(), Files.size(spool));
+            }
+            assertTrue(BatchMaterializer.isBatchStream(spool));
+            assertFalse(BatchMaterializer.isBatchStream(source.resolve("two.bin")));
+
+            BatchManifest m = BatchMaterializer.unpack(spool, dir.resolve("out"), null);
+            assertEquals(2, m.fileCount());
+            assertTreesEqual(source, dir.resolve("out"));
+
+            // Cut short: the complete file stays, the partial one is removed, finish fails
+            byte[] stream = Files.readAllBytes(spool);
+            BatchMaterializer partial = new BatchMaterializer(dir.resolve("cut"), null);
+            partial.write(ByteBuffer.wrap(stream, 0, stream.length - 2));
+            assertThrows(IOException.class, partial::finish);
+            partial.close();
+            Path firstEntry = BatchManifest.resolve(dir.resolve("cut"), m.entry(0));
+            Path secondEntry = BatchManifest.resolve(dir.resolve("cut"), m.entry(1));
+            assertTrue(Files.exists(firstEntry) != Files.exists(secondEntry), "only the completed file remains");
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testPathsOutsideTheRootAreRejected() throws Exception {
+        for (String bad : new String[] { "../evil", "a/../../evil", "/etc/passwd", "a//b", "./a", "C:evil", "a\\b" }) {
+            // "Invalid batch path" from the decoder, before anything is written
+            assertThrows(IOException.class, () -> BatchManifest.decode(manifestWith(bad)));
+        }
+        assertEquals("a/b.txt", BatchManifest.decode(manifestWith("a/b.txt")).entry(0).path());
+
+        Path dir = Files.createTempDirectory("batch-test");
+        try {
+            assertThrows(IOException.class, () -> BatchManifest.of(dir, List.of(dir.resolve("..").resolve("x"))));
+            BatchMaterializer out = new BatchMaterializer(dir.resolve("out"), null);
+            assertThrows(IOException.class, () -> out.write(manifestWith("../escape")));
+            assertFalse(Files.exists(dir.resolve("escape")));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /** A one-entry manifest as a hostile peer would send it */
+    private static ByteBuffer manifestWith(String path) {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        int size = BatchManifest.HEADER_SIZE + 2 + name.length + 16;
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(BatchManifest.MAGIC).put(BatchManifest.VERSION).putInt(1).putInt(size);
+        b.putShort((short) name.length).put(name).putLong(0).putLong(0);
+        return b.flip();
+    }
+
+    private static void assertTreesEqual(Path expected, Path actual) throws IOException {
+        try (Stream<Path> walk = Files.walk(expected)) {
+            for (Path p : walk.toList()) {
+                Path other = actual.resolve(expected.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    assertTrue(Files.isDirectory(other), other.toString());
+                } else {
+                    assertArrayEquals(Files.readAllBytes(p), Files.readAllBytes(other), other.toString());
+                    assertEquals(Files.getLastModifiedTime(p).toMillis(), Files.getLastModifiedTime(other).toMillis());
+                }
+            }
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the BBR-style controller's path model and the controller factory
+ */
+public class BbrCongestionControllerTest {
+
+    private static final int SLICE = EnhancedFileTransferSender.SLICE_SIZE;
+    private static final long FRAME_NS = 25_000_000; // NackSender default interval
+
+    @Test
+    public void testModelConvergesToDeliveryRate() {
+        BbrCongestionController bbr = new BbrCongestionController();
+        long rtt = 40_000_000;
+        bbr.updateRtt(rtt);
+
+        // 216 slices per 25ms NACK frame = ~100 Mbps delivered
+        int perFrame = 216;
+        long rate = (long) perFrame * SLICE * 1_000_000_000L / FRAME_NS;
+        long now = System.nanoTime();
+        int base = 0;
+        for (int i = 0; i < 200; i++) {
+            bbr.onDataSent((long) perFrame * SLICE);
+            base += perFrame;
+            now += FRAME_NS;
+            bbr.onNackWindow(base, 0L, now);
+        }
+
+        assertEquals(rate, bbr.getBottleneckBandwidth(), rate * 0.02);
+        assertEquals(rtt, bbr.getMinRtt());
+        assertTrue(bbr.getStats().startsWith("BBR PROBE_BW"), bbr.getStats());
+
+        // Paced around BtlBw (gain cycle 0.75 .. 1.25), cwnd covers 2 x BDP
+        long interval = bbr.getPacingInterval();
+        long nominal = SLICE * 1_000_000_000L / rate;
+        assertTrue(interval >= nominal * 0.75 && interval <= nominal / 0.75, "interval=" + interval);
+        long bdp = rate * rtt / 1_000_000_000L;
+        assertTrue(bbr.getCongestionWindow() >= 2 * bdp, "cwnd=" + bbr.getCongestionWindow());
+        assertFalse(bbr.throttleOnFullWindow()); // everything sent was delivered
+    }
+
+    @Test
+    public void testHoleDoesNotCollapseModel() {
+        BbrCongestionController bbr = new BbrCongestionController();
+        bbr.updateRtt(40_000_000);
+        long now = System.nanoTime();
+        int base = 0;
+        for (int i = 0; i < 100; i++) {
+            bbr.onDataSent(216L * SLICE);
+            base += 216;
+            now += FRAME_NS;
+            bbr.onNackWindow(base, 0L, now);
+        }
+        long before = bbr.getBottleneckBandwidth();
+
+        // cum_Ack stuck behind a lost slice for 20 frames while data keeps flowing
+        for (int i = 0; i < 20; i++) {
+            bbr.onDataSent(216L * SLICE);
+            now += FRAME_NS;
+            bbr.onNackWindow(base, -2L, now); // bit 0 = the hole, rest of the window received
+        }
+        assertEquals(before, bbr.getBottleneckBandwidth());
+        assertFalse(bbr.throttleOnFullWindow());
+    }
+
+    @Test
+    public void testFactory() {
+        assertInstanceOf(HybridCongestionController.class, CongestionController.create(null));
+        assertInstanceOf(HybridCongestionController.class, CongestionController.create("hybrid"));
+        assertInstanceOf(BbrCongestionController.class, CongestionController.create("BBR"));
+        assertThrows(IllegalArgumentException.class, () -> CongestionController.create("cubic"));
+    }
+}
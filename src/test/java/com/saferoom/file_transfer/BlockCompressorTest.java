@@ -0,0 +1,85 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Inflater;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the sender-side block compression stage
+ */
+public class BlockCompressorTest {
+
+    private static final int SLICES = BlockCompression.BLOCK_SLICES;
+
+    @Test
+    public void testFragmentsInflateToOriginalBlock() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < SLICES * EnhancedFileTransferSender.SLICE_SIZE; i++) {
+            text.append(i).append(",INFO,session ").append(i % 17).append(" packet window ok\n");
+        }
+        byte[] raw = text.substring(0, SLICES * EnhancedFileTransferSender.SLICE_SIZE)
+            .getBytes(StandardCharsets.US_ASCII);
+
+        BlockCompressor compressor = new BlockCompressor();
+        try {
+            int fragments = compressor.compress(ByteBuffer.wrap(raw), raw.length, SLICES);
+            assertTrue(fragments > 0 && fragments < SLICES, "fragments=" + fragments);
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (int i = 0; i < fragments; i++) {
+                ByteBuffer f = compressor.fragment(i);
+                assertEquals(i, BlockCompression.fragIndex(f));
+                assertEquals(fragments, BlockCompression.fragCount(f));
+                assertEquals(SLICES, BlockCompression.blockSlices(f));
+                assertEquals(raw.length, BlockCompression.rawLen(f));
+                byte[] data = new byte[f.remaining() - BlockCompression.DESC_SIZE];
+                f.get(BlockCompression.DESC_SIZE, data);
+                stream.write(data);
+            }
+            stream.write(0); // nowrap dummy byte, as the receiver does
+
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(stream.toByteArray());
+            byte[] out = new byte[raw.length];
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                n += inflater.inflate(out, n, out.length - n);
+            }
+            inflater.end();
+            assertEquals(raw.length, n);
+            assertArrayEquals(raw, out);
+
+            // Retransmissions rely on deterministic output
+            ByteBuffer first = compressor.fragment(0);
+            byte[] firstBytes = new byte[first.remaining()];
+            first.get(firstBytes);
+            assertEquals(fragments, compressor.compress(ByteBuffer.wrap(raw), raw.length, SLICES));
+            ByteBuffer again = compressor.fragment(0);
+            byte[] againBytes = new byte[again.remaining()];
+            again.get(againBytes);
+            assertArrayEquals(firstBytes, againBytes);
+        } finally {
+            compressor.close();
+        }
+    }
+
+    @Test
+    public void testRandomDataIsBypassed() {
+        byte[] raw = new byte[SLICES * EnhancedFileTransferSender.SLICE_SIZE];
+        new Random(11).nextBytes(raw);
+
+        assertTrue(BlockCompression.sampleEntropy(ByteBuffer.wrap(raw), 16, 4096)
+            > BlockCompression.ENTROPY_BYPASS_BITS);
+
+        BlockCompressor compressor = new BlockCompressor();
+        try {
+            assertEquals(0, compressor.compress(ByteBuffer.wrap(raw), raw.length, SLICES));
+        } finally {
+            compressor.close();
+        }
+    }
+}
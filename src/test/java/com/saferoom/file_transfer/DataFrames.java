@@ -0,0 +1,52 @@
+package com.saferoom.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Datagram-mode DATA frames for receiver tests: slice {@code seq} of a file
+ * image, header and payload as the sender puts them on the wire, optionally
+ * damaged in one of the ways the receiver has to catch.
+ */
+final class DataFrames {
+
+    private static final int SLICE = FileTransferReceiver.SLICE_SIZE;
+
+    enum Damage {
+        NONE,
+        /** Right bytes, wrong CRC: dropped by the CRC check */
+        CHECKSUM,
+        /** Wrong bytes with a matching CRC: only a Merkle leaf hash catches it */
+        PAYLOAD
+    }
+
+    private DataFrames() { }
+
+    static ByteBuffer frame(long fileId, int totalSeq, byte[] data, int seq, Damage damage) {
+        int off = seq * SLICE;
+        int len = Math.min(SLICE, data.length - off);
+        byte[] payload = Arrays.copyOfRange(data, off, off + len);
+        if (damage == Damage.PAYLOAD) {
+            payload[7] ^= 0x40;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        CRC32C_Packet pkt = new CRC32C_Packet();
+        pkt.fillHeader(fileId, seq, totalSeq, len, (int) crc.getValue() ^ (damage == Damage.CHECKSUM ? 1 : 0));
+        ByteBuffer dgram = ByteBuffer.allocate(CRC32C_Packet.HEADER_SIZE + len);
+        dgram.put(pkt.headerBuffer()).put(payload).flip();
+        return dgram;
+    }
+
+    static void send(DatagramChannel tx, long fileId, int totalSeq, byte[] data, int seq) throws IOException {
+        send(tx, fileId, totalSeq, data, seq, Damage.NONE);
+    }
+
+    static void send(DatagramChannel tx, long fileId, int totalSeq, byte[] data, int seq, Damage damage)
+            throws IOException {
+        tx.write(frame(fileId, totalSeq, data, seq, damage));
+    }
+}
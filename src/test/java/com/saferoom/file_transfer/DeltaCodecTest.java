@@ -0,0 +1,76 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for content-defined delta encoding / applying
+ */
+public class DeltaCodecTest {
+
+    @Test
+    public void testInsertionOnlyCostsLocalChunks() throws Exception {
+        Path dir = Files.createTempDirectory("delta-test");
+        try {
+            Random rnd = new Random(7);
+            byte[] base = new byte[4 << 20];
+            rnd.nextBytes(base);
+
+            // Insert 100 bytes near the start - everything after it shifts
+            byte[] insert = new byte[100];
+            rnd.nextBytes(insert);
+            byte[] changed = new byte[base.length + insert.length];
+            System.arraycopy(base, 0, changed, 0, 1000);
+            System.arraycopy(insert, 0, changed, 1000, insert.length);
+            System.arraycopy(base, 1000, changed, 1000 + insert.length, base.length - 1000);
+
+            Path basis = Files.write(dir.resolve("basis.bin"), base);
+            Path target = Files.write(dir.resolve("target.bin"), changed);
+            Path delta = dir.resolve("delta.bin");
+            Path out = dir.resolve("out.bin");
+
+            DeltaCodec.Result result = DeltaCodec.encode(target, DeltaSignature.compute(basis), delta);
+            assertTrue(result.literalBytes <= 2 * ContentDefinedChunker.MAX_SIZE,
+                "Shifted content should re-synchronize, literal=" + result.literalBytes);
+            assertTrue(result.deltaSize < changed.length / 10);
+
+            assertEquals(changed.length, DeltaCodec.apply(basis, delta, out));
+            assertEquals(-1L, Files.mismatch(target, out));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testMissingBasisFallsBackToLiteralCopy() throws Exception {
+        Path dir = Files.createTempDirectory("delta-test");
+        try {
+            byte[] data = new byte[100_000];
+            new Random(3).nextBytes(data);
+            Path target = Files.write(dir.resolve("target.bin"), data);
+            Path delta = dir.resolve("delta.bin");
+            Path out = dir.resolve("out.bin");
+            Path missing = dir.resolve("missing.bin");
+
+            DeltaCodec.Result result = DeltaCodec.encode(target, DeltaSignature.compute(missing), delta);
+            assertEquals(data.length, result.literalBytes);
+            assertEquals(data.length, DeltaCodec.apply(missing, delta, out));
+            assertEquals(-1L, Files.mismatch(target, out));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for interleaved XOR parity encode / local recovery
+ */
+public class FecDecoderTest {
+
+    private static final int SLICE = EnhancedFileTransferSender.SLICE_SIZE;
+
+    /** In-memory receiver storage; the last slice of the "file" is short */
+    private static final class MemoryStore implements FecDecoder.SliceStore {
+        final byte[][] file;
+        final Map<Integer, byte[]> held = new HashMap<>();
+
+        MemoryStore(byte[][] file) {
+            this.file = file;
+        }
+
+        @Override public boolean has(int seqNo) { return held.containsKey(seqNo); }
+        @Override public ByteBuffer read(int seqNo) { return ByteBuffer.wrap(held.get(seqNo)); }
+        @Override public int payloadSize(int seqNo) { return file[seqNo].length; }
+        @Override public void recover(int seqNo, ByteBuffer payload) {
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            held.put(seqNo, data);
+        }
+    }
+
+    private static byte[][] randomFile(int slices, int lastLen, long seed) {
+        Random rnd = new Random(seed);
+        byte[][] file = new byte[slices][];
+        for (int i = 0; i < slices; i++) {
+            file[i] = new byte[i == slices - 1 ? lastLen : SLICE];
+            rnd.nextBytes(file[i]);
+        }
+        return file;
+    }
+
+    @Test
+    public void testBurstWithinParityCountIsRebuilt() throws Exception {
+        int k = 16;
+        int m = 2;
+        byte[][] file = randomFile(k, 700, 1);
+        FecEncoder encoder = new FecEncoder(k);
+        boolean ready = false;
+        for (int seq = 0; seq < k; seq++) {
+            ready = encoder.add(seq, k, ByteBuffer.wrap(file[seq]), file[seq].length, m);
+        }
+        assertTrue(ready);
+        assertEquals(m, encoder.parityCount());
+
+        // Lose two consecutive slices, one of them the short tail slice
+        MemoryStore store = new MemoryStore(file);
+        for (int seq = 0; seq < k; seq++) {
+            if (seq != 14 && seq != 15) {
+                store.held.put(seq, file[seq].clone());
+            }
+        }
+        FecDecoder decoder = new FecDecoder(store, k);
+        for (int j = 0; j < m; j++) {
+            ByteBuffer parity = encoder.parity(j);
+            assertTrue(decoder.onParity(encoder.groupStart(), encoder.descriptor(j), parity, parity.remaining(), 0));
+        }
+        assertEquals(2, decoder.recovered());
+        assertArrayEquals(file[14], store.held.get(14));
+        assertArrayEquals(file[15], store.held.get(15));
+    }
+
+    @Test
+    public void testParityWaitsForRetransmittedSibling() throws Exception {
+        int k = 8;
+        byte[][] file = randomFile(k, SLICE, 2);
+        FecEncoder encoder = new FecEncoder(k);
+        for (int seq = 0; seq < k; seq++) {
+            encoder.add(seq, k, ByteBuffer.wrap(file[seq]), file[seq].length, 1);
+        }
+
+        MemoryStore store = new MemoryStore(file);
+        for (int seq = 0; seq < k; seq++) {
+            if (seq != 2 && seq != 5) {
+                store.held.put(seq, file[seq].clone());
+            }
+        }
+        FecDecoder decoder = new FecDecoder(store, k);
+        ByteBuffer parity = encoder.parity(0);
+        decoder.onParity(0, encoder.descriptor(0), parity, parity.remaining(), 0);
+        assertEquals(0, decoder.recovered(), "Two losses under one parity cannot be rebuilt");
+
+        // Retransmission of one of them makes the other recoverable
+        store.held.put(2, file[2].clone());
+        decoder.onData(2);
+        assertEquals(1, decoder.recovered());
+        assertArrayEquals(file[5], store.held.get(5));
+    }
+
+    @Test
+    public void testGapLeavesGroupUnprotected() {
+        FecEncoder encoder = new FecEncoder(4);
+        byte[] data = new byte[SLICE];
+        assertFalse(encoder.add(0, 8, ByteBuffer.wrap(data), SLICE, 1));
+        assertFalse(encoder.add(2, 8, ByteBuffer.wrap(data), SLICE, 1)); // 1 was skipped
+        assertFalse(encoder.add(3, 8, ByteBuffer.wrap(data), SLICE, 1));
+        assertEquals(0, FecCodec.redundancyFor(0.0));
+    }
+}
@@ -0,0 +1,51 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the hybrid controller's shared window and the lane pacing on top of it
+ */
+public class HybridCongestionControllerTest {
+
+    private static final int SLICE = EnhancedFileTransferSender.SLICE_SIZE;
+
+    @Test
+    public void testDeliveryReleasesTheWindow() {
+        HybridCongestionController control = new HybridCongestionController();
+        long cwnd = control.getCongestionWindow();
+        int slices = (int) (2 * cwnd / SLICE);
+        control.onDataSent((long) slices * SLICE);
+        assertTrue(control.throttleOnFullWindow(), "two cwnd in flight");
+
+        // cum_Ack at a hole, the rest of the window received
+        control.onNackWindow(0, -2L, System.nanoTime());
+        assertEquals((long) (slices - 63) * SLICE, control.getBytesInFlight());
+        assertFalse(control.throttleOnFullWindow());
+
+        // An older frame never gives bytes back twice
+        control.onNackWindow(10, 0L, System.nanoTime());
+        assertEquals((long) (slices - 63) * SLICE, control.getBytesInFlight());
+
+        control.onNackWindow(slices, 0L, System.nanoTime());
+        assertEquals(0, control.getBytesInFlight());
+    }
+
+    @Test
+    public void testFullWindowStillPaces() {
+        HybridCongestionController control = new HybridCongestionController();
+        control.onDataSent(10 * control.getCongestionWindow()); // no feedback: window stays full
+        long interval = control.getPacingInterval();
+        assertTrue(interval > 0, "interval=" + interval);
+
+        SendLane lane = new SendLane(0, 1, null);
+        int burst = 32;
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            lane.pace(control, burst);
+        }
+        long elapsed = System.nanoTime() - start;
+        // The first burst goes at once, each later one pays off the previous burst
+        assertTrue(elapsed >= 3 * burst * interval * 9 / 10, "elapsed=" + elapsed + " interval=" + interval);
+    }
+}
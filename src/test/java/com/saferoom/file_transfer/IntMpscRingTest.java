@@ -0,0 +1,88 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.util.BitSet;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the primitive retransmission ring and send timestamp table
+ */
+public class IntMpscRingTest {
+
+    @Test
+    public void testOfferPollFifoAndFull() {
+        IntMpscRing ring = new IntMpscRing(5); // rounded up to 8
+        assertEquals(8, ring.capacity());
+        assertEquals(IntMpscRing.EMPTY, ring.poll());
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(99), "Ring should reject when full");
+        assertEquals(8, ring.size());
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, ring.poll());
+        }
+        assertEquals(IntMpscRing.EMPTY, ring.poll());
+        assertTrue(ring.isEmpty());
+
+        // Wrap-around after slots are recycled
+        assertTrue(ring.offer(42));
+        assertEquals(42, ring.poll());
+    }
+
+    @Test
+    public void testConcurrentProducersDeliverEveryValueOnce() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50_000;
+        IntMpscRing ring = new IntMpscRing(1024);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!ring.offer(base + i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        BitSet seen = new BitSet(producers * perProducer);
+        int received = 0;
+        while (received < producers * perProducer) {
+            int v = ring.poll();
+            if (v == IntMpscRing.EMPTY) {
+                Thread.onSpinWait();
+                continue;
+            }
+            assertFalse(seen.get(v), "Duplicate value " + v);
+            seen.set(v);
+            received++;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(producers * perProducer, seen.cardinality());
+        assertEquals(IntMpscRing.EMPTY, ring.poll());
+    }
+
+    @Test
+    public void testTimestampRingTakeAndOverwrite() {
+        PacketTimestampRing times = new PacketTimestampRing(64);
+        times.record(3, 1_000L);
+        assertEquals(1, times.pending());
+        assertEquals(1_000L, times.take(3));
+        assertEquals(PacketTimestampRing.MISSING, times.take(3), "take() must remove");
+
+        // seq 67 shares slot with 3 -> stale lookup for 3 must miss
+        times.record(3, 2_000L);
+        times.record(67, 3_000L);
+        assertEquals(PacketTimestampRing.MISSING, times.take(3));
+        assertEquals(3_000L, times.take(67));
+        assertEquals(0, times.pending());
+    }
+}
@@ -0,0 +1,146 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the Merkle tree, its frames and leaf verification on the receiver
+ */
+public class MerkleTreeTest {
+
+    private static final int SLICE = FileTransferReceiver.SLICE_SIZE;
+    private static final int LEAF = MerkleTree.LEAF_SLICES;
+
+    @Test
+    public void testRootPromotesOddNodes() {
+        byte[][] leaves = new byte[5][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = MerkleTree.hashLeaf(ByteBuffer.wrap(new byte[] { (byte) i }));
+        }
+        byte[] ab = MerkleTree.node(leaves[0], leaves[1]);
+        byte[] cd = MerkleTree.node(leaves[2], leaves[3]);
+        byte[] expected = MerkleTree.node(MerkleTree.node(ab, cd), leaves[4]);
+        assertArrayEquals(expected, MerkleTree.root(leaves));
+        assertArrayEquals(leaves[2], MerkleTree.root(new byte[][] { leaves[2] }));
+        // Leaf and node prefixes differ: a node is never a valid leaf of its children
+        assertFalse(java.util.Arrays.equals(ab, MerkleTree.hashLeaf(
+            ByteBuffer.wrap(concat(leaves[0], leaves[1])))));
+    }
+
+    @Test
+    public void testFramesRoundTrip() {
+        byte[] hash = MerkleTree.hashLeaf(ByteBuffer.wrap(new byte[100]));
+        ByteBuffer frame = MerkleTree.hashFrame(77L, 12, MerkleTree.KIND_LEAF, hash);
+        int plen = CRC32C_Packet.plen(frame);
+        assertTrue(MerkleTree.isHashFrame(plen));
+        assertTrue(BlockCompression.isCompressed(plen) && FecCodec.isParity(plen), "needs its own dispatch");
+        assertEquals(MerkleTree.HASH_SIZE, plen & CRC32C_Packet.PLEN_MASK);
+        assertEquals(12, CRC32C_Packet.seqNo(frame));
+        assertFalse(MerkleTree.isHashFrame(100 | CRC32C_Packet.FLAG_PARITY));
+
+        int[] indices = { 3, 9, 40 };
+        ByteBuffer req = MerkleTree.request(77L, indices, indices.length);
+        int len = req.remaining();
+        assertTrue(MerkleTree.isRequest(req, len));
+        assertFalse(MerkleTree.isRequest(req, len - 4));
+        assertEquals(77L, MerkleTree.requestFileId(req));
+        assertEquals(3, MerkleTree.requestCount(req));
+        assertEquals(40, MerkleTree.requestIndex(req, 2));
+        assertTrue(len != NackFrame.SIZE, "never mistaken for a NACK");
+    }
+
+    @Test
+    public void testCorruptLeafIsReceivedAgain() throws Exception {
+        int totalSeq = 3 * LEAF + 10;
+        long fileSize = (long) totalSeq * SLICE - 300;
+        long fileId = 99L;
+        byte[] data = new byte[(int) fileSize];
+        new Random(11).nextBytes(data);
+        int leafCount = MerkleTree.leafCount(totalSeq, LEAF);
+        byte[][] leaves = new byte[leafCount][];
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            int off = leaf * LEAF * SLICE;
+            int end = (int) Math.min(fileSize, (long) (leaf + 1) * LEAF * SLICE);
+            leaves[leaf] = MerkleTree.hashLeaf(ByteBuffer.wrap(data, off, end - off));
+        }
+        int badSeq = LEAF + 5; // leaf 1
+
+        Path dir = Files.createTempDirectory("merkle-test");
+        Path output = dir.resolve("out.bin");
+        try (FileChannel fc = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DatagramChannel rx = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             DatagramChannel tx = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            rx.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20); // the whole burst, where the host allows it
+            rx.connect(tx.getLocalAddress());
+            tx.connect(rx.getLocalAddress());
+            MappedByteBuffer mem = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            NackSender receiver = new NackSender(rx, fileId, fileSize, totalSeq, mem);
+            receiver.enableMerkle(LEAF);
+            CountDownLatch done = new CountDownLatch(1);
+            receiver.onTransferComplete = done::countDown;
+            Thread t = new Thread(receiver, "nack-sender");
+            t.start();
+
+            // Wrong bytes with a matching CRC: only the leaf hash can catch it
+            for (int seq = 0; seq < totalSeq; seq++) {
+                DataFrames.send(tx, fileId, totalSeq, data, seq,
+                    seq == badSeq ? DataFrames.Damage.PAYLOAD : DataFrames.Damage.NONE);
+                Thread.sleep(0, 200_000); // default socket buffers: keep the burst small
+                if (seq % LEAF == LEAF - 1 || seq == totalSeq - 1) {
+                    tx.write(MerkleTree.hashFrame(fileId, seq / LEAF, MerkleTree.KIND_LEAF, leaves[seq / LEAF]));
+                }
+            }
+            tx.write(MerkleTree.hashFrame(fileId, 0, MerkleTree.KIND_ROOT, MerkleTree.root(leaves)));
+
+            // Leaf checks run on the verifier threads: wait for leaf 1 to fail
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (true) {
+                synchronized (receiver) {
+                    if (!receiver.recv.get(badSeq)) {
+                        assertTrue(receiver.cum_Ack <= LEAF, "failed leaf back in the NACK window");
+                        break;
+                    }
+                }
+                assertTrue(System.nanoTime() < deadline, "failed leaf dropped from the bitmap");
+                Thread.sleep(20);
+            }
+            assertFalse(done.await(200, TimeUnit.MILLISECONDS), "corrupt leaf must not complete");
+
+            // What the NACKs ask for: the leaf's slices (its hash comes from a re-request)
+            for (int seq = LEAF; seq < 2 * LEAF; seq++) {
+                DataFrames.send(tx, fileId, totalSeq, data, seq);
+                Thread.sleep(0, 200_000);
+            }
+            tx.write(MerkleTree.hashFrame(fileId, 1, MerkleTree.KIND_LEAF, leaves[1]));
+            assertTrue(done.await(10, TimeUnit.SECONDS), "transfer did not complete");
+            t.join(5_000);
+
+            byte[] written = new byte[(int) fileSize];
+            mem.get(0, written);
+            assertArrayEquals(data, written);
+        } finally {
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = java.util.Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
@@ -0,0 +1,122 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the legacy and extended (range / bitmap) NACK frame encodings
+ */
+public class NackFrameTest {
+
+    private static BitSet decode(NackFrame frame) {
+        ByteBuffer b = frame.buffer();
+        BitSet missing = new BitSet();
+        int n = NackFrame.forEachMissing(b, b.limit(), Integer.MAX_VALUE, missing::set);
+        assertEquals(missing.cardinality(), n);
+        return missing;
+    }
+
+    private static int[] runsOf(BitSet missing) {
+        int[] runs = new int[2 * missing.cardinality()];
+        int count = 0;
+        for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(missing.nextClearBit(i))) {
+            runs[2 * count] = i;
+            runs[2 * count + 1] = missing.nextClearBit(i);
+            count++;
+        }
+        int[] exact = new int[2 * count];
+        System.arraycopy(runs, 0, exact, 0, exact.length);
+        return exact;
+    }
+
+    @Test
+    public void testLegacyFrameUnchanged() {
+        NackFrame frame = new NackFrame();
+        frame.fillExtended(7L, 100, 0x0FL, new int[0], 0, 0);
+        ByteBuffer b = frame.buffer();
+        assertEquals(NackFrame.SIZE, b.remaining());
+        assertEquals(7L, NackFrame.fileId(b));
+        assertEquals(100, NackFrame.baseSeq(b));
+        assertEquals(0x0FL, NackFrame.mask64(b));
+        assertFalse(NackFrame.isExtended(b, b.limit()));
+    }
+
+    @Test
+    public void testBurstLossIsOneRangeEntry() {
+        NackFrame frame = new NackFrame();
+        int reported = frame.fillExtended(1L, 0, -1L, new int[]{ 1_000, 6_000 }, 1, 7_000);
+        ByteBuffer b = frame.buffer();
+
+        assertEquals(5_000, reported);
+        assertEquals(NackFrame.EXT_HEADER_SIZE + NackFrame.RANGE_ENTRY_SIZE, b.limit());
+        assertTrue(NackFrame.isExtended(b, b.limit()));
+        assertEquals(0, NackFrame.baseSeq(b)); // legacy fields still valid
+        assertEquals(-1L, NackFrame.mask64(b));
+        assertEquals(7_000, NackFrame.coveredEnd(b));
+
+        BitSet missing = decode(frame);
+        assertEquals(1_000, missing.nextSetBit(0));
+        assertEquals(6_000, missing.nextClearBit(1_000));
+    }
+
+    @Test
+    public void testScatteredLossUsesBitmap() {
+        // Every 4th slice lost over 2000 slices: 500 runs as ranges would not fit
+        BitSet lost = new BitSet();
+        for (int s = 64; s < 2_064; s += 4) {
+            lost.set(s);
+        }
+        NackFrame frame = new NackFrame();
+        int reported = frame.fillExtended(1L, 0, 0L, runsOf(lost), runsOf(lost).length / 2, 2_100);
+        ByteBuffer b = frame.buffer();
+
+        assertEquals(500, reported);
+        assertTrue(b.limit() <= NackFrame.EXT_HEADER_SIZE + NackFrame.BITMAP_HEADER_SIZE + 2_000 / 8 + 1,
+            "size=" + b.limit());
+        assertEquals(lost, decode(frame));
+        assertEquals(2_100, NackFrame.coveredEnd(b));
+    }
+
+    @Test
+    public void testMixedLossRoundTripsWithinMtu() {
+        Random rnd = new Random(42);
+        BitSet lost = new BitSet();
+        int s = 64;
+        while (s < 200_000) {
+            if (rnd.nextInt(10) == 0) {
+                int len = 500 + rnd.nextInt(3_000);  // burst
+                lost.set(s, s + len);
+                s += len + 1 + rnd.nextInt(5_000);
+            } else {
+                lost.set(s);                          // isolated loss
+                s += 1 + rnd.nextInt(40);
+            }
+        }
+        int[] runs = runsOf(lost);
+        NackFrame frame = new NackFrame();
+        int reported = frame.fillExtended(1L, 0, 0L, runs, runs.length / 2, 200_000);
+        ByteBuffer b = frame.buffer();
+
+        assertTrue(b.limit() <= NackFrame.MAX_SIZE);
+        assertTrue(reported > 0);
+        BitSet decoded = decode(frame);
+        assertEquals(reported, decoded.cardinality());
+
+        // Frame full: the covered end is pulled back, and below it the
+        // decoded set is exactly the loss set
+        int covered = NackFrame.coveredEnd(b);
+        assertTrue(covered < 200_000 && covered >= decoded.length(), "covered=" + covered);
+        assertEquals(lost.get(0, covered), decoded);
+    }
+
+    @Test
+    public void testMalformedFrameRejected() {
+        NackFrame frame = new NackFrame();
+        frame.fillExtended(1L, 0, 0L, new int[]{ 100, 200 }, 1, 300);
+        ByteBuffer b = frame.buffer();
+        assertEquals(-1, NackFrame.forEachMissing(b, b.limit() - 1, Integer.MAX_VALUE, seq -> { }));
+    }
+}
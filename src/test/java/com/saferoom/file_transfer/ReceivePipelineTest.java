@@ -0,0 +1,89 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the staged receiver (reader / verifiers / coalescing writer)
+ */
+public class ReceivePipelineTest {
+
+    private static final int SLICE = FileTransferReceiver.SLICE_SIZE;
+
+    @Test
+    public void testOutOfOrderDuplicateAndCorruptSlicesLandIntact() throws Exception {
+        int totalSeq = 300;
+        long fileSize = (long) totalSeq * SLICE - 700; // short last slice
+        long fileId = 4242L;
+        byte[] data = new byte[(int) fileSize];
+        new Random(3).nextBytes(data);
+
+        Path dir = Files.createTempDirectory("rx-pipeline-test");
+        Path output = dir.resolve("out.bin");
+        try (FileChannel fc = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DatagramChannel rx = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             DatagramChannel tx = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            rx.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20); // the whole burst, where the host allows it
+            rx.connect(tx.getLocalAddress());
+            tx.connect(rx.getLocalAddress());
+            MappedByteBuffer mem = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            NackSender receiver = new NackSender(rx, fileId, fileSize, totalSeq, mem);
+            receiver.enablePipeline(fc);
+            CountDownLatch done = new CountDownLatch(1);
+            receiver.onTransferComplete = done::countDown;
+            Thread t = new Thread(receiver, "nack-sender");
+            t.start();
+
+            // Corrupt copy first, then in order up to 150, the rest backwards with repeats
+            DataFrames.send(tx, fileId, totalSeq, data, 5, DataFrames.Damage.CHECKSUM);
+            for (int seq = 0; seq < 150; seq++) {
+                DataFrames.send(tx, fileId, totalSeq, data, seq);
+            }
+            for (int seq = totalSeq - 1; seq >= 150; seq--) {
+                DataFrames.send(tx, fileId, totalSeq, data, seq);
+                if (seq % 10 == 0) {
+                    DataFrames.send(tx, fileId, totalSeq, data, seq);
+                }
+            }
+
+            // Nobody answers the NACKs here: resend what is still missing until done
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            while (!done.await(500, TimeUnit.MILLISECONDS)) {
+                assertTrue(System.nanoTime() < deadline, "transfer did not complete");
+                BitSet missing;
+                synchronized (receiver) {
+                    missing = (BitSet) receiver.recv.clone();
+                }
+                missing.flip(0, totalSeq);
+                for (int seq = missing.nextSetBit(0); seq >= 0; seq = missing.nextSetBit(seq + 1)) {
+                    DataFrames.send(tx, fileId, totalSeq, data, seq);
+                }
+            }
+            t.join(5_000);
+            assertFalse(t.isAlive());
+            assertTrue(rx.isBlocking(), "blocking mode restored after the read loop");
+
+            byte[] written = new byte[(int) fileSize];
+            mem.get(0, written);
+            assertArrayEquals(data, written);
+            assertEquals(fileSize, fc.size());
+        } finally {
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
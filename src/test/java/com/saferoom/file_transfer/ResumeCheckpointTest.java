@@ -0,0 +1,105 @@
+package com.saferoom.file_transfer;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for resume checkpoints and the RESUME handshake reply
+ */
+public class ResumeCheckpointTest {
+
+    @Test
+    public void testCheckpointRoundTripAndIdentityMatch() throws Exception {
+        Path dir = Files.createTempDirectory("resume-test");
+        Path output = dir.resolve("out.bin");
+        Files.write(output, new byte[10]);
+
+        BitSet held = new BitSet();
+        held.set(0, 100);
+        held.set(150, 180);
+        ResumeCheckpoint cp = new ResumeCheckpoint(output, 77L, 300_000L, 207);
+        cp.save(100, held);
+        assertTrue(Files.exists(ResumeCheckpoint.sidecarFor(output)));
+
+        ResumeCheckpoint loaded = ResumeCheckpoint.load(output, 77L, 300_000L, 207);
+        assertNotNull(loaded);
+        assertEquals(100, loaded.cumAck());
+        assertEquals(held, loaded.received());
+
+        // Different transfer identity must not reuse the bitmap
+        assertNull(ResumeCheckpoint.load(output, 78L, 300_000L, 207));
+        assertNull(ResumeCheckpoint.load(output, 77L, 300_001L, 207));
+        assertNull(ResumeCheckpoint.load(output, 77L, 300_000L, 208));
+
+        // Corrupted sidecar is rejected
+        Path sidecar = ResumeCheckpoint.sidecarFor(output);
+        byte[] raw = Files.readAllBytes(sidecar);
+        raw[40] ^= 0x55;
+        Files.write(sidecar, raw);
+        assertNull(ResumeCheckpoint.load(output, 77L, 300_000L, 207));
+
+        ResumeCheckpoint.delete(output);
+        assertFalse(Files.exists(sidecar));
+        Files.delete(output);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testTransferKeyIsStablePerFileVersion() throws Exception {
+        Path dir = Files.createTempDirectory("resume-key");
+        Path file = dir.resolve("photo.raw");
+        Files.write(file, new byte[4096]);
+        Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(1_700_000_000_000L));
+
+        long key = TransferKey.of(file);
+        assertEquals(key, TransferKey.of(file), "re-send must reuse the id");
+        assertEquals(0, key >>> 56, "top byte stays 0 like the millisecond ids");
+
+        Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(1_700_000_001_000L));
+        assertFalse(key == TransferKey.of(file), "edited file must start over");
+        assertFalse(TransferKey.of("photo.raw", 4096, 1_700_000_000_000L)
+                == TransferKey.of("photo.raw", 4097, 1_700_000_000_000L));
+        assertEquals(key, TransferKey.of("photo.raw", 4096, 1_700_000_000_000L));
+
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testResumeHandshakeEncodesHeldRanges() {
+        int totalSeq = 1000;
+        BitSet held = new BitSet();
+        held.set(0, 64);
+        held.set(70, 90);
+        held.set(500);
+        held.set(998, 1000);
+
+        ByteBuffer pkt = HandShake_Packet.make_RESUME(5L, 1_450_000L, totalSeq, 64, held);
+        assertEquals(HandShake_Packet.RESUME, HandShake_Packet.get_signal(pkt));
+        assertEquals(5L, HandShake_Packet.get_file_Id(pkt));
+        assertEquals(totalSeq, HandShake_Packet.get_total_seq(pkt));
+        assertEquals(HandShake_Packet.OFF_RANGES + 3 * 8, pkt.remaining());
+
+        assertEquals(held, HandShake_Packet.get_resume_held(pkt, totalSeq));
+    }
+
+    @Test
+    public void testResumeHandshakeCapsRangeCount() {
+        int totalSeq = 10_000;
+        BitSet held = new BitSet();
+        for (int i = 0; i < totalSeq; i += 2) {
+            held.set(i); // worst case: every other slice
+        }
+        ByteBuffer pkt = HandShake_Packet.make_RESUME(1L, 1L, totalSeq, 1, held);
+        assertTrue(pkt.remaining() <= HandShake_Packet.RESUME_MAX_SIZE);
+
+        BitSet decoded = HandShake_Packet.get_resume_held(pkt, totalSeq);
+        assertEquals(1 + HandShake_Packet.RESUME_MAX_RANGES, decoded.cardinality());
+        decoded.andNot(held);
+        assertTrue(decoded.isEmpty(), "Decoded set must never claim slices the receiver lacks");
+    }
+}
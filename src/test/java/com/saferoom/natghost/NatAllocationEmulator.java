@@ -0,0 +1,256 @@
+package com.saferoom.natghost;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Port allocation emulator for the symmetric hole-punch strategies, no
+ * sockets: symmetric NATs (a new external port per destination, inbound only
+ * from that destination) with sequential or random allocators, other hosts
+ * taking ports in the background, packet loss. Strategies are the real
+ * {@link HolePunch.Plan}s; each trial profiles the NAT (the model crosses the
+ * wire format), waits, then punches in 10ms ticks for up to 30 s.
+ *
+ * Deterministic per seed; {@link #run} reports success rate, packets sent
+ * and time to connect. {@link Allocator} is also the port allocator of
+ * {@link NatEmulator}'s routers.
+ */
+final class NatAllocationEmulator {
+
+    static final int TICK_MS = 10;
+    static final int TIMEOUT_MS = 30_000;
+    static final int PROFILE_PROBES = 200;
+
+    enum Allocation { SEQUENTIAL, RANDOM }
+
+    /** A symmetric NAT: how it allocates, and how many ports other hosts take per second */
+    record Nat(String name, Allocation allocation, int stride, double backgroundPerSecond, int minPort, int maxPort) { }
+
+    /** Who punches how: a cone scanner against a symmetric pool, or two symmetric pools */
+    enum Scenario { CONE_TO_SYMMETRIC, SYMMETRIC_TO_SYMMETRIC }
+
+    enum Strategy { BRUTE_FORCE, PREDICTED }
+
+    record Result(Scenario scenario, Nat nat, Strategy strategy, int trials, int connected,
+                  long medianPackets, long medianConnectMs) {
+        double successRate() {
+            return (double) connected / trials;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-22s %-24s %-11s success %5.1f%%  packets %7s  connect %7s",
+                scenario, nat.name(), strategy, successRate() * 100,
+                connected > 0 ? Long.toString(medianPackets) : "-",
+                connected > 0 ? medianConnectMs + " ms" : "-");
+        }
+    }
+
+    /** One NAT's port allocator, advanced by background traffic as time passes */
+    static final class Allocator {
+        private final Nat nat;
+        private final Random random;
+        private final Set<Integer> used = new HashSet<>();
+        private int head;
+
+        Allocator(Nat nat, Random random) {
+            this.nat = nat;
+            this.random = random;
+            this.head = nat.minPort() + random.nextInt(nat.maxPort() - nat.minPort() + 1);
+        }
+
+        int allocate() {
+            int span = nat.maxPort() - nat.minPort() + 1;
+            if (nat.allocation() == Allocation.SEQUENTIAL) {
+                head = nat.minPort() + Math.floorMod(head - nat.minPort() + nat.stride(), span);
+                return head;
+            }
+            int port;
+            do {
+                port = nat.minPort() + random.nextInt(span);
+            } while (!used.add(port) && used.size() < span);
+            return port;
+        }
+
+        void elapse(double ms) {
+            double mean = nat.backgroundPerSecond() * ms / 1000.0;
+            // Poisson, Knuth (means stay small: called per tick or per probe)
+            double limit = Math.exp(-mean);
+            double p = random.nextDouble();
+            while (p > limit) {
+                allocate();
+                p *= random.nextDouble();
+            }
+        }
+    }
+
+    private final int poolSize;
+    private final double loss;
+    private final long staleMs;
+
+    /**
+     * @param poolSize sockets in a symmetric side's pool (the server's numPorts)
+     * @param loss     probability of losing any one datagram
+     * @param staleMs  time between profiling and punching (other hosts keep allocating)
+     */
+    NatAllocationEmulator(int poolSize, double loss, long staleMs) {
+        this.poolSize = poolSize;
+        this.loss = loss;
+        this.staleMs = staleMs;
+    }
+
+    Result run(Scenario scenario, Nat nat, Strategy strategy, int trials, long seed) {
+        List<Long> packets = new ArrayList<>();
+        List<Long> connectMs = new ArrayList<>();
+        for (int t = 0; t < trials; t++) {
+            long[] outcome = scenario == Scenario.CONE_TO_SYMMETRIC
+                ? coneToSymmetric(nat, strategy, new Random(seed + t))
+                : symmetricToSymmetric(nat, strategy, new Random(seed + t));
+            if (outcome != null) {
+                packets.add(outcome[0]);
+                connectMs.add(outcome[1]);
+            }
+        }
+        return new Result(scenario, nat, strategy, trials, packets.size(), median(packets), median(connectMs));
+    }
+
+    /**
+     * The profile the peer gets: probes in allocation order, model anchored
+     * at the session's STUN mappings (three servers) and sent over the wire
+     */
+    private PortPredictor.Model profile(Allocator allocator) {
+        List<Integer> observed = new ArrayList<>(PROFILE_PROBES);
+        for (int i = 0; i < PROFILE_PROBES; i++) {
+            allocator.elapse(1); // probes go out ~1ms apart
+            observed.add(allocator.allocate());
+        }
+        List<Integer> session = List.of(allocator.allocate(), allocator.allocate(), allocator.allocate());
+        NatAnalyzer.NATProfile profile = new NatAnalyzer.NATProfile((byte) 0x11,
+            observed.stream().mapToInt(Integer::intValue).min().getAsInt(),
+            observed.stream().mapToInt(Integer::intValue).max().getAsInt(), observed.size(), observed);
+        ByteBuffer wire = ByteBuffer.wrap(LLS.createNATProfilePacket("peer", profile.natType,
+            profile.minPort, profile.maxPort, profile.profiledPorts, PortPredictor.reanchor(profile.model(), session)));
+        return (PortPredictor.Model) LLS.parseNATProfilePacket(wire).get(7);
+    }
+
+    private void stale(Allocator allocator) {
+        for (long ms = 0; ms < staleMs; ms += TICK_MS) {
+            allocator.elapse(TICK_MS);
+        }
+    }
+
+    /**
+     * Strategy 0x02 against 0x01: the cone side (one stable port) scans, the
+     * symmetric side's pool all burst to that stable port. A scan packet gets
+     * through when it hits one of the pool's mappings.
+     *
+     * @return {packets, ms to connect}, or null on timeout
+     */
+    private long[] coneToSymmetric(Nat nat, Strategy strategy, Random random) {
+        Allocator symmetric = new Allocator(nat, random);
+        PortPredictor.Model model = profile(symmetric);
+        stale(symmetric);
+
+        Set<Integer> poolMappings = new HashSet<>();
+        for (int s = 0; s < poolSize; s++) {
+            poolMappings.add(symmetric.allocate());
+        }
+
+        HolePunch.Plan scan;
+        long poolIntervalMs;
+        if (strategy == Strategy.BRUTE_FORCE) {
+            scan = HolePunch.roundRobin(model.minPort(), model.maxPort(), 100); // 100 ports every 10ms
+            poolIntervalMs = 50;
+        } else {
+            int limit = model.predictable() ? 1024 : model.maxPort() - model.minPort() + 1;
+            scan = PortPredictor.schedule(PortPredictor.rank(model, limit), PortPredictor.BUDGET_PPS, TICK_MS);
+            poolIntervalMs = PortPredictor.poolIntervalMs(poolSize, PortPredictor.BUDGET_PPS, 50);
+        }
+
+        long[] sent = { 0 };
+        boolean[] hit = { false };
+        for (int tick = 0; tick * TICK_MS < TIMEOUT_MS; tick++) {
+            int elapsedMs = tick * TICK_MS;
+            if (elapsedMs % poolIntervalMs < TICK_MS) {
+                sent[0] += poolSize;
+            }
+            scan.plan(tick, 1, (socket, port) -> {
+                sent[0]++;
+                if (!hit[0] && poolMappings.contains(port) && random.nextDouble() >= loss) {
+                    hit[0] = true;
+                }
+            });
+            if (hit[0]) {
+                return new long[] { sent[0], elapsedMs + TICK_MS };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Strategy 0x03 on both sides: two symmetric pools, every socket of a
+     * side aimed at one port of the other. A datagram from mapping a to port b
+     * gets through when b is a mapping of the other side aimed at a.
+     */
+    private long[] symmetricToSymmetric(Nat nat, Strategy strategy, Random random) {
+        Allocator natA = new Allocator(nat, random);
+        Allocator natB = new Allocator(nat, random);
+        PortPredictor.Model modelA = profile(natA);
+        PortPredictor.Model modelB = profile(natB);
+        stale(natA);
+        stale(natB);
+
+        int targetOfA; // where A's sockets aim (a port of B)
+        int targetOfB;
+        long intervalMs;
+        if (strategy == Strategy.BRUTE_FORCE) {
+            targetOfA = (modelB.minPort() + modelB.maxPort()) / 2;
+            targetOfB = (modelA.minPort() + modelA.maxPort()) / 2;
+            intervalMs = 50;
+        } else {
+            targetOfA = modelB.predictable() ? PortPredictor.blockMidpoint(modelB, poolSize)
+                : (modelB.minPort() + modelB.maxPort()) / 2;
+            targetOfB = modelA.predictable() ? PortPredictor.blockMidpoint(modelA, poolSize)
+                : (modelA.minPort() + modelA.maxPort()) / 2;
+            intervalMs = PortPredictor.poolIntervalMs(poolSize, PortPredictor.BUDGET_PPS, 50);
+        }
+
+        // mapping port -> the remote port it was opened towards; sockets open in order, both sides at once
+        Map<Integer, Integer> mappingsA = new HashMap<>();
+        Map<Integer, Integer> mappingsB = new HashMap<>();
+        for (int s = 0; s < poolSize; s++) {
+            mappingsA.put(natA.allocate(), targetOfA);
+            mappingsB.put(natB.allocate(), targetOfB);
+        }
+        // Does any A mapping aimed at B's port targetOfA meet the B mapping on that port, aimed back at it?
+        Integer backTo = mappingsB.get(targetOfA);
+        boolean crossing = backTo != null && mappingsA.containsKey(backTo)
+            && mappingsA.get(backTo) == targetOfA;
+
+        long packets = 0;
+        for (long ms = 0; ms < TIMEOUT_MS; ms += intervalMs) {
+            packets += 2L * poolSize;
+            // The crossing pair's datagram has to survive the loss this round
+            if (crossing && random.nextDouble() >= loss) {
+                return new long[] { packets, ms + TICK_MS };
+            }
+        }
+        return null;
+    }
+
+    private static long median(List<Long> values) {
+        if (values.isEmpty()) {
+            return -1;
+        }
+        long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
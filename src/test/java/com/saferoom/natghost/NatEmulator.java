@@ -0,0 +1,526 @@
+package com.saferoom.natghost;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two NATs, three STUN servers and a stand-in signalling server per network,
+ * all on loopback UDP, so two unmodified NatAnalyzer clients can register,
+ * profile and punch through each other's NAT in one JVM.
+ *
+ * Addresses (Linux routes all of 127/8 to lo):
+ * - NAT n public IP 127.0.1.n; every port of its range is a bound socket, so
+ *   a datagram to a port nobody is mapped on still creates the sender's
+ *   mapping and is then dropped, as on a router
+ * - network n's STUN servers 127.0.2.n, 127.0.3.n and 127.0.4.n, signalling
+ *   127.0.5.n
+ *
+ * Clients bind the wildcard address and reach the emulator directly from
+ * 127.0.0.1:port, so the destination tells which NAT a datagram leaves
+ * through: a client only talks to its own network's servers and to the other
+ * network's NAT (hairpinning is not emulated). Delivery goes out of the
+ * sender's mapping socket, so the receiver sees the translated source address.
+ *
+ * NAT behaviour (RFC 4787 terms):
+ * - FULL_CONE: endpoint-independent mapping and filtering
+ * - RESTRICTED_CONE: endpoint-independent mapping, address-dependent filtering
+ * - PORT_RESTRICTED_CONE: endpoint-independent mapping, address-and-port-dependent filtering
+ * - SYMMETRIC: a new mapping per destination, address-and-port-dependent filtering
+ * Mappings are allocated SEQUENTIAL (stride) or RANDOM within the NAT's range
+ * by {@link NatAllocationEmulator.Allocator} (the model the punch matrix in
+ * {@link PortPredictorTest} runs on, without background traffic here), expire after {@code mappingTimeoutMs} without outbound traffic, and every
+ * datagram between the two networks is lost with probability {@code loss}.
+ * Server traffic is not: registration is sent once, and the matrix is about
+ * the punch, not the signalling path.
+ *
+ * One thread and one Selector; allocation and loss come from the seed. A
+ * router sees datagrams in wire order, the Selector only per socket: after a
+ * wakeup the burst is given a millisecond to land, then the servers and ready
+ * ports are drained one datagram at a time in a fixed order, so deep
+ * profiling probes (round-robin over the STUN servers) are mostly allocated
+ * in the order they were sent. Mostly: on a loaded host the sender can still
+ * be preempted mid-burst, which is why two symmetric sides are only reported.
+ */
+final class NatEmulator implements AutoCloseable {
+
+    enum Behavior { FULL_CONE, RESTRICTED_CONE, PORT_RESTRICTED_CONE, SYMMETRIC }
+
+    /** One router: behaviour, how it picks external ports, idle mapping lifetime */
+    record Config(Behavior behavior, NatAllocationEmulator.Allocation allocation, int stride, long mappingTimeoutMs) {
+        static Config of(Behavior behavior) {
+            return new Config(behavior, NatAllocationEmulator.Allocation.SEQUENTIAL, 1, 30_000);
+        }
+
+        @Override
+        public String toString() {
+            return behavior == Behavior.SYMMETRIC
+                ? behavior + (allocation == NatAllocationEmulator.Allocation.SEQUENTIAL ? "(+" + stride + ")" : "(random)")
+                : behavior.toString();
+        }
+    }
+
+    static final int FIRST_PORT = 20000;
+    static final int PORTS = 4096;
+    static final int POOL_SIZE = 256;
+    private static final int RECEIVE_BUFFER = 2048;
+
+    private final Selector selector;
+    private final Nat[] nats = new Nat[2];
+    private final Signalling signalling = new Signalling();
+    private final List<DatagramChannel> serverChannels = new ArrayList<>();
+    private final List<SelectionKey> serverKeys = new ArrayList<>();
+    private final Random random;
+    private final double loss;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong lost = new AtomicLong();
+    final AtomicLong filtered = new AtomicLong();
+
+    NatEmulator(Config a, Config b, double loss, long seed) throws IOException {
+        this.random = new Random(seed);
+        this.loss = loss;
+        this.selector = Selector.open();
+        try {
+            nats[0] = new Nat(1, a);
+            nats[1] = new Nat(2, b);
+            for (int n = 1; n <= 2; n++) {
+                bindServer(ip("127.0.2." + n), nats[n - 1], this::onStun);
+                bindServer(ip("127.0.3." + n), nats[n - 1], this::onStun);
+                bindServer(ip("127.0.4." + n), nats[n - 1], this::onStun);
+                bindServer(ip("127.0.5." + n), nats[n - 1], signalling::onDatagram);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        thread = new Thread(this::loop, "NAT-Emulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Network {@code n}'s STUN servers, in NatAnalyzer.stunServers form */
+    String[][] stunServers(int n) {
+        String[][] servers = new String[3][];
+        for (int i = 0; i < 3; i++) {
+            servers[i] = new String[] { "127.0." + (2 + i) + "." + n, Integer.toString(serverPort(4 * (n - 1) + i)) };
+        }
+        return servers;
+    }
+
+    /** Network {@code n}'s address of the signalling server */
+    InetSocketAddress signallingServer(int n) {
+        return new InetSocketAddress(ip("127.0.5." + n), serverPort(4 * (n - 1) + 3));
+    }
+
+    private int serverPort(int index) {
+        try {
+            return ((InetSocketAddress) serverChannels.get(index).getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static InetAddress ip(String address) {
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(address, e);
+        }
+    }
+
+    // ============= EVENT LOOP =============
+
+    @FunctionalInterface
+    private interface ServerHandler {
+        void onDatagram(ByteBuffer payload, InetSocketAddress from, Server server);
+    }
+
+    /** A host on the public side; {@code network}: the NAT whose clients use it */
+    private record Server(int order, DatagramChannel channel, InetSocketAddress address, Nat network,
+                          ServerHandler handler) { }
+
+    /** One public port of a NAT */
+    private record Port(Nat nat, int port, DatagramChannel channel) { }
+
+    /** Drain order: servers as bound, then each NAT's ports */
+    private int order(SelectionKey key) {
+        if (key.attachment() instanceof Server server) {
+            return server.order();
+        }
+        Port port = (Port) key.attachment();
+        return serverKeys.size() + (port.nat() == nats[0] ? 0 : PORTS) + port.port() - FIRST_PORT;
+    }
+
+    private void bindServer(InetAddress ip, Nat network, ServerHandler handler) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        serverChannels.add(channel);
+        channel.bind(new InetSocketAddress(ip, 0));
+        channel.configureBlocking(false);
+        InetSocketAddress address = (InetSocketAddress) channel.getLocalAddress();
+        serverKeys.add(channel.register(selector, SelectionKey.OP_READ,
+            new Server(serverChannels.size() - 1, channel, address, network, handler)));
+    }
+
+    private void loop() {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER);
+        try {
+            while (running) {
+                if (selector.select(100) > 0) {
+                    Thread.sleep(1); // let a burst land first: a link delivers it in send order
+                }
+                // Servers every time: one may fill up while another is being drained
+                Set<SelectionKey> ready = new TreeSet<>(Comparator.comparingInt(this::order));
+                ready.addAll(serverKeys);
+                ready.addAll(selector.selectedKeys());
+                selector.selectedKeys().clear();
+                // One datagram per socket per pass, until a pass finds nothing
+                boolean received = true;
+                while (received) {
+                    received = false;
+                    for (SelectionKey key : ready) {
+                        InetSocketAddress from = key.isValid() ? receive((DatagramChannel) key.channel(), buffer) : null;
+                        if (from == null) {
+                            continue;
+                        }
+                        received = true;
+                        buffer.flip();
+                        ByteBuffer payload = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                        buffer.clear();
+                        synchronized (this) {
+                            if (key.attachment() instanceof Port port) {
+                                fromInside(payload, from, port);
+                            } else {
+                                toServer(payload, from, (Server) key.attachment());
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            if (running) {
+                System.err.println("[NAT-EMU] Loop failed: " + e);
+            }
+        }
+    }
+
+    private static InetSocketAddress receive(DatagramChannel channel, ByteBuffer buffer) {
+        try {
+            return (InetSocketAddress) channel.receive(buffer);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** A client datagram to a NAT's public port: out through the sender's NAT, in through this one */
+    private void fromInside(ByteBuffer payload, InetSocketAddress privateSource, Port to) {
+        Nat sender = other(to.nat());
+        InetSocketAddress destination = new InetSocketAddress(to.nat().ip, to.port());
+        Mapping mapping = sender.outbound(privateSource, destination);
+        if (mapping == null || isLost()) {
+            return;
+        }
+        to.nat().inbound(payload, sender.publicAddress(mapping), to.port(), sender.channel(mapping.port));
+    }
+
+    /** A client datagram to a server: translated by the client's NAT, seen from its public address */
+    private void toServer(ByteBuffer payload, InetSocketAddress privateSource, Server server) {
+        Nat nat = server.network();
+        Mapping mapping = nat.outbound(privateSource, server.address());
+        if (mapping == null) {
+            return;
+        }
+        server.handler().onDatagram(payload, nat.publicAddress(mapping), server);
+    }
+
+    /** A server's datagram to a public address */
+    private void fromServer(Server server, ByteBuffer payload, InetSocketAddress to) {
+        for (Nat nat : nats) {
+            if (nat.ip.equals(to.getAddress())) {
+                nat.inbound(payload, server.address(), to.getPort(), server.channel());
+            }
+        }
+    }
+
+    private Nat other(Nat nat) {
+        return nats[0] == nat ? nats[1] : nats[0];
+    }
+
+    private boolean isLost() {
+        if (loss > 0 && random.nextDouble() < loss) {
+            lost.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // ============= NAT =============
+
+    /** A mapping: the inside endpoint, the destinations it has sent to, when it last sent */
+    private static final class Mapping {
+        final int port;
+        final InetSocketAddress inside;
+        final Set<InetSocketAddress> contacted = new HashSet<>();
+        long lastOutboundNanos;
+
+        Mapping(int port, InetSocketAddress inside) {
+            this.port = port;
+            this.inside = inside;
+        }
+    }
+
+    private final class Nat {
+        final InetAddress ip;
+        final Config config;
+        final DatagramChannel[] channels = new DatagramChannel[PORTS];
+        final Mapping[] byPort = new Mapping[PORTS];
+        // inside endpoint (cone) or inside endpoint + destination (symmetric) -> mapping
+        final Map<Object, Mapping> mappings = new HashMap<>();
+        final NatAllocationEmulator.Allocator allocator;
+
+        Nat(int n, Config config) throws IOException {
+            this.ip = NatEmulator.ip("127.0.1." + n);
+            this.config = config;
+            this.allocator = new NatAllocationEmulator.Allocator(new NatAllocationEmulator.Nat(config.toString(),
+                config.allocation(), config.stride(), 0, FIRST_PORT, FIRST_PORT + PORTS - 1), random);
+            for (int i = 0; i < PORTS; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+                channel.bind(new InetSocketAddress(ip, FIRST_PORT + i));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Port(this, FIRST_PORT + i, channel));
+            }
+        }
+
+        InetSocketAddress publicAddress(Mapping mapping) {
+            return new InetSocketAddress(ip, mapping.port);
+        }
+
+        DatagramChannel channel(int port) {
+            return channels[port - FIRST_PORT];
+        }
+
+        /** The mapping {@code inside} sends to {@code destination} from, created if needed; null if full */
+        Mapping outbound(InetSocketAddress inside, InetSocketAddress destination) {
+            Object key = config.behavior() == Behavior.SYMMETRIC ? List.of(inside, destination) : inside;
+            Mapping mapping = mappings.get(key);
+            if (mapping != null && isExpired(mapping)) {
+                release(key, mapping);
+                mapping = null;
+            }
+            if (mapping == null) {
+                int port = allocate();
+                if (port < 0) {
+                    return null;
+                }
+                mapping = new Mapping(port, inside);
+                mappings.put(key, mapping);
+                byPort[port - FIRST_PORT] = mapping;
+            }
+            mapping.contacted.add(destination);
+            mapping.lastOutboundNanos = System.nanoTime();
+            return mapping;
+        }
+
+        /** From {@code source} to our public {@code port}: delivered through {@code via} if the filter allows */
+        void inbound(ByteBuffer payload, InetSocketAddress source, int port, DatagramChannel via) {
+            Mapping mapping = port >= FIRST_PORT && port < FIRST_PORT + PORTS ? byPort[port - FIRST_PORT] : null;
+            if (mapping == null || isExpired(mapping) || !allows(mapping, source)) {
+                filtered.incrementAndGet();
+                return;
+            }
+            try {
+                via.send(payload, mapping.inside);
+                delivered.incrementAndGet();
+            } catch (IOException e) {
+                filtered.incrementAndGet(); // the client closed that socket
+            }
+        }
+
+        private boolean allows(Mapping mapping, InetSocketAddress source) {
+            return switch (config.behavior()) {
+                case FULL_CONE -> true;
+                case RESTRICTED_CONE -> mapping.contacted.stream().anyMatch(d -> d.getAddress().equals(source.getAddress()));
+                case PORT_RESTRICTED_CONE, SYMMETRIC -> mapping.contacted.contains(source);
+            };
+        }
+
+        private boolean isExpired(Mapping mapping) {
+            return System.nanoTime() - mapping.lastOutboundNanos > config.mappingTimeoutMs() * 1_000_000L;
+        }
+
+        private void release(Object key, Mapping mapping) {
+            mappings.remove(key);
+            byPort[mapping.port - FIRST_PORT] = null;
+        }
+
+        private int allocate() {
+            for (int attempt = 0; attempt < PORTS; attempt++) {
+                int index = allocator.allocate() - FIRST_PORT;
+                Mapping holder = byPort[index];
+                if (holder != null && isExpired(holder)) {
+                    mappings.values().remove(holder);
+                    byPort[index] = null;
+                    holder = null;
+                }
+                if (holder == null) {
+                    return FIRST_PORT + index;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // ============= SERVERS =============
+
+    /** RFC 5389 Binding: answer with XOR-MAPPED-ADDRESS = the public source */
+    private void onStun(ByteBuffer request, InetSocketAddress from, Server server) {
+        if (request.remaining() < 20 || request.getShort(0) != 0x0001) {
+            return;
+        }
+        ByteBuffer response = ByteBuffer.allocate(32);
+        response.putShort((short) 0x0101).putShort((short) 12).putInt(0x2112A442);
+        response.put(request.array(), 8, 12); // transaction ID
+        response.putShort((short) 0x0020).putShort((short) 8).put((byte) 0).put((byte) 0x01);
+        response.putShort((short) (from.getPort() ^ 0x2112));
+        byte[] address = from.getAddress().getAddress();
+        int cookie = 0x2112A442;
+        for (int i = 0; i < 4; i++) {
+            response.put((byte) (address[i] ^ (cookie >>> (8 * (3 - i)))));
+        }
+        response.flip();
+        fromServer(server, response, from);
+    }
+
+    /**
+     * Stand-in for the signalling server's coordinator: SIG_REGISTER is
+     * acknowledged, SIG_NAT_PROFILE remembered, and {@link #coordinate}
+     * sends both peers their SIG_PUNCH_INSTRUCT:
+     * - cone / cone: STANDARD (0x00) to each other's registered endpoint
+     * - symmetric / cone: SYMMETRIC_BURST (0x01) to the cone's port, and the
+     *   cone side ASYMMETRIC_SCAN (0x02) of the profiled range
+     * - symmetric / symmetric: MIDPOINT_BURST (0x03) at each other's range
+     * Instructions carry the peer's port allocation model when it sent one.
+     */
+    private final class Signalling {
+        private record User(InetSocketAddress endpoint, Server server, byte natType, int minPort, int maxPort,
+                            PortPredictor.Model model) { }
+
+        private final Map<String, User> users = new HashMap<>();
+
+        void onDatagram(ByteBuffer frame, InetSocketAddress from, Server server) {
+            if (!LLS.hasWholeFrame(frame)) {
+                return;
+            }
+            try {
+                byte type = LLS.peekType(frame);
+                if (type == LLS.SIG_REGISTER) {
+                    String user = (String) LLS.parseRegisterPacket(frame.duplicate()).get(2);
+                    users.put(user, new User(from, server, (byte) 0, 0, 0, null));
+                    fromServer(server, LLS.New_AllDone_Packet("server", user), from);
+                } else if (type == LLS.SIG_NAT_PROFILE) {
+                    List<Object> profile = LLS.parseNATProfilePacket(frame.duplicate());
+                    String user = (String) profile.get(2);
+                    User registered = users.get(user);
+                    InetSocketAddress endpoint = registered != null ? registered.endpoint() : from;
+                    users.put(user, new User(endpoint, server, (Byte) profile.get(3), (Integer) profile.get(4),
+                        (Integer) profile.get(5), profile.size() > 7 ? (PortPredictor.Model) profile.get(7) : null));
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[NAT-EMU] Bad signalling packet from " + from + ": " + e);
+            }
+        }
+
+        boolean coordinate(String a, String b, int poolSize) {
+            User ua = users.get(a);
+            User ub = users.get(b);
+            if (ua == null || ub == null) {
+                return false;
+            }
+            instruct(a, ua, b, ub, poolSize);
+            instruct(b, ub, a, ua, poolSize);
+            return true;
+        }
+
+        private void instruct(String user, User me, String target, User peer, int poolSize) {
+            boolean meSymmetric = me.natType() == 0x11;
+            boolean peerSymmetric = peer.natType() == 0x11;
+            InetAddress peerIP = peer.endpoint().getAddress();
+            byte[] packet;
+            if (!meSymmetric && !peerSymmetric) {
+                packet = LLS.createPunchInstructPacket(user, target, peerIP, peer.endpoint().getPort(), (byte) 0x00, 1);
+            } else if (meSymmetric && !peerSymmetric) {
+                packet = LLS.createPunchInstructPacket(user, target, peerIP, peer.endpoint().getPort(), (byte) 0x01,
+                    poolSize);
+            } else if (!meSymmetric) {
+                packet = LLS.createPunchInstructPacket(user, target, peerIP, peer.minPort(), (byte) 0x02,
+                    peer.maxPort() - peer.minPort() + 1, peer.model());
+            } else {
+                packet = LLS.createPunchInstructPacket(user, target, peerIP, (peer.minPort() + peer.maxPort()) / 2,
+                    (byte) 0x03, poolSize, peer.model());
+            }
+            fromServer(me.server(), ByteBuffer.wrap(packet), me.endpoint());
+        }
+    }
+
+    /**
+     * Send both registered (and profiled) users their punch instructions;
+     * false if either has not registered yet
+     */
+    synchronized boolean coordinate(String a, String b, int poolSize) {
+        return signalling.coordinate(a, b, poolSize);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (thread != null && Thread.currentThread() != thread) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Nat nat : nats) {
+            if (nat != null) {
+                for (DatagramChannel channel : nat.channels) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+        serverChannels.forEach(NatEmulator::closeQuietly);
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.saferoom.natghost;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two NatAnalyzer clients through {@link NatEmulator}: register, profile,
+ * punch as the signalling server instructs, for every pair of NAT
+ * behaviours. Prints a [NAT-EMU] matrix of success rate and time to connect
+ * (instructions sent until both sides have the peer);
+ * {@code -Dsaferoom.nat.emu.trials=N} and {@code -Dsaferoom.nat.emu.loss=p}
+ * for a longer run, {@code -Dsaferoom.nat.emu.all=true} to include the
+ * symmetric pairs no strategy can solve (each costs the 30s punch timeout).
+ *
+ * Binds some 8,200 sockets on 127.0.1-5.x (Linux only) and takes minutes:
+ * not part of {@code ./gradlew test}, run it with {@code ./gradlew emulatorTest}.
+ */
+@Tag("emulator")
+@EnabledOnOs(value = OS.LINUX, disabledReason = "needs all of 127/8 routed to lo")
+public class NatEmulatorTest {
+
+    private static final int TRIALS = Integer.getInteger("saferoom.nat.emu.trials", 1);
+    private static final double LOSS = Double.parseDouble(System.getProperty("saferoom.nat.emu.loss", "0.01"));
+    private static final boolean ALL_PAIRS = Boolean.getBoolean("saferoom.nat.emu.all");
+    private static final long CONNECT_TIMEOUT_MS = 35_000;
+    private static final int PROFILE_PROBES = 200;
+    private static final String PROFILE_FILE = "saferoom.nat.profile.file";
+
+    /**
+     * One NatAnalyzer with its own copy of the natghost classes: all its
+     * state is static, so two clients in one JVM need two class loaders.
+     * Everything else (GUI, JDK) is shared with the test.
+     */
+    private static final class Client implements AutoCloseable {
+        private final String user;
+        private final Class<?> analyzer;
+        private final ClassLoader loader;
+
+        Client(String user, String[][] stunServers, Path profileFile) throws Exception {
+            this.user = user;
+            URL classes = NatAnalyzer.class.getProtectionDomain().getCodeSource().getLocation();
+            this.loader = new URLClassLoader(new URL[] { classes }, NatEmulatorTest.class.getClassLoader()) {
+                @Override
+                protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                    if (!name.startsWith("com.saferoom.natghost.")) {
+                        return super.loadClass(name, resolve);
+                    }
+                    synchronized (getClassLoadingLock(name)) {
+                        Class<?> c = findLoadedClass(name);
+                        if (c == null) {
+                            try {
+                                c = findClass(name); // child first: a fresh NatAnalyzer
+                            } catch (ClassNotFoundException e) {
+                                return super.loadClass(name, resolve); // test classes
+                            }
+                        }
+                        return c;
+                    }
+                }
+            };
+            // The saved-profile store is picked at class initialisation
+            String previous = System.getProperty(PROFILE_FILE);
+            System.setProperty(PROFILE_FILE, profileFile.toString());
+            try {
+                this.analyzer = Class.forName(NatAnalyzer.class.getName(), true, loader);
+            } finally {
+                if (previous != null) {
+                    System.setProperty(PROFILE_FILE, previous);
+                } else {
+                    System.clearProperty(PROFILE_FILE);
+                }
+            }
+            String[][] servers = (String[][]) analyzer.getField("stunServers").get(null);
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = stunServers[i];
+            }
+        }
+
+        private Object call(String method, Object... args) throws Exception {
+            for (Method m : analyzer.getMethods()) {
+                if (m.getName().equals(method) && m.getParameterCount() == args.length) {
+                    return m.invoke(null, args);
+                }
+            }
+            throw new NoSuchMethodException(method);
+        }
+
+        /** Register (STUN + SIG_REGISTER), profile a symmetric NAT, send the profile */
+        boolean join(InetSocketAddress server) throws Exception {
+            if (!(Boolean) call("registerWithServer", user, server)) {
+                return false;
+            }
+            if ((Byte) analyzer.getField("signal").get(null) == 0x11 && call("profileNATBehavior", PROFILE_PROBES) == null) {
+                return false;
+            }
+            call("sendNATProfileToServer", user, server);
+            return true;
+        }
+
+        boolean connectedTo(String peer) throws Exception {
+            return (Boolean) call("isP2PActive", peer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                call("closeAllP2PConnections");
+                Object reactor = Class.forName(NatReactor.class.getName(), true, loader).getMethod("shared").invoke(null);
+                reactor.getClass().getMethod("close").invoke(reactor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted closing " + user, e);
+            } catch (Exception e) {
+                throw new IOException("Cannot close " + user, e);
+            } finally {
+                ((URLClassLoader) loader).close();
+            }
+        }
+    }
+
+    /** One attempt: ms from instructions to both sides connected, or -1 */
+    private static long connect(NatEmulator.Config a, NatEmulator.Config b, long seed) throws Exception {
+        Path dir = Files.createTempDirectory("natemu");
+        try (NatEmulator emulator = new NatEmulator(a, b, LOSS, seed);
+             Client alice = new Client("alice", emulator.stunServers(1), dir.resolve("alice.properties"));
+             Client bob = new Client("bob", emulator.stunServers(2), dir.resolve("bob.properties"))) {
+            assertTrue(alice.join(emulator.signallingServer(1)), "alice registered behind " + a);
+            assertTrue(bob.join(emulator.signallingServer(2)), "bob registered behind " + b);
+            Thread.sleep(100); // profiles in flight to the server
+
+            long start = System.nanoTime();
+            assertTrue(emulator.coordinate("alice", "bob", NatEmulator.POOL_SIZE));
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS)) {
+                if (alice.connectedTo("bob") && bob.connectedTo("alice")) {
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+                Thread.sleep(10);
+            }
+            return -1;
+        } finally {
+            deleteQuietly(dir);
+        }
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try (var files = Files.walk(dir)) {
+            files.sorted((x, y) -> y.compareTo(x)).forEach(p -> p.toFile().delete());
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void testTraversalMatrix() throws Exception {
+        List<NatEmulator.Config> nats = new ArrayList<>();
+        for (NatEmulator.Behavior behavior : NatEmulator.Behavior.values()) {
+            nats.add(NatEmulator.Config.of(behavior));
+        }
+        nats.add(new NatEmulator.Config(NatEmulator.Behavior.SYMMETRIC, NatAllocationEmulator.Allocation.RANDOM, 1, 30_000));
+        List<String> matrix = new ArrayList<>();
+        for (int i = 0; i < nats.size(); i++) {
+            for (int j = i; j < nats.size(); j++) {
+                NatEmulator.Config a = nats.get(i);
+                NatEmulator.Config b = nats.get(j);
+                boolean bothSymmetric = a.behavior() == NatEmulator.Behavior.SYMMETRIC
+                    && b.behavior() == NatEmulator.Behavior.SYMMETRIC;
+                boolean predictable = a.allocation() == NatAllocationEmulator.Allocation.SEQUENTIAL
+                    && b.allocation() == NatAllocationEmulator.Allocation.SEQUENTIAL;
+                if (bothSymmetric && !predictable && !ALL_PAIRS) {
+                    matrix.add(String.format("%-22s %-22s %7s", a, b, "skipped"));
+                    continue;
+                }
+                long[] times = new long[TRIALS];
+                int connected = 0;
+                for (int t = 0; t < TRIALS; t++) {
+                    times[t] = connect(a, b, 1000L * i + 100L * j + t);
+                    if (times[t] >= 0) {
+                        connected++;
+                    }
+                }
+                long[] ok = Arrays.stream(times).filter(ms -> ms >= 0).sorted().toArray();
+                matrix.add(String.format("%-22s %-22s %3d/%-3d %8s", a, b, connected, TRIALS,
+                    ok.length > 0 ? ok[ok.length / 2] + " ms" : "-"));
+
+                // A cone side can always be reached. Two predictable symmetric sides depend on the
+                // profile seeing allocations in send order, which a busy host does not guarantee: reported only
+                if (!bothSymmetric) {
+                    assertEquals(TRIALS, connected, a + " / " + b);
+                }
+            }
+        }
+        System.out.printf("[NAT-EMU] %-22s %-22s %-7s %8s (loss %.1f%%)%n", "A", "B", "success", "median", LOSS * 100);
+        matrix.forEach(row -> System.out.println("[NAT-EMU] " + row));
+    }
+}
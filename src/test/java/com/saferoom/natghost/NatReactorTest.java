@@ -0,0 +1,173 @@
+package com.saferoom.natghost;
+
+import org.junit.jupiter.api.Test;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the NAT event loop and hole punches running on it (loopback)
+ */
+public class NatReactorTest {
+
+    /** A test body with its own loop; sockets opened through it are closed afterwards */
+    private interface LoopTest {
+        void run(NatReactor reactor, List<DatagramChannel> channels) throws Exception;
+    }
+
+    private static void withReactor(LoopTest test) throws Exception {
+        NatReactor reactor = new NatReactor("NAT-Reactor-test");
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            test.run(reactor, channels);
+        } finally {
+            reactor.close();
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    private static DatagramChannel open(List<DatagramChannel> channels) throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channels.add(channel);
+        return channel;
+    }
+
+    private static InetSocketAddress addressOf(DatagramChannel channel) throws Exception {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    @Test
+    public void testHandlersTapsAndTimersShareOneThread() throws Exception {
+        withReactor((reactor, channels) -> {
+            DatagramChannel server = open(channels);
+            DatagramChannel client = open(channels);
+            Set<String> threads = ConcurrentHashMap.newKeySet();
+            List<String> seen = new ArrayList<>();
+            CountDownLatch delivered = new CountDownLatch(2);
+
+            reactor.register(server, (frame, from, ch) -> {
+                threads.add(Thread.currentThread().getName());
+                seen.add("handler:" + frame.remaining());
+                delivered.countDown();
+            }).join();
+            reactor.tap(server, (frame, from, ch) -> {
+                frame.get(); // a tap moving the position does not shift the handler's frame
+                seen.add("tap");
+            });
+            CountDownLatch fired = new CountDownLatch(3);
+            NatReactor.Timer timer = reactor.scheduleAtFixedRate(() -> {
+                threads.add(Thread.currentThread().getName());
+                fired.countDown();
+            }, 0, 10, TimeUnit.MILLISECONDS);
+
+            reactor.submit(() -> null).join(); // tap is queued; let it land before sending
+            client.send(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), addressOf(server));
+            client.send(ByteBuffer.wrap(new byte[] { 4, 5, 6, 7 }), addressOf(server));
+
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            timer.cancel();
+            reactor.submit(() -> null).join();
+            assertEquals(List.of("tap", "handler:3", "tap", "handler:4"), seen);
+            assertEquals(Set.of("NAT-Reactor-test"), threads);
+        });
+    }
+
+    @Test
+    public void testPausedChannelIsNotRead() throws Exception {
+        withReactor((reactor, channels) -> {
+            DatagramChannel server = open(channels);
+            DatagramChannel client = open(channels);
+            List<Integer> sizes = new ArrayList<>();
+            reactor.register(server, (frame, from, ch) -> sizes.add(frame.remaining())).join();
+            reactor.pause(server).join();
+
+            client.send(ByteBuffer.wrap(new byte[5]), addressOf(server));
+            Thread.sleep(100);
+            assertTrue(reactor.submit(sizes::isEmpty).join());
+
+            // The datagram waited in the socket; resuming delivers it
+            reactor.resume(server).join();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (reactor.submit(sizes::isEmpty).join() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of(5), reactor.submit(() -> new ArrayList<>(sizes)).join());
+        });
+    }
+
+    @Test
+    public void testPunchCompletesWhenPeerAnswers() throws Exception {
+        withReactor((reactor, channels) -> {
+            DatagramChannel local = open(channels);
+            DatagramChannel peer = open(channels);
+            // The peer only answers from its second burst on, like a NAT that needs the hole first
+            int[] received = { 0 };
+            reactor.register(peer, (frame, from, ch) -> {
+                if (++received[0] == 2) {
+                    ch.send(ByteBuffer.wrap(new byte[] { LLS.SIG_PUNCH_BURST }), from);
+                }
+            }).join();
+
+            HolePunch.Result result = HolePunch.toPort(reactor, "TEST-PUNCH", local, addressOf(peer),
+                    (socket, seq, port) -> ByteBuffer.wrap(new byte[] { (byte) seq }),
+                    (frame, from) -> frame.get(0) == LLS.SIG_PUNCH_BURST)
+                .start(10, 5000)
+                .get(5, TimeUnit.SECONDS);
+
+            assertNotNull(result);
+            assertEquals(addressOf(peer), result.peer());
+            assertEquals(local, result.channel());
+            assertTrue(result.bursts() >= 2);
+            assertTrue(local.isOpen(), "a shared channel stays open");
+        });
+    }
+
+    @Test
+    public void testPortPoolKeepsOnlyTheWinner() throws Exception {
+        withReactor((reactor, channels) -> {
+            DatagramChannel peer = open(channels);
+            // Answer the first socket that reaches us, ignore the rest
+            InetSocketAddress[] first = { null };
+            reactor.register(peer, (frame, from, ch) -> {
+                if (first[0] == null) {
+                    first[0] = from;
+                    ch.send(ByteBuffer.wrap(new byte[] { 1 }), from);
+                }
+            }).join();
+
+            HolePunch punch = HolePunch.portPool(reactor, "TEST-POOL", 8, addressOf(peer),
+                (socket, seq, port) -> ByteBuffer.wrap(new byte[] { (byte) socket }), HolePunch.ANY);
+            HolePunch.Result result = punch.start(20, 5000).get(5, TimeUnit.SECONDS);
+
+            assertNotNull(result);
+            channels.add(result.channel());
+            assertTrue(result.channel().isOpen());
+            assertEquals(first[0].getPort(), addressOf(result.channel()).getPort());
+        });
+    }
+
+    @Test
+    public void testPunchTimesOutWithNull() throws Exception {
+        withReactor((reactor, channels) -> {
+            DatagramChannel local = open(channels);
+            DatagramChannel silent = open(channels);
+            CompletableFuture<HolePunch.Result> result = HolePunch.toPort(reactor, "TEST-TIMEOUT", local,
+                    addressOf(silent), (socket, seq, port) -> ByteBuffer.wrap(new byte[1]), HolePunch.ANY)
+                .start(10, 100);
+            assertNull(result.get(5, TimeUnit.SECONDS));
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package com.saferoom.natghost;
+
+import com.saferoom.file_transfer.HandShake_Packet;
+import org.junit.jupiter.api.Test;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the listener's signal table and the typed peer directory
+ */
+public class PacketDispatcherTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 40000);
+
+    @Test
+    public void testSignalsReachTheirHandlers() {
+        List<String> calls = new ArrayList<>();
+        PacketDispatcher dispatcher = new PacketDispatcher()
+            .on(LLS.SIG_MESSAGE, "message", (frame, from, channel) -> calls.add("message:" + frame.remaining()))
+            .on(LLS.SIG_RMSG_ACK, "ack", (frame, from, channel) -> {
+                throw new IllegalStateException("broken handler");
+            })
+            .otherwise((frame, from, channel) -> calls.add("other:" + frame.get(frame.position())));
+
+        ByteBuffer message = LLS.New_Message_Packet("alice", "bob", "hi");
+        assertTrue(dispatcher.dispatch(message, PEER, null));
+        assertEquals(0, message.position(), "handlers get the frame, the listener keeps its buffer");
+        // A failing handler is logged; the next datagram is dispatched as usual
+        assertTrue(dispatcher.dispatch(ByteBuffer.wrap(new byte[] { LLS.SIG_RMSG_ACK, 0, 3 }), PEER, null));
+        assertFalse(dispatcher.dispatch(ByteBuffer.wrap(new byte[21]), PEER, null));
+
+        assertEquals(List.of("message:" + message.remaining(), "other:0"), calls);
+        assertTrue(dispatcher.handles(LLS.SIG_MESSAGE));
+        assertFalse(dispatcher.handles(LLS.SIG_PUNCH_BURST));
+    }
+
+    @Test
+    public void testMerkleSynIsAHandshake() {
+        HandShake_Packet pkt = new HandShake_Packet();
+        pkt.make_SYN(7L, 1_000_000L, 690, 64, 11);
+        ByteBuffer merkleSyn = pkt.get_header().duplicate();
+        assertEquals(HandShake_Packet.SYN_MERKLE_SIZE, merkleSyn.remaining());
+        assertEquals("HANDSHAKE", PeerPacketHandlers.classifyFilePacket(merkleSyn));
+
+        pkt.make_SYN(7L, 1_000_000L, 690);
+        assertEquals("HANDSHAKE", PeerPacketHandlers.classifyFilePacket(pkt.get_header().duplicate()));
+
+        // Same length as a Merkle SYN: the 7-byte last slice of a file
+        ByteBuffer lastSlice = ByteBuffer.allocate(HandShake_Packet.SYN_MERKLE_SIZE);
+        lastSlice.putLong(1, 7L);
+        assertEquals("DATA", PeerPacketHandlers.classifyFilePacket(lastSlice));
+        assertNull(PeerPacketHandlers.classifyFilePacket(ByteBuffer.wrap(new byte[] { 0x7F, 1, 2 })));
+    }
+
+    @Test
+    public void testPeerDirectoryFollowsPortChanges() {
+        Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+        Map<String, Long> activity = new ConcurrentHashMap<>();
+        PeerDirectory peers = new PeerDirectory(addresses, activity);
+
+        peers.seen("alice", PEER);
+        assertEquals(PEER, peers.addressOf("alice"));
+        assertTrue(activity.containsKey("alice"));
+
+        // Same IP, new NAT port: a DNS keep-alive does not name its sender
+        InetSocketAddress moved = new InetSocketAddress("127.0.0.1", 40007);
+        assertTrue(peers.seenFromIp(moved));
+        assertEquals(moved, addresses.get("alice"));
+        assertFalse(peers.seenFromIp(new InetSocketAddress("127.0.0.2", 40000)));
+
+        peers.register("bob", PEER);
+        assertEquals(PEER, addresses.get("bob"));
+        assertFalse(activity.containsKey("bob"), "burst ACK registers without activity");
+    }
+}
@@ -0,0 +1,161 @@
+package com.saferoom.natghost;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the port allocation model, candidate ranking and burst budget,
+ * and the symmetric NAT punch matrix on {@link NatAllocationEmulator}
+ */
+public class PortPredictorTest {
+
+    private static final NatAllocationEmulator.Nat SEQUENTIAL = new NatAllocationEmulator.Nat(
+        "sequential +1, 20/s", NatAllocationEmulator.Allocation.SEQUENTIAL, 1, 20, 1024, 65535);
+    private static final NatAllocationEmulator.Nat SEQUENTIAL_BUSY = new NatAllocationEmulator.Nat(
+        "sequential +2, 200/s", NatAllocationEmulator.Allocation.SEQUENTIAL, 2, 200, 1024, 65535);
+    private static final NatAllocationEmulator.Nat RANDOM = new NatAllocationEmulator.Nat(
+        "random 1024-65535", NatAllocationEmulator.Allocation.RANDOM, 0, 20, 1024, 65535);
+
+    /** Ports a sequential NAT hands out, with another host taking one now and then */
+    private static List<Integer> sequential(int start, int stride, int count, double othersShare, long seed) {
+        Random random = new Random(seed);
+        List<Integer> ports = new ArrayList<>();
+        int port = start;
+        for (int i = 0; i < count; i++) {
+            port += stride;
+            while (random.nextDouble() < othersShare) {
+                port += stride;
+            }
+            ports.add(port);
+        }
+        return ports;
+    }
+
+    @Test
+    public void testSequentialAllocationIsPredictable() {
+        PortPredictor.Model model = PortPredictor.fit(sequential(40000, 2, 200, 0.2, 1));
+        assertEquals(PortPredictor.Pattern.SEQUENTIAL, model.pattern());
+        assertEquals(2, model.stride());
+        assertTrue(model.consistency() > 0.95, model.toString());
+        assertTrue(model.gap() > 1.1 && model.gap() < 1.5, model.toString());
+
+        // Next allocations come first, a stride apart
+        int[] ranked = PortPredictor.rank(model, 64);
+        assertEquals(64, ranked.length);
+        assertEquals(model.lastPort() + 2, ranked[0]);
+        assertEquals(model.lastPort() + 4, ranked[1]);
+        assertEquals(64, new HashSet<>(toList(ranked)).size());
+
+        // A saved profile moves up to where this session's mappings are; older ones are ignored
+        PortPredictor.Model now = PortPredictor.reanchor(model,
+            List.of(model.lastPort() + 300, model.lastPort() + 302, model.lastPort() - 50));
+        assertEquals(model.lastPort() + 302, now.lastPort());
+        assertEquals(model.lastPort(), PortPredictor.reanchor(model, List.of()).lastPort());
+    }
+
+    @Test
+    public void testRandomAllocationIsNotPredictable() {
+        Random random = new Random(7);
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ports.add(1024 + random.nextInt(64512));
+        }
+        PortPredictor.Model model = PortPredictor.fit(ports);
+        assertEquals(PortPredictor.Pattern.RANDOM, model.pattern());
+        assertFalse(model.predictable());
+        assertTrue(model.randomness() > 0.9, model.toString());
+
+        // All of the range, no duplicates
+        int[] ranked = PortPredictor.rank(model, model.maxPort() - model.minPort() + 1);
+        assertEquals(model.maxPort() - model.minPort() + 1, new HashSet<>(toList(ranked)).size());
+    }
+
+    @Test
+    public void testModelSurvivesTheWire() {
+        PortPredictor.Model model = PortPredictor.fit(sequential(50000, -1, 150, 0.1, 3));
+        NatAnalyzer.NATProfile profile = new NatAnalyzer.NATProfile((byte) 0x11,
+            model.minPort(), model.maxPort(), 150, model.observed());
+
+        List<Object> parsed = LLS.parseNATProfilePacket(ByteBuffer.wrap(LLS.createNATProfilePacket("alice",
+            profile.natType, profile.minPort, profile.maxPort, profile.profiledPorts, profile.model())));
+        PortPredictor.Model received = (PortPredictor.Model) parsed.get(7);
+        assertEquals(model.pattern(), received.pattern());
+        assertEquals(-1, received.stride());
+        assertEquals(model.lastPort(), received.lastPort());
+        assertEquals(model.consistency(), received.consistency(), 0.01);
+        assertEquals(model.gap(), received.gap(), 0.01);
+        assertEquals(PortPredictor.blockMidpoint(model, 256), PortPredictor.blockMidpoint(received, 256));
+
+        // Without a model: old 36-byte packet, nothing appended
+        byte[] old = LLS.createNATProfilePacket("alice", profile.natType, profile.minPort, profile.maxPort,
+            profile.profiledPorts);
+        assertEquals(7, LLS.parseNATProfilePacket(ByteBuffer.wrap(old)).size());
+    }
+
+    @Test
+    public void testScheduleStaysWithinBudgetAndRepeatsTheBest() {
+        int[] ranked = new int[4096];
+        for (int i = 0; i < ranked.length; i++) {
+            ranked[i] = 10000 + i;
+        }
+        PortPredictor.Schedule schedule = PortPredictor.schedule(ranked, 2000, 10);
+        assertEquals(20, schedule.packetsPerTick());
+
+        Set<Integer> firstSecond = new HashSet<>();
+        int[] sent = { 0 };
+        for (int tick = 0; tick < 50; tick++) { // 500 ms
+            schedule.plan(tick, 4, (socket, port) -> {
+                assertTrue(socket >= 0 && socket < 4);
+                firstSecond.add(port);
+                sent[0]++;
+            });
+        }
+        assertEquals(1000, sent[0]); // 2000 pps
+        assertEquals(20, firstSecond.size()); // the window has not grown yet: top candidates only
+        assertTrue(schedule.window(1000) == ranked.length);
+
+        assertEquals(128, PortPredictor.poolIntervalMs(256, 2000, 50));
+        assertEquals(50, PortPredictor.poolIntervalMs(16, 2000, 50));
+    }
+
+    @Test
+    public void testPredictionBeatsBruteForce() {
+        NatAllocationEmulator emulator = new NatAllocationEmulator(256, 0.05, 5000);
+        int trials = 40;
+        System.out.println("[NAT-EMU] pool 256, 5% loss, profile 5 s old, " + trials + " trials each");
+        for (NatAllocationEmulator.Scenario scenario : NatAllocationEmulator.Scenario.values()) {
+            for (NatAllocationEmulator.Nat nat : List.of(SEQUENTIAL, SEQUENTIAL_BUSY, RANDOM)) {
+                NatAllocationEmulator.Result old = emulator.run(scenario, nat,
+                    NatAllocationEmulator.Strategy.BRUTE_FORCE, trials, 42);
+                NatAllocationEmulator.Result predicted = emulator.run(scenario, nat,
+                    NatAllocationEmulator.Strategy.PREDICTED, trials, 42);
+                System.out.println("[NAT-EMU] " + old);
+                System.out.println("[NAT-EMU] " + predicted);
+
+                assertTrue(predicted.successRate() >= old.successRate(), predicted + " vs " + old);
+                if (nat == SEQUENTIAL) {
+                    assertTrue(predicted.successRate() >= 0.9, predicted.toString());
+                }
+                if (nat.allocation() == NatAllocationEmulator.Allocation.SEQUENTIAL) {
+                    if (old.successRate() >= 0.5) { // a lucky hit or two says nothing about cost
+                        assertTrue(predicted.medianPackets() < old.medianPackets(), predicted + " vs " + old);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Integer> toList(int[] ports) {
+        List<Integer> list = new ArrayList<>(ports.length);
+        for (int port : ports) {
+            list.add(port);
+        }
+        return list;
+    }
+}
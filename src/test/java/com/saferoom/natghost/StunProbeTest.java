@@ -0,0 +1,188 @@
+package com.saferoom.natghost;
+
+import org.junit.jupiter.api.Test;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for concurrent STUN probing (loopback STUN servers on the reactor)
+ * and the per-network saved NAT profile
+ */
+public class StunProbeTest {
+
+    /** What a fake STUN server reports as the mapped port for the n-th request it answers; -1 drops it */
+    private interface Mapping {
+        int port(int n, InetSocketAddress from);
+    }
+
+    private static DatagramChannel stunServer(NatReactor reactor, List<DatagramChannel> channels, Mapping mapping)
+            throws Exception {
+        return stunServer(reactor, channels, InetAddress.getLoopbackAddress(), mapping);
+    }
+
+    private static DatagramChannel stunServer(NatReactor reactor, List<DatagramChannel> channels, InetAddress ip,
+                                              Mapping mapping) throws Exception {
+        DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(ip, 0));
+        channels.add(server);
+        AtomicInteger requests = new AtomicInteger();
+        reactor.register(server, (frame, from, ch) -> {
+            int port = mapping.port(requests.getAndIncrement(), from);
+            if (port < 0) {
+                return;
+            }
+            ByteBuffer response = ByteBuffer.allocate(32);
+            response.putShort((short) 0x0101).putShort((short) 12).putInt(0x2112A442);
+            response.put(frame.array(), 8, 12); // transaction ID
+            response.putShort((short) 0x0020).putShort((short) 8).put((byte) 0).put((byte) 0x01);
+            response.putShort((short) (port ^ 0x2112));
+            response.put(from.getAddress().getAddress());
+            for (int i = 28; i < 32; i++) {
+                response.put(i, (byte) (response.get(i) ^ (0x2112A442 >>> (8 * (31 - i)))));
+            }
+            response.flip();
+            ch.send(response, from);
+        }).join();
+        return server;
+    }
+
+    private static InetSocketAddress addressOf(DatagramChannel channel) throws Exception {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private static void closeAll(NatReactor reactor, List<DatagramChannel> channels) throws Exception {
+        reactor.close();
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testMappingDecidedDoesNotWaitForSlowServers() throws Exception {
+        NatReactor reactor = new NatReactor("NAT-Reactor-test");
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            // Two servers on different IPs agree; the third never answers
+            DatagramChannel a = stunServer(reactor, channels, (n, from) -> 40000);
+            DatagramChannel b = stunServer(reactor, channels, InetAddress.getByName("127.0.0.2"), (n, from) -> 40000);
+            DatagramChannel silent = stunServer(reactor, channels, (n, from) -> -1);
+            DatagramChannel local = DatagramChannel.open();
+            local.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channels.add(local);
+
+            long start = System.nanoTime();
+            List<StunProbe.Response> responses = StunProbe.fromChannel(reactor, "TEST-STUN", local,
+                    List.of(addressOf(a), addressOf(b), addressOf(silent)), StunProbe.mappingDecided())
+                .start(5000, 100)
+                .get(5, TimeUnit.SECONDS);
+
+            assertEquals(2, responses.size());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000,
+                "decided without waiting for the silent server's deadline");
+            assertEquals(40000, responses.get(0).mapped().getPort());
+            assertTrue(local.isOpen(), "the shared channel stays open for hole punching");
+        } finally {
+            closeAll(reactor, channels);
+        }
+    }
+
+    @Test
+    public void testLostRequestIsResentAndDeadlineEndsTheRest() throws Exception {
+        NatReactor reactor = new NatReactor("NAT-Reactor-test");
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            DatagramChannel lossy = stunServer(reactor, channels, (n, from) -> n == 0 ? -1 : 41000);
+            DatagramChannel silent = stunServer(reactor, channels, (n, from) -> -1);
+            DatagramChannel local = DatagramChannel.open();
+            local.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channels.add(local);
+
+            List<StunProbe.Response> responses = StunProbe.fromChannel(reactor, "TEST-STUN", local,
+                    List.of(addressOf(lossy), addressOf(silent)), StunProbe.mappingDecided())
+                .start(500, 50)
+                .get(5, TimeUnit.SECONDS);
+
+            assertEquals(1, responses.size());
+            assertEquals(addressOf(lossy), responses.get(0).server());
+            assertEquals(41000, responses.get(0).mapped().getPort());
+        } finally {
+            closeAll(reactor, channels);
+        }
+    }
+
+    @Test
+    public void testFreshSocketsStopOnceTheRangeSettles() throws Exception {
+        NatReactor reactor = new NatReactor("NAT-Reactor-test");
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            // A symmetric NAT allocating from 50000..50002
+            DatagramChannel server = stunServer(reactor, channels, (n, from) -> 50000 + n % 3);
+
+            List<StunProbe.Response> samples = StunProbe.fromFreshSockets(reactor, "TEST-PROFILE", 200, 8,
+                    List.of(addressOf(server)), StunProbe.rangeSettled(10))
+                .start(1000, 100)
+                .get(10, TimeUnit.SECONDS);
+
+            assertTrue(samples.size() >= 12 && samples.size() < 200, "stopped early: " + samples.size());
+            List<Integer> ports = new ArrayList<>();
+            for (StunProbe.Response sample : samples) {
+                ports.add(sample.mapped().getPort());
+            }
+            assertEquals(50000, ports.stream().mapToInt(Integer::intValue).min().getAsInt());
+            assertEquals(50002, ports.stream().mapToInt(Integer::intValue).max().getAsInt());
+        } finally {
+            closeAll(reactor, channels);
+        }
+    }
+
+    @Test
+    public void testSavedProfileIsPerNetworkAndExpires() throws Exception {
+        Path file = Files.createTempDirectory("natprofile").resolve("nat-profile.properties");
+        long[] now = { 1_000_000 };
+        NatProfileStore store = new NatProfileStore(file, TimeUnit.HOURS.toMillis(1), () -> now[0]);
+
+        NatAnalyzer.NATProfile profile =
+            new NatAnalyzer.NATProfile((byte) 0x11, 41000, 41999, 250, List.of(41000, 41500, 41999));
+        profile.publicIP = "203.0.113.7";
+        store.save("en0_192.168.1.20_gw192.168.1.1", profile);
+        NatAnalyzer.NATProfile loaded = new NatProfileStore(file, TimeUnit.HOURS.toMillis(1), () -> now[0])
+            .load("en0_192.168.1.20_gw192.168.1.1");
+        assertNotNull(loaded);
+        assertEquals(0x11, loaded.natType);
+        assertEquals(41000, loaded.minPort);
+        assertEquals(41999, loaded.maxPort);
+        assertEquals(250, loaded.profiledPorts);
+        assertEquals(List.of(41000, 41500, 41999), loaded.observedPorts);
+        assertEquals("203.0.113.7", loaded.publicIP);
+
+        // Another gateway is another network
+        assertNull(store.load("en0_192.168.1.20_gw192.168.1.254"));
+
+        now[0] += TimeUnit.HOURS.toMillis(2);
+        assertNull(store.load("en0_192.168.1.20_gw192.168.1.1")); // past the TTL
+    }
+
+    @Test
+    public void testDefaultGatewayParsing() {
+        assertEquals("192.168.1.1", NatProfileStore.gatewayFromProcRoute(List.of(
+            "Iface\tDestination\tGateway \tFlags\tRefCnt\tUse\tMetric\tMask",
+            "eth0\t0001A8C0\t00000000\t0001\t0\t0\t0\t00FFFFFF",
+            "eth0\t00000000\t0101A8C0\t0003\t0\t0\t100\t00000000")));
+        assertEquals("10.0.0.1", NatProfileStore.gatewayFromNetstat(List.of(
+            "Destination        Gateway            Flags        Netif Expire",
+            "default            10.0.0.1           UGScg          en0")));
+        assertEquals("192.168.0.1", NatProfileStore.gatewayFromNetstat(List.of(
+            "Network Destination        Netmask          Gateway       Interface  Metric",
+            "          0.0.0.0          0.0.0.0      192.168.0.1    192.168.0.23     25")));
+        assertNull(NatProfileStore.gatewayFromNetstat(List.of("no routes")));
+    }
+}
@@ -0,0 +1,350 @@
+package com.saferoom.p2p;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import com.saferoom.file_transfer.BatchManifest;
+import com.saferoom.file_transfer.BatchSource;
+import com.saferoom.file_transfer.ResumeCheckpoint;
+import com.saferoom.transport.WritableGate;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the large-frame DataChannel mode over an in-memory ordered pipe
+ */
+public class DataChannelStreamTransferTest {
+
+    @Test
+    public void testFileArrivesInLargeFrames() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        Path source = dir.resolve("in.bin");
+        Path target = dir.resolve("out.bin");
+        byte[] data = new byte[5 * DataChannelStreamTransfer.FRAME_BYTES + 777];
+        new Random(5).nextBytes(data);
+        Files.write(source, data);
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        AtomicLong buffered = new AtomicLong();
+        AtomicLong frames = new AtomicLong();
+        // Two frames of room: the sender parks and is woken by the deliveries
+        WritableGate gate = new WritableGate(buffered::get, 2L * DataChannelStreamTransfer.FRAME_BYTES + 64, 0);
+        CompletableFuture<Path> received = new CompletableFuture<>();
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> target, (id, path, size) -> received.complete(path));
+            peers[0] = new DataChannelStreamTransfer(msg -> {
+                frames.incrementAndGet();
+                deliver(toReceiver, peers[1], msg, buffered, gate);
+            }, bytes -> gate.writable(bytes).join(), id -> dir.resolve("unused"), null);
+
+            assertTrue(peers[0].send(source, 7L, null));
+            assertTrue(target.equals(received.get(5, TimeUnit.SECONDS)), "receiver reported the file");
+            assertArrayEquals(data, Files.readAllBytes(target));
+            assertEquals(6 + 2, frames.get(), "6 data frames + OFFER + END");
+            assertTrue(gate.toString().contains("waiting=0"), gate.toString());
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testConcurrentStreamsShareOneChannel() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        int files = 3;
+        byte[][] data = new byte[files][];
+        Path[] sources = new Path[files];
+        for (int i = 0; i < files; i++) {
+            data[i] = new byte[(3 + i) * DataChannelStreamTransfer.FRAME_BYTES + 100 * i];
+            new Random(20 + i).nextBytes(data[i]);
+            sources[i] = dir.resolve("in" + i + ".bin");
+            Files.write(sources[i], data[i]);
+        }
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        ExecutorService senders = Executors.newFixedThreadPool(files);
+        AtomicLong buffered = new AtomicLong();
+        WritableGate gate = new WritableGate(buffered::get, 2L * DataChannelStreamTransfer.FRAME_BYTES + 64, 0);
+        Map<Long, Path> received = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(files);
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> dir.resolve("out" + id + ".bin"),
+                (id, path, size) -> { received.put(id, path); done.countDown(); });
+            peers[0] = new DataChannelStreamTransfer(msg -> deliver(toReceiver, peers[1], msg, buffered, gate),
+                bytes -> gate.writable(bytes).join(), id -> dir.resolve("unused"), null);
+
+            CompletableFuture<?>[] sends = new CompletableFuture<?>[files];
+            for (int i = 0; i < files; i++) {
+                int n = i;
+                sends[i] = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return peers[0].send(sources[n], 100L + n, null, 1 + n);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }, senders);
+            }
+            CompletableFuture.allOf(sends).get(10, TimeUnit.SECONDS);
+            assertTrue(done.await(5, TimeUnit.SECONDS), "all streams reported");
+            for (int i = 0; i < files; i++) {
+                assertEquals(Boolean.TRUE, sends[i].get());
+                assertArrayEquals(data[i], Files.readAllBytes(received.get(100L + i)));
+            }
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            senders.shutdownNow();
+            for (int i = 0; i < files; i++) {
+                Files.deleteIfExists(sources[i]);
+                Files.deleteIfExists(dir.resolve("out" + (100L + i) + ".bin"));
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testSmallFilesBackToBack() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        Path source = dir.resolve("in.bin");
+        Files.write(source, new byte[100]);
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> dir.resolve("out" + id + ".bin"), null);
+            peers[0] = new DataChannelStreamTransfer(msg -> deliver(toReceiver, peers[1], msg, null, null),
+                bytes -> { }, id -> dir.resolve("unused"), null);
+            // After the first file the OFFER's ACCEPT arrives unawaited, often after END: never taken for DONE
+            for (long id = 0; id < 20; id++) {
+                assertTrue(peers[0].send(source, id, null));
+            }
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testFolderArrivesAsOneStream() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        Path source = dir.resolve("src");
+        Path target = dir.resolve("out");
+        Random random = new Random(9);
+        for (int i = 0; i < 300; i++) {
+            Path f = source.resolve("d" + (i % 7)).resolve("sub" + (i % 3)).resolve("f" + i + ".txt");
+            Files.createDirectories(f.getParent());
+            byte[] data = new byte[random.nextInt(2000)];
+            random.nextBytes(data);
+            Files.write(f, data);
+        }
+        byte[] big = new byte[DataChannelStreamTransfer.FRAME_BYTES + 333]; // spans frames
+        random.nextBytes(big);
+        Files.write(source.resolve("big.bin"), big);
+        Files.createDirectories(source.resolve("empty"));
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        AtomicLong frames = new AtomicLong();
+        AtomicLong lastFilesDone = new AtomicLong();
+        CompletableFuture<Path> received = new CompletableFuture<>();
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try (BatchSource batch = BatchSource.of(source)) {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> target, (id, path, size) -> received.complete(path));
+            peers[1].setBatchListener((id, root, filesDone, fileCount, bytesDone, totalBytes) -> {
+                assertTrue(filesDone >= lastFilesDone.get() && fileCount == 301, "aggregate progress");
+                lastFilesDone.set(filesDone);
+            });
+            peers[0] = new DataChannelStreamTransfer(msg -> {
+                frames.incrementAndGet();
+                deliver(toReceiver, peers[1], msg, null, null);
+            }, bytes -> { }, id -> dir.resolve("unused"), null);
+
+            assertTrue(peers[0].sendBatch(batch, 11L, null, 1));
+            assertTrue(target.equals(received.get(5, TimeUnit.SECONDS)), "receiver reported the root");
+            long dataFrames = (batch.size() + DataChannelStreamTransfer.FRAME_BYTES - 1) / DataChannelStreamTransfer.FRAME_BYTES;
+            assertEquals(dataFrames + 2, frames.get(), "one OFFER and one END for the whole folder");
+            assertEquals(301, lastFilesDone.get());
+            for (BatchManifest.Entry e : batch.manifest().entries()) {
+                Path in = BatchManifest.resolve(source, e);
+                Path out = BatchManifest.resolve(target, e);
+                if (e.isDirectory()) {
+                    assertTrue(Files.isDirectory(out), e.path());
+                } else {
+                    assertArrayEquals(Files.readAllBytes(in), Files.readAllBytes(out));
+                }
+            }
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testLostFrameFailsInsteadOfCompleting() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        Path source = dir.resolve("in.bin");
+        Path target = dir.resolve("out.bin");
+        Files.write(source, new byte[3 * DataChannelStreamTransfer.FRAME_BYTES]);
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        AtomicBoolean dropped = new AtomicBoolean();
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> target, (id, path, size) -> fail("gap must not complete"));
+            peers[0] = new DataChannelStreamTransfer(msg -> {
+                // Never happens on a reliable channel: the receiver must notice, not write a hole
+                if (msg.get(msg.position() + 1) == DataChannelStreamTransfer.DATA && dropped.compareAndSet(false, true)) {
+                    msg.position(msg.limit());
+                    return;
+                }
+                deliver(toReceiver, peers[1], msg, null, null);
+            }, bytes -> { }, id -> dir.resolve("unused"), null);
+
+            IOException e = assertThrows(IOException.class, () -> peers[0].send(source, 8L, null));
+            assertTrue(e.getMessage().contains("8"));
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testSenderFailureDropsPartialFile() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        Path source = dir.resolve("in.bin");
+        Path target = dir.resolve("out.bin");
+        Files.write(source, new byte[4 * DataChannelStreamTransfer.FRAME_BYTES]);
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        AtomicLong frames = new AtomicLong();
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> target, (id, path, size) -> fail("aborted stream must not complete"));
+            peers[0] = new DataChannelStreamTransfer(msg -> deliver(toReceiver, peers[1], msg, null, null),
+                bytes -> {
+                    if (frames.incrementAndGet() > 2) {
+                        throw new IOException("channel closed");
+                    }
+                }, id -> dir.resolve("unused"), null);
+
+            IOException e = assertThrows(IOException.class, () -> peers[0].send(source, 12L, null));
+            assertTrue(e.getMessage().contains("channel closed"));
+            // REJECT follows the frames on the same ordered channel
+            toReceiver.submit(() -> { }).get(5, TimeUnit.SECONDS);
+            assertFalse(Files.exists(target), "partial file removed");
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testInterruptedFileResumesAtTheCheckpoint() throws Exception {
+        Path dir = Files.createTempDirectory("dc-stream-test");
+        Path source = dir.resolve("in.bin");
+        Path target = dir.resolve("out.bin");
+        byte[] data = new byte[8 * DataChannelStreamTransfer.FRAME_BYTES];
+        new Random(9).nextBytes(data);
+        Files.write(source, data);
+        assertTrue(data.length >= DataChannelStreamTransfer.RESUME_MIN_BYTES);
+
+        ExecutorService toReceiver = Executors.newSingleThreadExecutor();
+        ExecutorService toSender = Executors.newSingleThreadExecutor();
+        AtomicLong writable = new AtomicLong(3);
+        AtomicLong dataFrames = new AtomicLong();
+        CompletableFuture<Path> received = new CompletableFuture<>();
+        DataChannelStreamTransfer[] peers = new DataChannelStreamTransfer[2];
+        try {
+            peers[1] = new DataChannelStreamTransfer(msg -> deliver(toSender, peers[0], msg, null, null),
+                bytes -> { }, id -> target, (id, path, size) -> received.complete(path));
+            peers[0] = new DataChannelStreamTransfer(msg -> {
+                if (msg.get(msg.position() + 1) == DataChannelStreamTransfer.DATA) {
+                    dataFrames.incrementAndGet();
+                }
+                deliver(toReceiver, peers[1], msg, null, null);
+            }, bytes -> {
+                if (writable.getAndDecrement() <= 0) {
+                    throw new IOException("channel closed");
+                }
+            }, id -> dir.resolve("unused"), null);
+
+            assertThrows(IOException.class, () -> peers[0].send(source, 13L, null));
+            toReceiver.submit(() -> { }).get(5, TimeUnit.SECONDS);
+            assertTrue(Files.exists(target), "partial file kept");
+            assertTrue(Files.exists(ResumeCheckpoint.sidecarFor(target)));
+            assertEquals(3, dataFrames.get());
+
+            // Same fileId again: only the missing frames go out
+            writable.set(Long.MAX_VALUE);
+            dataFrames.set(0);
+            assertTrue(peers[0].send(source, 13L, null));
+            assertTrue(target.equals(received.get(5, TimeUnit.SECONDS)));
+            assertEquals(5, dataFrames.get());
+            assertArrayEquals(data, Files.readAllBytes(target));
+            assertFalse(Files.exists(ResumeCheckpoint.sidecarFor(target)),
+                "checkpoint removed once complete");
+        } finally {
+            toReceiver.shutdownNow();
+            toSender.shutdownNow();
+            deleteTree(dir);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (var walk = Files.walk(dir)) {
+            for (Path p : walk.sorted(java.util.Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /** Copy like the native send does, deliver in order on the peer's callback thread */
+    private static void deliver(ExecutorService callbackThread, DataChannelStreamTransfer peer,
+                                ByteBuffer msg, AtomicLong buffered, WritableGate gate) {
+        ByteBuffer copy = ByteBuffer.allocate(msg.remaining());
+        copy.put(msg).flip();
+        if (buffered != null) {
+            buffered.addAndGet(copy.remaining());
+        }
+        callbackThread.execute(() -> {
+            peer.onMessage(copy);
+            if (buffered != null) {
+                buffered.addAndGet(-copy.remaining());
+                gate.onBufferedAmountChange();
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package com.saferoom.p2p;
+
+import org.junit.jupiter.api.Test;
+import com.saferoom.file_transfer.IntMpscRing;
+import dev.onvoid.webrtc.RTCDataChannelBuffer;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the pooled inbound path of the DataChannel wrapper
+ */
+public class InboundSlabTest {
+
+    @Test
+    public void testPriorityLaneIsReadFirstAndSlotsRecycle() {
+        InboundSlab slab = new InboundSlab(64, 1500);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(slab.offer(message((byte) 0x00, 100 + i), false));
+        }
+        assertTrue(slab.offer(message((byte) 0x01, 29), true));
+
+        int slot = slab.poll();
+        assertEquals(0x01, slab.buffer(slot).get(0), "handshake overtakes queued data");
+        assertEquals(29, slab.buffer(slot).remaining());
+        slab.release(slot);
+        for (int i = 0; i < 3; i++) {
+            slot = slab.poll();
+            assertEquals(100 + i, slab.buffer(slot).remaining());
+            slab.release(slot);
+        }
+        assertEquals(IntMpscRing.EMPTY, slab.poll());
+
+        // Steady state: the same slots come back around, nothing new is allocated
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(slab.offer(message((byte) 0x00, 1472), false));
+            slot = slab.poll();
+            seen.add(slot);
+            slab.release(slot);
+        }
+        assertTrue(seen.size() <= slab.capacity());
+    }
+
+    @Test
+    public void testFullSlabAndOversizeMessagesAreDropped() {
+        InboundSlab slab = new InboundSlab(64, 1500);
+        for (int i = 0; i < slab.capacity(); i++) {
+            assertTrue(slab.offer(message((byte) 0x00, 10), false));
+        }
+        assertFalse(slab.offer(message((byte) 0x00, 10), false), "no free slot");
+        assertFalse(slab.offer(message((byte) 0x00, 1501), false), "larger than a slot");
+        assertEquals(slab.capacity(), slab.queued());
+        slab.clear();
+        assertEquals(0, slab.queued());
+        assertTrue(slab.offer(message((byte) 0x00, 10), false), "clear returned the slots");
+    }
+
+    @Test
+    public void testWrapperUnpacksBatchesIntoPooledMessages() throws Exception {
+        DataChannelWrapper wrapper = new DataChannelWrapper(null, "a", "b");
+        ByteBuffer batch = ByteBuffer.allocate(64);
+        batch.put(DataChannelWrapper.BATCH_SIGNAL).put(DataChannelWrapper.BATCH_TYPE).putShort((short) 2)
+                .putInt(DataChannelWrapper.BATCH_HEADER + 7 + 5);
+        batch.putShort((short) 5).put(new byte[] { 0, 1, 2, 3, 4 });
+        batch.putShort((short) 3).put(new byte[] { 0, 7, 8 });
+        batch.flip();
+        wrapper.onDataChannelMessage(new RTCDataChannelBuffer(batch, true));
+        wrapper.onDataChannelMessage(new RTCDataChannelBuffer(message((byte) 0x10, 12), true));
+
+        int h = wrapper.pollMessage(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0x10, wrapper.message(h).get(0), "ACK first");
+        wrapper.release(h);
+
+        h = wrapper.pollMessage(0);
+        assertEquals(5, wrapper.message(h).remaining());
+        assertEquals(4, wrapper.message(h).get(4));
+        wrapper.release(h);
+
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        assertEquals(3, wrapper.read(dst), "receive() copies once into the caller's buffer");
+        assertEquals(8, dst.get(2));
+        assertEquals(0, wrapper.read(dst.clear()), "empty after the wait");
+        assertEquals(0, wrapper.droppedPackets());
+    }
+
+    @Test
+    public void testDataPacketStartingWithTheBatchSignalStaysWhole() throws Exception {
+        DataChannelWrapper wrapper = new DataChannelWrapper(null, "a", "b");
+        // fileId high byte 0xB5; the rest would tile as the old [0xB5][count:u16] header
+        ByteBuffer packet = ByteBuffer.allocate(8);
+        packet.put(DataChannelWrapper.BATCH_SIGNAL).putShort((short) 1).putShort((short) 3).put(new byte[] { 1, 2, 3 });
+        packet.flip();
+        wrapper.onDataChannelMessage(new RTCDataChannelBuffer(packet, true));
+
+        int h = wrapper.pollMessage(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(8, wrapper.message(h).remaining(), "delivered as one packet");
+        wrapper.release(h);
+
+        // Right signal and type, but the declared length disagrees with the message
+        ByteBuffer forged = ByteBuffer.allocate(DataChannelWrapper.BATCH_HEADER + 4);
+        forged.put(DataChannelWrapper.BATCH_SIGNAL).put(DataChannelWrapper.BATCH_TYPE).putShort((short) 1)
+                .putInt(forged.capacity() + 1).putShort((short) 2).put(new byte[] { 9, 9 });
+        forged.flip();
+        wrapper.onDataChannelMessage(new RTCDataChannelBuffer(forged, true));
+
+        h = wrapper.pollMessage(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(forged.limit(), wrapper.message(h).remaining());
+        wrapper.release(h);
+    }
+
+    private static ByteBuffer message(byte signal, int length) {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        b.put(0, signal);
+        return b;
+    }
+}
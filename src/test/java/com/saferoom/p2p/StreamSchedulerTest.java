@@ -0,0 +1,85 @@
+package com.saferoom.p2p;
+
+import org.junit.jupiter.api.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the weighted turn order between large-frame streams
+ */
+public class StreamSchedulerTest {
+
+    private static final int FRAME = 1000;
+
+    @Test
+    public void testBackloggedStreamsShareByWeight() throws Exception {
+        StreamScheduler scheduler = new StreamScheduler();
+        StreamScheduler.Stream heavy = scheduler.open(1, 3);
+        StreamScheduler.Stream light = scheduler.open(2, 1);
+
+        run(scheduler, 400, heavy, light);
+
+        long heavyFrames = heavy.bytesSent() / FRAME;
+        long lightFrames = light.bytesSent() / FRAME;
+        assertEquals(400, heavyFrames + lightFrames);
+        assertTrue(heavyFrames >= 2 * lightFrames && heavyFrames <= 4 * lightFrames,
+            heavyFrames + " vs " + lightFrames);
+        assertEquals(0, scheduler.activeStreams());
+    }
+
+    @Test
+    public void testLateStreamDoesNotClaimPastTurns() throws Exception {
+        StreamScheduler scheduler = new StreamScheduler();
+        StreamScheduler.Stream early = scheduler.open(1, 1);
+        for (int i = 0; i < 50; i++) {
+            scheduler.acquire(early);
+            scheduler.release(early, FRAME, i < 49);
+        }
+        StreamScheduler.Stream late = scheduler.open(2, 1);
+        long before = early.bytesSent();
+
+        // Starting from pass 0 the late stream would take the next 50 turns alone
+        run(scheduler, 40, early, late);
+
+        long earlyFrames = (early.bytesSent() - before) / FRAME;
+        long lateFrames = late.bytesSent() / FRAME;
+        assertTrue(earlyFrames >= 15 && lateFrames >= 15, earlyFrames + " vs " + lateFrames);
+    }
+
+    /**
+     * Keep every stream backlogged until {@code total} frames went out. The
+     * turn is held for a moment, like a send waiting for channel room.
+     */
+    private static void run(StreamScheduler scheduler, int total, StreamScheduler.Stream... streams)
+            throws InterruptedException {
+        AtomicInteger frames = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(streams.length);
+        Thread[] threads = new Thread[streams.length];
+        for (int i = 0; i < streams.length; i++) {
+            StreamScheduler.Stream s = streams[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    start.countDown();
+                    start.await();
+                    boolean more = true;
+                    while (more) {
+                        scheduler.acquire(s);
+                        Thread.sleep(0, 50_000);
+                        more = frames.incrementAndGet() <= total;
+                        scheduler.release(s, more ? FRAME : 0, more);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    scheduler.close(s);
+                }
+            }, "stream-" + s.id);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(5_000);
+            assertFalse(t.isAlive());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.saferoom.transport;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the strict-priority classes of a peer connection
+ */
+public class PrioritySendSchedulerTest {
+
+    @Test
+    public void testQueuedMessagesLeaveInClassOrder() throws Exception {
+        PrioritySendScheduler scheduler = new PrioritySendScheduler(() -> 0, () -> 0);
+        List<String> wire = new CopyOnWriteArrayList<>();
+        CountDownLatch firstOnWire = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // The first writer holds the drain turn (slow native send)
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            try {
+                scheduler.send(TrafficClass.INTERACTIVE, ByteBuffer.allocate(1), m -> {
+                    firstOnWire.countDown();
+                    release.await();
+                    wire.add("chat-0");
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(firstOnWire.await(5, TimeUnit.SECONDS));
+
+        scheduler.send(TrafficClass.INTERACTIVE, ByteBuffer.allocate(1), m -> wire.add("chat-1"));
+        scheduler.send(TrafficClass.INTERACTIVE, ByteBuffer.allocate(1), m -> wire.add("chat-2"));
+        scheduler.send(TrafficClass.CONTROL, ByteBuffer.allocate(1), m -> wire.add("ack"));
+        assertTrue(wire.isEmpty(), "queued behind the writer, not written by these callers");
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("chat-0", "ack", "chat-1", "chat-2"), wire);
+    }
+
+    @Test
+    public void testFailedWriteReachesTheSender() throws Exception {
+        PrioritySendScheduler scheduler = new PrioritySendScheduler(() -> 0, () -> 0);
+        CountDownLatch firstOnWire = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            try {
+                scheduler.send(TrafficClass.INTERACTIVE, ByteBuffer.allocate(1), m -> {
+                    firstOnWire.countDown();
+                    release.await();
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(firstOnWire.await(5, TimeUnit.SECONDS));
+
+        // Written by the other caller's drain: the failure still comes back here
+        CompletableFuture<Void> ack = scheduler.send(TrafficClass.CONTROL, ByteBuffer.allocate(1), m -> {
+            throw new IOException("channel closed");
+        });
+        assertFalse(ack.isDone());
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ack.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException, e.toString());
+
+        scheduler.send(TrafficClass.CONTROL, ByteBuffer.allocate(1), m -> { }).get(5, TimeUnit.SECONDS);
+        assertTrue(scheduler.toString().contains("urgent sent=2, failed=1"), scheduler.toString());
+    }
+
+    @Test
+    public void testBulkYieldsWhileHigherClassesHaveData() throws Exception {
+        AtomicLong chatBuffered = new AtomicLong(300);
+        AtomicLong bulkBuffered = new AtomicLong();
+        PrioritySendScheduler scheduler = new PrioritySendScheduler(chatBuffered::get, bulkBuffered::get, 1_000);
+
+        CompletableFuture<Void> bulk = CompletableFuture.runAsync(() -> {
+            try {
+                scheduler.awaitBulk(400);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // Chat still in its channel's buffer
+        assertThrows(TimeoutException.class, () -> bulk.get(200, TimeUnit.MILLISECONDS));
+
+        chatBuffered.set(0);
+        scheduler.onBufferedAmountChange();
+        bulk.get(1, TimeUnit.SECONDS);
+
+        // Bulk never queues more than its yield depth in the shared association
+        bulkBuffered.set(800);
+        CompletableFuture<Void> deep = CompletableFuture.runAsync(() -> {
+            try {
+                scheduler.awaitBulk(400);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> deep.get(200, TimeUnit.MILLISECONDS));
+        bulkBuffered.set(500);
+        scheduler.onBufferedAmountChange();
+        deep.get(1, TimeUnit.SECONDS);
+
+        bulkBuffered.set(0);
+        scheduler.awaitBulk(5_000); // larger than the depth still goes once drained
+        assertTrue(scheduler.toString().contains("bulk yields=2"), scheduler.toString());
+    }
+}
@@ -0,0 +1,47 @@
+package com.saferoom.transport;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the bufferedAmount watermarks
+ */
+public class WritableGateTest {
+
+    @Test
+    public void testParkedSenderWakesAtLowWatermark() throws Exception {
+        AtomicLong buffered = new AtomicLong(900);
+        WritableGate gate = new WritableGate(buffered::get, 1_000, 300);
+
+        assertTrue(gate.writable(100).isDone(), "fits under the high mark");
+        CompletableFuture<Void> parked = gate.writable(200);
+        assertFalse(parked.isDone());
+
+        buffered.set(500); // drained, but not to the low mark: no wakeup yet
+        gate.onBufferedAmountChange();
+        assertFalse(parked.isDone());
+
+        buffered.set(300);
+        gate.onBufferedAmountChange();
+        parked.get(1, TimeUnit.SECONDS);
+
+        buffered.set(250);
+        assertTrue(gate.writable(5_000).isDone(), "larger than the gap still goes once drained");
+    }
+
+    @Test
+    public void testCloseFailsWaiters() throws Exception {
+        WritableGate gate = new WritableGate(() -> 2_000, 1_000, 300);
+        CompletableFuture<Void> parked = gate.writable(10);
+        gate.close(new IOException("closed"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> parked.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertTrue(gate.writable(10).isCompletedExceptionally(), "no new waiters after close");
+    }
+}